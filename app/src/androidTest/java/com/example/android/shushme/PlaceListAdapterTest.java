@@ -0,0 +1,156 @@
+package com.example.android.shushme;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+
+import com.example.android.shushme.provider.PlaceContract;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link PlaceListAdapter} only notifies the items that actually changed
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaceListAdapterTest {
+
+    private PlaceListAdapter mAdapter;
+    private CountingObserver mObserver;
+
+    @Before
+    public void setUp() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter = new PlaceListAdapter(InstrumentationRegistry.getTargetContext());
+                mObserver = new CountingObserver();
+                mAdapter.registerAdapterDataObserver(mObserver);
+            }
+        });
+    }
+
+    @Test
+    public void unchangedReload_rebindsNothing() throws Exception {
+        swap(places(100, -1, "Subway"));
+        assertEquals(100, mAdapter.getItemCount());
+        assertEquals(100, mObserver.inserted);
+
+        mObserver.reset();
+        swap(places(100, -1, "Subway"));
+        assertEquals(100, mAdapter.getItemCount());
+        assertEquals(0, mObserver.changed);
+        assertEquals(0, mObserver.inserted);
+        assertEquals(0, mObserver.removed);
+        assertEquals(0, mObserver.fullRefreshes);
+    }
+
+    @Test
+    public void renamedPlace_rebindsOnlyThatItem() throws Exception {
+        swap(places(100, -1, "Subway"));
+        mObserver.reset();
+        swap(places(100, 42, "Subway on George St"));
+        assertEquals(1, mObserver.changed);
+        assertEquals(0, mObserver.inserted);
+        assertEquals(0, mObserver.removed);
+        assertEquals(0, mObserver.fullRefreshes);
+        assertEquals(42, mAdapter.getItemId(42));
+    }
+
+    @Test
+    public void addedAndDeletedPlaces_areInsertedAndRemoved() throws Exception {
+        swap(places(10, -1, "Subway"));
+        mObserver.reset();
+        MatrixCursor cursor = newCursor();
+        for (int i = 1; i < 12; i++) cursor.addRow(new Object[]{i, "Place " + i, "Address " + i});
+        swap(cursor);
+        assertEquals(11, mAdapter.getItemCount());
+        assertEquals(1, mObserver.removed);
+        assertEquals(2, mObserver.inserted);
+        assertEquals(0, mObserver.changed);
+
+        mObserver.reset();
+        swap(null);
+        assertEquals(0, mAdapter.getItemCount());
+        assertEquals(11, mObserver.removed);
+    }
+
+    private void swap(final Cursor cursor) throws InterruptedException {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.swapCursor(cursor);
+            }
+        });
+        final boolean[] pending = {true};
+        while (pending[0]) {
+            Thread.sleep(5);
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    pending[0] = mAdapter.hasPendingUpdates();
+                }
+            });
+        }
+    }
+
+    private static MatrixCursor places(int count, int renamed, String newName) {
+        MatrixCursor cursor = newCursor();
+        for (int i = 0; i < count; i++) {
+            cursor.addRow(new Object[]{i, i == renamed ? newName : "Place " + i, "Address " + i});
+        }
+        return cursor;
+    }
+
+    private static MatrixCursor newCursor() {
+        return new MatrixCursor(new String[]{PlaceContract.PlaceEntry._ID,
+                PlaceContract.PlaceEntry.COLUMN_PLACE_NAME,
+                PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS});
+    }
+
+    private static class CountingObserver extends RecyclerView.AdapterDataObserver {
+        int changed;
+        int inserted;
+        int removed;
+        int fullRefreshes;
+
+        void reset() {
+            changed = inserted = removed = fullRefreshes = 0;
+        }
+
+        @Override
+        public void onChanged() {
+            fullRefreshes++;
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            changed += itemCount;
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+            changed += itemCount;
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            inserted += itemCount;
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            removed += itemCount;
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            changed += itemCount;
+        }
+    }
+}
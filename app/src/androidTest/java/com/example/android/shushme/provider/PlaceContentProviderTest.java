@@ -0,0 +1,582 @@
+package com.example.android.shushme.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.test.IsolatedContext;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.shushme.GeoMath;
+import com.example.android.shushme.PlaceRepository;
+import com.example.android.shushme.RingerController;
+import com.example.android.shushme.SilenceRollup;
+import com.example.android.shushme.TransitionJournal;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.example.android.shushme.provider.PlaceContract.SilenceEntry;
+import com.example.android.shushme.provider.PlaceContract.TransitionEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instrumentation tests for {@link PlaceContentProvider}, run against an isolated database.
+ */
+public class PlaceContentProviderTest extends ProviderTestCase2<PlaceContentProvider> {
+
+    private ContentResolver mResolver;
+
+    public PlaceContentProviderTest() {
+        super(PlaceContentProvider.class, PlaceContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testInsertSameUid_keepsId() {
+        Uri first = mResolver.insert(PlaceEntry.CONTENT_URI, place("uid", "Old name"));
+        Uri second = mResolver.insert(PlaceEntry.CONTENT_URI, place("uid", "New name"));
+        assertEquals(ContentUris.parseId(first), ContentUris.parseId(second));
+
+        Cursor cursor = mResolver.query(PlaceEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("New name", cursor.getString(cursor.getColumnIndex(PlaceEntry.COLUMN_PLACE_NAME)));
+        cursor.close();
+    }
+
+    public void testBulkInsert_insertsAndUpsertsInOneCall() {
+        Uri existing = mResolver.insert(PlaceEntry.CONTENT_URI, place("uid0", "Existing"));
+        ContentValues[] values = new ContentValues[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = place("uid" + i, "Place " + i);
+        }
+        assertEquals(1000, mResolver.bulkInsert(PlaceEntry.CONTENT_URI, values));
+
+        Cursor cursor = mResolver.query(PlaceEntry.CONTENT_URI, null,
+                PlaceEntry.COLUMN_PLACE_UID + "=?", new String[]{"uid0"}, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(ContentUris.parseId(existing), cursor.getLong(cursor.getColumnIndex(PlaceEntry._ID)));
+        assertEquals("Place 0", cursor.getString(cursor.getColumnIndex(PlaceEntry.COLUMN_PLACE_NAME)));
+        cursor.close();
+
+        cursor = mResolver.query(PlaceEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(1000, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testNear_returnsClosestFirstWithinRadius() {
+        // The places from test_locations.kml
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("library", "Library", -27.4764, 153.0203));
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("starbucks", "Starbucks", -27.4703356, 153.0257259));
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("subway", "Subway", -27.4703445, 153.0284443));
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("gardens", "Gardens", -27.4754086, 153.0298981));
+
+        Cursor cursor = mResolver.query(PlaceEntry.buildNearUri(-27.4703, 153.0257, 400, 0),
+                new String[]{PlaceEntry.COLUMN_PLACE_UID, PlaceEntry.COLUMN_DISTANCE}, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("starbucks", cursor.getString(0));
+        assertTrue(cursor.getDouble(1) < 10);
+        cursor.moveToNext();
+        assertEquals("subway", cursor.getString(0));
+        cursor.close();
+
+        // Without a radius the search widens until the limit is reached
+        cursor = mResolver.query(PlaceEntry.buildNearUri(-27.4764, 153.0203, 0, 3),
+                new String[]{PlaceEntry.COLUMN_PLACE_UID}, null, null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("library", cursor.getString(0));
+        cursor.close();
+    }
+
+    public void testCoordinates_areStoredAsExactIntegers() {
+        // Half a meter apart, a float only tells longitudes 1.5 m apart here
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("door", "Door", -27.4703356, 153.0257259));
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("desk", "Desk", -27.4703391, 153.0257288));
+
+        Cursor cursor = mResolver.query(PlaceEntry.CONTENT_URI, new String[]{PlaceEntry.COLUMN_LATITUDE_E7,
+                PlaceEntry.COLUMN_LONGITUDE_E7}, null, null, PlaceEntry.COLUMN_PLACE_UID);
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(0));
+        assertEquals(-274703391, cursor.getInt(0));
+        assertEquals(1530257288, cursor.getInt(1));
+        cursor.moveToNext();
+        assertEquals(-274703356, cursor.getInt(0));
+        assertEquals(-27.4703356, GeoMath.fromE7(cursor.getInt(0)), 0);
+        assertEquals(153.0257259, GeoMath.fromE7(cursor.getInt(1)), 0);
+        cursor.close();
+
+        // The near query measures from the exact coordinates
+        cursor = mResolver.query(PlaceEntry.buildNearUri(-27.4703356, 153.0257259, 1, 0),
+                new String[]{PlaceEntry.COLUMN_PLACE_UID, PlaceEntry.COLUMN_DISTANCE}, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("door", cursor.getString(0));
+        assertEquals(0, cursor.getDouble(1), 1e-6);
+        cursor.moveToNext();
+        assertEquals("desk", cursor.getString(0));
+        assertEquals(0.49, cursor.getDouble(1), 0.02);
+        cursor.close();
+    }
+
+    public void testNear_usesIndexAt100kRows() {
+        ContentValues[] values = new ContentValues[100000];
+        for (int i = 0; i < values.length; i++) {
+            // A 316 x 316 grid of places, roughly 110 m apart
+            values[i] = place("uid" + i, "Place " + i, -27 + (i / 316) * 0.001, 153 + (i % 316) * 0.001);
+        }
+        assertEquals(values.length, mResolver.bulkInsert(PlaceEntry.CONTENT_URI, values));
+
+        SQLiteDatabase db = new PlaceDbHelper(getMockContext()).getReadableDatabase();
+        int[] box = GeoMath.boundingBoxE7(-26.85, 153.15, 1000);
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + PlaceEntry.TABLE_NAME +
+                " WHERE " + PlaceContentProvider.NEAR_SELECTION, new String[]{Integer.toString(box[0]),
+                Integer.toString(box[1]), Integer.toString(box[2]), Integer.toString(box[3])});
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(plan.getColumnIndex("detail"))).append('\n');
+        }
+        plan.close();
+        assertTrue(details.toString(), details.toString().contains(PlaceEntry.INDEX_LAT_LNG));
+        // An integer range on the leading column of the index
+        assertTrue(details.toString(), details.toString().contains(PlaceEntry.COLUMN_LATITUDE_E7 + ">?"));
+        assertFalse(details.toString(), details.toString().contains("SCAN TABLE"));
+
+        long start = System.nanoTime();
+        Cursor cursor = mResolver.query(PlaceEntry.buildNearUri(-26.85, 153.15, 0, 10),
+                new String[]{PlaceEntry.COLUMN_PLACE_UID, PlaceEntry.COLUMN_DISTANCE}, null, null, null);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(10, cursor.getCount());
+        double previous = -1;
+        while (cursor.moveToNext()) {
+            assertTrue(cursor.getDouble(1) >= previous);
+            previous = cursor.getDouble(1);
+        }
+        cursor.close();
+        assertTrue("near query took " + elapsedMs + " ms", elapsedMs < 200);
+    }
+
+    public void testSearch_ranksPrefixMatches_andFollowsWrites() {
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("street", "Post Office", "12 Queen St"));
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("name", "Queen Street Mall", "Brisbane City"));
+        Uri library = mResolver.insert(PlaceEntry.CONTENT_URI, place("library", "State Library", "Stanley Pl"));
+
+        // A name hit ranks before an address hit, every word must match the start of a word
+        assertEquals("name,street", searchUids("qu"));
+        assertEquals("name,street", searchUids("QUEEN st"));
+        assertEquals("street", searchUids("office queen"));
+        assertEquals("name", searchUids("mall qu"));
+        assertEquals("", searchUids("ueen"));
+        assertEquals("", searchUids(" - "));
+        Cursor cursor = mResolver.query(PlaceEntry.buildSearchUri("queen", 1), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Queen Street Mall", cursor.getString(cursor.getColumnIndex(PlaceEntry.COLUMN_PLACE_NAME)));
+        cursor.close();
+
+        // Renamed, replaced by UID and deleted places are found as they are now
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, "Queensland Library");
+        mResolver.update(library, values, null, null);
+        // Equal scores by _ID
+        assertEquals("name,library,street", searchUids("queen"));
+        assertEquals("", searchUids("state"));
+        values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_GEOFENCE_RADIUS, 100);
+        mResolver.update(library, values, null, null);
+        assertEquals("library", searchUids("queensland"));
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("name", "Wintergarden", "Brisbane City"));
+        assertEquals("library,street", searchUids("queen"));
+        assertEquals("name", searchUids("winter"));
+        mResolver.delete(library, null, null);
+        assertEquals("street", searchUids("queen"));
+    }
+
+    public void testSearch_takesUnder10msAt100kRows() {
+        String[] streets = {"Queen", "Adelaide", "Ann", "Edward", "Albert", "Wickham", "Elizabeth",
+                "Charlotte", "Mary", "Margaret", "Alice", "Turbot", "Roma", "Boundary", "Brunswick",
+                "Logan", "Ipswich", "Stanley", "Vulture", "Grey"};
+        String[] kinds = {"Cafe", "Library", "Church", "Office", "Gym", "Cinema", "School"};
+        Random random = new Random(7);
+        ContentValues[] values = new ContentValues[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = place("uid" + i, kinds[random.nextInt(kinds.length)] + " " + i,
+                    random.nextInt(300) + " " + streets[random.nextInt(streets.length)] + " St");
+        }
+        assertEquals(values.length, mResolver.bulkInsert(PlaceEntry.CONTENT_URI, values));
+        // The only place named after a street, and the last one by _ID
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("last", "Wickham Hall", "1 Wickham St"));
+
+        // A first letter only finds the names starting with it, through the name index
+        Cursor first = mResolver.query(PlaceEntry.buildSearchUri("w", 200),
+                new String[]{PlaceEntry.COLUMN_PLACE_UID}, null, null, null);
+        assertEquals(1, first.getCount());
+        assertTrue(first.moveToFirst());
+        assertEquals("last", first.getString(0));
+        first.close();
+        SQLiteDatabase db = new PlaceDbHelper(getMockContext()).getReadableDatabase();
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + PlaceEntry.TABLE_NAME +
+                " WHERE " + PlaceContentProvider.NAME_PREFIX_SELECTION + " ORDER BY " +
+                PlaceContentProvider.NAME_ORDER + " LIMIT 200", new String[]{"c", "d"});
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(plan.getColumnIndex("detail"))).append('\n');
+        }
+        plan.close();
+        assertTrue(details.toString(), details.toString().contains(PlaceEntry.INDEX_NAME));
+        assertFalse(details.toString(), details.toString().contains("TEMP B-TREE"));
+
+        // Typed a letter at a time, each query asks for what the places filter shows
+        String[] typed = {"w", "wi", "wic", "wick", "wickh", "wickham", "wickham c", "wickham ca",
+                "c", "42", "424", "4242"};
+        for (String query : typed) {
+            long best = Long.MAX_VALUE;
+            int count = 0;
+            for (int run = 0; run < 3; run++) {
+                long start = System.nanoTime();
+                Cursor cursor = mResolver.query(PlaceEntry.buildSearchUri(query, 200), null, null, null, null);
+                count = cursor.getCount();
+                cursor.close();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            assertTrue(query, count > 0);
+            assertTrue("search for '" + query + "' took " + best / 1000000 + " ms", best < 10000000);
+        }
+    }
+
+    public void testTransitions_newestFirstWithLimit() throws Exception {
+        File directory = getMockContext().getFilesDir();
+        new File(directory, TransitionJournal.FILE_NAME).delete();
+        new File(directory, TransitionJournal.FILE_NAME + ".1").delete();
+        TransitionJournal journal = new TransitionJournal(directory, TransitionJournal.DEFAULT_MAX_BYTES);
+        for (int i = 0; i < 5; i++) journal.append(1000 + i, "uid" + i, 1, 2, 0);
+        journal.close();
+
+        Uri uri = TransitionEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(TransitionEntry.PARAM_LIMIT, "3").build();
+        Cursor cursor = mResolver.query(uri, new String[]{TransitionEntry.COLUMN_PLACE_UID,
+                TransitionEntry.COLUMN_TIMESTAMP}, null, null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("uid4", cursor.getString(0));
+        assertEquals(1004, cursor.getLong(1));
+        cursor.moveToLast();
+        assertEquals("uid2", cursor.getString(0));
+        cursor.close();
+        new File(directory, TransitionJournal.FILE_NAME).delete();
+    }
+
+    public void testSilenceRollups_matchBruteForceOverAYear() {
+        long minute = 60 * 1000;
+        Random random = new Random(13);
+        Calendar local = Calendar.getInstance();
+        local.set(2017, Calendar.JANUARY, 1, 0, 0, 0);
+        local.set(Calendar.MILLISECOND, 0);
+        long time = local.getTimeInMillis();
+        List<ContentValues> transitions = new ArrayList<>();
+        Map<Long, Long> expected = new HashMap<>();
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        for (int day = 0; day < 365; day++) {
+            // One visit a day, some of them running past midnight
+            long enter = time + (17 * 60 + random.nextInt(7 * 60)) * minute;
+            long exit = enter + (1 + random.nextInt(180)) * minute;
+            transitions.add(transition("uid", RingerController.TRANSITION_ENTER, enter));
+            transitions.add(transition("uid", RingerController.TRANSITION_EXIT, exit));
+            for (long t = enter; t < exit; t += minute) {
+                local.setTimeInMillis(t);
+                utc.clear();
+                utc.set(local.get(Calendar.YEAR), local.get(Calendar.MONTH), local.get(Calendar.DAY_OF_MONTH));
+                long key = utc.getTimeInMillis() / SilenceRollup.DAY_MILLIS;
+                expected.put(key, (expected.containsKey(key) ? expected.get(key) : 0) + minute);
+            }
+            time += SilenceRollup.DAY_MILLIS;
+        }
+        mResolver.bulkInsert(SilenceEntry.CONTENT_URI, transitions.toArray(new ContentValues[transitions.size()]));
+
+        Cursor cursor = mResolver.query(SilenceEntry.CONTENT_DAILY_URI,
+                new String[]{SilenceEntry.COLUMN_DAY, SilenceEntry.COLUMN_DURATION},
+                SilenceEntry.COLUMN_PLACE_UID + "=?", new String[]{"uid"}, null);
+        Map<Long, Long> actual = new HashMap<>();
+        while (cursor.moveToNext()) actual.put(cursor.getLong(0), cursor.getLong(1));
+        cursor.close();
+        assertEquals(expected, actual);
+
+        // A single week is one primary key lookup
+        long week = SilenceRollup.weekOf(SilenceRollup.dayOf(time - 30 * SilenceRollup.DAY_MILLIS,
+                TimeZone.getDefault()));
+        cursor = mResolver.query(SilenceEntry.CONTENT_WEEKLY_URI,
+                new String[]{SilenceEntry.COLUMN_DURATION},
+                SilenceEntry.COLUMN_PLACE_UID + "=? AND " + SilenceEntry.COLUMN_WEEK + "=?",
+                new String[]{"uid", Long.toString(week)}, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertTrue(cursor.getLong(0) > 0);
+        cursor.close();
+    }
+
+    public void testPlaceColumns_followTableWrites() throws Exception {
+        File file = new File(getMockContext().getFilesDir(), PlaceColumns.FILE_NAME);
+        file.delete();
+        new File(file.getPath() + ".stale").delete();
+
+        ContentValues[] values = new ContentValues[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = place("uid" + i, "Place " + i, -27 - i / 1000.0, 153 + i / 1000.0);
+        }
+        mResolver.bulkInsert(PlaceEntry.CONTENT_URI, values);
+        Cursor cursor = mResolver.query(PlaceEntry.CONTENT_URI, new String[]{PlaceEntry._ID},
+                null, null, PlaceEntry._ID);
+        cursor.moveToPosition(10);
+        long deleted = cursor.getLong(0);
+        cursor.moveToPosition(20);
+        long moved = cursor.getLong(0);
+        cursor.close();
+        mResolver.delete(ContentUris.withAppendedId(PlaceEntry.CONTENT_URI, deleted), null, null);
+        ContentValues update = new ContentValues();
+        update.put(PlaceEntry.COLUMN_LATITUDE_E7, GeoMath.toE7(51.5007292));
+        update.put(PlaceEntry.COLUMN_LONGITUDE_E7, GeoMath.toE7(-0.1246254));
+        mResolver.update(ContentUris.withAppendedId(PlaceEntry.CONTENT_URI, moved), update, null, null);
+
+        // The file is rewritten in the background, give it a moment to catch up
+        PlaceColumns columns = null;
+        for (int attempt = 0; attempt < 100; attempt++) {
+            columns = file.exists() ? PlaceColumns.map(file) : null;
+            if (columns != null && columns.size() == 999 && columns.indexOfId(deleted) < 0
+                    && columns.getLatitudeE7(columns.indexOfId(moved)) == 515007292) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertNotNull(columns);
+        assertEquals(999, columns.size());
+        assertTrue(columns.indexOfId(deleted) < 0);
+        int index = columns.indexOfId(moved);
+        assertEquals("uid20", columns.getUid(index));
+        assertEquals(-0.1246254, columns.getLongitude(index), 1e-7);
+
+        cursor = mResolver.query(PlaceEntry.CONTENT_URI, null, null, null, PlaceEntry._ID);
+        assertEquals(columns.size(), cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(cursor.getLong(cursor.getColumnIndex(PlaceEntry._ID)), columns.getId(i));
+            assertEquals(cursor.getString(cursor.getColumnIndex(PlaceEntry.COLUMN_PLACE_UID)), columns.getUid(i));
+            assertEquals(cursor.getInt(cursor.getColumnIndex(PlaceEntry.COLUMN_LATITUDE_E7)),
+                    columns.getLatitudeE7(i));
+        }
+        cursor.close();
+
+        // Near queries scan the columns once they caught up, and read the rest from the table
+        cursor = mResolver.query(PlaceEntry.buildNearUri(51.5007, -0.1246, 0, 2),
+                new String[]{PlaceEntry._ID, PlaceEntry.COLUMN_PLACE_NAME, PlaceEntry.COLUMN_DISTANCE},
+                null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(moved, cursor.getLong(0));
+        assertEquals("Place 20", cursor.getString(1));
+        assertTrue(cursor.getDouble(2) < 50);
+        cursor.moveToNext();
+        assertTrue(cursor.getDouble(2) > 1000000);
+        cursor.close();
+        cursor = mResolver.query(PlaceEntry.buildNearUri(-27, 153, 100, 0), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("uid0", cursor.getString(cursor.getColumnIndex(PlaceEntry.COLUMN_PLACE_UID)));
+        assertTrue(cursor.getColumnIndex(PlaceEntry.COLUMN_DISTANCE) >= 0);
+        cursor.close();
+    }
+
+    public void testPlaceRepository_followsTableWrites() throws Exception {
+        PlaceRepository repository = PlaceRepository.getInstance();
+        ContentValues[] values = new ContentValues[100];
+        for (int i = 0; i < values.length; i++) values[i] = place("uid" + i, "Place " + i);
+        mResolver.bulkInsert(PlaceEntry.CONTENT_URI, values);
+        PlaceRepository.Snapshot snapshot = repository.getSnapshot();
+        assertEquals(100, snapshot.size());
+
+        final List<List<PlaceRepository.Delta>> changes = new ArrayList<>();
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        repository.subscribe(new PlaceRepository.Listener() {
+            @Override
+            public void onPlacesChanged(PlaceRepository.Snapshot snapshot, List<PlaceRepository.Delta> deltas) {
+                synchronized (changes) {
+                    changes.add(deltas);
+                }
+                subscribed.countDown();
+            }
+        });
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+        long renamed = snapshot.getByUid("uid1").id;
+        long deleted = snapshot.getByUid("uid2").id;
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(PlaceEntry.CONTENT_URI, renamed))
+                .withValue(PlaceEntry.COLUMN_PLACE_NAME, "Renamed").build());
+        operations.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(PlaceEntry.CONTENT_URI, deleted))
+                .build());
+        mResolver.applyBatch(PlaceContract.AUTHORITY, operations);
+        // Only touches a column the repository doesn't keep, so nothing is published
+        ContentValues synced = new ContentValues();
+        synced.put(PlaceEntry.COLUMN_LAST_SYNCED, 1234L);
+        mResolver.update(ContentUris.withAppendedId(PlaceEntry.CONTENT_URI, renamed), synced, null, null);
+
+        // Up to date as soon as the writes return
+        snapshot = repository.getSnapshot();
+        assertEquals(99, snapshot.size());
+        assertEquals("Renamed", snapshot.getById(renamed).name);
+        assertNull(snapshot.getByUid("uid2"));
+
+        // The batch is one change, with one delta per place
+        for (int attempt = 0; attempt < 50; attempt++) {
+            synchronized (changes) {
+                if (changes.size() >= 2) break;
+            }
+            Thread.sleep(20);
+        }
+        synchronized (changes) {
+            assertEquals(2, changes.size());
+            List<PlaceRepository.Delta> deltas = changes.get(1);
+            assertEquals(2, deltas.size());
+            for (PlaceRepository.Delta delta : deltas) {
+                assertEquals(delta.getPlace().id == renamed
+                        ? PlaceRepository.Delta.UPDATED : PlaceRepository.Delta.REMOVED, delta.type);
+            }
+        }
+    }
+
+    public void testPlaceWithId_returnsOneRow() {
+        mResolver.insert(PlaceEntry.CONTENT_URI, place("first", "First"));
+        Uri second = mResolver.insert(PlaceEntry.CONTENT_URI, place("second", "Second"));
+        assertEquals(PlaceEntry.buildPlaceUri(ContentUris.parseId(second)), second);
+
+        Cursor cursor = mResolver.query(second, new String[]{PlaceEntry.COLUMN_PLACE_UID}, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("second", cursor.getString(0));
+        cursor.close();
+
+        // The selection is combined with the _ID, not replaced by it
+        cursor = mResolver.query(second, null, PlaceEntry.COLUMN_PLACE_UID + "=?", new String[]{"first"}, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testGetType() {
+        assertEquals(PlaceEntry.CONTENT_TYPE, mResolver.getType(PlaceEntry.CONTENT_URI));
+        assertEquals(PlaceEntry.CONTENT_ITEM_TYPE, mResolver.getType(PlaceEntry.buildPlaceUri(7)));
+        assertEquals(PlaceEntry.CONTENT_TYPE, mResolver.getType(PlaceEntry.buildNearUri(-27, 153, 100, 0)));
+        assertEquals(PlaceEntry.CONTENT_TYPE, mResolver.getType(PlaceEntry.buildSearchUri("queen", 0)));
+        assertEquals(TransitionEntry.CONTENT_TYPE, mResolver.getType(TransitionEntry.CONTENT_URI));
+    }
+
+    public void testPlaceWrites_notifyRowChanges() throws Exception {
+        RecordingResolver resolver = new RecordingResolver();
+        PlaceContentProvider provider = new PlaceContentProvider();
+        provider.attachInfo(new IsolatedContext(resolver, getMockContext()), null);
+        resolver.addProvider(PlaceContract.AUTHORITY, provider);
+
+        long id = ContentUris.parseId(resolver.insert(PlaceEntry.CONTENT_URI, place("uid", "Name")));
+        ContentValues renamed = new ContentValues();
+        renamed.put(PlaceEntry.COLUMN_PLACE_NAME, "Renamed");
+        resolver.update(PlaceEntry.buildPlaceUri(id), renamed, null, null);
+        resolver.delete(PlaceEntry.buildPlaceUri(id), null, null);
+        assertEquals(3, resolver.notified.size());
+        assertEquals(PlaceEntry.buildChangeUri(id, PlaceEntry.CHANGE_INSERT), resolver.notified.get(0));
+        assertEquals(PlaceEntry.CHANGE_UPDATE, PlaceEntry.getChange(resolver.notified.get(1)));
+        assertEquals(PlaceEntry.CHANGE_DELETE, PlaceEntry.getChange(resolver.notified.get(2)));
+        assertEquals(id, ContentUris.parseId(resolver.notified.get(2)));
+
+        // A batch notifies once per place after it commits, an update after an insert stays an insert
+        resolver.notified.clear();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(PlaceEntry.CONTENT_URI)
+                .withValues(place("batched", "Batched")).build());
+        operations.add(ContentProviderOperation.newInsert(PlaceEntry.CONTENT_URI)
+                .withValues(place("batched", "Batched again")).build());
+        resolver.applyBatch(PlaceContract.AUTHORITY, operations);
+        assertEquals(1, resolver.notified.size());
+        assertEquals(PlaceEntry.CHANGE_INSERT, PlaceEntry.getChange(resolver.notified.get(0)));
+
+        // Past MAX_ROW_NOTIFICATIONS rows the directory is notified once instead
+        resolver.notified.clear();
+        ContentValues[] values = new ContentValues[PlaceContentProvider.MAX_ROW_NOTIFICATIONS + 1];
+        for (int i = 0; i < values.length; i++) values[i] = place("bulk" + i, "Bulk " + i);
+        resolver.bulkInsert(PlaceEntry.CONTENT_URI, values);
+        assertEquals(1, resolver.notified.size());
+        assertEquals(PlaceEntry.CONTENT_URI, resolver.notified.get(0));
+        assertNull(PlaceEntry.getChange(resolver.notified.get(0)));
+    }
+
+    private static ContentValues transition(String uid, int transition, long timeMillis) {
+        ContentValues values = new ContentValues();
+        values.put(SilenceEntry.COLUMN_PLACE_UID, uid);
+        values.put(SilenceEntry.COLUMN_TRANSITION, transition);
+        values.put(SilenceEntry.COLUMN_TIMESTAMP, timeMillis);
+        return values;
+    }
+
+    static ContentValues place(String uid, String name) {
+        return place(uid, name, -27.4703356, 153.0257259);
+    }
+
+    static ContentValues place(String uid, String name, String address) {
+        ContentValues values = place(uid, name);
+        values.put(PlaceEntry.COLUMN_PLACE_ADDRESS, address);
+        return values;
+    }
+
+    /**
+     * @return the UIDs of the places a search finds, in rank order
+     */
+    private String searchUids(String query) {
+        Cursor cursor = mResolver.query(PlaceEntry.buildSearchUri(query, 0),
+                new String[]{PlaceEntry.COLUMN_PLACE_UID}, null, null, null);
+        StringBuilder uids = new StringBuilder();
+        while (cursor.moveToNext()) {
+            if (uids.length() > 0) uids.append(',');
+            uids.append(cursor.getString(0));
+        }
+        cursor.close();
+        return uids.toString();
+    }
+
+    static ContentValues place(String uid, String name, double latitude, double longitude) {
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_UID, uid);
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, name);
+        values.put(PlaceEntry.COLUMN_PLACE_ADDRESS, name + " address");
+        values.put(PlaceEntry.COLUMN_LATITUDE_E7, GeoMath.toE7(latitude));
+        values.put(PlaceEntry.COLUMN_LONGITUDE_E7, GeoMath.toE7(longitude));
+        return values;
+    }
+
+    /**
+     * The mock resolver drops notifications, this one keeps them
+     */
+    private static class RecordingResolver extends MockContentResolver {
+        final List<Uri> notified = new ArrayList<>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            notified.add(uri);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.android.shushme.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.shushme.GeoMath;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.example.android.shushme.provider.PlaceContract.SilenceEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Upgrades databases created by the first version of the app with {@link PlaceDbHelper}
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaceDbHelperTest {
+
+    private static final String DATABASE_NAME = "migration_test.db";
+    // Places 1 to ROWS are created, ROWS + 1 was created and deleted again
+    private static final int ROWS = 100000;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsEveryPlace() {
+        createVersion1Database(false);
+
+        PlaceDbHelper helper = new PlaceDbHelper(mContext, DATABASE_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        assertEquals(PlaceDbHelper.DATABASE_VERSION, db.getVersion());
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, PlaceEntry.TABLE_NAME));
+        Cursor cursor = db.query(PlaceEntry.TABLE_NAME, null, PlaceEntry._ID + "=?",
+                new String[]{"12345"}, null, null, null);
+        cursor.moveToFirst();
+        assertEquals("uid12344", cursor.getString(cursor.getColumnIndex(PlaceEntry.COLUMN_PLACE_UID)));
+        assertEquals("Place 12344", cursor.getString(cursor.getColumnIndex(PlaceEntry.COLUMN_PLACE_NAME)));
+        assertEquals(-271234400, cursor.getInt(cursor.getColumnIndex(PlaceEntry.COLUMN_LATITUDE_E7)));
+        assertEquals(1531234400, cursor.getInt(cursor.getColumnIndex(PlaceEntry.COLUMN_LONGITUDE_E7)));
+        assertEquals(PlaceEntry.DEFAULT_GEOFENCE_RADIUS,
+                cursor.getFloat(cursor.getColumnIndex(PlaceEntry.COLUMN_GEOFENCE_RADIUS)), 0);
+        assertEquals(PlaceEntry.DEFAULT_LOITERING_DELAY,
+                cursor.getInt(cursor.getColumnIndex(PlaceEntry.COLUMN_LOITERING_DELAY)));
+        assertEquals(PlaceEntry.DEFAULT_RESPONSIVENESS,
+                cursor.getInt(cursor.getColumnIndex(PlaceEntry.COLUMN_RESPONSIVENESS)));
+        assertEquals(0, cursor.getLong(cursor.getColumnIndex(PlaceEntry.COLUMN_LAST_SYNCED)));
+        cursor.close();
+
+        // Every coordinate was converted to the nearest E7 integer
+        cursor = db.query(PlaceEntry.TABLE_NAME, new String[]{PlaceEntry.COLUMN_PLACE_UID,
+                PlaceEntry.COLUMN_LATITUDE_E7, PlaceEntry.COLUMN_LONGITUDE_E7}, null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            int i = Integer.parseInt(cursor.getString(0).substring(3));
+            assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(1));
+            assertEquals(GeoMath.toE7(-27 - i * 1e-5), cursor.getInt(1));
+            assertEquals(GeoMath.toE7(153 + i * 1e-5), cursor.getInt(2));
+        }
+        cursor.close();
+        // The old FLOAT columns are gone
+        cursor = db.query(PlaceEntry.TABLE_NAME, null, null, null, null, null, null, "1");
+        assertEquals(-1, cursor.getColumnIndex("placeLatitude"));
+        cursor.close();
+
+        // The _ID of the place deleted before the upgrade isn't handed out again
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_UID, "new");
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, "New");
+        values.put(PlaceEntry.COLUMN_PLACE_ADDRESS, "1 Queen St");
+        values.put(PlaceEntry.COLUMN_LATITUDE_E7, 0);
+        values.put(PlaceEntry.COLUMN_LONGITUDE_E7, 0);
+        assertEquals(ROWS + 2, db.insert(PlaceEntry.TABLE_NAME, null, values));
+
+        // Bounding boxes are integer range scans over the rebuilt index
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + PlaceEntry.TABLE_NAME +
+                " WHERE " + PlaceContentProvider.NEAR_SELECTION,
+                new String[]{"-271000000", "-270000000", "1530000000", "1531000000"});
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) details.append(plan.getString(plan.getColumnIndex("detail")));
+        plan.close();
+        assertTrue(details.toString(), details.toString().contains(PlaceEntry.INDEX_LAT_LNG));
+        assertTrue(details.toString(), details.toString().contains(PlaceEntry.COLUMN_LATITUDE_E7 + ">?"));
+
+        // The places are in the search table, which follows later writes
+        assertEquals(ROWS + 2, DatabaseUtils.longForQuery(db, "SELECT docid FROM " +
+                PlaceEntry.TABLE_SEARCH + " WHERE " + PlaceEntry.TABLE_SEARCH + " MATCH ?",
+                new String[]{"new 1 queen"}));
+        assertEquals(12345, DatabaseUtils.longForQuery(db, "SELECT docid FROM " +
+                PlaceEntry.TABLE_SEARCH + " WHERE " + PlaceEntry.TABLE_SEARCH + " MATCH ?",
+                new String[]{"place 12344"}));
+
+        // Everything the later versions added is there
+        assertEquals(1, countSchemaEntries(db, PlaceEntry.INDEX_LAT_LNG));
+        assertEquals(1, countSchemaEntries(db, PlaceEntry.INDEX_NAME));
+        assertEquals(1, countSchemaEntries(db, SilenceEntry.TABLE_OPEN));
+        assertEquals(1, countSchemaEntries(db, SilenceEntry.TABLE_DAILY));
+        assertEquals(1, countSchemaEntries(db, SilenceEntry.TABLE_WEEKLY));
+        helper.close();
+    }
+
+    @Test
+    public void failedUpgrade_leavesVersion1Untouched() {
+        // A column the upgrade adds already exists, so the upgrade fails half way through
+        createVersion1Database(true);
+
+        PlaceDbHelper helper = new PlaceDbHelper(mContext, DATABASE_NAME);
+        try {
+            helper.getWritableDatabase();
+            fail("The upgrade should have failed");
+        } catch (SQLiteException expected) {
+        }
+        helper.close();
+
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(mContext.getDatabasePath(DATABASE_NAME).getPath(),
+                null, SQLiteDatabase.OPEN_READONLY);
+        assertEquals(1, db.getVersion());
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, PlaceEntry.TABLE_NAME));
+        // The steps that ran before the failure were rolled back too
+        assertEquals(0, countSchemaEntries(db, PlaceEntry.INDEX_LAT_LNG));
+        assertEquals(0, countSchemaEntries(db, SilenceEntry.TABLE_OPEN));
+        db.close();
+    }
+
+    /**
+     * Creates the places table exactly as version 1 of the app did, filled with ROWS places
+     */
+    private void createVersion1Database(boolean withConflictingColumn) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE places (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "placeUID TEXT NOT NULL, " +
+                "placeName TEXT NOT NULL, " +
+                "placeAddress TEXT NOT NULL, " +
+                "placeLatitude FLOAT NOT NULL, " +
+                "placeLongitude FLOAT NOT NULL, " +
+                (withConflictingColumn ? "responsiveness INTEGER, " : "") +
+                "UNIQUE (placeUID) ON CONFLICT REPLACE" +
+                "); ");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO places " +
+                "(placeUID, placeName, placeAddress, placeLatitude, placeLongitude) VALUES (?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                insert.bindString(1, "uid" + i);
+                insert.bindString(2, "Place " + i);
+                insert.bindString(3, i + " Queen St");
+                insert.bindDouble(4, -27 - i * 1e-5);
+                insert.bindDouble(5, 153 + i * 1e-5);
+                insert.executeInsert();
+            }
+            insert.bindString(1, "deleted");
+            insert.executeInsert();
+            db.delete("places", "placeUID=?", new String[]{"deleted"});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.setVersion(1);
+        db.close();
+    }
+
+    private static long countSchemaEntries(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE name=?",
+                new String[]{name});
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over a fixed set of circular fences, for answering "which fences contain this
+ * point" without looking at every fence.
+ * <p>
+ * Each fence is listed in every cell its bounding box touches. Cells are stored in compressed
+ * form (one int array of fence indices plus offsets) behind an open-addressing map from cell key
+ * to offset, so lookups allocate nothing. Containment uses a local equirectangular projection
+ * around each fence center, which is accurate to well under a meter at geofence scales.
+ */
+public final class FenceGrid {
+
+    private static final long LNG_CELLS = 1L << 32;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final GeofenceSpec[] mFences;
+    private final double[] mLat;
+    private final double[] mLng;
+    // Meters per degree of longitude at each fence center
+    private final double[] mLngScale;
+    private final double[] mRadius;
+    private final double mCellDegrees;
+
+    // Cell key -> bucket, open addressing
+    private final long[] mKeys;
+    private final int[] mBuckets;
+    // Fences of bucket b are mBucketFences[mBucketStart[b] .. mBucketStart[b + 1])
+    private final int[] mBucketStart;
+    private final int[] mBucketFences;
+
+    /**
+     * @param fences     the fences to index
+     * @param cellMeters the size of a grid cell, a few fence radii works well
+     */
+    public FenceGrid(Collection<GeofenceSpec> fences, double cellMeters) {
+        int n = fences.size();
+        mFences = fences.toArray(new GeofenceSpec[n]);
+        mLat = new double[n];
+        mLng = new double[n];
+        mLngScale = new double[n];
+        mRadius = new double[n];
+        mCellDegrees = cellMeters / GeoMath.METERS_PER_DEGREE;
+
+        Map<Long, List<Integer>> cells = new HashMap<>();
+        int entries = 0;
+        for (int i = 0; i < n; i++) {
+            GeofenceSpec fence = mFences[i];
+            mLat[i] = fence.latitude;
+            mLng[i] = fence.longitude;
+            mLngScale[i] = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(fence.latitude));
+            mRadius[i] = fence.radius;
+            double[] box = GeoMath.boundingBox(fence.latitude, fence.longitude, fence.radius);
+            long minLatCell = latCell(box[0]);
+            long maxLatCell = latCell(box[1]);
+            long minLngCell = lngCell(box[2]);
+            long maxLngCell = lngCell(box[3]);
+            for (long la = minLatCell; la <= maxLatCell; la++) {
+                for (long lo = minLngCell; lo <= maxLngCell; lo++) {
+                    Long key = la * LNG_CELLS + lo;
+                    List<Integer> cell = cells.get(key);
+                    if (cell == null) {
+                        cell = new ArrayList<>(4);
+                        cells.put(key, cell);
+                    }
+                    cell.add(i);
+                    entries++;
+                }
+            }
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(4, cells.size() * 2)) * 2;
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, EMPTY);
+        mBuckets = new int[capacity];
+        mBucketStart = new int[cells.size() + 1];
+        mBucketFences = new int[entries];
+        int bucket = 0;
+        int offset = 0;
+        for (Map.Entry<Long, List<Integer>> cell : cells.entrySet()) {
+            long key = cell.getKey();
+            int slot = slot(key);
+            while (mKeys[slot] != EMPTY) slot = (slot + 1) & (capacity - 1);
+            mKeys[slot] = key;
+            mBuckets[slot] = bucket;
+            mBucketStart[bucket] = offset;
+            for (int fence : cell.getValue()) mBucketFences[offset++] = fence;
+            bucket++;
+        }
+        mBucketStart[bucket] = offset;
+    }
+
+    /**
+     * Picks a cell size of four times the median fence radius, at least 100 meters
+     */
+    public static FenceGrid create(Collection<GeofenceSpec> fences) {
+        double[] radii = new double[fences.size()];
+        int i = 0;
+        for (GeofenceSpec fence : fences) radii[i++] = fence.radius;
+        Arrays.sort(radii);
+        double median = radii.length == 0 ? 0 : radii[radii.length / 2];
+        return new FenceGrid(fences, Math.max(100, 4 * median));
+    }
+
+    public int size() {
+        return mFences.length;
+    }
+
+    public GeofenceSpec fence(int index) {
+        return mFences[index];
+    }
+
+    /**
+     * @return the bucket of the cell containing the point, or -1 if no fence touches that cell
+     */
+    public int findBucket(double lat, double lng) {
+        long key = latCell(lat) * LNG_CELLS + lngCell(lng);
+        int mask = mKeys.length - 1;
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            long k = mKeys[slot];
+            if (k == key) return mBuckets[slot];
+            if (k == EMPTY) return -1;
+        }
+    }
+
+    /**
+     * Fences that may contain a point in the bucket are fenceAt(bucketStart(b)) up to, but not
+     * including, fenceAt(bucketStart(b + 1))
+     */
+    public int bucketStart(int bucket) {
+        return mBucketStart[bucket];
+    }
+
+    public int fenceAt(int position) {
+        return mBucketFences[position];
+    }
+
+    /**
+     * @return true if the point is inside (or on the boundary of) the fence
+     */
+    public boolean contains(int fence, double lat, double lng) {
+        double dy = (lat - mLat[fence]) * GeoMath.METERS_PER_DEGREE;
+        double dx = (lng - mLng[fence]) * mLngScale[fence];
+        double r = mRadius[fence];
+        return dx * dx + dy * dy <= r * r;
+    }
+
+    /**
+     * @return the distance in meters from the point to the fence boundary, negative when inside
+     */
+    public double distanceToBoundary(int fence, double lat, double lng) {
+        double dy = (lat - mLat[fence]) * GeoMath.METERS_PER_DEGREE;
+        double dx = (lng - mLng[fence]) * mLngScale[fence];
+        return Math.sqrt(dx * dx + dy * dy) - mRadius[fence];
+    }
+
+    private long latCell(double lat) {
+        return (long) Math.floor((lat + 90) / mCellDegrees);
+    }
+
+    private long lngCell(double lng) {
+        return (long) Math.floor((lng + 180) / mCellDegrees);
+    }
+
+    private int slot(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32)) & (mKeys.length - 1);
+    }
+}
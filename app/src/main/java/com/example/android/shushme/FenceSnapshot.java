@@ -0,0 +1,154 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary copy of the places' fences, so that they can be registered again at boot or
+ * by the renewal alarm without opening the database.
+ * <p>
+ * The file is laid out as (big endian):
+ * <pre>
+ *   magic "SHFS" (4 bytes), version (4 bytes), number of fences (4 bytes)
+ *   per fence: request id length (2 bytes), request id (UTF-8), latitude (8 bytes),
+ *              longitude (8 bytes), radius (4 bytes), transition types (4 bytes),
+ *              loitering delay (4 bytes), responsiveness (4 bytes)
+ *   CRC32 of everything before it (4 bytes)
+ * </pre>
+ * It is written to a temporary file and renamed over the old one, so a reader sees either the
+ * previous snapshot or the new one, never a mix.
+ */
+public final class FenceSnapshot {
+
+    public static final String FILE_NAME = "fences.snapshot";
+
+    private static final int MAGIC = 0x53484653; // "SHFS"
+    // Version 2 adds the loitering delay and responsiveness
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int FENCE_FIXED_SIZE = 2 + 8 + 8 + 4 + 4 + 4 + 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FenceSnapshot() {
+    }
+
+    /**
+     * Replaces the snapshot with the given fences
+     *
+     * @param file   the snapshot file
+     * @param fences the fences, in the order they should be read back
+     * @throws IOException if the snapshot can't be written, the previous one is left in place
+     */
+    public static void write(File file, List<GeofenceSpec> fences) throws IOException {
+        byte[][] ids = new byte[fences.size()][];
+        int size = HEADER_SIZE + 4;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = fences.get(i).requestId.getBytes(UTF_8);
+            if (ids[i].length > 0xffff) throw new IOException("Request id too long: " + fences.get(i));
+            size += FENCE_FIXED_SIZE + ids[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            GeofenceSpec fence = fences.get(i);
+            buffer.putShort((short) ids[i].length).put(ids[i]);
+            buffer.putDouble(fence.latitude).putDouble(fence.longitude);
+            buffer.putFloat(fence.radius).putInt(fence.transitionTypes);
+            buffer.putInt(fence.loiteringDelay).putInt(fence.responsiveness);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(buffer.array());
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads the fences back in the order they were written
+     *
+     * @param file the snapshot file
+     * @return the fences
+     * @throws java.io.FileNotFoundException if there is no snapshot
+     * @throws IOException                   if the snapshot can't be read or is corrupt
+     */
+    public static List<GeofenceSpec> read(File file) throws IOException {
+        byte[] bytes = readFully(file);
+        if (bytes.length < HEADER_SIZE + 4) throw new IOException("Truncated snapshot " + file);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if (buffer.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            throw new IOException("Corrupt snapshot " + file);
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a version " + VERSION + " snapshot " + file);
+        }
+        int count = buffer.getInt();
+        List<GeofenceSpec> fences = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getShort() & 0xffff;
+                String requestId = new String(bytes, buffer.position(), length, UTF_8);
+                buffer.position(buffer.position() + length);
+                fences.add(new GeofenceSpec(requestId, buffer.getDouble(), buffer.getDouble(),
+                        buffer.getFloat(), buffer.getInt(), buffer.getInt(), buffer.getInt()));
+            }
+        } catch (RuntimeException e) {
+            // A bad count or length that still passed the CRC
+            throw new IOException("Malformed snapshot " + file, e);
+        }
+        return fences;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            long length = input.getChannel().size();
+            if (length > Integer.MAX_VALUE) throw new IOException("Snapshot too large " + file);
+            byte[] bytes = new byte[(int) length];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = input.read(bytes, read, bytes.length - read);
+                if (n < 0) throw new IOException("Truncated snapshot " + file);
+                read += n;
+            }
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+}
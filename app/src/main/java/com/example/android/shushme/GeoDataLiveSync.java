@@ -16,17 +16,18 @@ package com.example.android.shushme;
 * limitations under the License.
 */
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.example.android.shushme.provider.PlaceContract;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.location.places.GeoDataApi;
 import com.google.android.gms.location.places.Place;
@@ -34,107 +35,169 @@ import com.google.android.gms.location.places.PlaceBuffer;
 import com.google.android.gms.location.places.Places;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class GeoDataLiveSync {
+/**
+ * Keeps the name and address of the saved places in line with the Places API, see
+ * {@link LivePlaceSync} for how stale places are found, chunked and retried
+ */
+public class GeoDataLiveSync implements LivePlaceSync.Store, LivePlaceSync.Api {
 
     private static final String TAG = GeoDataApi.class.getSimpleName();
+
+    private static final Metrics.Histogram SYNC_TIME = Metrics.histogram("livesync.sync");
+    private static final Metrics.Histogram APPLY_TIME = Metrics.histogram("livesync.apply");
+    private static final Metrics.Counter PLACES_UPDATED = Metrics.counter("livesync.places_updated");
+    private static final Metrics.Counter PLACES_FAILED = Metrics.counter("livesync.places_failed");
+
+    // Shared by every instance, the activity creates a new one each time it is recreated
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    private static final AtomicBoolean sSyncing = new AtomicBoolean();
+
     private final Context mContext;
     private final GoogleApiClient mClient;
-    private boolean mNeverSynced;
+    private final LivePlaceSync mSync;
 
     public GeoDataLiveSync(Context context, GoogleApiClient client) {
-        mContext = context;
+        mContext = context.getApplicationContext();
         mClient = client;
-        mNeverSynced = true;
+        mSync = new LivePlaceSync(this, this, EXECUTOR, new LivePlaceSync.Config());
     }
 
     /**
-     * Calls the API's getPlaceById to request live data for all Places stored locally
-     * Triggers onResult when complete
+     * Requests live data for the places that weren't synced within the TTL, in the background
+     * Safe to call on every connection, it does nothing while a sync is already running
      */
     public void syncWithLivePlaces() {
-        if (!mNeverSynced) return;
-        mNeverSynced = false;
-        Uri uri = PlaceContract.PlaceEntry.CONTENT_URI;
-        Cursor data = mContext.getContentResolver().query(
-                uri,
-                null,
-                null,
-                null,
-                null);
-        if (data == null || data.getCount() == 0) return;
-        List<String> guids = new ArrayList<String>();
-        while (data.moveToNext()) {
-            guids.add(data.getString(data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_UID)));
-        }
-        PendingResult<PlaceBuffer> placeResult = Places.GeoDataApi.getPlaceById(mClient,
-                guids.toArray(new String[guids.size()]));
-        placeResult.setResultCallback(new ResultCallback<PlaceBuffer>() {
+        if (!sSyncing.compareAndSet(false, true)) return;
+        // The sync spans threads, so it is timed without a Trace section
+        final long start = System.nanoTime();
+        mSync.sync(new LivePlaceSync.Listener() {
             @Override
-            public void onResult(@NonNull PlaceBuffer places) {
-                new AsyncTask() {
-                    @Override
-                    protected Object doInBackground(Object[] objects) {
-                        checkAndUpdatePlaces((PlaceBuffer) objects[0]);
-                        return null;
-                    }
-                }.execute(places);
+            public void onSyncFinished(int synced, int updated, int failed) {
+                SYNC_TIME.record(System.nanoTime() - start);
+                PLACES_UPDATED.add(updated);
+                PLACES_FAILED.add(failed);
+                if (failed > 0) Log.w(TAG, "Synced " + synced + " places, " + failed + " failed");
+                sSyncing.set(false);
             }
         });
     }
 
     /**
-     * Goes through the places buffer and compares each place with the local cacced information
-     * If anything is out of date, it gets updated in the local database
-     * @param places The up-to-date Places Buffer
+     * Asks the API for the live data of the given places
+     * The result arrives on the main thread, where the buffer is copied and released right away
      */
-    private void checkAndUpdatePlaces(PlaceBuffer places) {
-        for (Place place : places) {
-            try {
-                Uri uri = PlaceContract.PlaceEntry.CONTENT_URI;
-                Cursor res = mContext.getContentResolver().query(
-                        uri,
-                        null,
-                        PlaceContract.PlaceEntry.COLUMN_PLACE_UID + " = ?",
-                        new String[]{place.getId()},
-                        null);
-                if (res.getCount() > 0) {
-                    res.moveToFirst();
-                    // Check if there is any discrepancy between cached data and live data
-                    if (!place.getName().toString().equals(
-                            res.getString(res.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME))) ||
-                            !place.getAddress().toString().equals(
-                                    res.getString(res.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS)))) {
-                        updatePlace(res.getLong(res.getColumnIndex(PlaceContract.PlaceEntry._ID)), place);
+    @Override
+    public void getPlacesById(List<String> uids, final LivePlaceSync.Callback callback) {
+        if (!mClient.isConnected()) {
+            callback.onFailure("GoogleApiClient not connected");
+            return;
+        }
+        Places.GeoDataApi.getPlaceById(mClient, uids.toArray(new String[uids.size()]))
+                .setResultCallback(new ResultCallback<PlaceBuffer>() {
+                    @Override
+                    public void onResult(@NonNull PlaceBuffer places) {
+                        try {
+                            if (!places.getStatus().isSuccess()) {
+                                callback.onFailure(places.getStatus().toString());
+                                return;
+                            }
+                            callback.onResult(toRecords(places));
+                        } finally {
+                            places.release();
+                        }
                     }
-                }
-            } catch (Exception ex) {
-                Log.e(TAG, "onResult :" + ex.getMessage());
-            }
+                });
+    }
+
+    /**
+     * Copies the uid, name and address of every place in the buffer
+     *
+     * @param places The up-to-date Places Buffer, released by the caller
+     * @return the detached place records
+     */
+    private static List<PlaceRecord> toRecords(PlaceBuffer places) {
+        List<PlaceRecord> records = new ArrayList<>(places.getCount());
+        for (Place place : places) {
+            records.add(new PlaceRecord(PlaceRecord.NO_ID, place.getId(),
+                    place.getName().toString(), place.getAddress().toString(), 0, 0));
         }
+        return records;
     }
 
     /**
-     * Updates the name and address of the cachedPlace with the up-to-date information in livePlace
+     * Loads the places that can be looked up live and weren't synced since the given time
      *
-     * @param dbId      The locally cached place database ID
-     * @param newPlace The live up-to-date Place information
-     * @return number of rows updated in the database
+     * @return the stale places keyed by UID
      */
-    private int updatePlace(long dbId, Place newPlace) {
-        // Extract the place information from the API
-        String newPlaceName = newPlace.getName().toString();
-        String newPlaceAddress = newPlace.getAddress().toString();
-
-        // Update the place with new data into DB
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME, newPlaceName);
-        contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS, newPlaceAddress);
-        String stringId = Long.toString(dbId);
-        Uri uri = PlaceContract.PlaceEntry.CONTENT_URI;
-        uri = uri.buildUpon().appendPath(stringId).build();
-        return mContext.getContentResolver().update(uri, contentValues, null, null);
+    @Override
+    public Map<String, PlaceRecord> loadStale(long syncedBefore) {
+        Map<String, PlaceRecord> local = new HashMap<>();
+        Cursor res = mContext.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{
+                        PlaceContract.PlaceEntry._ID,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_UID,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_NAME,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS},
+                // Imported places have no Google place id to look up
+                PlaceContract.PlaceEntry.COLUMN_LAST_SYNCED + "<? AND " +
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_UID + " NOT LIKE ?",
+                new String[]{Long.toString(syncedBefore), PlaceImporter.UID_PREFIX + "%"},
+                null);
+        if (res == null) return local;
+        try {
+            int idIndex = res.getColumnIndex(PlaceContract.PlaceEntry._ID);
+            int uidIndex = res.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_UID);
+            int nameIndex = res.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME);
+            int addressIndex = res.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS);
+            while (res.moveToNext()) {
+                String uid = res.getString(uidIndex);
+                local.put(uid, new PlaceRecord(res.getLong(idIndex), uid,
+                        res.getString(nameIndex), res.getString(addressIndex), 0, 0));
+            }
+        } finally {
+            res.close();
+        }
+        return local;
+    }
+
+    /**
+     * Updates the name and address of the changed places and the last synced time of the whole
+     * chunk in one provider batch
+     * The provider applies the batch in a single transaction and notifies observers once
+     */
+    @Override
+    public void applySynced(List<PlaceRecord> updates, List<Long> syncedIds, long timeMillis) {
+        Map<Long, PlaceRecord> updatesById = new HashMap<>();
+        for (PlaceRecord update : updates) updatesById.put(update.id, update);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(syncedIds.size());
+        for (Long id : syncedIds) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_LAST_SYNCED, timeMillis);
+            PlaceRecord update = updatesById.get(id);
+            if (update != null) {
+                contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME, update.name);
+                contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS, update.address);
+            }
+            Uri uri = PlaceContract.PlaceEntry.buildPlaceUri(id);
+            operations.add(ContentProviderOperation.newUpdate(uri).withValues(contentValues).build());
+        }
+        long start = Tracing.begin(APPLY_TIME);
+        try {
+            mContext.getContentResolver().applyBatch(PlaceContract.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException ex) {
+            // LivePlaceSync counts the chunk as failed, it stays stale
+            throw new IllegalStateException("applySynced :" + ex.getMessage(), ex);
+        } finally {
+            Tracing.end(APPLY_TIME, start);
+        }
     }
 
 }
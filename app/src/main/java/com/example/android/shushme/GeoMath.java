@@ -0,0 +1,163 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+/**
+ * Spherical-earth helpers shared by the provider's spatial queries and the geofence code.
+ */
+public final class GeoMath {
+
+    // Mean earth radius in meters
+    public static final double EARTH_RADIUS = 6371008.8;
+    // Length of one degree of latitude in meters
+    public static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+    // Fixed-point scale of stored coordinates: degrees times 1e7 fit an int, about 1 cm apart
+    public static final double E7 = 1e7;
+
+    private GeoMath() {
+    }
+
+    /**
+     * Great-circle distance between two points using the haversine formula
+     *
+     * @return the distance in meters
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double sinLat = Math.sin(dLat / 2);
+        double sinLng = Math.sin(dLng / 2);
+        double a = sinLat * sinLat
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLng * sinLng;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * @return degrees as fixed-point, rounded to the nearest unit
+     */
+    public static int toE7(double degrees) {
+        return (int) Math.round(degrees * E7);
+    }
+
+    /**
+     * @return the degrees of a fixed-point coordinate, toE7(fromE7(e7)) == e7 for every coordinate
+     */
+    public static double fromE7(long e7) {
+        return e7 / E7;
+    }
+
+    /**
+     * Computes a latitude/longitude box that contains every point within {@code radius} meters
+     * of the center. The longitude range is widened to the full [-180, 180] when the box would
+     * reach a pole or cross the antimeridian, so it can always be used as a plain range predicate.
+     *
+     * @return {minLat, maxLat, minLng, maxLng}
+     */
+    public static double[] boundingBox(double lat, double lng, double radius) {
+        double dLat = radius / METERS_PER_DEGREE;
+        double minLat = lat - dLat;
+        double maxLat = lat + dLat;
+        double minLng;
+        double maxLng;
+        if (minLat <= -90 || maxLat >= 90) {
+            minLat = Math.max(minLat, -90);
+            maxLat = Math.min(maxLat, 90);
+            minLng = -180;
+            maxLng = 180;
+        } else {
+            // The widest longitude span is at the box edge closest to a pole
+            double cos = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+            double dLng = dLat / cos;
+            minLng = lng - dLng;
+            maxLng = lng + dLng;
+            if (dLng >= 180 || minLng < -180 || maxLng > 180) {
+                minLng = -180;
+                maxLng = 180;
+            }
+        }
+        return new double[]{minLat, maxLat, minLng, maxLng};
+    }
+
+    /**
+     * {@link #boundingBox} as fixed-point, rounded outwards so it still contains every point
+     *
+     * @return {minLatE7, maxLatE7, minLngE7, maxLngE7}
+     */
+    public static int[] boundingBoxE7(double lat, double lng, double radius) {
+        double[] box = boundingBox(lat, lng, radius);
+        return new int[]{(int) Math.floor(box[0] * E7), (int) Math.ceil(box[1] * E7),
+                (int) Math.floor(box[2] * E7), (int) Math.ceil(box[3] * E7)};
+    }
+
+    /**
+     * Selects the k smallest of values[0, size) with a bounded max-heap, in O(size log k)
+     *
+     * @param values the values to select from, e.g. distances
+     * @param size   the number of values to consider
+     * @param k      the number of values to select
+     * @return the indices of the selected values, ordered from smallest to largest value
+     */
+    public static int[] smallestK(double[] values, int size, int k) {
+        k = Math.min(k, size);
+        if (k <= 0) return new int[0];
+        // heap[0] always holds the index of the largest selected value
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for (int i = 0; i < size; i++) {
+            if (heapSize < k) {
+                heap[heapSize] = i;
+                siftUp(values, heap, heapSize++);
+            } else if (values[i] < values[heap[0]]) {
+                heap[0] = i;
+                siftDown(values, heap, heapSize, 0);
+            }
+        }
+        // Pop the largest off the heap into the back of the result
+        int[] result = new int[k];
+        for (int i = k - 1; i >= 0; i--) {
+            result[i] = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(values, heap, heapSize, 0);
+        }
+        return result;
+    }
+
+    private static void siftUp(double[] values, int[] heap, int index) {
+        int item = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (values[heap[parent]] >= values[item]) break;
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = item;
+    }
+
+    private static void siftDown(double[] values, int[] heap, int size, int index) {
+        if (size == 0) return;
+        int item = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) break;
+            if (child + 1 < size && values[heap[child + 1]] > values[heap[child]]) child++;
+            if (values[item] >= values[heap[child]]) break;
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = item;
+    }
+}
@@ -16,56 +16,268 @@ package com.example.android.shushme;
 * limitations under the License.
 */
 
+import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.TaskStackBuilder;
 import android.content.BroadcastReceiver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.AudioManager;
+import android.os.SystemClock;
 import android.support.v7.app.NotificationCompat;
 import android.util.Log;
 
+import com.example.android.shushme.provider.PlaceContract;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingEvent;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 public class GeofenceBroadcastReceiver extends BroadcastReceiver {
 
     public static final String TAG = GeofenceBroadcastReceiver.class.getSimpleName();
 
+    // Sent by the alarm set when the device left the last place it was in
+    public static final String ACTION_EXIT_DEADLINE = "com.example.android.shushme.action.EXIT_DEADLINE";
+
+    // All transitions are handled in order on one background thread
+    private static final Executor EXECUTOR = Executors.newSingleThreadExecutor();
+    // Broadcasts waiting for the executor, drained together so a burst is handled as one
+    private static final Queue<PendingBroadcast> PENDING = new ConcurrentLinkedQueue<>();
+
+    private static final Metrics.Counter BROADCASTS = Metrics.counter("receiver.broadcasts");
+    private static final Metrics.Counter RINGER_CHANGES = Metrics.counter("receiver.ringer_changes");
+    private static final Metrics.Histogram DRAIN_TIME = Metrics.histogram("receiver.drain");
+    // From the broadcast arriving to the ringer being changed, millisecond resolution
+    private static final Metrics.Histogram RINGER_LATENCY = Metrics.histogram("receiver.ringer_latency");
+
+    // Only touched on EXECUTOR
+    private static Bitmap sSilentIcon;
+    private static Bitmap sNormalIcon;
+    private static PendingIntent sNotificationPendingIntent;
+    private static TransitionJournal sJournal;
+    private static boolean sJournalChanged;
+    private static final List<ContentValues> sSilenceTransitions = new ArrayList<>();
+
     /***
      * Handles the Broadcast message sent when the Geofence Transition is triggered
-     * Careful here though, this is running on the main thread so make sure you start an AsyncTask for
-     * anything that takes longer than say 10 second to run
+     * This runs on the main thread, so the broadcast is kept alive with goAsync and queued for
+     * the background executor, see {@link #drainPending}
      *
      * @param context
      * @param intent
      */
     @Override
     public void onReceive(Context context, Intent intent) {
-        // Get the Geofence Event from the Intent sent through
-        GeofencingEvent geofencingEvent = GeofencingEvent.fromIntent(intent);
-        if (geofencingEvent.hasError()) {
-            Log.e(TAG, String.format("Error code : %d", geofencingEvent.getErrorCode()));
-            return;
+        PENDING.add(new PendingBroadcast(intent, goAsync(), SystemClock.elapsedRealtime(),
+                System.currentTimeMillis()));
+        final Context appContext = context.getApplicationContext();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                drainPending(appContext);
+            }
+        });
+    }
+
+    /**
+     * Handles every queued broadcast, then applies the resulting ringer mode once, so that a burst
+     * of transitions gives at most one ringer change and one notification
+     * A later drain finds the queue empty and does nothing
+     *
+     * @param context The application context
+     */
+    private static void drainPending(Context context) {
+        List<PendingBroadcast> burst = new ArrayList<>();
+        PendingBroadcast pending;
+        while ((pending = PENDING.poll()) != null) burst.add(pending);
+        if (burst.isEmpty()) return;
+        BROADCASTS.add(burst.size());
+        long start = Tracing.begin(DRAIN_TIME);
+        try {
+            int ringerMode = RingerController.NO_CHANGE;
+            for (PendingBroadcast broadcast : burst) {
+                int mode = handleBroadcast(context, broadcast.intent, broadcast.timeMillis);
+                if (mode != RingerController.NO_CHANGE) ringerMode = mode;
+            }
+            scheduleExitDeadline(context);
+            if (applyRingerMode(context, ringerMode)) {
+                long latency = SystemClock.elapsedRealtime() - burst.get(0).receivedAt;
+                RINGER_CHANGES.increment();
+                RINGER_LATENCY.record(latency * 1000000);
+                Log.i(TAG, String.format("Ringer changed %d ms after the broadcast (%d coalesced)",
+                        latency, burst.size()));
+            }
+            // Off the ringer's critical path, fold the transitions into the silence time stats
+            if (!sSilenceTransitions.isEmpty()) {
+                context.getContentResolver().bulkInsert(PlaceContract.SilenceEntry.CONTENT_URI,
+                        sSilenceTransitions.toArray(new ContentValues[sSilenceTransitions.size()]));
+            }
+            if (sJournalChanged) {
+                sJournalChanged = false;
+                context.getContentResolver().notifyChange(PlaceContract.TransitionEntry.CONTENT_URI, null);
+            }
+        } finally {
+            // Even if a write failed, so that the next burst doesn't count these transitions twice
+            sSilenceTransitions.clear();
+            Tracing.end(DRAIN_TIME, start);
+            for (PendingBroadcast broadcast : burst) broadcast.result.finish();
         }
+    }
 
-        // Get the transition type.
-        int geofenceTransition = geofencingEvent.getGeofenceTransition();
-        // Check which transition type has triggered this event
-        if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_ENTER) {
-            setRingerMode(context, AudioManager.RINGER_MODE_SILENT);
-        } else if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_EXIT) {
-            setRingerMode(context, AudioManager.RINGER_MODE_NORMAL);
+    /**
+     * Updates the ringer state with a single broadcast
+     *
+     * @param context    The application context
+     * @param intent     The geofence event or exit deadline intent
+     * @param timeMillis When the broadcast arrived
+     * @return the ringer mode to switch to, or RingerController.NO_CHANGE
+     */
+    private static int handleBroadcast(Context context, Intent intent, long timeMillis) {
+        // The device stayed out of every place for the hold time
+        if (ACTION_EXIT_DEADLINE.equals(intent.getAction())) {
+            int previousMode = RingerStateStore.getMode(context);
+            int mode = RingerStateStore.onDeadline(context, timeMillis);
+            journal(context, timeMillis, null, TransitionJournal.TRANSITION_HOLD_EXPIRED,
+                    previousMode, mode);
+            return mode;
+        }
+
+        // A fix for the local engine, whose transitions come back as broadcasts of their own
+        if (LocalGeofencing.ACTION_LOCATION.equals(intent.getAction())) {
+            LocalGeofencing.getInstance(context).onLocationIntent(intent);
+            return RingerController.NO_CHANGE;
+        }
+
+        int geofenceTransition;
+        List<String> triggeringIds = new ArrayList<>();
+        if (LocalGeofencing.ACTION_TRANSITION.equals(intent.getAction())) {
+            // Sent by the local engine, when Play Services geofencing is unavailable
+            geofenceTransition = intent.getIntExtra(LocalGeofencing.EXTRA_TRANSITION, 0);
+            List<String> requestIds = intent.getStringArrayListExtra(LocalGeofencing.EXTRA_REQUEST_IDS);
+            if (requestIds != null) triggeringIds.addAll(requestIds);
         } else {
+            // Get the Geofence Event from the Intent sent through
+            GeofencingEvent geofencingEvent = GeofencingEvent.fromIntent(intent);
+            if (geofencingEvent.hasError()) {
+                Log.e(TAG, String.format("Error code : %d", geofencingEvent.getErrorCode()));
+                return RingerController.NO_CHANGE;
+            }
+
+            // Get the transition type.
+            geofenceTransition = geofencingEvent.getGeofenceTransition();
+            List<Geofence> triggeringGeofences = geofencingEvent.getTriggeringGeofences();
+            if (triggeringGeofences != null) {
+                for (Geofence geofence : triggeringGeofences) triggeringIds.add(geofence.getRequestId());
+            }
+        }
+
+        // Region fences only move the window of registered places, they don't change the ringer
+        ArrayList<String> regionIds = new ArrayList<>();
+        ArrayList<String> placeIds = new ArrayList<>();
+        for (String requestId : triggeringIds) {
+            if (RegionGeofencePlanner.isRegionId(requestId)) {
+                regionIds.add(requestId);
+            } else {
+                placeIds.add(requestId);
+            }
+        }
+        if (!regionIds.isEmpty()) {
+            GeofenceSyncService.startRegionTransition(context, geofenceTransition, regionIds);
+            if (placeIds.isEmpty()) return RingerController.NO_CHANGE;
+        }
+
+        // Check which transition type has triggered this event
+        // Places with a loitering delay report DWELL instead of ENTER
+        if (geofenceTransition != Geofence.GEOFENCE_TRANSITION_ENTER
+                && geofenceTransition != Geofence.GEOFENCE_TRANSITION_DWELL
+                && geofenceTransition != Geofence.GEOFENCE_TRANSITION_EXIT) {
             // Log the error.
             Log.e(TAG, String.format("Unknown transition : %d", geofenceTransition));
             // No need to do anything else
-            return;
+            return RingerController.NO_CHANGE;
         }
+        // Track the places we're in, the ringer only changes on entering the first one
+        // and a while after leaving the last one
+        int previousMode = RingerStateStore.getMode(context);
+        int mode = RingerStateStore.onTransition(context, geofenceTransition, placeIds, timeMillis);
+        // A cluster fence reports for every place it stands for
+        for (String placeId : Geofencing.getPlaceUids(context, placeIds)) {
+            journal(context, timeMillis, placeId, geofenceTransition, previousMode, mode);
+            ContentValues silence = new ContentValues();
+            silence.put(PlaceContract.SilenceEntry.COLUMN_PLACE_UID, placeId);
+            silence.put(PlaceContract.SilenceEntry.COLUMN_TRANSITION, geofenceTransition);
+            silence.put(PlaceContract.SilenceEntry.COLUMN_TIMESTAMP, timeMillis);
+            sSilenceTransitions.add(silence);
+        }
+        return mode;
+    }
+
+    /**
+     * Appends a record to the transition journal, a failure to write it is only logged
+     *
+     * @param mode the mode returned by RingerStateStore, RingerController.NO_CHANGE if it stayed
+     *             at previousMode
+     */
+    private static void journal(Context context, long timeMillis, String placeId, int transition,
+                                int previousMode, int mode) {
+        if (sJournal == null) {
+            sJournal = new TransitionJournal(context.getFilesDir(), TransitionJournal.DEFAULT_MAX_BYTES);
+        }
+        try {
+            sJournal.append(timeMillis, placeId, transition, previousMode,
+                    mode == RingerController.NO_CHANGE ? previousMode : mode);
+            sJournalChanged = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't write the transition journal", e);
+        }
+    }
+
+    /**
+     * Switches the ringer and notifies the user, unless there's nothing to change
+     *
+     * @param context    The calling context
+     * @param ringerMode The mode returned by {@link RingerStateStore}, can be
+     *                   RingerController.NO_CHANGE
+     * @return true if the ringer mode was changed
+     */
+    private static boolean applyRingerMode(Context context, int ringerMode) {
+        if (ringerMode == RingerController.NO_CHANGE) return false;
+        if (!setRingerMode(context, ringerMode)) return false;
         // Send the notification
-        sendNotification(context, geofenceTransition);
+        sendNotification(context, ringerMode == RingerController.RINGER_MODE_SILENT
+                ? Geofence.GEOFENCE_TRANSITION_ENTER : Geofence.GEOFENCE_TRANSITION_EXIT);
+        return true;
+    }
+
+    /**
+     * Sets (or cancels) the alarm that restores the ringer once the device has stayed out of
+     * every place for the hold time
+     * Also called by {@link Geofencing} after removed places started the hold time
+     *
+     * @param context The calling context
+     */
+    static void scheduleExitDeadline(Context context) {
+        Intent intent = new Intent(context, GeofenceBroadcastReceiver.class).setAction(ACTION_EXIT_DEADLINE);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        long deadline = RingerStateStore.getPendingDeadline(context);
+        if (deadline == RingerController.NO_DEADLINE) {
+            alarmManager.cancel(pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, deadline, pendingIntent);
+        }
     }
 
 
@@ -78,22 +290,24 @@ public class GeofenceBroadcastReceiver extends BroadcastReceiver {
      * @param transitionType The geofence transition type, can be Geofence.GEOFENCE_TRANSITION_ENTER
      *                       or Geofence.GEOFENCE_TRANSITION_EXIT
      */
-    private void sendNotification(Context context, int transitionType) {
-        // Create an explicit content Intent that starts the main Activity.
-        Intent notificationIntent = new Intent(context, MainActivity.class);
+    private static void sendNotification(Context context, int transitionType) {
+        if (sNotificationPendingIntent == null) {
+            // Create an explicit content Intent that starts the main Activity.
+            Intent notificationIntent = new Intent(context, MainActivity.class);
 
-        // Construct a task stack.
-        TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+            // Construct a task stack.
+            TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
 
-        // Add the main Activity to the task stack as the parent.
-        stackBuilder.addParentStack(MainActivity.class);
+            // Add the main Activity to the task stack as the parent.
+            stackBuilder.addParentStack(MainActivity.class);
 
-        // Push the content Intent onto the stack.
-        stackBuilder.addNextIntent(notificationIntent);
+            // Push the content Intent onto the stack.
+            stackBuilder.addNextIntent(notificationIntent);
 
-        // Get a PendingIntent containing the entire back stack.
-        PendingIntent notificationPendingIntent =
-                stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+            // Get a PendingIntent containing the entire back stack.
+            sNotificationPendingIntent =
+                    stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+        }
 
         // Get a notification builder
         NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
@@ -101,19 +315,17 @@ public class GeofenceBroadcastReceiver extends BroadcastReceiver {
         // Check the transition type to display the relevant icon image
         if (transitionType == Geofence.GEOFENCE_TRANSITION_ENTER) {
             builder.setSmallIcon(R.drawable.ic_volume_off_white_24dp)
-                    .setLargeIcon(BitmapFactory.decodeResource(context.getResources(),
-                            R.drawable.ic_volume_off_white_24dp))
+                    .setLargeIcon(getSilentIcon(context))
                     .setContentTitle(context.getString(R.string.silent_mode_activated));
         } else if (transitionType == Geofence.GEOFENCE_TRANSITION_EXIT) {
             builder.setSmallIcon(R.drawable.ic_volume_up_white_24dp)
-                    .setLargeIcon(BitmapFactory.decodeResource(context.getResources(),
-                            R.drawable.ic_volume_up_white_24dp))
+                    .setLargeIcon(getNormalIcon(context))
                     .setContentTitle(context.getString(R.string.back_to_normal));
         }
 
         // Continue building the notification
         builder.setContentText(context.getString(R.string.touch_to_relaunch));
-        builder.setContentIntent(notificationPendingIntent);
+        builder.setContentIntent(sNotificationPendingIntent);
 
         // Dismiss notification once the user touches it.
         builder.setAutoCancel(true);
@@ -126,20 +338,63 @@ public class GeofenceBroadcastReceiver extends BroadcastReceiver {
         mNotificationManager.notify(0, builder.build());
     }
 
+    /**
+     * The large notification icons are decoded once per process
+     */
+    private static Bitmap getSilentIcon(Context context) {
+        if (sSilentIcon == null) {
+            sSilentIcon = BitmapFactory.decodeResource(context.getResources(),
+                    R.drawable.ic_volume_off_white_24dp);
+        }
+        return sSilentIcon;
+    }
+
+    private static Bitmap getNormalIcon(Context context) {
+        if (sNormalIcon == null) {
+            sNormalIcon = BitmapFactory.decodeResource(context.getResources(),
+                    R.drawable.ic_volume_up_white_24dp);
+        }
+        return sNormalIcon;
+    }
+
+    /**
+     * A broadcast waiting for the executor, kept alive with goAsync
+     */
+    private static class PendingBroadcast {
+        final Intent intent;
+        final PendingResult result;
+        // SystemClock.elapsedRealtime() on arrival, for measuring latency
+        final long receivedAt;
+        // System.currentTimeMillis() on arrival, for the ringer state
+        final long timeMillis;
+
+        PendingBroadcast(Intent intent, PendingResult result, long receivedAt, long timeMillis) {
+            this.intent = intent;
+            this.result = result;
+            this.receivedAt = receivedAt;
+            this.timeMillis = timeMillis;
+        }
+    }
+
     /**
      * Changes the ringer mode on the device to either silent or back to normal
      *
      * @param context The context to access AUDIO_SERVICE
      * @param mode    The desired mode to switch device to, can be AudioManager.RINGER_MODE_SILENT or
      *                AudioManager.RINGER_MODE_NORMAL
+     * @return true if the ringer mode was actually changed
      */
-    private void setRingerMode(Context context, int mode) {
+    private static boolean setRingerMode(Context context, int mode) {
         NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         // Check for DND permissions for API 24+
         if (android.os.Build.VERSION.SDK_INT < 24 ||
                 (android.os.Build.VERSION.SDK_INT >= 24 && !nm.isNotificationPolicyAccessGranted())) {
             AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            // Already there, e.g. the user changed it by hand
+            if (audioManager.getRingerMode() == mode) return false;
             audioManager.setRingerMode(mode);
+            return true;
         }
+        return false;
     }
 }
@@ -0,0 +1,328 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the fences of places that overlap or nearly touch, e.g. several places in one building,
+ * into one covering fence, so that a visit costs one fence and one ENTER instead of several.
+ * <p>
+ * Candidate pairs are found with a grid hash whose cells are as wide as the largest fence allowed,
+ * so only neighbouring cells are compared. Pairs are then merged closest first, union-find style,
+ * as long as the circle covering both groups stays within the maximum radius, which keeps chains
+ * of places along a street from growing into one huge fence. Sorting the places and the pairs
+ * makes the whole pass O(n log n) and the result independent of the input order, so every process
+ * computes the same clusters from the same places.
+ * <p>
+ * Only places with the same transition types and loitering delay are merged. A cluster fence
+ * gets the request id {@link #CLUSTER_PREFIX} + its smallest member UID; places left alone keep
+ * their own fence.
+ */
+public final class GeofenceClusterer {
+
+    // Request ids of cluster fences start with this, place UIDs never do
+    public static final String CLUSTER_PREFIX = "cluster:";
+
+    private static final long LNG_CELLS = 1L << 32;
+
+    private static final Comparator<GeofenceSpec> BY_REQUEST_ID = new Comparator<GeofenceSpec>() {
+        @Override
+        public int compare(GeofenceSpec a, GeofenceSpec b) {
+            return a.requestId.compareTo(b.requestId);
+        }
+    };
+
+    /**
+     * The fences to register and which places each of them stands for
+     */
+    public static final class Result {
+        private final List<GeofenceSpec> mFences;
+        // Member UIDs of every cluster fence, keyed by its request id
+        private final Map<String, List<String>> mMembers;
+
+        private Result(List<GeofenceSpec> fences, Map<String, List<String>> members) {
+            mFences = Collections.unmodifiableList(fences);
+            mMembers = members;
+        }
+
+        /**
+         * @return one fence per cluster and per place left alone, ordered by the UID of their
+         * first member
+         */
+        public List<GeofenceSpec> getFences() {
+            return mFences;
+        }
+
+        /**
+         * @return the number of fences that stand for more than one place
+         */
+        public int getClusterCount() {
+            return mMembers.size();
+        }
+
+        /**
+         * @return true if the request id is a cluster fence of this result
+         */
+        public boolean hasCluster(String requestId) {
+            return mMembers.containsKey(requestId);
+        }
+
+        /**
+         * @param requestId the request id of a fence
+         * @return the UIDs of the places a cluster fence stands for, or just the request id for
+         * a place's own fence; empty for a cluster this result doesn't know
+         */
+        public List<String> getMembers(String requestId) {
+            List<String> members = mMembers.get(requestId);
+            if (members != null) return members;
+            if (isClusterId(requestId)) return Collections.emptyList();
+            return Collections.singletonList(requestId);
+        }
+    }
+
+    private GeofenceClusterer() {
+    }
+
+    /**
+     * @return true if the request id belongs to a cluster fence rather than a place
+     */
+    public static boolean isClusterId(String requestId) {
+        return requestId.startsWith(CLUSTER_PREFIX);
+    }
+
+    /**
+     * @param places    the fine fence of every place, request ids must be unique
+     * @param mergeGap  fences whose boundaries are at most this far apart (meters) may be merged
+     * @param maxRadius the largest radius (meters) a cluster fence may have
+     */
+    public static Result cluster(Collection<GeofenceSpec> places, double mergeGap, double maxRadius) {
+        GeofenceSpec[] sorted = places.toArray(new GeofenceSpec[places.size()]);
+        Arrays.sort(sorted, BY_REQUEST_ID);
+        int n = sorted.length;
+
+        // The covering circle of each group, valid at the group's root only
+        double[] lat = new double[n];
+        double[] lng = new double[n];
+        double[] radius = new double[n];
+        int[] parent = new int[n];
+        int[] size = new int[n];
+        for (int i = 0; i < n; i++) {
+            lat[i] = sorted[i].latitude;
+            lng[i] = sorted[i].longitude;
+            radius[i] = sorted[i].radius;
+            parent[i] = i;
+            size[i] = 1;
+        }
+
+        Pairs pairs = findPairs(sorted, mergeGap, maxRadius);
+        long[] order = pairs.sortByGap();
+        for (long key : order) {
+            int pair = (int) key;
+            int a = find(parent, pairs.first[pair]);
+            int b = find(parent, pairs.second[pair]);
+            if (a == b) continue;
+            double d = GeoMath.distance(lat[a], lng[a], lat[b], lng[b]);
+            double merged = enclosingRadius(d, radius[a], radius[b]);
+            if (merged > maxRadius) continue;
+            double mergedLat;
+            double mergedLng;
+            if (merged == radius[a]) {
+                mergedLat = lat[a];
+                mergedLng = lng[a];
+            } else if (merged == radius[b]) {
+                mergedLat = lat[b];
+                mergedLng = lng[b];
+            } else {
+                // On the line between the centers, touching the far side of both circles
+                double t = (merged - radius[a]) / d;
+                mergedLat = lat[a] + (lat[b] - lat[a]) * t;
+                mergedLng = lng[a] + (lng[b] - lng[a]) * t;
+            }
+            if (size[a] < size[b]) {
+                int swap = a;
+                a = b;
+                b = swap;
+            }
+            parent[b] = a;
+            size[a] += size[b];
+            lat[a] = mergedLat;
+            lng[a] = mergedLng;
+            radius[a] = merged;
+        }
+
+        // Members of each group, in request id order since sorted is
+        Map<Integer, List<GeofenceSpec>> groups = new HashMap<>();
+        List<GeofenceSpec> fences = new ArrayList<>();
+        Map<String, List<String>> members = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            int root = find(parent, i);
+            if (size[root] == 1) continue;
+            List<GeofenceSpec> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<>(size[root]);
+                groups.put(root, group);
+            }
+            group.add(sorted[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            int root = find(parent, i);
+            if (size[root] == 1) {
+                fences.add(sorted[i]);
+            } else if (groups.get(root).get(0) == sorted[i]) {
+                // Added once, where its first member is
+                GeofenceSpec fence = buildCluster(groups.get(root), lat[root], lng[root]);
+                fences.add(fence);
+                List<String> uids = new ArrayList<>(size[root]);
+                for (GeofenceSpec member : groups.get(root)) uids.add(member.requestId);
+                members.put(fence.requestId, Collections.unmodifiableList(uids));
+            }
+        }
+        return new Result(fences, members);
+    }
+
+    /**
+     * Lists the pairs of compatible places whose fences are at most mergeGap apart and could
+     * share a fence no larger than maxRadius
+     */
+    private static Pairs findPairs(GeofenceSpec[] places, double mergeGap, double maxRadius) {
+        Pairs pairs = new Pairs();
+        if (places.length < 2) return pairs;
+        // Two places that can share a fence are at most 2 * maxRadius apart, i.e. in
+        // neighbouring cells
+        double cellDegrees = Math.max(1, 2 * maxRadius) / GeoMath.METERS_PER_DEGREE;
+        double maxAbsLat = 0;
+        for (GeofenceSpec place : places) maxAbsLat = Math.max(maxAbsLat, Math.abs(place.latitude));
+        double lngCellDegrees = cellDegrees / Math.max(0.01, Math.cos(Math.toRadians(maxAbsLat)));
+
+        Map<Long, List<Integer>> cells = new HashMap<>();
+        for (int i = 0; i < places.length; i++) {
+            GeofenceSpec place = places[i];
+            double lngScale = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(place.latitude));
+            long latCell = (long) Math.floor((place.latitude + 90) / cellDegrees);
+            long lngCell = (long) Math.floor((place.longitude + 180) / lngCellDegrees);
+            for (long la = latCell - 1; la <= latCell + 1; la++) {
+                for (long lo = lngCell - 1; lo <= lngCell + 1; lo++) {
+                    List<Integer> cell = cells.get(la * LNG_CELLS + lo);
+                    if (cell == null) continue;
+                    for (int j : cell) {
+                        GeofenceSpec other = places[j];
+                        if (other.transitionTypes != place.transitionTypes
+                                || other.loiteringDelay != place.loiteringDelay) {
+                            continue;
+                        }
+                        // Local equirectangular distance, like FenceGrid, well under a meter off
+                        // at these scales
+                        double dy = (place.latitude - other.latitude) * GeoMath.METERS_PER_DEGREE;
+                        double dx = (place.longitude - other.longitude) * lngScale;
+                        double reach = place.radius + other.radius + mergeGap;
+                        if (dy * dy + dx * dx > reach * reach) continue;
+                        double d = Math.sqrt(dx * dx + dy * dy);
+                        double gap = d - place.radius - other.radius;
+                        if (gap <= mergeGap
+                                && enclosingRadius(d, place.radius, other.radius) <= maxRadius) {
+                            pairs.add(j, i, gap, maxRadius);
+                        }
+                    }
+                }
+            }
+            Long key = latCell * LNG_CELLS + lngCell;
+            List<Integer> cell = cells.get(key);
+            if (cell == null) {
+                cell = new ArrayList<>(4);
+                cells.put(key, cell);
+            }
+            cell.add(i);
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the radius of the smallest circle containing two circles whose centers are d apart
+     */
+    static double enclosingRadius(double d, double r1, double r2) {
+        if (d + r2 <= r1) return r1;
+        if (d + r1 <= r2) return r2;
+        return (d + r1 + r2) / 2;
+    }
+
+    private static GeofenceSpec buildCluster(List<GeofenceSpec> members, double lat, double lng) {
+        // Measured again from the final center, so every member is covered whatever rounding the
+        // merges did
+        double radius = 0;
+        int responsiveness = Integer.MAX_VALUE;
+        for (GeofenceSpec member : members) {
+            radius = Math.max(radius,
+                    GeoMath.distance(lat, lng, member.latitude, member.longitude) + member.radius);
+            // The most responsive member decides, 0 (the Play Services default) included
+            responsiveness = Math.min(responsiveness, member.responsiveness);
+        }
+        GeofenceSpec first = members.get(0);
+        return new GeofenceSpec(CLUSTER_PREFIX + first.requestId, lat, lng, (float) Math.ceil(radius),
+                first.transitionTypes, first.loiteringDelay, responsiveness);
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            // Path halving
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Candidate pairs as parallel arrays, sorted through packed primitive keys
+     */
+    private static final class Pairs {
+        int[] first = new int[64];
+        int[] second = new int[64];
+        long[] keys = new long[64];
+        int count;
+
+        void add(int a, int b, double gap, double maxRadius) {
+            if (count == keys.length) {
+                first = Arrays.copyOf(first, count * 2);
+                second = Arrays.copyOf(second, count * 2);
+                keys = Arrays.copyOf(keys, count * 2);
+            }
+            first[count] = a;
+            second[count] = b;
+            // The gap of a mergeable pair is at least -2 * maxRadius, shifted to be positive and
+            // kept to the centimeter in the high bits; the pair index breaks ties
+            long gapKey = Math.max(0, Math.round((gap + 2 * maxRadius) * 100));
+            keys[count] = (gapKey << 32) | count;
+            count++;
+        }
+
+        /**
+         * @return the keys ordered by gap, the pair index is the low 32 bits
+         */
+        long[] sortByGap() {
+            long[] sorted = Arrays.copyOf(keys, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
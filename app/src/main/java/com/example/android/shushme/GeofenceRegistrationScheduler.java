@@ -0,0 +1,364 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces registration requests into as few geofencing API calls as possible.
+ * <p>
+ * A request only records the latest desired set of fences. Requests are folded into one
+ * registration pass, which sends the delta through a {@link GeofenceRegistry}, once none has come
+ * for {@link Config#debounceMillis}, or at the latest {@link Config#maxDelayMillis} after the
+ * first one, so a steady stream of changes can't hold the fences back forever. Only one pass
+ * is ever in flight: requests that arrive meanwhile cause exactly one more pass once it is over,
+ * with whatever set is desired by then. A failed pass is retried after an exponentially growing,
+ * jittered delay, up to {@link Config#maxAttempts} times, the registry re-sending the full set.
+ * <p>
+ * Passes and {@link Api} calls run on the given executor, which must be single-threaded; Api
+ * callbacks can arrive on any thread. {@link #request}, {@link #getState} and {@link #awaitIdle}
+ * can be called from any thread.
+ */
+public class GeofenceRegistrationScheduler {
+
+    // The registered fences match the last request
+    public static final int STATE_IDLE = 0;
+    // Waiting for the debounce window to close
+    public static final int STATE_PENDING = 1;
+    // A pass has been sent and not all of its calls have returned
+    public static final int STATE_IN_FLIGHT = 2;
+    // The last pass failed, waiting to retry it
+    public static final int STATE_BACKOFF = 3;
+    // Every attempt failed, nothing happens until the next request
+    public static final int STATE_FAILED = 4;
+
+    private static final Metrics.Counter REQUESTS = Metrics.counter("geofencing.register_requests");
+    private static final Metrics.Counter PASSES = Metrics.counter("geofencing.register_passes");
+    private static final Metrics.Histogram PASS_TIME = Metrics.histogram("geofencing.register_all");
+    private static final Metrics.Gauge REGISTERED = Metrics.gauge("geofencing.registered");
+
+    /**
+     * The geofencing calls. {@link Geofencing} implements this on top of
+     * {@code LocationServices.GeofencingApi}; tests use a counting fake.
+     * Every call must call back exactly once, or throw.
+     */
+    public interface Api {
+        void addGeofences(List<GeofenceSpec> geofences, Callback callback);
+
+        void removeGeofences(List<String> requestIds, Callback callback);
+
+        void removeAllGeofences(Callback callback);
+    }
+
+    public interface Callback {
+        void onSuccess();
+
+        void onFailure(String reason);
+    }
+
+    public static class Config {
+        // A pass starts once there was no request for this long...
+        public long debounceMillis = 200;
+        // ...or once the first request waited this long
+        public long maxDelayMillis = 2000;
+        // A pass whose calls haven't all returned after this long counts as failed
+        public long timeoutMillis = 30 * 1000L;
+        public int maxAttempts = 5;
+        public long initialBackoffMillis = 2000;
+        public long maxBackoffMillis = 5 * 60 * 1000L;
+    }
+
+    private final Api mApi;
+    private final ScheduledExecutorService mExecutor;
+    private final Config mConfig;
+    private final Random mRandom = new Random();
+
+    // Only touched on mExecutor
+    private final GeofenceRegistry mRegistry = new GeofenceRegistry();
+    private Pass mPass;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private int mState = STATE_IDLE;
+    private Map<String, GeofenceSpec> mDesired = Collections.emptyMap();
+    // Set when mDesired was requested after the current pass read it
+    private boolean mDirty;
+    private int mAttempts;
+    // When the first and the last request of the current debounce window were made
+    private long mFirstRequestMillis;
+    private long mLastRequestMillis;
+
+    public GeofenceRegistrationScheduler(Api api, ScheduledExecutorService executor, Config config) {
+        mApi = api;
+        mExecutor = executor;
+        mConfig = config;
+    }
+
+    /**
+     * Asks for the given fences to be registered, soon
+     *
+     * @param desired the full set of fences that should be registered, keyed by request id; not
+     *                modified afterwards
+     */
+    public void request(Map<String, GeofenceSpec> desired) {
+        REQUESTS.increment();
+        synchronized (mLock) {
+            mDesired = desired;
+            mDirty = true;
+            mLastRequestMillis = now();
+            // Otherwise a pass is already coming, and reads mDesired when it starts
+            if (mState == STATE_IDLE || mState == STATE_FAILED) {
+                mAttempts = 0;
+                openWindow();
+            }
+        }
+    }
+
+    /**
+     * Forgets what is registered, so that the next pass clears and re-adds the whole set, e.g.
+     * when the fences go to another backend
+     */
+    public void invalidate() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mRegistry.invalidate();
+            }
+        });
+    }
+
+    /**
+     * Makes the next pass add the whole set again without clearing first, e.g. to renew the
+     * expiration of the fences, see {@link GeofenceRegistry#renew}
+     */
+    public void renew() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mRegistry.renew();
+            }
+        });
+    }
+
+    /**
+     * @return one of the STATE_ constants
+     */
+    public int getState() {
+        synchronized (mLock) {
+            return mState;
+        }
+    }
+
+    /**
+     * Waits until no pass is pending, in flight or waiting to be retried
+     *
+     * @param timeoutMillis the longest to wait
+     * @return true if the fences were registered, false if the last pass failed for good or
+     * the wait timed out
+     */
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (mLock) {
+            while (mState != STATE_IDLE && mState != STATE_FAILED) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                mLock.wait(remaining);
+            }
+            return mState == STATE_IDLE;
+        }
+    }
+
+    private void setState(int state) {
+        // Called with mLock held
+        mState = state;
+        mLock.notifyAll();
+    }
+
+    /**
+     * Waits for the requests to settle before the next pass, called with mLock held
+     */
+    private void openWindow() {
+        setState(STATE_PENDING);
+        mFirstRequestMillis = mLastRequestMillis;
+        scheduleWindowCheck(mConfig.debounceMillis);
+    }
+
+    private void scheduleWindowCheck(long delayMillis) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    long now = now();
+                    long quietUntil = mLastRequestMillis + mConfig.debounceMillis;
+                    long deadline = mFirstRequestMillis + mConfig.maxDelayMillis;
+                    if (now < quietUntil && now < deadline) {
+                        // Still changing, wait some more
+                        scheduleWindowCheck(Math.min(quietUntil, deadline) - now);
+                        return;
+                    }
+                }
+                startPass();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedule(long delayMillis) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startPass();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void startPass() {
+        Map<String, GeofenceSpec> desired;
+        synchronized (mLock) {
+            desired = mDesired;
+            mDirty = false;
+            setState(STATE_IN_FLIGHT);
+        }
+        PASSES.increment();
+        final Pass pass = new Pass();
+        mPass = pass;
+        try {
+            mRegistry.sync(desired, pass);
+        } catch (RuntimeException e) {
+            // E.g. no location permission, or the client disconnected
+            pass.fail(e.toString());
+        }
+        pass.sent = true;
+        if (pass.pending == 0) {
+            finishPass(pass);
+            return;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mPass != pass) return;
+                pass.fail("timed out");
+                finishPass(pass);
+            }
+        }, mConfig.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void finishPass(Pass pass) {
+        mPass = null;
+        PASS_TIME.record(System.nanoTime() - pass.startNanos);
+        if (pass.failure != null) {
+            // We no longer know what the backend holds, re-send the full set next time
+            mRegistry.invalidate();
+        }
+        REGISTERED.set(mRegistry.getRegistered().size());
+        synchronized (mLock) {
+            if (pass.failure == null) {
+                mAttempts = 0;
+                if (mDirty) {
+                    // Changed while the pass was in flight, send the latest set once more
+                    openWindow();
+                } else {
+                    setState(STATE_IDLE);
+                }
+            } else if (++mAttempts < mConfig.maxAttempts) {
+                setState(STATE_BACKOFF);
+                schedule(getBackoffMillis(mAttempts));
+            } else {
+                setState(STATE_FAILED);
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * @param attempts the number of failed attempts so far, at least 1
+     * @return a delay between half and all of initialBackoff * 2^(attempts - 1), capped at maxBackoff
+     */
+    long getBackoffMillis(int attempts) {
+        long backoff = mConfig.initialBackoffMillis << Math.min(attempts - 1, 30);
+        if (backoff > mConfig.maxBackoffMillis || backoff < 0) backoff = mConfig.maxBackoffMillis;
+        return backoff / 2 + (long) (mRandom.nextDouble() * (backoff - backoff / 2));
+    }
+
+    /**
+     * One registration pass, the registry's backend: it forwards every call to the Api and counts
+     * the ones that haven't returned; a call that throws never calls back, so isn't counted
+     * Only touched on mExecutor, callbacks are always handled after the pass was sent
+     */
+    private final class Pass implements GeofenceRegistry.Backend {
+        final long startNanos = System.nanoTime();
+        int pending;
+        boolean sent;
+        String failure;
+
+        @Override
+        public void addGeofences(List<GeofenceSpec> geofences) {
+            mApi.addGeofences(geofences, newCallback());
+            pending++;
+        }
+
+        @Override
+        public void removeGeofences(List<String> requestIds) {
+            mApi.removeGeofences(requestIds, newCallback());
+            pending++;
+        }
+
+        @Override
+        public void removeAllGeofences() {
+            mApi.removeAllGeofences(newCallback());
+            pending++;
+        }
+
+        void fail(String reason) {
+            if (failure == null) failure = reason;
+        }
+
+        private Callback newCallback() {
+            return new Callback() {
+                @Override
+                public void onSuccess() {
+                    onReturned(null);
+                }
+
+                @Override
+                public void onFailure(String reason) {
+                    onReturned(reason == null ? "failed" : reason);
+                }
+            };
+        }
+
+        private void onReturned(final String reason) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // A pass that timed out is already over
+                    if (mPass != Pass.this) return;
+                    pending--;
+                    if (reason != null) fail(reason);
+                    if (pending == 0 && sent) finishPass(Pass.this);
+                }
+            });
+        }
+    }
+}
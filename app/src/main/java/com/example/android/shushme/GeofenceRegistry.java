@@ -0,0 +1,135 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the geofences that have actually been handed to Play Services, keyed by
+ * request id, so that a new desired set can be applied as a minimal add/remove delta instead
+ * of re-registering everything.
+ * <p>
+ * Play Services replaces a geofence when one with the same request id is added again, so
+ * changed fences only need to be re-added; only fences that disappeared are removed.
+ * <p>
+ * A new registry (or one that has been invalidated) does not know what Play Services holds, for
+ * example fences left behind by a previous process, so its first sync clears everything through
+ * {@link Backend#removeAllGeofences} before adding the desired set.
+ */
+public class GeofenceRegistry {
+
+    /**
+     * The calls a registry needs to push a delta out. {@link GeofenceRegistrationScheduler} passes
+     * them on to {@code LocationServices.GeofencingApi}; tests use a counting fake.
+     */
+    public interface Backend {
+        void addGeofences(List<GeofenceSpec> geofences);
+
+        void removeGeofences(List<String> requestIds);
+
+        void removeAllGeofences();
+    }
+
+    private final Map<String, GeofenceSpec> mRegistered = new HashMap<>();
+    private boolean mKnown;
+    // Set when the next sync re-adds every desired fence, see renew()
+    private boolean mRenewing;
+
+    /**
+     * Brings the registered set in line with {@code desired}, issuing at most one remove call and
+     * at most one add call on the backend. The calls are asynchronous: the registry records the
+     * new set as soon as they are issued, before Play Services has applied them, and relies on the
+     * caller to {@link #invalidate} it when one of them fails, see
+     * {@link GeofenceRegistrationScheduler}. Only an exception thrown while issuing a call leaves
+     * it untouched.
+     *
+     * @param desired the full set of geofences that should be registered, keyed by request id
+     * @param backend where to send the delta
+     * @return the number of backend calls made (0, 1 or 2)
+     */
+    public int sync(Map<String, GeofenceSpec> desired, Backend backend) {
+        if (!mKnown) {
+            backend.removeAllGeofences();
+            if (!desired.isEmpty()) backend.addGeofences(new ArrayList<>(desired.values()));
+            mRegistered.clear();
+            mRegistered.putAll(desired);
+            mKnown = true;
+            mRenewing = false;
+            return desired.isEmpty() ? 1 : 2;
+        }
+        List<String> toRemove = new ArrayList<>();
+        for (String requestId : mRegistered.keySet()) {
+            if (!desired.containsKey(requestId)) toRemove.add(requestId);
+        }
+        List<GeofenceSpec> toAdd = new ArrayList<>();
+        for (GeofenceSpec spec : desired.values()) {
+            if (mRenewing || !spec.equals(mRegistered.get(spec.requestId))) toAdd.add(spec);
+        }
+
+        int calls = 0;
+        if (!toRemove.isEmpty()) {
+            backend.removeGeofences(toRemove);
+            calls++;
+        }
+        if (!toAdd.isEmpty()) {
+            backend.addGeofences(toAdd);
+            calls++;
+        }
+
+        for (String requestId : toRemove) mRegistered.remove(requestId);
+        for (GeofenceSpec spec : toAdd) mRegistered.put(spec.requestId, spec);
+        mRenewing = false;
+        return calls;
+    }
+
+    /**
+     * Makes the next {@link #sync} add the whole desired set again, without clearing first, so
+     * that fences which are still registered get a new expiration but don't lose their state.
+     */
+    public void renew() {
+        mRenewing = true;
+    }
+
+    /**
+     * Forgets everything that was registered, so that the next {@link #sync} clears and re-adds
+     * the whole desired set. Used when Play Services reports a failure.
+     */
+    public void invalidate() {
+        mRegistered.clear();
+        mKnown = false;
+    }
+
+    /**
+     * Records that nothing is registered anymore, e.g. after all fences were removed by
+     * PendingIntent, so that the next {@link #sync} adds the desired set without clearing first.
+     */
+    public void clear() {
+        mRegistered.clear();
+        mKnown = true;
+    }
+
+    /**
+     * @return a read-only view of the geofences currently believed to be registered
+     */
+    public Map<String, GeofenceSpec> getRegistered() {
+        return Collections.unmodifiableMap(mRegistered);
+    }
+}
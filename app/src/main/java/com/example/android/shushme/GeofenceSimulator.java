@@ -0,0 +1,202 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Headless stand-in for the Play Services geofencing engine: replays a {@link LocationTrace}
+ * against a set of registered fences and reports ENTER/EXIT transitions to a handler, the way
+ * {@link GeofenceBroadcastReceiver} would receive them.
+ * <p>
+ * Like Play Services with INITIAL_TRIGGER_ENTER, the device starts outside every fence, so the
+ * first fix inside a fence produces an ENTER. All fences entered (or exited) on the same fix are
+ * reported together in one event. Replaying allocates nothing per fix, only per event.
+ */
+public class GeofenceSimulator {
+
+    /**
+     * Receives the simulated transitions
+     * The request id list is reused between calls, copy it to keep it
+     */
+    public interface TransitionHandler {
+        void onTransition(int transition, List<String> requestIds, long timeMillis);
+    }
+
+    private final FenceGrid mGrid;
+    private final boolean[] mInside;
+    private final int[] mInsideList;
+    private int mInsideCount;
+    private final List<String> mEntered = new ArrayList<>();
+    private final List<String> mExited = new ArrayList<>();
+    private TransitionHandler mHandler;
+
+    private long mFixes;
+    private long mEnterEvents;
+    private long mExitEvents;
+
+    /**
+     * @param fences the registered fences, e.g. {@code Geofencing.getDesiredGeofences().values()}
+     */
+    public GeofenceSimulator(Collection<GeofenceSpec> fences) {
+        mGrid = FenceGrid.create(fences);
+        mInside = new boolean[mGrid.size()];
+        mInsideList = new int[mGrid.size()];
+    }
+
+    public void setHandler(TransitionHandler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Feeds every fix of the trace through the engine
+     *
+     * @return the number of transition events emitted
+     */
+    public long replay(LocationTrace trace) {
+        long eventsBefore = mEnterEvents + mExitEvents;
+        double[] lats = trace.latitudes;
+        double[] lngs = trace.longitudes;
+        long[] times = trace.timesMillis;
+        for (int i = 0; i < lats.length; i++) {
+            onLocation(lats[i], lngs[i], times[i]);
+        }
+        return mEnterEvents + mExitEvents - eventsBefore;
+    }
+
+    /**
+     * Processes a single location fix
+     */
+    public void onLocation(double lat, double lng, long timeMillis) {
+        mFixes++;
+        FenceGrid grid = mGrid;
+        // Fences we were inside and are not anymore
+        for (int i = mInsideCount - 1; i >= 0; i--) {
+            int fence = mInsideList[i];
+            if (!grid.contains(fence, lat, lng)) {
+                mInside[fence] = false;
+                mInsideList[i] = mInsideList[--mInsideCount];
+                if ((grid.fence(fence).transitionTypes & RingerController.TRANSITION_EXIT) != 0) {
+                    mExited.add(grid.fence(fence).requestId);
+                }
+            }
+        }
+        // Fences of this cell we just got into
+        int bucket = grid.findBucket(lat, lng);
+        if (bucket >= 0) {
+            int end = grid.bucketStart(bucket + 1);
+            for (int p = grid.bucketStart(bucket); p < end; p++) {
+                int fence = grid.fenceAt(p);
+                if (!mInside[fence] && grid.contains(fence, lat, lng)) {
+                    mInside[fence] = true;
+                    mInsideList[mInsideCount++] = fence;
+                    if ((grid.fence(fence).transitionTypes & RingerController.TRANSITION_ENTER) != 0) {
+                        mEntered.add(grid.fence(fence).requestId);
+                    }
+                }
+            }
+        }
+        if (!mExited.isEmpty()) {
+            mExitEvents++;
+            if (mHandler != null) mHandler.onTransition(RingerController.TRANSITION_EXIT, mExited, timeMillis);
+            mExited.clear();
+        }
+        if (!mEntered.isEmpty()) {
+            mEnterEvents++;
+            if (mHandler != null) mHandler.onTransition(RingerController.TRANSITION_ENTER, mEntered, timeMillis);
+            mEntered.clear();
+        }
+    }
+
+    /**
+     * Moves the device back outside every fence and clears the counters
+     */
+    public void reset() {
+        for (int i = 0; i < mInsideCount; i++) mInside[mInsideList[i]] = false;
+        mInsideCount = 0;
+        mFixes = 0;
+        mEnterEvents = 0;
+        mExitEvents = 0;
+    }
+
+    public int getInsideCount() {
+        return mInsideCount;
+    }
+
+    public long getFixCount() {
+        return mFixes;
+    }
+
+    public long getEnterEventCount() {
+        return mEnterEvents;
+    }
+
+    public long getExitEventCount() {
+        return mExitEvents;
+    }
+
+    /**
+     * Transition handler that feeds a {@link RingerController} and counts the ringer mode calls
+     * the receiver would make, starting from normal mode
+     */
+    public static class RingerModeCounter implements TransitionHandler {
+        private final RingerController mController;
+        private int mMode = RingerController.RINGER_MODE_NORMAL;
+        private int mSetRingerModeCalls;
+        private int mModeChanges;
+
+        public RingerModeCounter(RingerController controller) {
+            mController = controller;
+        }
+
+        @Override
+        public void onTransition(int transition, List<String> requestIds, long timeMillis) {
+            // The receiver's alarm would have fired in the meantime
+            advanceTo(timeMillis);
+            apply(mController.onTransition(transition, requestIds, timeMillis));
+        }
+
+        /**
+         * Fires the controller's pending deadline if it has passed by the given time
+         */
+        public void advanceTo(long timeMillis) {
+            long deadline = mController.getPendingDeadline();
+            if (deadline <= timeMillis) apply(mController.onDeadline(deadline));
+        }
+
+        private void apply(int mode) {
+            if (mode == RingerController.NO_CHANGE) return;
+            mSetRingerModeCalls++;
+            if (mode != mMode) mModeChanges++;
+            mMode = mode;
+        }
+
+        public int getMode() {
+            return mMode;
+        }
+
+        public int getSetRingerModeCalls() {
+            return mSetRingerModeCalls;
+        }
+
+        public int getModeChanges() {
+            return mModeChanges;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+/**
+ * Immutable description of a single geofence as it is (or should be) registered with
+ * Play Services. Two specs are equal when registering one in place of the other would be a no-op,
+ * which is what {@link GeofenceRegistry} relies on to compute its add/remove delta.
+ */
+public final class GeofenceSpec {
+
+    public final String requestId;
+    public final double latitude;
+    public final double longitude;
+    public final float radius;
+    public final int transitionTypes;
+    // Milliseconds inside before DWELL is reported, only used with the DWELL transition type
+    public final int loiteringDelay;
+    // Milliseconds Play Services may wait before reporting a transition, 0 for its default
+    public final int responsiveness;
+
+    public GeofenceSpec(String requestId, double latitude, double longitude, float radius,
+                        int transitionTypes) {
+        this(requestId, latitude, longitude, radius, transitionTypes, 0, 0);
+    }
+
+    public GeofenceSpec(String requestId, double latitude, double longitude, float radius,
+                        int transitionTypes, int loiteringDelay, int responsiveness) {
+        if (requestId == null) throw new IllegalArgumentException("requestId == null");
+        this.requestId = requestId;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+        this.transitionTypes = transitionTypes;
+        this.loiteringDelay = loiteringDelay;
+        this.responsiveness = responsiveness;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof GeofenceSpec)) return false;
+        GeofenceSpec other = (GeofenceSpec) o;
+        return requestId.equals(other.requestId)
+                && Double.compare(latitude, other.latitude) == 0
+                && Double.compare(longitude, other.longitude) == 0
+                && Float.compare(radius, other.radius) == 0
+                && transitionTypes == other.transitionTypes
+                && loiteringDelay == other.loiteringDelay
+                && responsiveness == other.responsiveness;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = requestId.hashCode();
+        long bits = Double.doubleToLongBits(latitude);
+        result = 31 * result + (int) (bits ^ (bits >>> 32));
+        bits = Double.doubleToLongBits(longitude);
+        result = 31 * result + (int) (bits ^ (bits >>> 32));
+        result = 31 * result + Float.floatToIntBits(radius);
+        result = 31 * result + transitionTypes;
+        result = 31 * result + loiteringDelay;
+        result = 31 * result + responsiveness;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "GeofenceSpec{" + requestId + " @" + latitude + "," + longitude
+                + " r=" + radius + " t=" + transitionTypes + " l=" + loiteringDelay
+                + " n=" + responsiveness + "}";
+    }
+}
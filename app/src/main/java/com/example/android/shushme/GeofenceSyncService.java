@@ -0,0 +1,196 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-registers Geofences in the background, without the UI running
+ * Connects its own GoogleApiClient, reads the places from the {@link PlaceRepository} (or, at boot and on
+ * renewal, from the fence snapshot) and lets {@link Geofencing} push the resulting set to
+ * Play Services, or to {@link LocalGeofencing} when Play Services can't be connected to
+ * <p>
+ * Fences expire a day after they were added and are dropped at reboot, so while geofencing is
+ * enabled a repeating alarm re-adds them twice a day and {@link BootReceiver} restores them at boot
+ */
+public class GeofenceSyncService extends IntentService {
+
+    public static final String TAG = GeofenceSyncService.class.getSimpleName();
+
+    // A region fence was entered or exited, swap the fine fences accordingly
+    public static final String ACTION_REGION_TRANSITION =
+            "com.example.android.shushme.action.REGION_TRANSITION";
+    public static final String EXTRA_TRANSITION = "transition";
+    public static final String EXTRA_REQUEST_IDS = "request_ids";
+    // Re-add every fence before Play Services expires them
+    public static final String ACTION_RENEW = "com.example.android.shushme.action.RENEW_GEOFENCES";
+    // Play Services lost every fence, e.g. at reboot
+    public static final String ACTION_RESTORE = "com.example.android.shushme.action.RESTORE_GEOFENCES";
+
+    // Well within the 24 hour fence expiration, even if the alarm is late
+    private static final long RENEWAL_INTERVAL = AlarmManager.INTERVAL_HALF_DAY;
+    // Mirrors the switch in MainActivity, which keeps it in its own preferences
+    private static final String PREF_GEOFENCES_ENABLED = "geofences_enabled";
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    // Covers a registration that has to be retried a few times
+    private static final long REGISTER_TIMEOUT_MILLIS = 60 * 1000L;
+
+    public GeofenceSyncService() {
+        super(TAG);
+    }
+
+    /**
+     * Starts the service to handle region fence transitions
+     *
+     * @param context    the calling context
+     * @param transition the Geofence transition type
+     * @param regionIds  the request ids of the triggering region fences
+     */
+    public static void startRegionTransition(Context context, int transition, ArrayList<String> regionIds) {
+        Intent intent = new Intent(context, GeofenceSyncService.class);
+        intent.setAction(ACTION_REGION_TRANSITION);
+        intent.putExtra(EXTRA_TRANSITION, transition);
+        intent.putStringArrayListExtra(EXTRA_REQUEST_IDS, regionIds);
+        context.startService(intent);
+    }
+
+    /**
+     * Starts the service to register every fence again after Play Services lost them
+     *
+     * @param context the calling context
+     */
+    public static void startRestore(Context context) {
+        context.startService(new Intent(context, GeofenceSyncService.class).setAction(ACTION_RESTORE));
+    }
+
+    /**
+     * Records whether geofencing is switched on, and starts or stops the renewal alarm accordingly
+     *
+     * @param context the calling context
+     * @param enabled the state of the switch
+     */
+    public static void setEnabled(Context context, boolean enabled) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(PREF_GEOFENCES_ENABLED, enabled)
+                .apply();
+        if (enabled) {
+            scheduleRenewal(context);
+        } else {
+            PendingIntent renewal = getRenewalIntent(context, PendingIntent.FLAG_NO_CREATE);
+            if (renewal == null) return;
+            AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(renewal);
+            renewal.cancel();
+        }
+    }
+
+    /**
+     * @return true if the user switched geofencing on
+     */
+    public static boolean isEnabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_GEOFENCES_ENABLED, false);
+    }
+
+    /**
+     * Sets the repeating renewal alarm, unless it is already set
+     * An already set alarm is left alone so that it keeps firing a fixed time after the last
+     * full registration, the UI only sends the fences that changed
+     *
+     * @param context the calling context
+     */
+    public static void scheduleRenewal(Context context) {
+        if (getRenewalIntent(context, PendingIntent.FLAG_NO_CREATE) != null) return;
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // A wakeup alarm, or a phone left asleep would never renew its fences; inexact so it gets
+        // batched with other wakeups, the interval leaves plenty of slack
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + RENEWAL_INTERVAL, RENEWAL_INTERVAL,
+                getRenewalIntent(context, 0));
+    }
+
+    private static PendingIntent getRenewalIntent(Context context, int flags) {
+        Intent intent = new Intent(context, GeofenceSyncService.class).setAction(ACTION_RENEW);
+        return PendingIntent.getService(context, 0, intent, flags);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null) return;
+        String action = intent.getAction();
+        boolean renewing = ACTION_RENEW.equals(action) || ACTION_RESTORE.equals(action);
+        if (renewing && !isEnabled(this)) return;
+        GoogleApiClient client = new GoogleApiClient.Builder(this)
+                .addApi(LocationServices.API)
+                .build();
+        ConnectionResult connectionResult = client.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        try {
+            // Registrations are tracked per process, so a region transition only sends the
+            // fences that change; renewing re-adds them all, which renews their expiration
+            Geofencing geofencing = new Geofencing(this, client);
+            if (ACTION_RESTORE.equals(action)) {
+                geofencing.forgetRegisteredGeofences();
+            } else if (ACTION_RENEW.equals(action)) {
+                geofencing.renewAllGeofences();
+            }
+            if (!connectionResult.isSuccess()) {
+                Log.e(TAG, "API Client Connection Failed: " + connectionResult.getErrorCode());
+                // The fences are evaluated on the device instead
+                geofencing.useLocalFallback();
+            }
+            // The snapshot spares opening the database at boot, it's only missing before the
+            // places were ever loaded
+            if (!renewing || !geofencing.restoreGeofencesList()) {
+                // Usually loaded already when the app is running
+                geofencing.updateGeofencesList(PlaceRepository.getInstance().getSnapshot());
+            }
+            if (ACTION_REGION_TRANSITION.equals(action)) {
+                List<String> requestIds = intent.getStringArrayListExtra(EXTRA_REQUEST_IDS);
+                int transition = intent.getIntExtra(EXTRA_TRANSITION, 0);
+                if (requestIds == null || !geofencing.onRegionTransition(transition, requestIds)) {
+                    return;
+                }
+            }
+            geofencing.registerAllGeofences();
+            // The client has to stay connected until Play Services answered
+            if (!geofencing.awaitRegistration(REGISTER_TIMEOUT_MILLIS)) {
+                Log.e(TAG, "Geofences not registered, state "
+                        + geofencing.getRegistrationState());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            client.disconnect();
+        }
+    }
+}
@@ -20,131 +20,602 @@ import android.app.PendingIntent;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.example.android.shushme.provider.PlaceContract;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.PendingResult;
-import com.google.android.gms.common.api.Result;
 import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofenceStatusCodes;
 import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.location.places.Place;
-import com.google.android.gms.location.places.PlaceBuffer;
-import com.google.android.gms.location.places.Places;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
-public class Geofencing implements ResultCallback {
+public class Geofencing implements GeofenceRegistrationScheduler.Api {
 
     // Constants
     public static final String TAG = Geofencing.class.getSimpleName();
-    private static final float GEOFENCE_RADIUS = 50; // 50 meters
+
+    private static final Metrics.Counter API_CALLS = Metrics.counter("geofencing.api_calls");
+    private static final Metrics.Counter API_SUCCESSES = Metrics.counter("geofencing.api_successes");
+    private static final Metrics.Counter API_FAILURES = Metrics.counter("geofencing.api_failures");
+
     private static final long GEOFENCE_TIMEOUT = 24 * 60 * 60 * 1000; // 24 hours
+    // Play Services allows at most 100 active geofences per app
+    private static final int MAX_GEOFENCES = 100;
+    // Places whose fences overlap or are less than this (meters) apart share one fence...
+    private static final double CLUSTER_GAP = 25;
+    // ...as long as the shared fence is no larger than this, see GeofenceClusterer
+    private static final double CLUSTER_MAX_RADIUS = 250;
+    // Preference keys for the region the device was last in, shared with the background service
+    private static final String PREF_REGION_HAS_ANCHOR = "region_has_anchor";
+    private static final String PREF_REGION_ANCHOR_LAT = "region_anchor_lat";
+    private static final String PREF_REGION_ANCHOR_LNG = "region_anchor_lng";
+    private static final String PREF_REGION_INSIDE = "region_inside";
+
+    // Registrations of every instance are sent from here, one at a time
+    private static final ScheduledExecutorService REGISTRATION_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor();
+    // Every instance registers with the same pending intent, so one scheduler per process keeps
+    // track of what is registered with it, and a new instance, e.g. one per GeofenceSyncService
+    // intent, only sends the delta from what an earlier one registered
+    private static final ActiveApi ACTIVE_API = new ActiveApi();
+    private static final GeofenceRegistrationScheduler SCHEDULER = new GeofenceRegistrationScheduler(
+            ACTIVE_API, REGISTRATION_EXECUTOR, new GeofenceRegistrationScheduler.Config());
+    // Snapshots are written off the calling thread, one at a time and in order
+    private static final Executor SNAPSHOT_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final Object SNAPSHOT_LOCK = new Object();
+    // The places last handed to SNAPSHOT_EXECUTOR, guarded by SNAPSHOT_LOCK
+    private static List<GeofenceSpec> sSnapshotPlaces;
+    // The clusters of the places last planned in this process, guarded by SNAPSHOT_LOCK
+    private static GeofenceClusterer.Result sClusters;
 
-    private List<Geofence> mGeofenceList;
+    // One fine fence per place, keyed by place UID
+    private final Map<String, GeofenceSpec> mPlaces;
+    // The fences we want registered, keyed by request id, and the ones Play Services actually has
+    private Map<String, GeofenceSpec> mDesiredGeofences;
+    private final RegionGeofencePlanner mPlanner;
     private PendingIntent mGeofencePendingIntent;
     private GoogleApiClient mGoogleApiClient;
     private Context mContext;
+    // When set, fences are evaluated on the device instead of by Play Services
+    private volatile boolean mLocalFallback;
 
     public Geofencing(Context context, GoogleApiClient client) {
         mContext = context;
         mGoogleApiClient = client;
         mGeofencePendingIntent = null;
-        mGeofenceList = new ArrayList<>();
+        mPlaces = new LinkedHashMap<>();
+        mDesiredGeofences = new LinkedHashMap<>();
+        mPlanner = new RegionGeofencePlanner(MAX_GEOFENCES,
+                Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT);
     }
 
     /***
-     * Registers the list of Geofences specified in mGeofenceList with Google Place Services
+     * Returns the fences the last updateGeofencesList call asked for, keyed by request id
+     * Useful for replaying them offline with {@link GeofenceSimulator}
+     */
+    public Map<String, GeofenceSpec> getDesiredGeofences() {
+        return Collections.unmodifiableMap(mDesiredGeofences);
+    }
+
+    /***
+     * Brings the Geofences registered with Google Place Services in line with mDesiredGeofences
+     * Bursts of calls, e.g. one per row while a sync writes hundreds of places, are coalesced into
+     * one registration that only sends the delta since the last one, and only one registration is
+     * in flight at a time, see {@link GeofenceRegistrationScheduler}
      * Uses {@code #mGoogleApiClient} to connect to Google Place Services
-     * Uses {@link #getGeofencingRequest} to get the list of Geofences to be registered
      * Uses {@link #getGeofencePendingIntent} to get the pending intent to launch the IntentService
      * when the Geofence is triggered
-     * Triggers {@link #onResult} when the geofences have been registered successfully
+     * With the local fallback on, the same calls go to {@link LocalGeofencing} instead
      */
     public void registerAllGeofences() {
-        // Check that the API client is connected and that the list has Geofences in it
-        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected() ||
-                mGeofenceList == null || mGeofenceList.size() == 0) {
+        // Check that the API client is connected
+        if (!mLocalFallback && (mGoogleApiClient == null || !mGoogleApiClient.isConnected())) {
             return;
         }
-        try {
-            LocationServices.GeofencingApi.addGeofences(
-                    mGoogleApiClient,
-                    getGeofencingRequest(),
-                    getGeofencePendingIntent()
-            ).setResultCallback(this);
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            Log.e(TAG, securityException.getMessage());
-        }
+        // Play Services works, don't let the local engine report the same transitions
+        if (!mLocalFallback) LocalGeofencing.stopIfStarted(mContext);
+        ACTIVE_API.setTarget(this);
+        SCHEDULER.request(mDesiredGeofences);
     }
 
     /***
      * Unregisters all the Geofences created by this app from Google Place Services
-     * Uses {@code #mGoogleApiClient} to connect to Google Place Services
-     * Uses {@link #getGeofencePendingIntent} to get the pending intent passed when
-     * registering the Geofences in the first place
-     * Triggers {@link #onResult} when the geofences have been unregistered successfully
+     * Goes through the same scheduler as {@link #registerAllGeofences}, so switching geofencing
+     * off and on quickly only sends the last of the two
      */
     public void unRegisterAllGeofences() {
-        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected()) {
+        if (!mLocalFallback && (mGoogleApiClient == null || !mGoogleApiClient.isConnected())) {
+            return;
+        }
+        ACTIVE_API.setTarget(this);
+        SCHEDULER.request(Collections.<String, GeofenceSpec>emptyMap());
+    }
+
+    /***
+     * Makes the next registration add every fence again, which renews their expiration
+     * Fences that are still registered keep their state, so nothing is reported twice
+     */
+    public void renewAllGeofences() {
+        SCHEDULER.renew();
+    }
+
+    /***
+     * Makes the next registration clear and re-add every fence, for when Play Services lost them
+     * all, e.g. at boot or after the app was updated
+     */
+    public void forgetRegisteredGeofences() {
+        SCHEDULER.invalidate();
+    }
+
+    /***
+     * @return the state of the registration, one of the GeofenceRegistrationScheduler.STATE_
+     * constants
+     */
+    public int getRegistrationState() {
+        return SCHEDULER.getState();
+    }
+
+    /***
+     * Waits for the registrations asked for so far to be sent and answered
+     * Only use this from a background thread, e.g. in {@link GeofenceSyncService}
+     *
+     * @param timeoutMillis the longest to wait
+     * @return true if the fences were registered
+     */
+    public boolean awaitRegistration(long timeoutMillis) throws InterruptedException {
+        return SCHEDULER.awaitIdle(timeoutMillis);
+    }
+
+    /***
+     * Evaluates the fences on the device, from location updates, instead of with Play Services
+     * Used when Play Services can't be connected to or reports geofencing as unavailable
+     * Call {@link #registerAllGeofences} afterwards to hand the fences over
+     */
+    public void useLocalFallback() {
+        if (mLocalFallback) return;
+        Log.w(TAG, "Play Services geofencing unavailable, evaluating the fences locally");
+        mLocalFallback = true;
+        // Nothing is known about what the local engine holds, start over
+        SCHEDULER.invalidate();
+        ACTIVE_API.onBackendChanged(this);
+    }
+
+    /***
+     * Adds (or replaces, when the request id already exists) the given Geofences
+     * Called on the scheduler's thread with only the new or changed fences
+     *
+     * @param geofences the fences to add
+     * @param callback  told once Play Services answered
+     */
+    @Override
+    public void addGeofences(List<GeofenceSpec> geofences,
+                             GeofenceRegistrationScheduler.Callback callback) {
+        if (mLocalFallback) {
+            LocalGeofencing.getInstance(mContext).addGeofences(geofences);
+            callback.onSuccess();
             return;
         }
         try {
-            LocationServices.GeofencingApi.removeGeofences(
+            submit(LocationServices.GeofencingApi.addGeofences(
                     mGoogleApiClient,
-                    // This is the same pending intent that was used in registerGeofences
+                    getGeofencingRequest(geofences),
                     getGeofencePendingIntent()
-            ).setResultCallback(this);
+            ), callback);
         } catch (SecurityException securityException) {
             // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
             Log.e(TAG, securityException.getMessage());
+            callback.onFailure(securityException.getMessage());
+        }
+    }
+
+    /***
+     * Removes the Geofences with the given request ids
+     * Called on the scheduler's thread with only the fences that are no longer wanted
+     *
+     * @param requestIds the place UIDs of the fences to remove
+     * @param callback   told once Play Services answered
+     */
+    @Override
+    public void removeGeofences(List<String> requestIds,
+                                GeofenceRegistrationScheduler.Callback callback) {
+        // Removed fences never report their EXIT, restore the ringer once the hold time is over
+        RingerStateStore.forget(mContext, requestIds, System.currentTimeMillis());
+        GeofenceBroadcastReceiver.scheduleExitDeadline(mContext);
+        if (mLocalFallback) {
+            LocalGeofencing.getInstance(mContext).removeGeofences(requestIds);
+            callback.onSuccess();
+            return;
+        }
+        submit(LocationServices.GeofencingApi.removeGeofences(
+                mGoogleApiClient,
+                requestIds
+        ), callback);
+    }
+
+    /***
+     * Removes every Geofence registered with this app's pending intent
+     * Called on the scheduler's thread when it doesn't know what is currently registered
+     *
+     * @param callback told once Play Services answered
+     */
+    @Override
+    public void removeAllGeofences(GeofenceRegistrationScheduler.Callback callback) {
+        // Fences added back report ENTER again straight away (INITIAL_TRIGGER_ENTER), within the
+        // hold time, otherwise the ringer comes back once it is over
+        RingerStateStore.forget(mContext, null, System.currentTimeMillis());
+        GeofenceBroadcastReceiver.scheduleExitDeadline(mContext);
+        if (mLocalFallback) {
+            LocalGeofencing.getInstance(mContext).removeAllGeofences();
+            callback.onSuccess();
+            return;
         }
+        submit(LocationServices.GeofencingApi.removeGeofences(
+                mGoogleApiClient,
+                // This is the same pending intent that was used in registerGeofences
+                getGeofencePendingIntent()
+        ), callback);
+    }
+
+    /**
+     * Passes the result of a Play Services call on to the scheduler's callback
+     *
+     * @param pendingResult the pending result of the call
+     * @param callback      the scheduler's callback
+     */
+    private void submit(PendingResult<Status> pendingResult,
+                        final GeofenceRegistrationScheduler.Callback callback) {
+        API_CALLS.increment();
+        pendingResult.setResultCallback(new ResultCallback<Status>() {
+            @Override
+            public void onResult(@NonNull Status status) {
+                if (status.isSuccess()) {
+                    API_SUCCESSES.increment();
+                    callback.onSuccess();
+                    return;
+                }
+                API_FAILURES.increment();
+                Log.e(TAG, String.format("Error adding/removing geofence : %s", status.toString()));
+                if (status.getStatusCode() == GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE) {
+                    // E.g. the user turned off Google's location service, evaluate the fences
+                    // ourselves; the retry goes to the local engine
+                    useLocalFallback();
+                }
+                // The scheduler retries, re-sending the full set
+                callback.onFailure(status.toString());
+            }
+        });
     }
 
 
     /***
-     * Updates the local ArrayList of Geofences using data from the passed in cursor
+     * Updates the desired set of Geofences using data from the passed in cursor
      * Uses the Place UID defined by the API as the Geofence object Id
+     * Places close to each other share one fence, see {@link GeofenceClusterer}
+     * When there are more places than Play Services allows, they are grouped into region fences,
+     * see {@link RegionGeofencePlanner}
+     * Nothing is sent to Play Services here, see {@link #registerAllGeofences}
+     * The places are also saved to the fence snapshot when they changed, see
+     * {@link #restoreGeofencesList}
      *
      * @param data the cursor result of the local database query
      */
     public void updateGeofencesList(Cursor data) {
-        mGeofenceList = new ArrayList<Geofence>();
+        List<GeofenceSpec> places = new ArrayList<>();
+        readPlaces(data, places);
+        setPlaces(places);
+    }
+
+    /***
+     * Updates the desired set of Geofences from every place of the snapshot
+     *
+     * @param snapshot the places, see {@link PlaceRepository#getSnapshot}
+     */
+    public void updateGeofencesList(PlaceRepository.Snapshot snapshot) {
+        List<GeofenceSpec> places = new ArrayList<>(snapshot.size());
+        for (PlaceRecord place : snapshot.getAll()) places.add(toGeofence(place));
+        setPlaces(places);
+    }
+
+    /***
+     * Applies the changes of the {@link PlaceRepository} to the desired set of Geofences
+     * Changes that leave every fence as it was, e.g. a new name or address, are skipped without
+     * planning the fences again or touching the snapshot
+     *
+     * @param deltas the places added, updated or removed
+     * @return true if the desired set of Geofences may have changed
+     */
+    public boolean onPlacesChanged(List<PlaceRepository.Delta> deltas) {
+        boolean changed = false;
+        for (PlaceRepository.Delta delta : deltas) {
+            if (delta.before != null && (delta.after == null || !delta.before.uid.equals(delta.after.uid))) {
+                changed |= mPlaces.remove(delta.before.uid) != null;
+            }
+            if (delta.after != null) {
+                GeofenceSpec fence = toGeofence(delta.after);
+                changed |= !fence.equals(mPlaces.put(fence.requestId, fence));
+            }
+        }
+        if (!changed) return false;
+        List<GeofenceSpec> places = new ArrayList<>(mPlaces.values());
+        plan(places);
+        saveSnapshot(places);
+        return true;
+    }
+
+    private void setPlaces(List<GeofenceSpec> places) {
+        mPlaces.clear();
+        for (GeofenceSpec place : places) mPlaces.put(place.requestId, place);
+        plan(places);
+        saveSnapshot(places);
+    }
+
+    /**
+     * Clusters the places and updates the desired set of Geofences with the resulting fences
+     */
+    private void plan(List<GeofenceSpec> places) {
+        GeofenceClusterer.Result clusters = GeofenceClusterer.cluster(places, CLUSTER_GAP,
+                CLUSTER_MAX_RADIUS);
+        synchronized (SNAPSHOT_LOCK) {
+            sClusters = clusters;
+        }
+        restoreAnchor();
+        mPlanner.setPlaces(clusters.getFences());
+        mDesiredGeofences = mPlanner.getActiveGeofences();
+    }
+
+    /**
+     * Restores the region the device was last in, which another instance, e.g. the one of
+     * {@link GeofenceSyncService}, may have moved since this one last planned
+     * The planner resolves it against the regions of the places it is given next
+     */
+    private void restoreAnchor() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        if (!prefs.getBoolean(PREF_REGION_HAS_ANCHOR, false)) return;
+        mPlanner.setAnchor(
+                Double.longBitsToDouble(prefs.getLong(PREF_REGION_ANCHOR_LAT, 0)),
+                Double.longBitsToDouble(prefs.getLong(PREF_REGION_ANCHOR_LNG, 0)),
+                prefs.getBoolean(PREF_REGION_INSIDE, false));
+    }
+
+    /***
+     * Maps the request ids of triggering fences back to the places they stand for
+     * A cluster fence stands for all of its members, any other fence for its own place
+     * When this process hasn't planned any fences yet the clusters are computed again from the
+     * fence snapshot, so don't call this on the main thread
+     *
+     * @param context    the calling context
+     * @param requestIds the request ids of the triggering geofences, without region fences
+     * @return the place UIDs, a cluster that can't be resolved is returned as is
+     */
+    public static List<String> getPlaceUids(Context context, List<String> requestIds) {
+        GeofenceClusterer.Result clusters;
+        synchronized (SNAPSHOT_LOCK) {
+            clusters = sClusters;
+        }
+        boolean loaded = false;
+        List<String> uids = new ArrayList<>(requestIds.size());
+        for (String requestId : requestIds) {
+            if (!GeofenceClusterer.isClusterId(requestId)) {
+                uids.add(requestId);
+                continue;
+            }
+            if (!loaded && (clusters == null || !clusters.hasCluster(requestId))) {
+                loaded = true;
+                clusters = loadClusters(context);
+            }
+            List<String> members = clusters == null
+                    ? Collections.<String>emptyList() : clusters.getMembers(requestId);
+            if (members.isEmpty()) {
+                uids.add(requestId);
+            } else {
+                uids.addAll(members);
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * Clusters the places of the fence snapshot the same way {@link #plan} does
+     *
+     * @return the clusters, or null if there is no usable snapshot
+     */
+    private static GeofenceClusterer.Result loadClusters(Context context) {
+        List<GeofenceSpec> places;
+        try {
+            places = FenceSnapshot.read(getSnapshotFile(context));
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read the fence snapshot: " + e.getMessage());
+            return null;
+        }
+        GeofenceClusterer.Result clusters = GeofenceClusterer.cluster(places, CLUSTER_GAP,
+                CLUSTER_MAX_RADIUS);
+        synchronized (SNAPSHOT_LOCK) {
+            if (sClusters == null) sClusters = clusters;
+        }
+        return clusters;
+    }
+
+    /***
+     * Updates the desired set of Geofences from the fence snapshot, without opening the database
+     * Used at boot and by the renewal alarm, see {@link GeofenceSyncService}
+     *
+     * @return false if there is no usable snapshot, the desired set is left unchanged then
+     */
+    public boolean restoreGeofencesList() {
+        List<GeofenceSpec> places;
+        try {
+            places = FenceSnapshot.read(getSnapshotFile(mContext));
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't restore the fence snapshot: " + e.getMessage());
+            return false;
+        }
+        synchronized (SNAPSHOT_LOCK) {
+            if (sSnapshotPlaces == null) sSnapshotPlaces = places;
+        }
+        mPlaces.clear();
+        for (GeofenceSpec place : places) mPlaces.put(place.requestId, place);
+        plan(places);
+        return true;
+    }
+
+    /**
+     * Writes the places to the fence snapshot in the background, unless that's what it holds
+     *
+     * @param places the places just read, not modified afterwards
+     */
+    private void saveSnapshot(final List<GeofenceSpec> places) {
+        synchronized (SNAPSHOT_LOCK) {
+            if (places.equals(sSnapshotPlaces)) return;
+            sSnapshotPlaces = places;
+        }
+        final File file = getSnapshotFile(mContext);
+        SNAPSHOT_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FenceSnapshot.write(file, places);
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't write the fence snapshot", e);
+                    // Try again on the next update
+                    synchronized (SNAPSHOT_LOCK) {
+                        if (sSnapshotPlaces == places) sSnapshotPlaces = null;
+                    }
+                }
+            }
+        });
+    }
+
+    private static File getSnapshotFile(Context context) {
+        return new File(context.getFilesDir(), FenceSnapshot.FILE_NAME);
+    }
+
+    /***
+     * Handles transitions on region fences by swapping in the fine fences of the region entered
+     * (or dropping those of the region exited) and remembering the region for other processes
+     * Call {@link #registerAllGeofences} afterwards to apply the new set
+     *
+     * @param transition the Geofence transition type
+     * @param requestIds the request ids of the triggering geofences, place UIDs are ignored
+     * @return true if the desired set of Geofences changed
+     */
+    public boolean onRegionTransition(int transition, List<String> requestIds) {
+        boolean changed = false;
+        for (String requestId : requestIds) {
+            if (!RegionGeofencePlanner.isRegionId(requestId)) continue;
+            if (transition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+                changed |= mPlanner.onRegionEnter(requestId);
+            } else if (transition == Geofence.GEOFENCE_TRANSITION_EXIT) {
+                changed |= mPlanner.onRegionExit(requestId);
+            }
+        }
+        if (!changed) return false;
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putBoolean(PREF_REGION_HAS_ANCHOR, mPlanner.hasAnchor())
+                .putLong(PREF_REGION_ANCHOR_LAT, Double.doubleToLongBits(mPlanner.getAnchorLatitude()))
+                .putLong(PREF_REGION_ANCHOR_LNG, Double.doubleToLongBits(mPlanner.getAnchorLongitude()))
+                .putBoolean(PREF_REGION_INSIDE, mPlanner.getCurrentRegionId() != null)
+                .apply();
+        mDesiredGeofences = mPlanner.getActiveGeofences();
+        return true;
+    }
+
+    /**
+     * Reads one fine Geofence per place from the cursor, with the place's own radius, loitering
+     * delay and responsiveness
+     * Places with a loitering delay are fenced with DWELL instead of ENTER, so walking past them
+     * neither wakes the receiver nor toggles the ringer
+     *
+     * @param data   the cursor result of the local database query, may be null
+     * @param places the list to add the Geofences to
+     */
+    private static void readPlaces(Cursor data, List<GeofenceSpec> places) {
         if (data == null || data.getCount() == 0) return;
+        int uidIndex = data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_UID);
+        int latIndex = data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_LATITUDE_E7);
+        int lngIndex = data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_LONGITUDE_E7);
+        // Missing from cursors that don't come from the places table, e.g. in tests
+        int radiusIndex = data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_GEOFENCE_RADIUS);
+        int loiteringIndex = data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_LOITERING_DELAY);
+        int responsivenessIndex = data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_RESPONSIVENESS);
+        data.moveToPosition(-1);
         while (data.moveToNext()) {
             // Read the place information from the DB cursor
-            String placeUID = data.getString(data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_UID));
-            float placeLat = data.getFloat(data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE));
-            float placeLng = data.getFloat(data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE));
-            // Build a Geofence object
-            Geofence geofence = new Geofence.Builder()
-                    .setRequestId(placeUID)
-                    .setExpirationDuration(GEOFENCE_TIMEOUT)
-                    .setCircularRegion(placeLat, placeLng, GEOFENCE_RADIUS)
-                    .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT)
-                    .build();
-            // Add it to the list
-            mGeofenceList.add(geofence);
+            String placeUID = data.getString(uidIndex);
+            double placeLat = GeoMath.fromE7(data.getInt(latIndex));
+            double placeLng = GeoMath.fromE7(data.getInt(lngIndex));
+            float radius = radiusIndex < 0
+                    ? PlaceContract.PlaceEntry.DEFAULT_GEOFENCE_RADIUS : data.getFloat(radiusIndex);
+            int loiteringDelay = loiteringIndex < 0
+                    ? PlaceContract.PlaceEntry.DEFAULT_LOITERING_DELAY : data.getInt(loiteringIndex);
+            int responsiveness = responsivenessIndex < 0
+                    ? PlaceContract.PlaceEntry.DEFAULT_RESPONSIVENESS : data.getInt(responsivenessIndex);
+            places.add(toGeofence(placeUID, placeLat, placeLng, radius, loiteringDelay, responsiveness));
         }
     }
 
+    private static GeofenceSpec toGeofence(PlaceRecord place) {
+        // Both come from the same E7 columns, so readPlaces gives the same fences
+        return toGeofence(place.uid, place.latitude, place.longitude, place.radius,
+                place.loiteringDelay, place.responsiveness);
+    }
+
+    private static GeofenceSpec toGeofence(String placeUID, double placeLat, double placeLng,
+                                           float radius, int loiteringDelay, int responsiveness) {
+        int transitions = (loiteringDelay > 0
+                ? Geofence.GEOFENCE_TRANSITION_DWELL : Geofence.GEOFENCE_TRANSITION_ENTER)
+                | Geofence.GEOFENCE_TRANSITION_EXIT;
+        return new GeofenceSpec(placeUID, placeLat, placeLng, radius, transitions,
+                Math.max(0, loiteringDelay), Math.max(0, responsiveness));
+    }
+
     /***
-     * Creates a GeofencingRequest object using the mGeofenceList ArrayList of Geofences
-     * Used by {@code #registerGeofences}
+     * Creates a GeofencingRequest object for the given fences
+     * Used by {@link #addGeofences}
      *
+     * @param geofences the fences to put in the request
      * @return the GeofencingRequest object
      */
-    private GeofencingRequest getGeofencingRequest() {
+    private GeofencingRequest getGeofencingRequest(List<GeofenceSpec> geofences) {
+        List<Geofence> geofenceList = new ArrayList<>(geofences.size());
+        for (GeofenceSpec spec : geofences) {
+            Geofence.Builder geofence = new Geofence.Builder()
+                    .setRequestId(spec.requestId)
+                    .setExpirationDuration(GEOFENCE_TIMEOUT)
+                    .setCircularRegion(spec.latitude, spec.longitude, spec.radius)
+                    .setTransitionTypes(spec.transitionTypes);
+            if ((spec.transitionTypes & Geofence.GEOFENCE_TRANSITION_DWELL) != 0) {
+                geofence.setLoiteringDelay(spec.loiteringDelay);
+            }
+            if (spec.responsiveness > 0) geofence.setNotificationResponsiveness(spec.responsiveness);
+            geofenceList.add(geofence.build());
+        }
         GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
-        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER);
-        builder.addGeofences(mGeofenceList);
+        // Fences already entered, or dwelt in, report it straight away
+        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER
+                | GeofencingRequest.INITIAL_TRIGGER_DWELL);
+        builder.addGeofences(geofenceList);
         return builder.build();
     }
 
@@ -165,10 +636,48 @@ public class Geofencing implements ResultCallback {
         return mGeofencePendingIntent;
     }
 
-    @Override
-    public void onResult(@NonNull Result result) {
-        Log.e(TAG, String.format("Error adding/removing geofence : %s",
-                    result.getStatus().toString()));
-    }
+    /**
+     * The calls of the process-wide scheduler, forwarded to the instance that requested a
+     * registration last, whose client is the one connected
+     */
+    private static final class ActiveApi implements GeofenceRegistrationScheduler.Api {
+        private volatile Geofencing mTarget;
+        // Whether the fences were last requested for the local engine, guarded by this
+        private boolean mLocal;
+
+        /**
+         * Sends the next calls to the given instance; when it registers with the other backend,
+         * the scheduler forgets what the previous one holds
+         */
+        synchronized void setTarget(Geofencing target) {
+            if (mTarget != null && mLocal != target.mLocalFallback) SCHEDULER.invalidate();
+            mTarget = target;
+            mLocal = target.mLocalFallback;
+        }
+
+        /**
+         * Records that the given instance switched to the local engine, it already invalidated
+         * the scheduler
+         */
+        synchronized void onBackendChanged(Geofencing target) {
+            if (mTarget == target) mLocal = target.mLocalFallback;
+        }
+
+        @Override
+        public void addGeofences(List<GeofenceSpec> geofences,
+                                 GeofenceRegistrationScheduler.Callback callback) {
+            mTarget.addGeofences(geofences, callback);
+        }
 
+        @Override
+        public void removeGeofences(List<String> requestIds,
+                                    GeofenceRegistrationScheduler.Callback callback) {
+            mTarget.removeGeofences(requestIds, callback);
+        }
+
+        @Override
+        public void removeAllGeofences(GeofenceRegistrationScheduler.Callback callback) {
+            mTarget.removeAllGeofences(callback);
+        }
+    }
 }
@@ -0,0 +1,259 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the name and address of the places that haven't been synced for a while.
+ * <p>
+ * The stale places are loaded once, split into chunks of at most {@link Config#chunkSize} UIDs
+ * and requested from the {@link Api} with at most {@link Config#maxConcurrentRequests} requests
+ * in flight. A failed chunk is retried after an exponentially growing, jittered delay, up to
+ * {@link Config#maxAttempts} times; chunks that still fail stay stale until the next sync.
+ * Every successful chunk is written back at once, with the time it was synced, so a sync that is
+ * cut short keeps what it already fetched.
+ * <p>
+ * Everything except {@link Api#getPlacesById} runs on the given executor, which must be
+ * single-threaded; Api callbacks can arrive on any thread.
+ */
+public class LivePlaceSync {
+
+    /**
+     * Where live place data comes from. {@link GeoDataLiveSync} implements this on top of
+     * {@code Places.GeoDataApi}; tests use a local fake.
+     */
+    public interface Api {
+        /**
+         * Requests the live data of the given places, must call back exactly once
+         *
+         * @param uids     the place UIDs, at most {@link Config#chunkSize}
+         * @param callback receives the places found, in any order, or the failure
+         */
+        void getPlacesById(List<String> uids, Callback callback);
+    }
+
+    public interface Callback {
+        void onResult(List<PlaceRecord> livePlaces);
+
+        void onFailure(String reason);
+    }
+
+    /**
+     * The local place cache. {@link GeoDataLiveSync} implements this on top of the ContentResolver.
+     */
+    public interface Store {
+        /**
+         * @param syncedBefore places last synced before this time are stale
+         * @return the stale places that can be looked up live, keyed by UID
+         */
+        Map<String, PlaceRecord> loadStale(long syncedBefore);
+
+        /**
+         * Writes the result of one chunk as one batch
+         *
+         * @param updates    records carrying the local database id and the new name and address
+         * @param syncedIds  the local database ids of every place in the chunk
+         * @param timeMillis the time to record as their last sync
+         */
+        void applySynced(List<PlaceRecord> updates, List<Long> syncedIds, long timeMillis);
+    }
+
+    /**
+     * Told once a sync is over
+     */
+    public interface Listener {
+        /**
+         * @param synced  the number of places synced
+         * @param updated how many of those had a new name or address
+         * @param failed  the number of places left stale because their chunk kept failing
+         */
+        void onSyncFinished(int synced, int updated, int failed);
+    }
+
+    public static class Config {
+        // Places that were synced more recently than this are left alone
+        public long ttlMillis = 24 * 60 * 60 * 1000L;
+        public int chunkSize = 10;
+        public int maxConcurrentRequests = 2;
+        public int maxAttempts = 5;
+        public long initialBackoffMillis = 2000;
+        public long maxBackoffMillis = 5 * 60 * 1000L;
+    }
+
+    private final Store mStore;
+    private final Api mApi;
+    private final ScheduledExecutorService mExecutor;
+    private final Config mConfig;
+    private final Random mRandom = new Random();
+
+    // Only touched on mExecutor
+    private boolean mRunning;
+    private Listener mListener;
+    private Map<String, PlaceRecord> mStale;
+    private final Queue<Chunk> mQueue = new ArrayDeque<>();
+    private int mInFlight;
+    private int mWaitingForRetry;
+    private int mSynced;
+    private int mUpdated;
+    private int mFailed;
+
+    public LivePlaceSync(Store store, Api api, ScheduledExecutorService executor, Config config) {
+        mStore = store;
+        mApi = api;
+        mExecutor = executor;
+        mConfig = config;
+    }
+
+    /**
+     * Starts a sync in the background, unless one is already running
+     *
+     * @param listener told when the sync is over, may be null
+     */
+    public void sync(final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                start(listener);
+            }
+        });
+    }
+
+    private void start(Listener listener) {
+        if (mRunning) return;
+        mRunning = true;
+        mListener = listener;
+        mSynced = mUpdated = mFailed = 0;
+        mStale = mStore.loadStale(System.currentTimeMillis() - mConfig.ttlMillis);
+        List<String> chunk = new ArrayList<>(mConfig.chunkSize);
+        for (String uid : mStale.keySet()) {
+            chunk.add(uid);
+            if (chunk.size() == mConfig.chunkSize) {
+                mQueue.add(new Chunk(chunk));
+                chunk = new ArrayList<>(mConfig.chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) mQueue.add(new Chunk(chunk));
+        pump();
+    }
+
+    /**
+     * Sends queued chunks while there is room, or finishes the sync when nothing is left
+     */
+    private void pump() {
+        while (mInFlight < mConfig.maxConcurrentRequests && !mQueue.isEmpty()) {
+            final Chunk chunk = mQueue.poll();
+            mInFlight++;
+            chunk.attempts++;
+            try {
+                mApi.getPlacesById(chunk.uids, new Callback() {
+                    @Override
+                    public void onResult(final List<PlaceRecord> livePlaces) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onChunkSynced(chunk, livePlaces);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(final String reason) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onChunkFailed(chunk, reason);
+                            }
+                        });
+                    }
+                });
+            } catch (RuntimeException e) {
+                onChunkFailed(chunk, e.toString());
+            }
+        }
+        if (mRunning && mInFlight == 0 && mWaitingForRetry == 0 && mQueue.isEmpty()) finish();
+    }
+
+    private void onChunkSynced(Chunk chunk, List<PlaceRecord> livePlaces) {
+        mInFlight--;
+        List<PlaceRecord> updates = PlaceReconciler.diff(mStale, livePlaces);
+        // Places missing from the result were asked for too, no point asking again right away
+        List<Long> syncedIds = new ArrayList<>(chunk.uids.size());
+        for (String uid : chunk.uids) syncedIds.add(mStale.get(uid).id);
+        try {
+            mStore.applySynced(updates, syncedIds, System.currentTimeMillis());
+            mSynced += syncedIds.size();
+            mUpdated += updates.size();
+        } catch (RuntimeException e) {
+            mFailed += syncedIds.size();
+        }
+        pump();
+    }
+
+    private void onChunkFailed(final Chunk chunk, String reason) {
+        mInFlight--;
+        if (chunk.attempts >= mConfig.maxAttempts) {
+            mFailed += chunk.uids.size();
+        } else {
+            mWaitingForRetry++;
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mWaitingForRetry--;
+                    mQueue.add(chunk);
+                    pump();
+                }
+            }, getBackoffMillis(chunk.attempts), TimeUnit.MILLISECONDS);
+        }
+        pump();
+    }
+
+    /**
+     * @param attempts the number of failed attempts so far, at least 1
+     * @return a delay between half and all of initialBackoff * 2^(attempts - 1), capped at maxBackoff
+     */
+    long getBackoffMillis(int attempts) {
+        long backoff = mConfig.initialBackoffMillis << Math.min(attempts - 1, 30);
+        if (backoff > mConfig.maxBackoffMillis || backoff < 0) backoff = mConfig.maxBackoffMillis;
+        // Jitter so that chunks that failed together don't all retry together
+        return backoff / 2 + (long) (mRandom.nextDouble() * (backoff - backoff / 2));
+    }
+
+    private void finish() {
+        mRunning = false;
+        mStale = null;
+        Listener listener = mListener;
+        mListener = null;
+        if (listener != null) listener.onSyncFinished(mSynced, mUpdated, mFailed);
+    }
+
+    private static final class Chunk {
+        final List<String> uids;
+        int attempts;
+
+        Chunk(List<String> uids) {
+            this.uids = uids;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Geofencing evaluated on the device, for when Play Services geofencing is unavailable.
+ * <p>
+ * Fences are registered through the same {@link GeofenceRegistry.Backend} calls as Play Services
+ * and indexed in a {@link FenceGrid}; every location fix is checked against the fences of its
+ * grid cell and the ENTER, DWELL and EXIT transitions are reported to the {@link Listener} the way
+ * Play Services reports them with INITIAL_TRIGGER_ENTER: a fence (re-)added while the device is
+ * inside it reports ENTER on the next fix.
+ * <p>
+ * After each fix the engine says when it wants the next one: the distance to the closest fence
+ * boundary, less the fix accuracy, divided by the fastest speed the device is expected to move
+ * at, so it polls rarely far from every fence and often next to one. See {@link Config}.
+ * <p>
+ * The fences, and which of them the device is inside, can be saved to files and restored by
+ * another process, see {@link #save} and {@link #restore}.
+ * <p>
+ * Not thread-safe, {@link LocalGeofencing} calls it from a single thread.
+ */
+public class LocalGeofenceEngine implements GeofenceRegistry.Backend {
+
+    // The fences, in the FenceSnapshot format, and the fences the device is inside of
+    public static final String FENCES_FILE_NAME = "local_fences.snapshot";
+    public static final String STATE_FILE_NAME = "local_fences.state";
+
+    private static final int STATE_VERSION = 1;
+
+    /**
+     * Receives the transitions
+     * The request id list is reused between calls, copy it to keep it
+     */
+    public interface Listener {
+        void onTransition(int transition, List<String> requestIds, long timeMillis);
+    }
+
+    public static class Config {
+        // Never poll more often than this, whatever the distance
+        public long minIntervalMillis = 10 * 1000L;
+        // Poll at least this often, even with no fence anywhere near
+        public long maxIntervalMillis = 15 * 60 * 1000L;
+        // The fastest the device is expected to move, in meters per second (about 55 km/h)
+        public double maxSpeed = 15;
+    }
+
+    private final Config mConfig;
+    private final Map<String, GeofenceSpec> mFences = new LinkedHashMap<>();
+    private Listener mListener;
+
+    // Rebuilt from mFences on the first fix after they changed
+    private FenceGrid mGrid;
+    private boolean mGridChanged = true;
+    // Per grid fence, whether the device is inside it and since when, and whether DWELL was sent
+    private boolean[] mInside = new boolean[0];
+    private long[] mEnteredAt = new long[0];
+    private boolean[] mDwelt = new boolean[0];
+    // Fences the device was inside of when mGrid was last rebuilt, with their state, by request id
+    private final Map<String, Long> mKeptEnteredAt = new HashMap<>();
+    private final Map<String, Boolean> mKeptDwelt = new HashMap<>();
+
+    private final List<String> mEntered = new ArrayList<>();
+    private final List<String> mDwelling = new ArrayList<>();
+    private final List<String> mExited = new ArrayList<>();
+
+    // Set when the fences, or which of them the device is inside, changed since the last save
+    private boolean mFencesChanged;
+    private boolean mStateChanged;
+
+    private long mFixes;
+    private long mEvents;
+
+    public LocalGeofenceEngine(Config config) {
+        mConfig = config;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void addGeofences(List<GeofenceSpec> geofences) {
+        keepInsideState();
+        for (GeofenceSpec fence : geofences) {
+            mFences.put(fence.requestId, fence);
+            // A fence added again starts over, like Play Services' INITIAL_TRIGGER_ENTER
+            mKeptEnteredAt.remove(fence.requestId);
+            mKeptDwelt.remove(fence.requestId);
+        }
+        mGridChanged = true;
+        mFencesChanged = true;
+        mStateChanged = true;
+    }
+
+    @Override
+    public void removeGeofences(List<String> requestIds) {
+        keepInsideState();
+        for (String requestId : requestIds) {
+            mFences.remove(requestId);
+            mKeptEnteredAt.remove(requestId);
+            mKeptDwelt.remove(requestId);
+        }
+        mGridChanged = true;
+        mFencesChanged = true;
+        mStateChanged = true;
+    }
+
+    @Override
+    public void removeAllGeofences() {
+        mFences.clear();
+        mKeptEnteredAt.clear();
+        mKeptDwelt.clear();
+        mInside = new boolean[0];
+        mGrid = null;
+        mGridChanged = true;
+        mFencesChanged = true;
+        mStateChanged = true;
+    }
+
+    /**
+     * @return the number of fences registered
+     */
+    public int size() {
+        return mFences.size();
+    }
+
+    /**
+     * Checks a location fix against every fence and reports the transitions
+     *
+     * @param lat        the latitude of the fix
+     * @param lng        the longitude of the fix
+     * @param accuracy   the accuracy of the fix in meters, 0 if unknown
+     * @param timeMillis when the fix was taken
+     * @return how long to wait before the next fix, in milliseconds
+     */
+    public long onLocation(double lat, double lng, float accuracy, long timeMillis) {
+        if (mGridChanged) rebuildGrid();
+        mFixes++;
+        FenceGrid grid = mGrid;
+        if (grid == null || grid.size() == 0) return mConfig.maxIntervalMillis;
+
+        // A cell only lists the fences that touch it, so the ones we may have left are checked
+        // separately, as is the closest boundary
+        double closest = Double.MAX_VALUE;
+        long nextDwell = Long.MAX_VALUE;
+        for (int fence = 0; fence < grid.size(); fence++) {
+            double distance = grid.distanceToBoundary(fence, lat, lng);
+            closest = Math.min(closest, Math.abs(distance));
+            if (!mInside[fence]) continue;
+            GeofenceSpec spec = grid.fence(fence);
+            if (distance > 0) {
+                mInside[fence] = false;
+                mStateChanged = true;
+                if ((spec.transitionTypes & RingerController.TRANSITION_EXIT) != 0) {
+                    mExited.add(spec.requestId);
+                }
+            } else if (!mDwelt[fence] && (spec.transitionTypes & RingerController.TRANSITION_DWELL) != 0) {
+                long dwellAt = mEnteredAt[fence] + spec.loiteringDelay;
+                if (timeMillis >= dwellAt) {
+                    mDwelt[fence] = true;
+                    mStateChanged = true;
+                    mDwelling.add(spec.requestId);
+                } else {
+                    nextDwell = Math.min(nextDwell, dwellAt);
+                }
+            }
+        }
+        int bucket = grid.findBucket(lat, lng);
+        if (bucket >= 0) {
+            int end = grid.bucketStart(bucket + 1);
+            for (int p = grid.bucketStart(bucket); p < end; p++) {
+                int fence = grid.fenceAt(p);
+                if (mInside[fence] || !grid.contains(fence, lat, lng)) continue;
+                GeofenceSpec spec = grid.fence(fence);
+                mInside[fence] = true;
+                mEnteredAt[fence] = timeMillis;
+                mDwelt[fence] = false;
+                mStateChanged = true;
+                if ((spec.transitionTypes & RingerController.TRANSITION_ENTER) != 0) {
+                    mEntered.add(spec.requestId);
+                }
+                if ((spec.transitionTypes & RingerController.TRANSITION_DWELL) != 0) {
+                    if (spec.loiteringDelay <= 0) {
+                        mDwelt[fence] = true;
+                        mDwelling.add(spec.requestId);
+                    } else {
+                        nextDwell = Math.min(nextDwell, timeMillis + spec.loiteringDelay);
+                    }
+                }
+            }
+        }
+        report(RingerController.TRANSITION_EXIT, mExited, timeMillis);
+        report(RingerController.TRANSITION_ENTER, mEntered, timeMillis);
+        report(RingerController.TRANSITION_DWELL, mDwelling, timeMillis);
+
+        long interval = getIntervalMillis(closest - accuracy);
+        // A pending DWELL is only seen on a fix, so don't sleep through it
+        if (nextDwell != Long.MAX_VALUE) {
+            interval = Math.min(interval, Math.max(mConfig.minIntervalMillis, nextDwell - timeMillis));
+        }
+        return interval;
+    }
+
+    /**
+     * @param distance meters to the closest fence boundary, in or out
+     * @return the time needed to cover that distance at the top speed, within the configured bounds
+     */
+    long getIntervalMillis(double distance) {
+        if (distance <= 0) return mConfig.minIntervalMillis;
+        double millis = distance / mConfig.maxSpeed * 1000;
+        if (millis >= mConfig.maxIntervalMillis) return mConfig.maxIntervalMillis;
+        return Math.max(mConfig.minIntervalMillis, (long) millis);
+    }
+
+    /**
+     * Writes what changed since the last save or restore to the given directory
+     * Each file is replaced in one rename, a process that dies in between leaves the state of
+     * fences that are gone, which {@link #restore} ignores, or misses that of new ones, which
+     * then report ENTER again
+     *
+     * @param directory where the files live, e.g. Context.getFilesDir()
+     * @throws IOException if a file can't be written, it is written again by the next save
+     */
+    public void save(File directory) throws IOException {
+        if (mFences.isEmpty()) {
+            deleteSaved(directory);
+            mFencesChanged = false;
+            mStateChanged = false;
+            return;
+        }
+        if (mFencesChanged) {
+            FenceSnapshot.write(new File(directory, FENCES_FILE_NAME), new ArrayList<>(mFences.values()));
+            mFencesChanged = false;
+        }
+        if (!mStateChanged) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(STATE_VERSION);
+        if (mGridChanged || mGrid == null) {
+            // Not rebuilt since the fences changed, the state is still in the kept maps
+            output.writeInt(mKeptEnteredAt.size());
+            for (Map.Entry<String, Long> kept : mKeptEnteredAt.entrySet()) {
+                output.writeUTF(kept.getKey());
+                output.writeLong(kept.getValue());
+                output.writeBoolean(mKeptDwelt.get(kept.getKey()));
+            }
+        } else {
+            int inside = 0;
+            for (int fence = 0; fence < mGrid.size(); fence++) {
+                if (mInside[fence]) inside++;
+            }
+            output.writeInt(inside);
+            for (int fence = 0; fence < mGrid.size(); fence++) {
+                if (!mInside[fence]) continue;
+                output.writeUTF(mGrid.fence(fence).requestId);
+                output.writeLong(mEnteredAt[fence]);
+                output.writeBoolean(mDwelt[fence]);
+            }
+        }
+        output.flush();
+
+        File file = new File(directory, STATE_FILE_NAME);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(stream);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+        mStateChanged = false;
+    }
+
+    /**
+     * Replaces the fences and their state with the ones saved to the given directory, the
+     * device is outside of every fence when there is no saved state
+     *
+     * @param directory where the files live, e.g. Context.getFilesDir()
+     * @return false if no fences were saved there
+     * @throws IOException if a file can't be read or is corrupt, the engine is left empty then
+     */
+    public boolean restore(File directory) throws IOException {
+        removeAllGeofences();
+        List<GeofenceSpec> fences;
+        try {
+            fences = FenceSnapshot.read(new File(directory, FENCES_FILE_NAME));
+        } catch (FileNotFoundException e) {
+            mFencesChanged = false;
+            mStateChanged = false;
+            return false;
+        }
+        for (GeofenceSpec fence : fences) mFences.put(fence.requestId, fence);
+        try {
+            DataInputStream input = new DataInputStream(
+                    new FileInputStream(new File(directory, STATE_FILE_NAME)));
+            try {
+                if (input.readInt() != STATE_VERSION) throw new IOException("Unknown state version");
+                for (int count = input.readInt(); count > 0; count--) {
+                    String requestId = input.readUTF();
+                    long enteredAt = input.readLong();
+                    boolean dwelt = input.readBoolean();
+                    if (!mFences.containsKey(requestId)) continue;
+                    mKeptEnteredAt.put(requestId, enteredAt);
+                    mKeptDwelt.put(requestId, dwelt);
+                }
+            } finally {
+                input.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Saved before the device was inside any fence
+        } catch (IOException e) {
+            removeAllGeofences();
+            throw e;
+        }
+        mFencesChanged = false;
+        mStateChanged = false;
+        return true;
+    }
+
+    /**
+     * Deletes what {@link #save} wrote to the given directory
+     */
+    public static void deleteSaved(File directory) {
+        new File(directory, FENCES_FILE_NAME).delete();
+        new File(directory, STATE_FILE_NAME).delete();
+    }
+
+    /**
+     * @return true if fences were saved to the given directory
+     */
+    public static boolean hasSaved(File directory) {
+        return new File(directory, FENCES_FILE_NAME).exists();
+    }
+
+    public long getFixCount() {
+        return mFixes;
+    }
+
+    public long getEventCount() {
+        return mEvents;
+    }
+
+    private void report(int transition, List<String> requestIds, long timeMillis) {
+        if (requestIds.isEmpty()) return;
+        mEvents++;
+        if (mListener != null) mListener.onTransition(transition, requestIds, timeMillis);
+        requestIds.clear();
+    }
+
+    /**
+     * Remembers which of the current grid's fences the device is inside, before mFences changes
+     */
+    private void keepInsideState() {
+        if (mGridChanged || mGrid == null) return;
+        mKeptEnteredAt.clear();
+        mKeptDwelt.clear();
+        for (int fence = 0; fence < mGrid.size(); fence++) {
+            if (!mInside[fence]) continue;
+            String requestId = mGrid.fence(fence).requestId;
+            mKeptEnteredAt.put(requestId, mEnteredAt[fence]);
+            mKeptDwelt.put(requestId, mDwelt[fence]);
+        }
+    }
+
+    private void rebuildGrid() {
+        mGridChanged = false;
+        mGrid = FenceGrid.create(mFences.values());
+        int n = mGrid.size();
+        mInside = new boolean[n];
+        mEnteredAt = new long[n];
+        mDwelt = new boolean[n];
+        for (int fence = 0; fence < n; fence++) {
+            Long enteredAt = mKeptEnteredAt.get(mGrid.fence(fence).requestId);
+            if (enteredAt == null) continue;
+            mInside[fence] = true;
+            mEnteredAt[fence] = enteredAt;
+            mDwelt[fence] = mKeptDwelt.get(mGrid.fence(fence).requestId);
+        }
+        mKeptEnteredAt.clear();
+        mKeptDwelt.clear();
+    }
+}
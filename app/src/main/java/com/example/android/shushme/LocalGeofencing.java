@@ -0,0 +1,215 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the {@link LocalGeofenceEngine} on the platform's location updates, for when Play Services
+ * geofencing is unavailable, see {@link Geofencing}
+ * <p>
+ * Location updates are requested with a PendingIntent, so they keep coming to
+ * {@link GeofenceBroadcastReceiver} after the process died, and the engine's fences and the
+ * places the device is in are saved after every change, so the process the next fix starts
+ * carries on where the last one stopped. After every fix the request is renewed with the
+ * interval the engine asks for, from GPS when a fence is close and from the network provider
+ * otherwise, and transitions are sent to GeofenceBroadcastReceiver like Play Services would send
+ * them. Location requests don't survive a reboot, the fences are registered again at boot, see
+ * {@link BootReceiver}.
+ * <p>
+ * Every call is synchronized on the instance, the engine isn't thread-safe.
+ */
+public class LocalGeofencing implements GeofenceRegistry.Backend, LocalGeofenceEngine.Listener {
+
+    public static final String TAG = LocalGeofencing.class.getSimpleName();
+
+    // Sent to GeofenceBroadcastReceiver for every transition
+    public static final String ACTION_TRANSITION = "com.example.android.shushme.action.LOCAL_TRANSITION";
+    public static final String EXTRA_TRANSITION = "transition";
+    public static final String EXTRA_REQUEST_IDS = "request_ids";
+    // The location updates, delivered to GeofenceBroadcastReceiver, see onLocationIntent
+    public static final String ACTION_LOCATION = "com.example.android.shushme.action.LOCAL_LOCATION";
+
+    // Intervals shorter than this come from GPS, longer ones from the network provider
+    private static final long GPS_INTERVAL_THRESHOLD = 2 * 60 * 1000L;
+
+    private static final Metrics.Counter FIXES = Metrics.counter("local_geofencing.fixes");
+    private static final Metrics.Gauge INTERVAL = Metrics.gauge("local_geofencing.interval_ms");
+
+    private static LocalGeofencing sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final LocationManager mLocationManager;
+    private final PendingIntent mLocationIntent;
+    private final LocalGeofenceEngine.Config mConfig = new LocalGeofenceEngine.Config();
+    private final LocalGeofenceEngine mEngine;
+    // The location request this process made, unknown to a new process until it makes one
+    private String mProvider;
+    private long mInterval = -1;
+
+    private LocalGeofencing(Context context) {
+        mContext = context;
+        mDirectory = context.getFilesDir();
+        mLocationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        mLocationIntent = getLocationIntent(context);
+        mEngine = new LocalGeofenceEngine(mConfig);
+        mEngine.setListener(this);
+        try {
+            mEngine.restore(mDirectory);
+        } catch (IOException e) {
+            // Starts with no fences, like after a reboot, until they are registered again
+            Log.e(TAG, "Can't restore the local fences: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the saved fences on first use, so don't call this on the main thread
+     */
+    public static synchronized LocalGeofencing getInstance(Context context) {
+        if (sInstance == null) sInstance = new LocalGeofencing(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Removes every local fence and stops the location updates, if the engine was ever started,
+     * in this process or in an earlier one
+     * Called once Play Services geofencing works again, so that transitions aren't reported twice
+     */
+    public static void stopIfStarted(Context context) {
+        LocalGeofencing instance;
+        synchronized (LocalGeofencing.class) {
+            instance = sInstance;
+            if (instance == null) {
+                File directory = context.getFilesDir();
+                if (!LocalGeofenceEngine.hasSaved(directory)) return;
+                // Started by an earlier process, its location request outlived it
+                LocationManager locationManager =
+                        (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+                locationManager.removeUpdates(getLocationIntent(context));
+                LocalGeofenceEngine.deleteSaved(directory);
+                return;
+            }
+        }
+        instance.removeAllGeofences();
+    }
+
+    private static PendingIntent getLocationIntent(Context context) {
+        Intent intent = new Intent(context, GeofenceBroadcastReceiver.class).setAction(ACTION_LOCATION);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @Override
+    public synchronized void addGeofences(List<GeofenceSpec> geofences) {
+        mEngine.addGeofences(geofences);
+        save();
+        // Start from a fast fix, the device may already be inside
+        requestUpdates(mEngine.size() == 0 ? 0 : mConfig.minIntervalMillis);
+    }
+
+    @Override
+    public synchronized void removeGeofences(List<String> requestIds) {
+        mEngine.removeGeofences(requestIds);
+        save();
+        if (mEngine.size() == 0) requestUpdates(0);
+    }
+
+    @Override
+    public synchronized void removeAllGeofences() {
+        mEngine.removeAllGeofences();
+        save();
+        requestUpdates(0);
+    }
+
+    /**
+     * Runs the engine on a location update, on GeofenceBroadcastReceiver's background thread
+     *
+     * @param intent the {@link #ACTION_LOCATION} broadcast
+     */
+    public synchronized void onLocationIntent(Intent intent) {
+        // The same intent also reports providers being switched on and off
+        Location location = intent.getParcelableExtra(LocationManager.KEY_LOCATION_CHANGED);
+        if (location == null) return;
+        FIXES.increment();
+        long interval = mEngine.onLocation(location.getLatitude(), location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : 0, location.getTime());
+        save();
+        requestUpdates(mEngine.size() == 0 ? 0 : interval);
+    }
+
+    @Override
+    public void onTransition(int transition, List<String> requestIds, long timeMillis) {
+        Intent intent = new Intent(mContext, GeofenceBroadcastReceiver.class)
+                .setAction(ACTION_TRANSITION)
+                .putExtra(EXTRA_TRANSITION, transition)
+                .putStringArrayListExtra(EXTRA_REQUEST_IDS, new ArrayList<>(requestIds));
+        mContext.sendBroadcast(intent);
+    }
+
+    /**
+     * Saves what changed in the engine, a failure is only logged and retried on the next save
+     */
+    private void save() {
+        try {
+            mEngine.save(mDirectory);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't save the local fences", e);
+        }
+    }
+
+    /**
+     * Asks for the next fix after the given interval, or stops asking
+     *
+     * @param interval milliseconds until the next fix, 0 to stop the updates
+     */
+    private void requestUpdates(long interval) {
+        String provider = null;
+        if (interval > 0) {
+            provider = interval < GPS_INTERVAL_THRESHOLD
+                    && mLocationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)
+                    ? LocationManager.GPS_PROVIDER : LocationManager.NETWORK_PROVIDER;
+        }
+        if (interval == mInterval && (provider == null ? mProvider == null : provider.equals(mProvider))) {
+            return;
+        }
+        try {
+            // A new request for the same intent doesn't replace one on another provider
+            mLocationManager.removeUpdates(mLocationIntent);
+            mProvider = provider;
+            mInterval = interval;
+            INTERVAL.set(interval);
+            if (provider != null) {
+                mLocationManager.requestLocationUpdates(provider, interval, 0, mLocationIntent);
+            }
+        } catch (SecurityException | IllegalArgumentException e) {
+            // No location permission, or the provider doesn't exist on this device
+            Log.e(TAG, "Can't request location updates: " + e.getMessage());
+            mProvider = null;
+            mInterval = -1;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A sequence of location fixes stored in parallel primitive arrays, for replaying through
+ * {@link GeofenceSimulator} and the local geofence engine.
+ */
+public final class LocationTrace {
+
+    public final double[] latitudes;
+    public final double[] longitudes;
+    public final long[] timesMillis;
+
+    public LocationTrace(double[] latitudes, double[] longitudes, long[] timesMillis) {
+        if (latitudes.length != longitudes.length || latitudes.length != timesMillis.length) {
+            throw new IllegalArgumentException("Trace arrays differ in length");
+        }
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.timesMillis = timesMillis;
+    }
+
+    public int size() {
+        return latitudes.length;
+    }
+
+    /**
+     * Walks in straight lines through the given places, e.g. the placemarks of
+     * test_locations.kml read with {@link PlaceImporter}
+     *
+     * @param waypoints      the places to visit, in order
+     * @param stepMeters     distance between consecutive fixes
+     * @param intervalMillis time between consecutive fixes
+     * @param jitterMeters   standard deviation of gaussian GPS noise added to each fix, or 0
+     * @param seed           seed for the noise
+     * @return the trace
+     */
+    public static LocationTrace through(List<PlaceRecord> waypoints, double stepMeters,
+                                        long intervalMillis, double jitterMeters, long seed) {
+        int count = 1;
+        for (int i = 1; i < waypoints.size(); i++) {
+            count += steps(waypoints.get(i - 1), waypoints.get(i), stepMeters);
+        }
+        double[] lats = new double[count];
+        double[] lngs = new double[count];
+        long[] times = new long[count];
+        int n = 0;
+        lats[n] = waypoints.get(0).latitude;
+        lngs[n++] = waypoints.get(0).longitude;
+        for (int i = 1; i < waypoints.size(); i++) {
+            PlaceRecord from = waypoints.get(i - 1);
+            PlaceRecord to = waypoints.get(i);
+            int steps = steps(from, to, stepMeters);
+            for (int s = 1; s <= steps; s++) {
+                double f = (double) s / steps;
+                lats[n] = from.latitude + (to.latitude - from.latitude) * f;
+                lngs[n++] = from.longitude + (to.longitude - from.longitude) * f;
+            }
+        }
+        for (int i = 0; i < count; i++) times[i] = i * intervalMillis;
+        addJitter(lats, lngs, jitterMeters, seed);
+        return new LocationTrace(lats, lngs, times);
+    }
+
+    /**
+     * Generates a random walk that changes heading a little at every step
+     *
+     * @param count          number of fixes
+     * @param startLat       latitude of the first fix
+     * @param startLng       longitude of the first fix
+     * @param stepMeters     distance between consecutive fixes
+     * @param intervalMillis time between consecutive fixes
+     * @param seed           seed for the walk
+     * @return the trace
+     */
+    public static LocationTrace randomWalk(int count, double startLat, double startLng,
+                                           double stepMeters, long intervalMillis, long seed) {
+        Random random = new Random(seed);
+        double[] lats = new double[count];
+        double[] lngs = new double[count];
+        long[] times = new long[count];
+        double lat = startLat;
+        double lng = startLng;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        double dLat = stepMeters / GeoMath.METERS_PER_DEGREE;
+        for (int i = 0; i < count; i++) {
+            lats[i] = lat;
+            lngs[i] = lng;
+            times[i] = i * intervalMillis;
+            heading += random.nextGaussian() * 0.3;
+            lat += Math.cos(heading) * dLat;
+            lng += Math.sin(heading) * dLat / Math.cos(Math.toRadians(lat));
+        }
+        return new LocationTrace(lats, lngs, times);
+    }
+
+    private static int steps(PlaceRecord from, PlaceRecord to, double stepMeters) {
+        double distance = GeoMath.distance(from.latitude, from.longitude, to.latitude, to.longitude);
+        return Math.max(1, (int) Math.ceil(distance / stepMeters));
+    }
+
+    private static void addJitter(double[] lats, double[] lngs, double jitterMeters, long seed) {
+        if (jitterMeters <= 0) return;
+        Random random = new Random(seed);
+        double sigma = jitterMeters / GeoMath.METERS_PER_DEGREE;
+        for (int i = 0; i < lats.length; i++) {
+            lats[i] += random.nextGaussian() * sigma;
+            lngs[i] += random.nextGaussian() * sigma / Math.cos(Math.toRadians(lats[i]));
+        }
+    }
+}
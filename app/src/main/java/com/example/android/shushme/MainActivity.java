@@ -24,6 +24,8 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
@@ -33,15 +35,19 @@ import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
+import android.widget.EditText;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.shushme.provider.PlaceContract;
+import com.example.android.shushme.provider.PlaceSearch;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
 import com.google.android.gms.common.GooglePlayServicesRepairableException;
@@ -51,6 +57,8 @@ import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.Places;
 import com.google.android.gms.location.places.ui.PlacePicker;
 
+import java.util.List;
+
 public class MainActivity extends AppCompatActivity implements
         GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener,
@@ -60,7 +68,14 @@ public class MainActivity extends AppCompatActivity implements
     public static final String TAG = MainActivity.class.getSimpleName();
     private static final int PERMISSIONS_REQUEST_FINE_LOCATION = 111;
     private static final int PLACE_PICKER_REQUEST = 1;
+    private static final int IMPORT_FILE_REQUEST = 2;
     private static final int PLACE_LOADER_ID = 0;
+    // Place writes notify one row each, so a burst of them is reloaded once per this many ms
+    private static final long PLACE_LOADER_THROTTLE_MS = 250;
+    // The places filter searches once typing paused this long, and shows the best this many places
+    private static final long FILTER_DELAY_MS = 150;
+    private static final int FILTER_LIMIT = 200;
+    private static final String ARG_FILTER = "filter";
 
     // Member variables
     private PlaceListAdapter mAdapter;
@@ -69,6 +84,54 @@ public class MainActivity extends AppCompatActivity implements
     private boolean mIsEnabled;
     private Geofencing mGeofencing;
     private GeoDataLiveSync mGeoDataLiveSync;
+    private boolean mDestroyed;
+    // Whether mGeofencing has every place, registering before would drop the fences not loaded yet
+    private boolean mPlacesLoaded;
+    private EditText mFilter;
+
+    // Keeps the geofences in line with the places, the deltas are applied on the main thread
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PlaceRepository.Listener mPlacesListener = new PlaceRepository.Listener() {
+        @Override
+        public void onPlacesChanged(PlaceRepository.Snapshot snapshot,
+                                    final List<PlaceRepository.Delta> deltas) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDestroyed) return;
+                    if (mGeofencing.onPlacesChanged(deltas) && mIsEnabled && mPlacesLoaded) {
+                        mGeofencing.registerAllGeofences();
+                    }
+                }
+            });
+        }
+    };
+
+    // Registers the fences once the places are loaded, in case the client connected before
+    private final Runnable mOnPlacesLoaded = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDestroyed) return;
+                    mPlacesLoaded = true;
+                    if (mIsEnabled) mGeofencing.registerAllGeofences();
+                }
+            });
+        }
+    };
+
+    // Reloads the list with what the filter holds, restarting the loader cancels a search still
+    // running for what it held before
+    private final Runnable mApplyFilter = new Runnable() {
+        @Override
+        public void run() {
+            Bundle args = new Bundle();
+            args.putString(ARG_FILTER, mFilter.getText().toString());
+            getSupportLoaderManager().restartLoader(PLACE_LOADER_ID, args, MainActivity.this);
+        }
+    };
 
     /**
      * Called when the activity is starting
@@ -87,10 +150,30 @@ public class MainActivity extends AppCompatActivity implements
         mAdapter = new PlaceListAdapter(this);
         mRecyclerView.setAdapter(mAdapter);
 
+        // Filter the list as the user types
+        mFilter = (EditText) findViewById(R.id.places_filter);
+        mFilter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mHandler.removeCallbacks(mApplyFilter);
+                mHandler.postDelayed(mApplyFilter, FILTER_DELAY_MS);
+            }
+        });
+
         // Initialize the switch state and Handle enable/disable switch change
         Switch onOffSwitch = (Switch) findViewById(R.id.enable_switch);
         mIsEnabled = getPreferences(MODE_PRIVATE).getBoolean(getString(R.string.setting_enabled), false);
         onOffSwitch.setChecked(mIsEnabled);
+        // Lets the boot receiver and the renewal alarm know, also for installs that predate it
+        GeofenceSyncService.setEnabled(this, mIsEnabled);
         onOffSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
@@ -98,8 +181,9 @@ public class MainActivity extends AppCompatActivity implements
                 editor.putBoolean(getString(R.string.setting_enabled), isChecked);
                 mIsEnabled = isChecked;
                 editor.commit();
-                if (isChecked) mGeofencing.registerAllGeofences();
-                else mGeofencing.unRegisterAllGeofences();
+                GeofenceSyncService.setEnabled(MainActivity.this, isChecked);
+                if (!isChecked) mGeofencing.unRegisterAllGeofences();
+                else if (mPlacesLoaded) mGeofencing.registerAllGeofences();
             }
 
         });
@@ -117,12 +201,21 @@ public class MainActivity extends AppCompatActivity implements
 
         mGeofencing = new Geofencing(this, client);
         mGeoDataLiveSync = new GeoDataLiveSync(this,client);
+        PlaceRepository.getInstance().subscribe(mPlacesListener, mOnPlacesLoaded);
 
         // Initialize the loader to load the list from the database
         getSupportLoaderManager().initLoader(PLACE_LOADER_ID, null, this);
 
     }
 
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        mHandler.removeCallbacks(mApplyFilter);
+        PlaceRepository.getInstance().unsubscribe(mPlacesListener);
+        super.onDestroy();
+    }
+
     /***
      * Called when the Google API Client is successfully connected
      *
@@ -131,7 +224,8 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     public void onConnected(@Nullable Bundle connectionHint) {
         Log.i(TAG, "API Client Connection Successful!");
-        if (mIsEnabled) mGeofencing.registerAllGeofences();
+        // Otherwise mOnPlacesLoaded registers them
+        if (mIsEnabled && mPlacesLoaded) mGeofencing.registerAllGeofences();
         mGeoDataLiveSync.syncWithLivePlaces();
     }
 
@@ -153,23 +247,43 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     public void onConnectionFailed(@NonNull ConnectionResult result) {
         Log.e(TAG, "API Client Connection Failed!");
+        // Without Play Services the fences are evaluated on the device
+        mGeofencing.useLocalFallback();
+        if (mIsEnabled && mPlacesLoaded) mGeofencing.registerAllGeofences();
     }
 
     /**
      * Instantiates and returns a new CursorLoader
+     * Loads every place by name, or the places that best match the filter
      *
      * @param id   The ID whose loader is to be created.
-     * @param args Any arguments supplied by the caller
+     * @param args Any arguments supplied by the caller, the filter text
      * @return A new CursorLoader instance that is ready to start loading
      */
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new CursorLoader(this,
-                PlaceContract.PlaceEntry.CONTENT_URI,
-                null,
-                null,
-                null,
-                PlaceContract.PlaceEntry.COLUMN_PLACE_NAME);
+        String filter = args == null ? null : args.getString(ARG_FILTER);
+        CursorLoader loader;
+        if (PlaceSearch.toMatchQuery(filter) == null) {
+            loader = new CursorLoader(this,
+                    PlaceContract.PlaceEntry.CONTENT_URI,
+                    null,
+                    null,
+                    null,
+                    PlaceContract.PlaceEntry.COLUMN_PLACE_NAME);
+        } else {
+            // Best match first
+            loader = new CursorLoader(this,
+                    PlaceContract.PlaceEntry.buildSearchUri(filter, FILTER_LIMIT),
+                    null,
+                    null,
+                    null,
+                    null);
+        }
+        // The adapter diffs each reload against what it shows, so only the rows that changed
+        // are refreshed
+        loader.setUpdateThrottle(PLACE_LOADER_THROTTLE_MS);
+        return loader;
     }
 
     /**
@@ -180,9 +294,8 @@ public class MainActivity extends AppCompatActivity implements
      */
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        // The geofences follow the PlaceRepository instead, see mPlacesListener
         mAdapter.swapCursor(data);
-        mGeofencing.updateGeofencesList(data);
-        if (mIsEnabled) mGeofencing.registerAllGeofences();
         if (data.getCount() == 0) mNoDataMessage.setVisibility(View.VISIBLE);
         else mNoDataMessage.setVisibility(View.GONE);
     }
@@ -219,6 +332,24 @@ public class MainActivity extends AppCompatActivity implements
     }
 
 
+    /***
+     * Button Click event handler to handle clicking the "Import locations" Button
+     * Lets the user pick a KML, GPX or CSV file, this will trigger {@code #onActivityResult}
+     *
+     * @param view
+     */
+    public void onImportButtonClicked(View view) {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        try {
+            startActivityForResult(Intent.createChooser(intent, getString(R.string.import_locations)),
+                    IMPORT_FILE_REQUEST);
+        } catch (Exception e) {
+            Log.e(TAG, String.format("File picker Exception: %s", e.getMessage()));
+        }
+    }
+
     /***
      * Called when the Place Picker Activity returns back with a selected place (or after canceling)
      *
@@ -227,6 +358,27 @@ public class MainActivity extends AppCompatActivity implements
      * @param data        The Intent that carries the result data.
      */
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == IMPORT_FILE_REQUEST && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            new PlaceImportTask(this, new PlaceImportTask.Callback() {
+                @Override
+                public void onImportProgress(int imported) {
+                    Log.i(TAG, String.format("Imported %d places so far", imported));
+                }
+
+                @Override
+                public void onImportFinished(int imported) {
+                    if (imported < 0) {
+                        Toast.makeText(MainActivity.this, getString(R.string.import_failed),
+                                Toast.LENGTH_LONG).show();
+                    } else {
+                        Toast.makeText(MainActivity.this, getString(R.string.import_finished, imported),
+                                Toast.LENGTH_LONG).show();
+                    }
+                }
+            }).execute(data.getData());
+            return;
+        }
         if (requestCode == PLACE_PICKER_REQUEST && resultCode == RESULT_OK) {
             Place place = PlacePicker.getPlace(this, data);
             if (place == null) {
@@ -246,8 +398,10 @@ public class MainActivity extends AppCompatActivity implements
             contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME, placeName);
             contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS, placeAddress);
             contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_UID, placeUID);
-            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE, (float) placeLat);
-            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE, (float) placeLng);
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_LATITUDE_E7, GeoMath.toE7(placeLat));
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_LONGITUDE_E7, GeoMath.toE7(placeLng));
+            // Just picked, so the name and address are live already
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_LAST_SYNCED, System.currentTimeMillis());
             getContentResolver().insert(PlaceContract.PlaceEntry.CONTENT_URI, contentValues);
         }
     }
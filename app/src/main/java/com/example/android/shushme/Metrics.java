@@ -0,0 +1,260 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms for the app's hot paths.
+ * <p>
+ * Metrics are looked up by name once, typically into a static final field, and recording is then
+ * a handful of atomic operations: no locks and no allocation. Histograms use fixed power-of-two
+ * buckets from 1 us to about 9 minutes, so percentiles are accurate to within a factor of two.
+ * Dump with {@link #dump}, e.g. through {@code adb shell dumpsys activity provider
+ * com.example.android.shushme/.provider.PlaceContentProvider}. See {@link Tracing} for timing a
+ * section and marking it in systrace at the same time.
+ */
+public final class Metrics {
+
+    private static final ConcurrentMap<String, Metric> sMetrics = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the counter with that name, created on first use
+     */
+    public static Counter counter(String name) {
+        return (Counter) register(new Counter(name));
+    }
+
+    /**
+     * @return the gauge with that name, created on first use
+     */
+    public static Gauge gauge(String name) {
+        return (Gauge) register(new Gauge(name));
+    }
+
+    /**
+     * @return the latency histogram with that name, created on first use
+     */
+    public static Histogram histogram(String name) {
+        return (Histogram) register(new Histogram(name));
+    }
+
+    private static Metric register(Metric metric) {
+        Metric existing = sMetrics.putIfAbsent(metric.name, metric);
+        if (existing == null) return metric;
+        if (existing.getClass() != metric.getClass()) {
+            throw new IllegalArgumentException(metric.name + " is already registered as another type");
+        }
+        return existing;
+    }
+
+    /**
+     * @return every registered metric, sorted by name
+     */
+    public static List<Metric> all() {
+        List<Metric> metrics = new ArrayList<>(sMetrics.values());
+        Collections.sort(metrics, new Comparator<Metric>() {
+            @Override
+            public int compare(Metric a, Metric b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return metrics;
+    }
+
+    /**
+     * Writes one line per metric
+     */
+    public static void dump(PrintWriter writer) {
+        for (Metric metric : all()) {
+            writer.println(metric.toString());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Resets every metric to zero, metrics stay registered
+     */
+    public static void resetAll() {
+        for (Metric metric : sMetrics.values()) metric.reset();
+    }
+
+    public abstract static class Metric {
+        public final String name;
+
+        Metric(String name) {
+            this.name = name;
+        }
+
+        abstract void reset();
+    }
+
+    /**
+     * A monotonically increasing count
+     */
+    public static final class Counter extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void reset() {
+            mValue.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return name + " counter " + mValue.get();
+        }
+    }
+
+    /**
+     * The last value set, e.g. the number of registered geofences
+     */
+    public static final class Gauge extends Metric {
+        private volatile long mValue;
+
+        Gauge(String name) {
+            super(name);
+        }
+
+        public void set(long value) {
+            mValue = value;
+        }
+
+        public long get() {
+            return mValue;
+        }
+
+        @Override
+        void reset() {
+            mValue = 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + " gauge " + mValue;
+        }
+    }
+
+    /**
+     * Distribution of durations in nanoseconds
+     * Bucket 0 counts durations under 1 us, bucket b counts durations in [2^(b-1), 2^b) us
+     */
+    public static final class Histogram extends Metric {
+        public static final int BUCKETS = 30;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSumNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        Histogram(String name) {
+            super(name);
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            mBuckets.incrementAndGet(bucketOf(nanos));
+            mCount.incrementAndGet();
+            mSumNanos.addAndGet(nanos);
+            long max = mMaxNanos.get();
+            while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) max = mMaxNanos.get();
+        }
+
+        static int bucketOf(long nanos) {
+            long micros = nanos / 1000;
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSumNanos() {
+            return mSumNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+
+        public long getBucketCount(int bucket) {
+            return mBuckets.get(bucket);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound in nanoseconds of the bucket holding the percentile, or 0 if empty
+         */
+        public long getPercentileNanos(double percentile) {
+            long count = mCount.get();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += mBuckets.get(b);
+                if (seen >= rank) return Math.min((1L << b) * 1000, mMaxNanos.get());
+            }
+            return mMaxNanos.get();
+        }
+
+        @Override
+        void reset() {
+            for (int b = 0; b < BUCKETS; b++) mBuckets.set(b, 0);
+            mCount.set(0);
+            mSumNanos.set(0);
+            mMaxNanos.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long count = mCount.get();
+            return String.format(Locale.US,
+                    "%s histogram count=%d mean=%.1fus p50<=%.1fus p90<=%.1fus p99<=%.1fus max=%.1fus",
+                    name, count, count == 0 ? 0 : mSumNanos.get() / 1000.0 / count,
+                    getPercentileNanos(50) / 1000.0, getPercentileNanos(90) / 1000.0,
+                    getPercentileNanos(99) / 1000.0, mMaxNanos.get() / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.util.Xml;
+
+import com.example.android.shushme.provider.PlaceContract;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Imports a KML, GPX or CSV file picked by the user into the places table in the background
+ * Rows are written in batches through the provider's bulkInsert, see {@link PlaceImporter}
+ */
+public class PlaceImportTask extends AsyncTask<Uri, Integer, Integer> {
+
+    public static final String TAG = PlaceImportTask.class.getSimpleName();
+
+    /**
+     * Receives progress and the final result on the main thread
+     */
+    public interface Callback {
+        void onImportProgress(int imported);
+
+        /**
+         * @param imported the number of places imported, or -1 if the import failed
+         */
+        void onImportFinished(int imported);
+    }
+
+    private final ContentResolver mResolver;
+    private final Callback mCallback;
+
+    public PlaceImportTask(Context context, Callback callback) {
+        mResolver = context.getApplicationContext().getContentResolver();
+        mCallback = callback;
+    }
+
+    @Override
+    protected Integer doInBackground(Uri... uris) {
+        Uri uri = uris[0];
+        int format = PlaceImporter.formatForName(getDisplayName(uri));
+        if (format == PlaceImporter.FORMAT_UNKNOWN) {
+            format = PlaceImporter.formatForName(uri.getLastPathSegment());
+        }
+        if (format == PlaceImporter.FORMAT_UNKNOWN) {
+            Log.e(TAG, "Unknown file type: " + uri);
+            return -1;
+        }
+
+        PlaceImporter importer = new PlaceImporter(new PlaceImporter.Sink() {
+            @Override
+            public void insert(List<PlaceRecord> batch) {
+                ContentValues[] values = new ContentValues[batch.size()];
+                for (int i = 0; i < values.length; i++) {
+                    PlaceRecord place = batch.get(i);
+                    ContentValues contentValues = new ContentValues();
+                    contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME, place.name);
+                    contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS, place.address);
+                    contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_UID, place.uid);
+                    contentValues.put(PlaceContract.PlaceEntry.COLUMN_LATITUDE_E7, GeoMath.toE7(place.latitude));
+                    contentValues.put(PlaceContract.PlaceEntry.COLUMN_LONGITUDE_E7, GeoMath.toE7(place.longitude));
+                    contentValues.put(PlaceContract.PlaceEntry.COLUMN_GEOFENCE_RADIUS, place.radius);
+                    contentValues.put(PlaceContract.PlaceEntry.COLUMN_LOITERING_DELAY, place.loiteringDelay);
+                    contentValues.put(PlaceContract.PlaceEntry.COLUMN_RESPONSIVENESS, place.responsiveness);
+                    values[i] = contentValues;
+                }
+                mResolver.bulkInsert(PlaceContract.PlaceEntry.CONTENT_URI, values);
+            }
+        }, PlaceImporter.DEFAULT_BATCH_SIZE);
+        importer.setProgressListener(new PlaceImporter.ProgressListener() {
+            @Override
+            public void onProgress(int parsed, int imported) {
+                publishProgress(imported);
+            }
+        });
+        addExistingPlaces(importer);
+
+        Reader reader = null;
+        try {
+            InputStream in = mResolver.openInputStream(uri);
+            if (in == null) return -1;
+            reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            return importer.importFrom(reader, format, Xml.newPullParser());
+        } catch (Exception e) {
+            Log.e(TAG, "Import failed: " + e.getMessage());
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception ignored) {
+                    // Nothing left to do
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        mCallback.onImportProgress(values[0]);
+    }
+
+    @Override
+    protected void onPostExecute(Integer imported) {
+        mCallback.onImportFinished(imported);
+    }
+
+    /**
+     * Lets the importer skip places that are already stored
+     */
+    private void addExistingPlaces(PlaceImporter importer) {
+        Cursor data = mResolver.query(PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_UID,
+                        PlaceContract.PlaceEntry.COLUMN_LATITUDE_E7,
+                        PlaceContract.PlaceEntry.COLUMN_LONGITUDE_E7},
+                null, null, null);
+        if (data == null) return;
+        try {
+            while (data.moveToNext()) {
+                importer.addExisting(data.getString(0), GeoMath.fromE7(data.getInt(1)),
+                        GeoMath.fromE7(data.getInt(2)));
+            }
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * @return the file name shown to the user for a content uri, or null if unknown
+     */
+    private String getDisplayName(Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) return cursor.getString(0);
+        } catch (Exception e) {
+            // Not every provider supports OpenableColumns
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,521 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streams places out of KML, GPX or CSV files and hands them to a {@link Sink} in bounded batches.
+ * <p>
+ * Files are read with a pull parser (or line by line for CSV), so memory use does not depend on
+ * the file size apart from what is kept per imported place to skip duplicates: its UID, with a
+ * 64-bit hash of it, and its coordinates rounded to 1e-6 degrees, packed in a long.
+ * <p>
+ * Imported places have no Google place id, so their UID is {@link #UID_PREFIX} followed by the
+ * placemark id when the file has one, or by the rounded coordinates otherwise. Importing the same
+ * file twice therefore produces the same UIDs.
+ * <p>
+ * The geofence settings of each place (see PlaceEntry.COLUMN_GEOFENCE_RADIUS and the columns after
+ * it) can be given as CSV columns or KML ExtendedData named {@link #FIELD_RADIUS},
+ * {@link #FIELD_LOITERING_DELAY} and {@link #FIELD_RESPONSIVENESS}; places without them, or with
+ * values out of range, get the defaults.
+ */
+public class PlaceImporter {
+
+    public static final String UID_PREFIX = "import:";
+
+    public static final int FORMAT_UNKNOWN = 0;
+    public static final int FORMAT_KML = 1;
+    public static final int FORMAT_GPX = 2;
+    public static final int FORMAT_CSV = 3;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    // Names of the optional geofence settings, in meters and milliseconds like the place columns
+    public static final String FIELD_RADIUS = "radius";
+    public static final String FIELD_LOITERING_DELAY = "loitering_delay";
+    public static final String FIELD_RESPONSIVENESS = "responsiveness";
+
+    /**
+     * Receives the imported places, e.g. a ContentResolver bulkInsert
+     */
+    public interface Sink {
+        void insert(List<PlaceRecord> batch);
+    }
+
+    /**
+     * Notified after every batch that was handed to the sink
+     */
+    public interface ProgressListener {
+        void onProgress(int parsed, int imported);
+    }
+
+    private final Sink mSink;
+    private final int mBatchSize;
+    private final List<PlaceRecord> mBatch;
+    private final UidSet mSeenUids = new UidSet();
+    private final LongHashSet mSeenCoordinates = new LongHashSet();
+    private ProgressListener mProgressListener;
+    private int mParsed;
+    private int mImported;
+    private int mDuplicates;
+
+    public PlaceImporter(Sink sink, int batchSize) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize <= 0");
+        mSink = sink;
+        mBatchSize = batchSize;
+        mBatch = new ArrayList<>(batchSize);
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Guesses the file format from a file name or path
+     *
+     * @return one of the FORMAT_* constants
+     */
+    public static int formatForName(String name) {
+        if (name == null) return FORMAT_UNKNOWN;
+        String lower = name.toLowerCase(Locale.US);
+        if (lower.endsWith(".kml")) return FORMAT_KML;
+        if (lower.endsWith(".gpx")) return FORMAT_GPX;
+        if (lower.endsWith(".csv")) return FORMAT_CSV;
+        return FORMAT_UNKNOWN;
+    }
+
+    /**
+     * Registers a place that already exists, so that the same place in the file is skipped
+     */
+    public void addExisting(String uid, double latitude, double longitude) {
+        mSeenUids.add(hash(uid), uid);
+        mSeenCoordinates.add(coordinateKey(latitude, longitude));
+    }
+
+    /**
+     * Imports a file in the given format, flushing the last partial batch at the end
+     *
+     * @param reader the file contents
+     * @param format one of the FORMAT_* constants
+     * @param parser a fresh pull parser, only used for KML and GPX
+     * @return the number of places imported by this call
+     */
+    public int importFrom(Reader reader, int format, XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        int importedBefore = mImported + mBatch.size();
+        switch (format) {
+            case FORMAT_KML:
+                parseKml(reader, parser);
+                break;
+            case FORMAT_GPX:
+                parseGpx(reader, parser);
+                break;
+            case FORMAT_CSV:
+                parseCsv(reader);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        flush();
+        return mImported - importedBefore;
+    }
+
+    public int getParsedCount() {
+        return mParsed;
+    }
+
+    public int getImportedCount() {
+        return mImported;
+    }
+
+    public int getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    /**
+     * Reads every Placemark with a Point, using its name, address (or description), id and the
+     * geofence settings in its ExtendedData
+     */
+    private void parseKml(Reader reader, XmlPullParser parser) throws IOException, XmlPullParserException {
+        parser.setInput(reader);
+        int placemarkDepth = -1;
+        boolean inPoint = false;
+        String id = null, name = null, address = null, description = null, coordinates = null;
+        String dataName = null, radius = null, loiteringDelay = null, responsiveness = null;
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                String tag = parser.getName();
+                if ("Placemark".equals(tag)) {
+                    placemarkDepth = parser.getDepth();
+                    id = parser.getAttributeValue(null, "id");
+                    name = address = description = coordinates = null;
+                    radius = loiteringDelay = responsiveness = null;
+                } else if (placemarkDepth < 0) {
+                    continue;
+                } else if ("Point".equals(tag)) {
+                    inPoint = true;
+                } else if (inPoint && "coordinates".equals(tag)) {
+                    coordinates = parser.nextText();
+                } else if ("Data".equals(tag)) {
+                    dataName = parser.getAttributeValue(null, "name");
+                } else if (dataName != null && "value".equals(tag)) {
+                    String value = parser.nextText();
+                    if (FIELD_RADIUS.equals(dataName)) radius = value;
+                    else if (FIELD_LOITERING_DELAY.equals(dataName)) loiteringDelay = value;
+                    else if (FIELD_RESPONSIVENESS.equals(dataName)) responsiveness = value;
+                } else if (parser.getDepth() == placemarkDepth + 1) {
+                    if ("name".equals(tag)) name = parser.nextText();
+                    else if ("address".equals(tag)) address = parser.nextText();
+                    else if ("description".equals(tag)) description = parser.nextText();
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                String tag = parser.getName();
+                if ("Point".equals(tag)) {
+                    inPoint = false;
+                } else if ("Data".equals(tag)) {
+                    dataName = null;
+                } else if ("Placemark".equals(tag) && placemarkDepth >= 0) {
+                    placemarkDepth = -1;
+                    mParsed++;
+                    if (coordinates == null) continue;
+                    // KML coordinates are lng,lat[,alt]
+                    String[] parts = coordinates.trim().split(",");
+                    if (parts.length < 2) continue;
+                    try {
+                        double lng = Double.parseDouble(parts[0].trim());
+                        double lat = Double.parseDouble(parts[1].trim());
+                        add(id, name, address != null ? address : description, lat, lng,
+                                radius, loiteringDelay, responsiveness);
+                    } catch (NumberFormatException e) {
+                        // Skip malformed placemarks
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads every waypoint (wpt), using its name, desc (or cmt) and lat/lon attributes
+     */
+    private void parseGpx(Reader reader, XmlPullParser parser) throws IOException, XmlPullParserException {
+        parser.setInput(reader);
+        int waypointDepth = -1;
+        String lat = null, lng = null, name = null, desc = null, comment = null;
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                String tag = parser.getName();
+                if ("wpt".equals(tag)) {
+                    waypointDepth = parser.getDepth();
+                    lat = parser.getAttributeValue(null, "lat");
+                    lng = parser.getAttributeValue(null, "lon");
+                    name = desc = comment = null;
+                } else if (waypointDepth >= 0 && parser.getDepth() == waypointDepth + 1) {
+                    if ("name".equals(tag)) name = parser.nextText();
+                    else if ("desc".equals(tag)) desc = parser.nextText();
+                    else if ("cmt".equals(tag)) comment = parser.nextText();
+                }
+            } else if (event == XmlPullParser.END_TAG && "wpt".equals(parser.getName())
+                    && waypointDepth >= 0) {
+                waypointDepth = -1;
+                mParsed++;
+                if (lat == null || lng == null) continue;
+                try {
+                    add(null, name, desc != null ? desc : comment,
+                            Double.parseDouble(lat.trim()), Double.parseDouble(lng.trim()),
+                            null, null, null);
+                } catch (NumberFormatException e) {
+                    // Skip malformed waypoints
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a CSV file with a header row naming its columns: lat/latitude and lng/lon/longitude are
+     * required, name, address, id/uid and the geofence settings are optional. Quoted fields may
+     * contain commas.
+     */
+    private void parseCsv(Reader reader) throws IOException {
+        BufferedReader lines = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+        String header = lines.readLine();
+        if (header == null) return;
+        List<String> fields = new ArrayList<>();
+        splitCsv(header, fields);
+        int latColumn = -1, lngColumn = -1, nameColumn = -1, addressColumn = -1, idColumn = -1;
+        int radiusColumn = -1, loiteringDelayColumn = -1, responsivenessColumn = -1;
+        for (int i = 0; i < fields.size(); i++) {
+            String column = fields.get(i).trim().toLowerCase(Locale.US);
+            if (column.equals("lat") || column.equals("latitude")) latColumn = i;
+            else if (column.equals("lng") || column.equals("lon") || column.equals("longitude")) lngColumn = i;
+            else if (column.equals("name")) nameColumn = i;
+            else if (column.equals("address")) addressColumn = i;
+            else if (column.equals("id") || column.equals("uid")) idColumn = i;
+            else if (column.equals(FIELD_RADIUS)) radiusColumn = i;
+            else if (column.equals(FIELD_LOITERING_DELAY)) loiteringDelayColumn = i;
+            else if (column.equals(FIELD_RESPONSIVENESS)) responsivenessColumn = i;
+        }
+        if (latColumn < 0 || lngColumn < 0) {
+            throw new IOException("CSV header needs latitude and longitude columns: " + header);
+        }
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.trim().isEmpty()) continue;
+            splitCsv(line, fields);
+            mParsed++;
+            try {
+                double lat = Double.parseDouble(field(fields, latColumn).trim());
+                double lng = Double.parseDouble(field(fields, lngColumn).trim());
+                add(field(fields, idColumn), field(fields, nameColumn), field(fields, addressColumn),
+                        lat, lng, field(fields, radiusColumn), field(fields, loiteringDelayColumn),
+                        field(fields, responsivenessColumn));
+            } catch (NumberFormatException | NullPointerException e) {
+                // Skip malformed rows
+            }
+        }
+    }
+
+    private static String field(List<String> fields, int column) {
+        if (column < 0 || column >= fields.size()) return null;
+        String value = fields.get(column);
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Splits one CSV line into fields, handling double-quoted fields and "" escapes
+     */
+    static void splitCsv(String line, List<String> fields) {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+    }
+
+    /**
+     * Validates and de-duplicates one place, then queues it for the sink
+     */
+    private void add(String id, String name, String address, double lat, double lng,
+                     String radius, String loiteringDelay, String responsiveness) {
+        if (Double.isNaN(lat) || Double.isNaN(lng) || lat < -90 || lat > 90 || lng < -180 || lng > 180) {
+            return;
+        }
+        long coordinateKey = coordinateKey(lat, lng);
+        String uid = id != null && !id.trim().isEmpty()
+                ? UID_PREFIX + id.trim()
+                : UID_PREFIX + Math.round(lat * 1e6) + "," + Math.round(lng * 1e6);
+        long uidHash = hash(uid);
+        if (mSeenUids.contains(uidHash, uid) || mSeenCoordinates.contains(coordinateKey)) {
+            mDuplicates++;
+            return;
+        }
+        mSeenUids.add(uidHash, uid);
+        mSeenCoordinates.add(coordinateKey);
+        if (name == null || name.trim().isEmpty()) {
+            name = String.format(Locale.US, "%.6f, %.6f", lat, lng);
+        }
+        mBatch.add(new PlaceRecord(PlaceRecord.NO_ID, uid, name.trim(),
+                address == null ? "" : address.trim(), lat, lng,
+                parseRadius(radius), parseMillis(loiteringDelay), parseMillis(responsiveness)));
+        if (mBatch.size() >= mBatchSize) flush();
+    }
+
+    /**
+     * @return the radius in meters, or the default if missing or not positive
+     */
+    private static float parseRadius(String value) {
+        if (value == null) return PlaceRecord.DEFAULT_RADIUS;
+        try {
+            float radius = Float.parseFloat(value.trim());
+            return radius > 0 && !Float.isInfinite(radius) ? radius : PlaceRecord.DEFAULT_RADIUS;
+        } catch (NumberFormatException e) {
+            return PlaceRecord.DEFAULT_RADIUS;
+        }
+    }
+
+    /**
+     * @return a delay in milliseconds, or 0 (the default) if missing or negative
+     */
+    private static int parseMillis(String value) {
+        if (value == null) return 0;
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void flush() {
+        if (mBatch.isEmpty()) return;
+        mSink.insert(mBatch);
+        mImported += mBatch.size();
+        mBatch.clear();
+        if (mProgressListener != null) mProgressListener.onProgress(mParsed, mImported);
+    }
+
+    /**
+     * Packs the rounded coordinates exactly, the latitude in the high 32 bits and the longitude in
+     * the low ones, so equal keys are equal coordinates
+     */
+    private static long coordinateKey(double lat, double lng) {
+        long latE6 = Math.round(lat * 1e6);
+        long lngE6 = Math.round(lng * 1e6);
+        return (latE6 << 32) ^ (lngE6 & 0xffffffffL);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Minimal open-addressing set of longs, avoids boxing a Long per imported place
+     */
+    static final class LongHashSet {
+        private static final long EMPTY = 0;
+        private long[] mTable = new long[1024];
+        private boolean mHasEmptyKey;
+        private int mSize;
+
+        boolean contains(long key) {
+            if (key == EMPTY) return mHasEmptyKey;
+            int mask = mTable.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                long slot = mTable[i];
+                if (slot == EMPTY) return false;
+                if (slot == key) return true;
+            }
+        }
+
+        void add(long key) {
+            if (key == EMPTY) {
+                mHasEmptyKey = true;
+                return;
+            }
+            if ((mSize + 1) * 2 > mTable.length) grow();
+            if (insert(mTable, key)) mSize++;
+        }
+
+        private static boolean insert(long[] table, long key) {
+            int mask = table.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                long slot = table[i];
+                if (slot == key) return false;
+                if (slot == EMPTY) {
+                    table[i] = key;
+                    return true;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] table = new long[mTable.length * 2];
+            for (long key : mTable) {
+                if (key != EMPTY) insert(table, key);
+            }
+            mTable = table;
+        }
+
+        static int mix(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32));
+        }
+    }
+
+    /**
+     * Minimal open-addressing set of strings keyed by a 64-bit hash of each, avoids boxing a Long
+     * per imported place and only compares the strings whose hashes are equal
+     */
+    static final class UidSet {
+        private long[] mHashes = new long[1024];
+        // Null for an empty slot
+        private String[] mUids = new String[1024];
+        private int mSize;
+
+        boolean contains(long hash, String uid) {
+            int mask = mUids.length - 1;
+            for (int i = LongHashSet.mix(hash) & mask; ; i = (i + 1) & mask) {
+                String slot = mUids[i];
+                if (slot == null) return false;
+                // Equal hashes may still be different UIDs
+                if (mHashes[i] == hash && slot.equals(uid)) return true;
+            }
+        }
+
+        void add(long hash, String uid) {
+            if (contains(hash, uid)) return;
+            if ((mSize + 1) * 2 > mUids.length) grow();
+            insert(mHashes, mUids, hash, uid);
+            mSize++;
+        }
+
+        private static void insert(long[] hashes, String[] uids, long hash, String uid) {
+            int mask = uids.length - 1;
+            int i = LongHashSet.mix(hash) & mask;
+            while (uids[i] != null) i = (i + 1) & mask;
+            hashes[i] = hash;
+            uids[i] = uid;
+        }
+
+        private void grow() {
+            long[] hashes = new long[mHashes.length * 2];
+            String[] uids = new String[hashes.length];
+            for (int i = 0; i < mUids.length; i++) {
+                if (mUids[i] != null) insert(hashes, uids, mHashes[i], mUids[i]);
+            }
+            mHashes = hashes;
+            mUids = uids;
+        }
+    }
+}
@@ -18,7 +18,11 @@ package com.example.android.shushme;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.AsyncTask;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -26,11 +30,28 @@ import android.widget.TextView;
 
 import com.example.android.shushme.provider.PlaceContract;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.PlaceViewHolder> {
 
+    public static final String TAG = PlaceListAdapter.class.getSimpleName();
+
+    // One thread for all adapters so that diffs are computed and applied in the order the
+    // cursors were swapped in, without queueing behind the app's other AsyncTasks
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
     // Holds on to the cursor to display the list of places
     private Cursor mCursor;
     private Context mContext;
+    // The rows currently displayed, read out of mCursor
+    private Rows mRows = Rows.EMPTY;
+    // The rows of the most recent cursor read in the background, the base for the next diff
+    // Only touched on DIFF_EXECUTOR
+    private Rows mLastReadRows = Rows.EMPTY;
+    // Bumped on every swap so that cursors already replaced aren't read anymore
+    private volatile int mGeneration;
+    private int mPendingUpdates;
 
     /**
      * Constructor using the context and the db cursor
@@ -39,6 +60,7 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
      */
     public PlaceListAdapter(Context context) {
         this.mContext = context;
+        setHasStableIds(true);
     }
 
     /**
@@ -64,23 +86,13 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
      */
     @Override
     public void onBindViewHolder(PlaceViewHolder holder, int position) {
-        // Move the mCursor to the position of the item to be displayed
-        if (!mCursor.moveToPosition(position))
-            return; // bail if returned null
-
-        // Update the view holder with the information needed to display
-        String name = mCursor.getString(mCursor.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME));
-        String address = mCursor.getString(mCursor.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS));
-        long id = mCursor.getLong(mCursor.getColumnIndex(PlaceContract.PlaceEntry._ID));
-
         // Display the place name and address
-        holder.nameTextView.setText(name);
-        holder.addressTextView.setText(address);
+        holder.nameTextView.setText(mRows.names[position]);
+        holder.addressTextView.setText(mRows.addresses[position]);
         // Add the the place id s a tag
-        holder.itemView.setTag(id);
+        holder.itemView.setTag(mRows.ids[position]);
     }
 
-
     /**
      * Returns the number of items in the cursor
      *
@@ -88,23 +100,147 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
      */
     @Override
     public int getItemCount() {
-        if (mCursor == null) return 0;
-        return mCursor.getCount();
+        return mRows.size();
+    }
+
+    /**
+     * @return the place _ID of the item, which is stable across reloads
+     */
+    @Override
+    public long getItemId(int position) {
+        return mRows.ids[position];
     }
 
     /**
      * Swaps the Cursor currently held in the adapter with a new one
-     * and triggers a UI refresh
+     * The cursor is read and diffed against the displayed rows on a background thread, then only
+     * the inserted, removed and changed items are refreshed. The previous cursor is closed once the
+     * new one is displayed, the new cursor must not be moved by anyone else in the meantime.
      *
      * @param newCursor the new cursor that will replace the existing one
      */
     public void swapCursor(Cursor newCursor) {
-        // Always close the previous mCursor first
-        if (mCursor != null) mCursor.close();
-        mCursor = newCursor;
-        if (newCursor != null) {
-            // Force the RecyclerView to refresh
-            this.notifyDataSetChanged();
+        mPendingUpdates++;
+        new DiffTask(newCursor, ++mGeneration).executeOnExecutor(DIFF_EXECUTOR);
+    }
+
+    /**
+     * @return true while a swapped-in cursor hasn't been displayed yet
+     */
+    boolean hasPendingUpdates() {
+        return mPendingUpdates > 0;
+    }
+
+    /**
+     * Reads the cursor and works out the notifications needed to move from the last rows read
+     * to the new ones; finishes on the main thread by displaying them
+     */
+    private class DiffTask extends AsyncTask<Void, Void, DiffUtil.DiffResult> {
+        private final Cursor mNewCursor;
+        private final int mTaskGeneration;
+        private Rows mNewRows;
+
+        DiffTask(Cursor newCursor, int generation) {
+            mNewCursor = newCursor;
+            mTaskGeneration = generation;
+        }
+
+        @Override
+        protected DiffUtil.DiffResult doInBackground(Void... params) {
+            // A newer cursor is already queued, no point reading this one
+            if (mTaskGeneration != mGeneration) return null;
+            try {
+                mNewRows = Rows.read(mNewCursor);
+            } catch (IllegalStateException e) {
+                // The loader already closed the cursor because a newer one was delivered
+                Log.w(TAG, "Skipping a closed cursor: " + e.getMessage());
+                return null;
+            }
+            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new RowsDiff(mLastReadRows, mNewRows), false);
+            mLastReadRows = mNewRows;
+            return result;
+        }
+
+        @Override
+        protected void onPostExecute(DiffUtil.DiffResult result) {
+            mPendingUpdates--;
+            // Superseded, the loader closes cursors it replaced
+            if (result == null) return;
+            // Always close the previous mCursor first
+            if (mCursor != null && mCursor != mNewCursor) mCursor.close();
+            mCursor = mNewCursor;
+            mRows = mNewRows;
+            result.dispatchUpdatesTo(PlaceListAdapter.this);
+        }
+    }
+
+    /**
+     * The displayed columns of a cursor, copied out with the column indices resolved once
+     */
+    static final class Rows {
+        static final Rows EMPTY = new Rows(new long[0], new String[0], new String[0]);
+
+        final long[] ids;
+        final String[] names;
+        final String[] addresses;
+
+        Rows(long[] ids, String[] names, String[] addresses) {
+            this.ids = ids;
+            this.names = names;
+            this.addresses = addresses;
+        }
+
+        static Rows read(Cursor cursor) {
+            if (cursor == null) return EMPTY;
+            int idIndex = cursor.getColumnIndex(PlaceContract.PlaceEntry._ID);
+            int nameIndex = cursor.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME);
+            int addressIndex = cursor.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS);
+            int count = cursor.getCount();
+            Rows rows = new Rows(new long[count], new String[count], new String[count]);
+            for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+                rows.ids[i] = cursor.getLong(idIndex);
+                rows.names[i] = cursor.getString(nameIndex);
+                rows.addresses[i] = cursor.getString(addressIndex);
+            }
+            return rows;
+        }
+
+        int size() {
+            return ids.length;
+        }
+    }
+
+    /**
+     * Matches rows by _ID and compares what's displayed of them
+     */
+    static final class RowsDiff extends DiffUtil.Callback {
+        private final Rows mOld;
+        private final Rows mNew;
+
+        RowsDiff(Rows oldRows, Rows newRows) {
+            mOld = oldRows;
+            mNew = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.ids[oldItemPosition] == mNew.ids[newItemPosition];
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return TextUtils.equals(mOld.names[oldItemPosition], mNew.names[newItemPosition])
+                    && TextUtils.equals(mOld.addresses[oldItemPosition], mNew.addresses[newItemPosition]);
         }
     }
 
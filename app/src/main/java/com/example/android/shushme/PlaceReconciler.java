@@ -0,0 +1,92 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares live place data against the locally cached places in a single pass.
+ * All local rows are read once through {@link Store#loadAll}, diffed in memory by UID, and every
+ * discrepancy is written back through a single {@link Store#applyUpdates} call.
+ */
+public class PlaceReconciler {
+
+    /**
+     * Access to the local place cache; tests use an in-memory fake.
+     * {@link LivePlaceSync} only uses {@link #diff}, against its own store.
+     */
+    public interface Store {
+        /**
+         * @return every locally stored place, keyed by place UID
+         */
+        Map<String, PlaceRecord> loadAll();
+
+        /**
+         * Writes the given name/address updates as one batch
+         *
+         * @param updates records carrying the local database id and the new name and address
+         */
+        void applyUpdates(List<PlaceRecord> updates);
+    }
+
+    private final Store mStore;
+
+    public PlaceReconciler(Store store) {
+        mStore = store;
+    }
+
+    /**
+     * Goes through the live places and compares each with the local cached information
+     * If anything is out of date, it gets updated in the local database in one batch
+     *
+     * @param livePlaces the up-to-date places, only uid, name and address are used
+     * @return the number of places that were updated
+     */
+    public int reconcile(List<PlaceRecord> livePlaces) {
+        if (livePlaces.isEmpty()) return 0;
+        List<PlaceRecord> updates = diff(mStore.loadAll(), livePlaces);
+        if (!updates.isEmpty()) mStore.applyUpdates(updates);
+        return updates.size();
+    }
+
+    /**
+     * Compares each live place with the local cached information
+     *
+     * @param local      the cached places keyed by UID
+     * @param livePlaces the up-to-date places, only uid, name and address are used
+     * @return the cached places whose name or address is out of date, with the live values
+     */
+    public static List<PlaceRecord> diff(Map<String, PlaceRecord> local, List<PlaceRecord> livePlaces) {
+        List<PlaceRecord> updates = new ArrayList<>();
+        for (PlaceRecord live : livePlaces) {
+            PlaceRecord cached = local.get(live.uid);
+            if (cached == null) continue;
+            // Check if there is any discrepancy between cached data and live data
+            if (!equal(live.name, cached.name) || !equal(live.address, cached.address)) {
+                updates.add(new PlaceRecord(cached.id, cached.uid, live.name, live.address,
+                        cached.latitude, cached.longitude));
+            }
+        }
+        return updates;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+/**
+ * Plain, immutable copy of one place, detached from any Cursor or PlaceBuffer so it can be
+ * handed between threads and used from pure-Java code.
+ * Two records are equal when every field is, see {@link PlaceRepository} which only reports
+ * rows that really changed.
+ */
+public final class PlaceRecord {
+
+    // Database id used for records that do not (yet) come from the local database
+    public static final long NO_ID = -1;
+    // Same as PlaceEntry.DEFAULT_GEOFENCE_RADIUS, for records that don't carry the settings
+    public static final float DEFAULT_RADIUS = 50;
+
+    public final long id;
+    public final String uid;
+    public final String name;
+    public final String address;
+    public final double latitude;
+    public final double longitude;
+    // Geofence settings, see PlaceEntry
+    public final float radius;
+    public final int loiteringDelay;
+    public final int responsiveness;
+
+    public PlaceRecord(long id, String uid, String name, String address,
+                       double latitude, double longitude) {
+        this(id, uid, name, address, latitude, longitude, DEFAULT_RADIUS, 0, 0);
+    }
+
+    public PlaceRecord(long id, String uid, String name, String address,
+                       double latitude, double longitude,
+                       float radius, int loiteringDelay, int responsiveness) {
+        this.id = id;
+        this.uid = uid;
+        this.name = name;
+        this.address = address;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+        this.loiteringDelay = loiteringDelay;
+        this.responsiveness = responsiveness;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PlaceRecord)) return false;
+        PlaceRecord other = (PlaceRecord) o;
+        return id == other.id
+                && equal(uid, other.uid)
+                && equal(name, other.name)
+                && equal(address, other.address)
+                && Double.compare(latitude, other.latitude) == 0
+                && Double.compare(longitude, other.longitude) == 0
+                && Float.compare(radius, other.radius) == 0
+                && loiteringDelay == other.loiteringDelay
+                && responsiveness == other.responsiveness;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (id ^ (id >>> 32));
+        result = 31 * result + (uid == null ? 0 : uid.hashCode());
+        result = 31 * result + (name == null ? 0 : name.hashCode());
+        return result;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "PlaceRecord{" + id + " " + uid + " " + name + "}";
+    }
+}
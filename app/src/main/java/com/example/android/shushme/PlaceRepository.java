@@ -0,0 +1,328 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Process-wide, in-memory copy of the places table.
+ * <p>
+ * The table is read once, on first use, into an immutable {@link Snapshot} indexed by _ID and
+ * by UID. After that the provider reports the _IDs of every places write it commits through
+ * {@link #onPlacesChanged}; only those rows are read back, and a new snapshot is published with
+ * them (copy on write), so readers never lock and never see a half applied change. Subscribers
+ * get the {@link Delta}s of every change, in commit order, on the dispatch executor.
+ * <p>
+ * {@link com.example.android.shushme.provider.PlaceContentProvider} creates the instance of the
+ * app's process, see {@link #getInstance}.
+ */
+public class PlaceRepository {
+
+    /**
+     * Reads places from the places table. The provider implements this on its database.
+     */
+    public interface Source {
+        /**
+         * @return every place
+         */
+        List<PlaceRecord> loadAll();
+
+        /**
+         * @param ids the _IDs to read
+         * @return the places that still exist among them, in any order
+         */
+        List<PlaceRecord> loadByIds(Collection<Long> ids);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the dispatch executor, once per committed change and in commit order
+         *
+         * @param snapshot the places right after the change
+         * @param deltas   what changed, never empty
+         */
+        void onPlacesChanged(Snapshot snapshot, List<Delta> deltas);
+    }
+
+    /**
+     * One place added, updated or removed
+     */
+    public static final class Delta {
+        public static final int ADDED = 1;
+        public static final int UPDATED = 2;
+        public static final int REMOVED = 3;
+
+        public final int type;
+        // The place before the change, null when ADDED
+        public final PlaceRecord before;
+        // The place after the change, null when REMOVED
+        public final PlaceRecord after;
+
+        Delta(int type, PlaceRecord before, PlaceRecord after) {
+            this.type = type;
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * @return the place after the change, or before it when it was removed
+         */
+        public PlaceRecord getPlace() {
+            return after != null ? after : before;
+        }
+
+        @Override
+        public String toString() {
+            return "Delta{" + type + " " + getPlace() + "}";
+        }
+    }
+
+    /**
+     * An immutable view of every place, safe to keep and read from any thread
+     */
+    public static final class Snapshot {
+        // Increases by one with every change
+        public final long version;
+        private final TreeMap<Long, PlaceRecord> mById;
+        private final HashMap<String, PlaceRecord> mByUid;
+        private final Collection<PlaceRecord> mPlaces;
+
+        private Snapshot(long version, TreeMap<Long, PlaceRecord> byId,
+                         HashMap<String, PlaceRecord> byUid) {
+            this.version = version;
+            mById = byId;
+            mByUid = byUid;
+            mPlaces = Collections.unmodifiableCollection(byId.values());
+        }
+
+        /**
+         * @return every place, ordered by _ID
+         */
+        public Collection<PlaceRecord> getAll() {
+            return mPlaces;
+        }
+
+        /**
+         * @return the place with this _ID, or null
+         */
+        public PlaceRecord getById(long id) {
+            return mById.get(id);
+        }
+
+        /**
+         * @return the place with this UID, or null
+         */
+        public PlaceRecord getByUid(String uid) {
+            return mByUid.get(uid);
+        }
+
+        public int size() {
+            return mById.size();
+        }
+    }
+
+    private static volatile PlaceRepository sInstance;
+
+    private final Source mSource;
+    private final Executor mDispatcher;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    // Serializes loading and applying changes, so that they are published in commit order
+    private final Object mWriteLock = new Object();
+    // Null until loaded, written under mWriteLock
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * @param source     where the places are read from
+     * @param dispatcher runs the listeners, must run tasks one at a time and in order
+     */
+    public PlaceRepository(Source source, Executor dispatcher) {
+        mSource = source;
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * @return the repository of this process, never null once the provider is created, which
+     * Android does before starting any activity, service or receiver of the app
+     */
+    public static PlaceRepository getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Called by the provider when it is created
+     */
+    public static void setInstance(PlaceRepository repository) {
+        sInstance = repository;
+    }
+
+    /**
+     * @return the current places, reading the whole table the first time, so not on the main thread
+     */
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null) return snapshot;
+        synchronized (mWriteLock) {
+            if (mSnapshot == null) mSnapshot = load();
+            return mSnapshot;
+        }
+    }
+
+    /**
+     * @return whether the table was read already, i.e. {@link #getSnapshot} won't block
+     */
+    public boolean isLoaded() {
+        return mSnapshot != null;
+    }
+
+    /**
+     * Starts delivering deltas to the listener. The listener is first called on the dispatch
+     * executor with the current snapshot and every place as ADDED, which also loads the table
+     * there, off the calling thread.
+     */
+    public void subscribe(Listener listener) {
+        subscribe(listener, null);
+    }
+
+    /**
+     * Same as {@link #subscribe(Listener)}, then runs onLoaded on the dispatch executor once the
+     * listener has every place, also when there are none and the listener isn't called
+     *
+     * @param onLoaded run once after the first delivery, may be null
+     */
+    public void subscribe(final Listener listener, final Runnable onLoaded) {
+        mDispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Taken under the lock, so no change is missed or delivered twice
+                Snapshot snapshot;
+                synchronized (mWriteLock) {
+                    snapshot = getSnapshot();
+                    mListeners.add(listener);
+                }
+                if (snapshot.size() > 0) {
+                    List<Delta> deltas = new ArrayList<>(snapshot.size());
+                    for (PlaceRecord place : snapshot.getAll()) {
+                        deltas.add(new Delta(Delta.ADDED, null, place));
+                    }
+                    listener.onPlacesChanged(snapshot, deltas);
+                }
+                if (onLoaded != null) onLoaded.run();
+            }
+        });
+    }
+
+    public void unsubscribe(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Called by the provider after a write to the places table committed, or failed
+     * Reads the rows back and publishes a new snapshot if any of them changed
+     *
+     * @param ids the _IDs of the places inserted, updated or deleted
+     */
+    public void onPlacesChanged(Collection<Long> ids) {
+        if (ids.isEmpty()) return;
+        synchronized (mWriteLock) {
+            Snapshot current = mSnapshot;
+            // Not loaded yet, the load will read the change
+            if (current == null) return;
+            Set<Long> missing = new HashSet<>(ids);
+            List<PlaceRecord> places;
+            try {
+                places = mSource.loadByIds(new ArrayList<>(missing));
+            } catch (RuntimeException e) {
+                // The change can't be applied, the next reader loads the whole table again
+                mSnapshot = null;
+                throw e;
+            }
+            List<Delta> deltas = new ArrayList<>();
+            for (PlaceRecord place : places) {
+                missing.remove(place.id);
+                PlaceRecord before = current.getById(place.id);
+                if (before == null) {
+                    deltas.add(new Delta(Delta.ADDED, null, place));
+                } else if (!before.equals(place)) {
+                    deltas.add(new Delta(Delta.UPDATED, before, place));
+                }
+            }
+            for (Long id : missing) {
+                PlaceRecord before = current.getById(id);
+                if (before != null) deltas.add(new Delta(Delta.REMOVED, before, null));
+            }
+            if (deltas.isEmpty()) return;
+            Snapshot next = apply(current, deltas);
+            mSnapshot = next;
+            dispatch(next, deltas);
+        }
+    }
+
+    private Snapshot load() {
+        TreeMap<Long, PlaceRecord> byId = new TreeMap<>();
+        HashMap<String, PlaceRecord> byUid = new HashMap<>();
+        for (PlaceRecord place : mSource.loadAll()) {
+            byId.put(place.id, place);
+            byUid.put(place.uid, place);
+        }
+        return new Snapshot(1, byId, byUid);
+    }
+
+    private static Snapshot apply(Snapshot current, List<Delta> deltas) {
+        TreeMap<Long, PlaceRecord> byId = new TreeMap<>(current.mById);
+        HashMap<String, PlaceRecord> byUid = new HashMap<>(current.mByUid);
+        for (Delta delta : deltas) {
+            if (delta.before != null) {
+                byId.remove(delta.before.id);
+                // Unless another place took the UID over in the same change
+                if (byUid.get(delta.before.uid) == delta.before) byUid.remove(delta.before.uid);
+            }
+            if (delta.after != null) {
+                byId.put(delta.after.id, delta.after);
+                byUid.put(delta.after.uid, delta.after);
+            }
+        }
+        return new Snapshot(current.version + 1, byId, byUid);
+    }
+
+    /**
+     * Queued under mWriteLock, so listeners get the changes in the order they were published
+     * The listeners are taken now, one subscribing later already has this change in its snapshot
+     */
+    private void dispatch(final Snapshot snapshot, final List<Delta> deltas) {
+        if (mListeners.isEmpty()) return;
+        final List<Listener> listeners = new ArrayList<>(mListeners);
+        final List<Delta> unmodifiable = Collections.unmodifiableList(deltas);
+        mDispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    if (mListeners.contains(listener)) listener.onPlacesChanged(snapshot, unmodifiable);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which geofences to register when there are more places than Play Services allows.
+ * <p>
+ * Up to {@code maxGeofences} places are registered directly. Beyond that, places are partitioned
+ * into coarse region fences of at most {@code maxGeofences / 2} places each, by recursively
+ * splitting the set at the median of its longer axis. Only the regions closest to the device plus
+ * the fine fences of the region the device is currently in are registered; region ENTER and EXIT
+ * transitions move that window, see {@link #onRegionEnter} and {@link #onRegionExit}.
+ * <p>
+ * The planner only produces the desired set; {@link GeofenceRegistry} turns a change of that set
+ * into the minimal add/remove delta.
+ */
+public class RegionGeofencePlanner {
+
+    // Request ids of region fences start with this, place UIDs never do
+    public static final String REGION_PREFIX = "region:";
+
+    private final int mMaxGeofences;
+    private final int mRegionCapacity;
+    private final int mRegionTransitions;
+
+    private List<GeofenceSpec> mPlaces = Collections.emptyList();
+    private List<Region> mRegions = Collections.emptyList();
+    private final Map<String, Region> mRegionsById = new LinkedHashMap<>();
+
+    // Center of the last region entered, and whether we are still inside it
+    private boolean mHasAnchor;
+    private double mAnchorLat;
+    private double mAnchorLng;
+    private Region mCurrent;
+    // Set when an anchor restored as inside has no region to be inside of yet, the next
+    // setPlaces looks for it again
+    private boolean mPendingInside;
+
+    /**
+     * @param maxGeofences      the most geofences that may be registered at once
+     * @param regionTransitions the transition types to register region fences with
+     */
+    public RegionGeofencePlanner(int maxGeofences, int regionTransitions) {
+        if (maxGeofences < 4) throw new IllegalArgumentException("maxGeofences < 4");
+        mMaxGeofences = maxGeofences;
+        mRegionCapacity = maxGeofences / 2;
+        mRegionTransitions = regionTransitions;
+    }
+
+    /**
+     * @return true if the request id belongs to a region fence rather than a place
+     */
+    public static boolean isRegionId(String requestId) {
+        return requestId.startsWith(REGION_PREFIX);
+    }
+
+    /**
+     * Replaces the set of places and re-partitions them into regions if needed
+     * The device stays in the region covering the previously entered region's center, if any
+     *
+     * @param places the fine geofences for every stored place
+     */
+    public void setPlaces(Collection<GeofenceSpec> places) {
+        mPlaces = new ArrayList<>(places);
+        mRegionsById.clear();
+        if (mPlaces.size() <= mMaxGeofences) {
+            mRegions = Collections.emptyList();
+        } else {
+            mRegions = new ArrayList<>();
+            GeofenceSpec[] sorted = mPlaces.toArray(new GeofenceSpec[mPlaces.size()]);
+            split(sorted, 0, sorted.length);
+            for (Region region : mRegions) mRegionsById.put(region.spec.requestId, region);
+        }
+        boolean wasInside = mCurrent != null || mPendingInside;
+        mPendingInside = false;
+        mCurrent = null;
+        if (wasInside && mHasAnchor) mCurrent = regionContaining(mAnchorLat, mAnchorLng);
+    }
+
+    /**
+     * Restores the anchor, e.g. from preferences when a new process starts
+     * Can be called before the places are set, the region is then resolved by {@link #setPlaces}
+     *
+     * @param lat    latitude of the last entered region's center
+     * @param lng    longitude of the last entered region's center
+     * @param inside whether the device was still inside that region
+     */
+    public void setAnchor(double lat, double lng, boolean inside) {
+        mHasAnchor = true;
+        mAnchorLat = lat;
+        mAnchorLng = lng;
+        mCurrent = inside ? regionContaining(lat, lng) : null;
+        mPendingInside = inside && mCurrent == null;
+    }
+
+    public boolean hasAnchor() {
+        return mHasAnchor;
+    }
+
+    public double getAnchorLatitude() {
+        return mAnchorLat;
+    }
+
+    public double getAnchorLongitude() {
+        return mAnchorLng;
+    }
+
+    /**
+     * @return the request id of the region the device is in, or null if not inside any region
+     */
+    public String getCurrentRegionId() {
+        return mCurrent == null ? null : mCurrent.spec.requestId;
+    }
+
+    /**
+     * @return the number of regions the places are partitioned into, 0 when all fit directly
+     */
+    public int getRegionCount() {
+        return mRegions.size();
+    }
+
+    /**
+     * @return the place request ids that make up the given region, empty if unknown
+     */
+    public List<String> getRegionMembers(String regionId) {
+        Region region = mRegionsById.get(regionId);
+        if (region == null) return Collections.emptyList();
+        List<String> ids = new ArrayList<>(region.members.size());
+        for (GeofenceSpec member : region.members) ids.add(member.requestId);
+        return ids;
+    }
+
+    /**
+     * Handles an ENTER transition on a region fence, swapping in its fine fences
+     *
+     * @return true if the set of active geofences changed
+     */
+    public boolean onRegionEnter(String regionId) {
+        Region region = mRegionsById.get(regionId);
+        if (region == null || region == mCurrent) return false;
+        mCurrent = region;
+        mHasAnchor = true;
+        mAnchorLat = region.spec.latitude;
+        mAnchorLng = region.spec.longitude;
+        return true;
+    }
+
+    /**
+     * Handles an EXIT transition on a region fence, dropping its fine fences if it was current
+     *
+     * @return true if the set of active geofences changed
+     */
+    public boolean onRegionExit(String regionId) {
+        if (mCurrent == null || !mCurrent.spec.requestId.equals(regionId)) return false;
+        mCurrent = null;
+        return true;
+    }
+
+    /**
+     * Computes the geofences that should be registered right now, never more than maxGeofences:
+     * every place when they all fit, otherwise the fine fences of the current region plus the
+     * region fences closest to the anchor (the current region always included)
+     *
+     * @return the desired geofences keyed by request id
+     */
+    public Map<String, GeofenceSpec> getActiveGeofences() {
+        Map<String, GeofenceSpec> active = new LinkedHashMap<>();
+        if (mRegions.isEmpty()) {
+            for (GeofenceSpec place : mPlaces) active.put(place.requestId, place);
+            return active;
+        }
+        int regionBudget = mMaxGeofences;
+        if (mCurrent != null) {
+            for (GeofenceSpec member : mCurrent.members) active.put(member.requestId, member);
+            active.put(mCurrent.spec.requestId, mCurrent.spec);
+            regionBudget -= mCurrent.members.size() + 1;
+        }
+        for (Region region : nearestRegions(regionBudget + (mCurrent != null ? 1 : 0))) {
+            if (region != mCurrent) active.put(region.spec.requestId, region.spec);
+        }
+        return active;
+    }
+
+    /**
+     * Returns up to {@code count} regions ordered by distance from the anchor, or from the
+     * centroid of all places when there is no anchor yet
+     */
+    private List<Region> nearestRegions(int count) {
+        if (mRegions.size() <= count) return mRegions;
+        final double lat;
+        final double lng;
+        if (mHasAnchor) {
+            lat = mAnchorLat;
+            lng = mAnchorLng;
+        } else {
+            double sumLat = 0;
+            double sumLng = 0;
+            for (GeofenceSpec place : mPlaces) {
+                sumLat += place.latitude;
+                sumLng += place.longitude;
+            }
+            lat = sumLat / mPlaces.size();
+            lng = sumLng / mPlaces.size();
+        }
+        List<Region> sorted = new ArrayList<>(mRegions);
+        for (Region region : sorted) {
+            region.sortKey = GeoMath.distance(lat, lng, region.spec.latitude, region.spec.longitude);
+        }
+        Collections.sort(sorted, new Comparator<Region>() {
+            @Override
+            public int compare(Region a, Region b) {
+                return Double.compare(a.sortKey, b.sortKey);
+            }
+        });
+        return sorted.subList(0, count);
+    }
+
+    /**
+     * Finds the region whose circle contains the point, preferring the one with the closest center
+     *
+     * @return the region, or null if the point is outside every region
+     */
+    private Region regionContaining(double lat, double lng) {
+        Region best = null;
+        double bestDistance = Double.MAX_VALUE;
+        for (Region region : mRegions) {
+            double distance = GeoMath.distance(lat, lng, region.spec.latitude, region.spec.longitude);
+            if (distance <= region.spec.radius && distance < bestDistance) {
+                best = region;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Recursively splits places[from, to) at the median of its longer axis until every part
+     * fits in a region, then turns each part into a region
+     */
+    private void split(GeofenceSpec[] places, int from, int to) {
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE, maxLng = -Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            minLat = Math.min(minLat, places[i].latitude);
+            maxLat = Math.max(maxLat, places[i].latitude);
+            minLng = Math.min(minLng, places[i].longitude);
+            maxLng = Math.max(maxLng, places[i].longitude);
+        }
+        if (to - from <= mRegionCapacity) {
+            mRegions.add(buildRegion(places, from, to, (minLat + maxLat) / 2, (minLng + maxLng) / 2));
+            return;
+        }
+        double cos = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        boolean byLatitude = (maxLat - minLat) >= (maxLng - minLng) * cos;
+        int mid = (from + to) >>> 1;
+        select(places, from, to - 1, mid, byLatitude);
+        split(places, from, mid);
+        split(places, mid, to);
+    }
+
+    /**
+     * Partially orders places[left, right] along one axis so that the place at index k is the
+     * one a full sort would put there, with smaller ones before it and larger ones after it
+     * Quickselect, O(n) on average, keeps the whole partitioning at O(n log n)
+     */
+    private static void select(GeofenceSpec[] places, int left, int right, int k, boolean byLatitude) {
+        while (right > left) {
+            double pivot = coordinate(places[(left + right) >>> 1], byLatitude);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coordinate(places[i], byLatitude) < pivot) i++;
+                while (coordinate(places[j], byLatitude) > pivot) j--;
+                if (i <= j) {
+                    GeofenceSpec swap = places[i];
+                    places[i++] = places[j];
+                    places[j--] = swap;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static double coordinate(GeofenceSpec place, boolean byLatitude) {
+        return byLatitude ? place.latitude : place.longitude;
+    }
+
+    private Region buildRegion(GeofenceSpec[] places, int from, int to, double lat, double lng) {
+        double radius = 0;
+        List<GeofenceSpec> members = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            GeofenceSpec place = places[i];
+            members.add(place);
+            radius = Math.max(radius,
+                    GeoMath.distance(lat, lng, place.latitude, place.longitude) + place.radius);
+        }
+        String id = REGION_PREFIX + mRegions.size();
+        return new Region(new GeofenceSpec(id, lat, lng, (float) Math.ceil(radius),
+                mRegionTransitions), members);
+    }
+
+    /**
+     * A coarse region fence and the places it covers
+     */
+    private static class Region {
+        final GeofenceSpec spec;
+        final List<GeofenceSpec> members;
+        double sortKey;
+
+        Region(GeofenceSpec spec, List<GeofenceSpec> members) {
+            this.spec = spec;
+            this.members = members;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides what ringer mode geofence transitions should switch the device to.
+ * Kept free of Android classes so the whole transition pipeline can be driven on a plain JVM,
+ * see {@link GeofenceSimulator}; {@link GeofenceBroadcastReceiver} applies the result and
+ * persists the state with {@link RingerStateStore}.
+ * <p>
+ * Tracks the set of places the device is inside, so leaving one of two overlapping places keeps
+ * the phone silent. Leaving the last place only restores the ringer once the device has stayed
+ * out for the hold time, so GPS jitter at a fence edge doesn't flap the ringer. A mode is only
+ * returned when it differs from the last one returned: one visit is one silent and one normal.
+ */
+public class RingerController {
+
+    // Same values as Geofence.GEOFENCE_TRANSITION_*
+    public static final int TRANSITION_ENTER = 1;
+    public static final int TRANSITION_EXIT = 2;
+    public static final int TRANSITION_DWELL = 4;
+
+    // Same values as AudioManager.RINGER_MODE_*
+    public static final int RINGER_MODE_SILENT = 0;
+    public static final int RINGER_MODE_NORMAL = 2;
+
+    // Returned when the ringer should be left alone
+    public static final int NO_CHANGE = -1;
+
+    // Returned by getPendingDeadline when no exit is waiting out the hold time
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // How long the device has to stay out of every place before the ringer comes back on
+    public static final long DEFAULT_EXIT_HOLD_MILLIS = 60 * 1000;
+
+    private final long mExitHoldMillis;
+    private final Set<String> mInside = new HashSet<>();
+    private long mExitDeadline = NO_DEADLINE;
+    private int mMode = RINGER_MODE_NORMAL;
+
+    public RingerController() {
+        this(DEFAULT_EXIT_HOLD_MILLIS);
+    }
+
+    public RingerController(long exitHoldMillis) {
+        mExitHoldMillis = exitHoldMillis;
+    }
+
+    /**
+     * Restores the state saved from {@link #getInsideIds}, {@link #getPendingDeadline} and
+     * {@link #getMode}
+     */
+    public void restore(Collection<String> insideIds, long exitDeadline, int mode) {
+        mInside.clear();
+        mInside.addAll(insideIds);
+        mExitDeadline = exitDeadline;
+        mMode = mode;
+    }
+
+    /**
+     * @param transition  the geofence transition type
+     * @param requestIds  the request ids of the triggering geofences
+     * @param timeMillis  when the transition happened
+     * @return the ringer mode to switch to, or {@link #NO_CHANGE}
+     */
+    public int onTransition(int transition, List<String> requestIds, long timeMillis) {
+        if (transition == TRANSITION_ENTER || transition == TRANSITION_DWELL) {
+            mInside.addAll(requestIds);
+        } else if (transition == TRANSITION_EXIT) {
+            boolean wasInside = !mInside.isEmpty();
+            mInside.removeAll(requestIds);
+            if (wasInside && mInside.isEmpty()) mExitDeadline = timeMillis + mExitHoldMillis;
+        } else {
+            return NO_CHANGE;
+        }
+        return update(timeMillis);
+    }
+
+    /**
+     * Called once the time from {@link #getPendingDeadline} has come
+     *
+     * @return {@link #RINGER_MODE_NORMAL} if the device stayed out of every place, or
+     * {@link #NO_CHANGE}
+     */
+    public int onDeadline(long timeMillis) {
+        return update(timeMillis);
+    }
+
+    /**
+     * Drops places that are no longer monitored, their EXIT will never come
+     * Forgetting the last place the device was inside starts the hold time like an EXIT would, so
+     * the ringer comes back once {@link #getPendingDeadline} has passed
+     *
+     * @param timeMillis when the places were removed
+     */
+    public void forget(Collection<String> requestIds, long timeMillis) {
+        boolean wasInside = !mInside.isEmpty();
+        mInside.removeAll(requestIds);
+        if (wasInside && mInside.isEmpty()) startExitHold(timeMillis);
+    }
+
+    /**
+     * Same as {@link #forget} for every place
+     */
+    public void forgetAll(long timeMillis) {
+        boolean wasInside = !mInside.isEmpty();
+        mInside.clear();
+        if (wasInside) startExitHold(timeMillis);
+    }
+
+    /**
+     * @return when {@link #onDeadline} should be called, or {@link #NO_DEADLINE}
+     */
+    public long getPendingDeadline() {
+        return mExitDeadline;
+    }
+
+    public Set<String> getInsideIds() {
+        return Collections.unmodifiableSet(mInside);
+    }
+
+    /**
+     * @return the ringer mode last returned
+     */
+    public int getMode() {
+        return mMode;
+    }
+
+    private void startExitHold(long timeMillis) {
+        if (mMode == RINGER_MODE_SILENT) mExitDeadline = timeMillis + mExitHoldMillis;
+    }
+
+    private int update(long timeMillis) {
+        int mode;
+        if (!mInside.isEmpty()) {
+            mExitDeadline = NO_DEADLINE;
+            mode = RINGER_MODE_SILENT;
+        } else if (timeMillis < mExitDeadline) {
+            // Still holding, or nothing was ever entered
+            mode = mExitDeadline == NO_DEADLINE ? RINGER_MODE_NORMAL : mMode;
+        } else {
+            mExitDeadline = NO_DEADLINE;
+            mode = RINGER_MODE_NORMAL;
+        }
+        if (mode == mMode) return NO_CHANGE;
+        mMode = mode;
+        return mode;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Persists the {@link RingerController} state across broadcasts, the receiver's process can be
+ * killed at any time between an ENTER and its EXIT
+ */
+public class RingerStateStore {
+
+    private static final String PREFS_NAME = "ringer_state";
+    private static final String KEY_INSIDE = "inside";
+    private static final String KEY_EXIT_DEADLINE = "exit_deadline";
+    private static final String KEY_MODE = "mode";
+
+    // Receiver broadcasts and GeofenceSyncService both update the state
+    private static final Object LOCK = new Object();
+
+    /**
+     * Applies the transition to the saved state and saves the result
+     *
+     * @return the ringer mode to switch to, or {@link RingerController#NO_CHANGE}
+     */
+    public static int onTransition(Context context, int transition, List<String> requestIds,
+                                   long timeMillis) {
+        synchronized (LOCK) {
+            RingerController controller = load(context);
+            int mode = controller.onTransition(transition, requestIds, timeMillis);
+            save(context, controller);
+            return mode;
+        }
+    }
+
+    /**
+     * Settles a pending exit whose hold time has passed and saves the result
+     *
+     * @return the ringer mode to switch to, or {@link RingerController#NO_CHANGE}
+     */
+    public static int onDeadline(Context context, long timeMillis) {
+        synchronized (LOCK) {
+            RingerController controller = load(context);
+            int mode = controller.onDeadline(timeMillis);
+            save(context, controller);
+            return mode;
+        }
+    }
+
+    /**
+     * @return the ringer mode last returned by {@link #onTransition} or {@link #onDeadline}
+     */
+    public static int getMode(Context context) {
+        synchronized (LOCK) {
+            return load(context).getMode();
+        }
+    }
+
+    /**
+     * @return when {@link #onDeadline} should run, or {@link RingerController#NO_DEADLINE}
+     */
+    public static long getPendingDeadline(Context context) {
+        synchronized (LOCK) {
+            return load(context).getPendingDeadline();
+        }
+    }
+
+    /**
+     * Forgets places whose geofences were removed, they won't report their EXIT anymore
+     * When the device was inside the last of them this starts the exit hold, the caller sets the
+     * alarm for {@link #getPendingDeadline}
+     *
+     * @param requestIds the removed request ids, or null when all geofences were removed
+     * @param timeMillis when they were removed
+     */
+    public static void forget(Context context, Collection<String> requestIds, long timeMillis) {
+        synchronized (LOCK) {
+            RingerController controller = load(context);
+            if (requestIds == null) controller.forgetAll(timeMillis);
+            else controller.forget(requestIds, timeMillis);
+            save(context, controller);
+        }
+    }
+
+    private static RingerController load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        RingerController controller = new RingerController();
+        controller.restore(prefs.getStringSet(KEY_INSIDE, Collections.<String>emptySet()),
+                prefs.getLong(KEY_EXIT_DEADLINE, RingerController.NO_DEADLINE),
+                prefs.getInt(KEY_MODE, RingerController.RINGER_MODE_NORMAL));
+        return controller;
+    }
+
+    private static void save(Context context, RingerController controller) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                // getStringSet results must not be modified, always store a copy
+                .putStringSet(KEY_INSIDE, new HashSet<>(controller.getInsideIds()))
+                .putLong(KEY_EXIT_DEADLINE, controller.getPendingDeadline())
+                .putInt(KEY_MODE, controller.getMode())
+                .apply();
+    }
+}
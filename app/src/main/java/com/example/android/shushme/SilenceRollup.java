@@ -0,0 +1,113 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.util.TimeZone;
+
+/**
+ * Keeps running totals of the time spent silenced in each place, per local day and per week,
+ * so that stats never need to scan the transition history.
+ * <p>
+ * An ENTER opens a visit; its EXIT closes the visit and adds its duration, split at local
+ * midnights, to the day and week buckets. Days are numbered from 1970-01-01 in the given time
+ * zone and weeks start on Monday, see {@link #dayOf} and {@link #weekOf}.
+ */
+public final class SilenceRollup {
+
+    public static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    // Returned by Store.getEnteredAt when the place has no open visit
+    public static final long NOT_INSIDE = Long.MIN_VALUE;
+
+    /**
+     * Where the open visits and the totals are kept, e.g. the rollup tables of PlaceDbHelper
+     */
+    public interface Store {
+        long getEnteredAt(String uid);
+
+        void setEnteredAt(String uid, long timeMillis);
+
+        void clearEnteredAt(String uid);
+
+        void addToDay(String uid, long day, long millis);
+
+        void addToWeek(String uid, long week, long millis);
+    }
+
+    private SilenceRollup() {
+    }
+
+    /**
+     * Applies one transition of one place to the store
+     *
+     * @param store      the rollup store
+     * @param uid        the place UID
+     * @param transition RingerController.TRANSITION_*
+     * @param timeMillis when the transition happened
+     * @param zone       the time zone days are counted in
+     */
+    public static void onTransition(Store store, String uid, int transition, long timeMillis, TimeZone zone) {
+        if (transition == RingerController.TRANSITION_ENTER || transition == RingerController.TRANSITION_DWELL) {
+            // Fences re-added after a re-registration report ENTER again, keep the first one
+            if (store.getEnteredAt(uid) == NOT_INSIDE) store.setEnteredAt(uid, timeMillis);
+        } else if (transition == RingerController.TRANSITION_EXIT) {
+            long enteredAt = store.getEnteredAt(uid);
+            if (enteredAt == NOT_INSIDE) return;
+            store.clearEnteredAt(uid);
+            long start = enteredAt;
+            while (start < timeMillis) {
+                long day = dayOf(start, zone);
+                long end = Math.min(timeMillis, startOfDay(day + 1, zone));
+                if (end <= start) end = timeMillis;
+                store.addToDay(uid, day, end - start);
+                store.addToWeek(uid, weekOf(day), end - start);
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * @return the number of the local day the time falls on, day 0 is 1970-01-01
+     */
+    public static long dayOf(long timeMillis, TimeZone zone) {
+        return floorDiv(timeMillis + zone.getOffset(timeMillis), DAY_MILLIS);
+    }
+
+    /**
+     * @return the number of the Monday to Sunday week the day falls in
+     */
+    public static long weekOf(long day) {
+        // Day 0 was a Thursday
+        return floorDiv(day + 3, 7);
+    }
+
+    /**
+     * @return the time local midnight starts the day
+     */
+    public static long startOfDay(long day, TimeZone zone) {
+        long utcMidnight = day * DAY_MILLIS;
+        // The offset at midnight can differ from the offset a few hours earlier around DST changes
+        long guess = utcMidnight - zone.getOffset(utcMidnight);
+        return utcMidnight - zone.getOffset(guess);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) q--;
+        return q;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Times a section into a {@link Metrics.Histogram} and marks it as an android.os.Trace section,
+ * named after the histogram, so it also shows up in systrace:
+ * <pre>
+ * long start = Tracing.begin(HISTOGRAM);
+ * try {
+ *     ...
+ * } finally {
+ *     Tracing.end(HISTOGRAM, start);
+ * }
+ * </pre>
+ * Sections must be ended on the thread that began them, in reverse order.
+ */
+public final class Tracing {
+
+    private static final boolean TRACE_AVAILABLE = Build.VERSION.SDK_INT >= 18;
+
+    private Tracing() {
+    }
+
+    /**
+     * @return the start time to pass to {@link #end}
+     */
+    public static long begin(Metrics.Histogram histogram) {
+        if (TRACE_AVAILABLE) Trace.beginSection(histogram.name);
+        return System.nanoTime();
+    }
+
+    public static void end(Metrics.Histogram histogram, long start) {
+        histogram.record(System.nanoTime() - start);
+        if (TRACE_AVAILABLE) Trace.endSection();
+    }
+}
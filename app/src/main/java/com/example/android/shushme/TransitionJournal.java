@@ -0,0 +1,180 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only log of the geofence transitions handled by {@link GeofenceBroadcastReceiver}, so
+ * that we can tell when and where the phone was silenced.
+ * <p>
+ * Every entry is a fixed {@link #RECORD_SIZE} byte record:
+ * <pre>
+ *   0  timestamp, millis since the epoch (8 bytes, big endian)
+ *   8  transition type (1 byte), RingerController.TRANSITION_* or {@link #TRANSITION_HOLD_EXPIRED}
+ *   9  previous ringer mode (1 byte, -1 if unknown)
+ *  10  new ringer mode (1 byte)
+ *  11  length of the place UID in bytes (1 byte)
+ *  12  place UID, ASCII, zero padded, truncated to {@link #MAX_UID_BYTES}
+ * </pre>
+ * Appending reuses a single direct buffer and never touches SQLite. When the file reaches its
+ * size limit it is renamed to {@code <name>.1}, replacing the previous one, and a new file is
+ * started, so at most twice the limit is kept on disk.
+ */
+public class TransitionJournal {
+
+    public static final String FILE_NAME = "transitions.journal";
+    public static final int RECORD_SIZE = 128;
+    public static final int MAX_UID_BYTES = RECORD_SIZE - 12;
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    // Transition type of the record written when the exit hold time ran out
+    public static final int TRANSITION_HOLD_EXPIRED = 8;
+
+    private final File mFile;
+    private final File mRotatedFile;
+    private final long mMaxBytes;
+    private final ByteBuffer mRecord = ByteBuffer.allocateDirect(RECORD_SIZE);
+    private RandomAccessFile mOutput;
+    private FileChannel mChannel;
+    private long mSize;
+
+    /**
+     * @param directory where the journal files live, e.g. Context.getFilesDir()
+     * @param maxBytes  size at which the journal is rotated, rounded down to whole records
+     */
+    public TransitionJournal(File directory, long maxBytes) {
+        mFile = new File(directory, FILE_NAME);
+        mRotatedFile = new File(directory, FILE_NAME + ".1");
+        mMaxBytes = Math.max(RECORD_SIZE, maxBytes - maxBytes % RECORD_SIZE);
+    }
+
+    /**
+     * Appends one record
+     *
+     * @param timeMillis   when the transition happened
+     * @param uid          the place UID, or null for records not tied to a place
+     * @param transition   the transition type
+     * @param previousMode the ringer mode before the transition
+     * @param newMode      the ringer mode after the transition
+     * @throws IOException if the journal can't be written
+     */
+    public synchronized void append(long timeMillis, String uid, int transition, int previousMode,
+                                    int newMode) throws IOException {
+        if (mChannel == null) open();
+        if (mSize + RECORD_SIZE > mMaxBytes) rotate();
+        ByteBuffer record = mRecord;
+        record.clear();
+        record.putLong(timeMillis);
+        record.put((byte) transition);
+        record.put((byte) previousMode);
+        record.put((byte) newMode);
+        int length = uid == null ? 0 : Math.min(uid.length(), MAX_UID_BYTES);
+        record.put((byte) length);
+        for (int i = 0; i < length; i++) {
+            char c = uid.charAt(i);
+            record.put((byte) (c < 0x80 ? c : '?'));
+        }
+        while (record.hasRemaining()) record.put((byte) 0);
+        record.flip();
+        while (record.hasRemaining()) mChannel.write(record);
+        mSize += RECORD_SIZE;
+    }
+
+    /**
+     * Closes the journal file, the next append reopens it
+     */
+    public synchronized void close() throws IOException {
+        if (mOutput != null) {
+            mOutput.close();
+            mOutput = null;
+            mChannel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        mOutput = new RandomAccessFile(mFile, "rw");
+        mChannel = mOutput.getChannel();
+        // Drop a record that was only partly written when the process died
+        mSize = mChannel.size() - mChannel.size() % RECORD_SIZE;
+        mChannel.truncate(mSize);
+        mChannel.position(mSize);
+    }
+
+    private void rotate() throws IOException {
+        close();
+        if (mRotatedFile.exists() && !mRotatedFile.delete()) {
+            throw new IOException("Can't delete " + mRotatedFile);
+        }
+        if (!mFile.renameTo(mRotatedFile)) throw new IOException("Can't rotate " + mFile);
+        open();
+    }
+
+    /**
+     * Receives the records read by {@link #read}
+     */
+    public interface Visitor {
+        void visit(long timeMillis, String uid, int transition, int previousMode, int newMode);
+    }
+
+    /**
+     * Reads every complete record, oldest first, including those of the rotated file
+     *
+     * @param directory the directory passed to the constructor
+     * @param visitor   receives the records
+     * @return the number of records read
+     * @throws IOException if a journal file can't be read
+     */
+    public static int read(File directory, Visitor visitor) throws IOException {
+        return readFile(new File(directory, FILE_NAME + ".1"), visitor)
+                + readFile(new File(directory, FILE_NAME), visitor);
+    }
+
+    private static int readFile(File file, Visitor visitor) throws IOException {
+        if (!file.exists()) return 0;
+        // Only whole records, one may be in the middle of being appended
+        long records = file.length() / RECORD_SIZE;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        byte[] uid = new byte[MAX_UID_BYTES];
+        int count = 0;
+        try {
+            for (; count < records; count++) {
+                long timeMillis = input.readLong();
+                int transition = input.readByte();
+                int previousMode = input.readByte();
+                int newMode = input.readByte();
+                int length = input.readUnsignedByte();
+                input.readFully(uid);
+                visitor.visit(timeMillis, length == 0 ? null : new String(uid, 0, length, "US-ASCII"),
+                        transition, previousMode, newMode);
+            }
+        } catch (EOFException e) {
+            // Rotated while we were reading, what we have is all there is
+        } finally {
+            input.close();
+        }
+        return count;
+    }
+}
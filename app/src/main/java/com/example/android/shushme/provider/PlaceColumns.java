@@ -0,0 +1,456 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import com.example.android.shushme.GeoMath;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Read-only, column by column copy of the places table for code that scans every place, e.g.
+ * geometry and geofence code: ids, fixed-point coordinates and UIDs are read by index straight
+ * out of primitive buffers, without a Cursor and without allocating per row.
+ * <p>
+ * Rows are sorted by _ID. Coordinates are stored as degrees times {@link #E7} in ints, which is
+ * about 1 cm of precision. The file written by {@link Builder#writeTo} is laid out as
+ * (big endian):
+ * <pre>
+ *   magic "SHPC" (4 bytes), version (4 bytes), row count n (4 bytes), UID bytes m (4 bytes)
+ *   _ID            n longs
+ *   latitude E7    n ints
+ *   longitude E7   n ints
+ *   UID offsets    n + 1 ints, UID i is bytes [offset i, offset i+1)
+ *   UIDs           m bytes, UTF-8
+ * </pre>
+ * and {@link #map} memory maps it, so only the pages actually scanned are read from storage.
+ * The provider keeps the file up to date, see {@link PlaceColumnsUpdater}, and answers places/near
+ * queries with {@link #nearest} while it is.
+ */
+public final class PlaceColumns {
+
+    public static final String FILE_NAME = "places.columns";
+    public static final double E7 = GeoMath.E7;
+
+    private static final int MAGIC = 0x53485043; // "SHPC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mSize;
+    private final LongBuffer mIds;
+    private final IntBuffer mLatitudes;
+    private final IntBuffer mLongitudes;
+    private final IntBuffer mUidOffsets;
+    private final ByteBuffer mUids;
+
+    private PlaceColumns(int size, LongBuffer ids, IntBuffer latitudes, IntBuffer longitudes,
+                         IntBuffer uidOffsets, ByteBuffer uids) {
+        mSize = size;
+        mIds = ids;
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mUidOffsets = uidOffsets;
+        mUids = uids;
+    }
+
+    /**
+     * Memory maps a file written by {@link Builder#writeTo}
+     * The file is replaced, never modified, by later writes, so the mapping stays consistent
+     *
+     * @param file the columns file
+     * @return the columns
+     * @throws java.io.FileNotFoundException if there is no such file
+     * @throws IOException                   if the file can't be mapped or isn't a columns file
+     */
+    public static PlaceColumns map(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        ByteBuffer buffer;
+        try {
+            long length = input.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Bad place columns length " + length + " in " + file);
+            }
+            // The mapping outlives the file being closed
+            buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            input.close();
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a version " + VERSION + " place columns file " + file);
+        }
+        int size = buffer.getInt(8);
+        int uidBytes = buffer.getInt(12);
+        if (size < 0 || uidBytes < 0 || buffer.capacity() != fileSize(size, uidBytes)) {
+            throw new IOException("Truncated place columns file " + file);
+        }
+        int position = HEADER_SIZE;
+        LongBuffer ids = slice(buffer, position, size * 8).asLongBuffer();
+        position += size * 8;
+        IntBuffer latitudes = slice(buffer, position, size * 4).asIntBuffer();
+        position += size * 4;
+        IntBuffer longitudes = slice(buffer, position, size * 4).asIntBuffer();
+        position += size * 4;
+        IntBuffer uidOffsets = slice(buffer, position, (size + 1) * 4).asIntBuffer();
+        position += (size + 1) * 4;
+        return new PlaceColumns(size, ids, latitudes, longitudes, uidOffsets,
+                slice(buffer, position, uidBytes));
+    }
+
+    private static long fileSize(long size, long uidBytes) {
+        return HEADER_SIZE + size * (8 + 4 + 4 + 4) + 4 + uidBytes;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * @return the number of places
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public long getId(int index) {
+        return mIds.get(index);
+    }
+
+    /**
+     * @return the latitude in degrees times {@link #E7}
+     */
+    public int getLatitudeE7(int index) {
+        return mLatitudes.get(index);
+    }
+
+    /**
+     * @return the longitude in degrees times {@link #E7}
+     */
+    public int getLongitudeE7(int index) {
+        return mLongitudes.get(index);
+    }
+
+    public double getLatitude(int index) {
+        return mLatitudes.get(index) / E7;
+    }
+
+    public double getLongitude(int index) {
+        return mLongitudes.get(index) / E7;
+    }
+
+    /**
+     * Decodes the UID of a place, unlike the other getters this allocates
+     */
+    public String getUid(int index) {
+        int start = mUidOffsets.get(index);
+        byte[] bytes = new byte[mUidOffsets.get(index + 1) - start];
+        ByteBuffer uids = mUids.duplicate();
+        uids.position(start);
+        uids.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * @return the index of the place with that _ID, or a negative number if there is none
+     */
+    public int indexOfId(long id) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = mIds.get(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Finds the places nearest to a point in one pass over the coordinate columns, without
+     * allocating per place
+     * Places are ruled out with int comparisons alone when they are outside the fixed-point
+     * bounding box of the radius, or further in latitude than the furthest of the nearest places
+     * found so far, only the rest get their exact distance computed.
+     *
+     * @param radius    in meters, 0 for no bound
+     * @param limit     the most places to find, 0 for no limit
+     * @param indexes   receives the indexes of the places found, closest first, at least
+     *                  {@link #size()} long
+     * @param distances receives their distances in meters, at least {@link #size()} long
+     * @return the number of places found
+     */
+    public int nearest(double lat, double lng, double radius, int limit, int[] indexes,
+                       double[] distances) {
+        int[] box = radius > 0 ? GeoMath.boundingBoxE7(lat, lng, radius) : null;
+        int latitudeE7 = toE7(lat);
+        // A degree of latitude apart is at least this far, less a little for rounding
+        double metersPerE7 = GeoMath.METERS_PER_DEGREE / E7 * (1 - 1e-9);
+        int capacity = limit > 0 ? Math.min(limit, mSize) : mSize;
+        // indexes and distances hold a max-heap of the nearest places found so far
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            int placeLatitudeE7 = mLatitudes.get(i);
+            int placeLongitudeE7 = mLongitudes.get(i);
+            if (box != null && (placeLatitudeE7 < box[0] || placeLatitudeE7 > box[1]
+                    || placeLongitudeE7 < box[2] || placeLongitudeE7 > box[3])) {
+                continue;
+            }
+            if (count == capacity && Math.abs((long) placeLatitudeE7 - latitudeE7) * metersPerE7
+                    >= distances[0]) {
+                continue;
+            }
+            double distance = GeoMath.distance(lat, lng, placeLatitudeE7 / E7, placeLongitudeE7 / E7);
+            if (box != null && distance > radius) continue;
+            if (count < capacity) {
+                siftUp(indexes, distances, count++, i, distance);
+            } else if (distance < distances[0]) {
+                siftDown(indexes, distances, count, 0, i, distance);
+            }
+        }
+        // Heap sort, moving the furthest place to the back
+        for (int size = count - 1; size > 0; size--) {
+            int index = indexes[size];
+            double distance = distances[size];
+            indexes[size] = indexes[0];
+            distances[size] = distances[0];
+            siftDown(indexes, distances, size, 0, index, distance);
+        }
+        return count;
+    }
+
+    private static void siftUp(int[] indexes, double[] distances, int position, int index,
+                               double distance) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (distances[parent] >= distance) break;
+            indexes[position] = indexes[parent];
+            distances[position] = distances[parent];
+            position = parent;
+        }
+        indexes[position] = index;
+        distances[position] = distance;
+    }
+
+    private static void siftDown(int[] indexes, double[] distances, int size, int position,
+                                 int index, double distance) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) break;
+            if (child + 1 < size && distances[child + 1] > distances[child]) child++;
+            if (distance >= distances[child]) break;
+            indexes[position] = indexes[child];
+            distances[position] = distances[child];
+            position = child;
+        }
+        indexes[position] = index;
+        distances[position] = distance;
+    }
+
+    /**
+     * @return degrees as fixed-point, rounded to the nearest unit
+     */
+    public static int toE7(double degrees) {
+        return GeoMath.toE7(degrees);
+    }
+
+    /**
+     * Editable copy of the columns, kept sorted by _ID so that the places added with increasing
+     * ids are appended
+     */
+    public static final class Builder {
+        private long[] mIds;
+        private int[] mLatitudes;
+        private int[] mLongitudes;
+        private String[] mUids;
+        private int mSize;
+
+        public Builder() {
+            this(16);
+        }
+
+        private Builder(int capacity) {
+            mIds = new long[capacity];
+            mLatitudes = new int[capacity];
+            mLongitudes = new int[capacity];
+            mUids = new String[capacity];
+        }
+
+        /**
+         * @param columns the columns to start from
+         */
+        public Builder(PlaceColumns columns) {
+            this(Math.max(16, columns.size()));
+            for (int i = 0; i < columns.size(); i++) {
+                mIds[i] = columns.getId(i);
+                mLatitudes[i] = columns.getLatitudeE7(i);
+                mLongitudes[i] = columns.getLongitudeE7(i);
+                mUids[i] = columns.getUid(i);
+            }
+            mSize = columns.size();
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Adds a place, or replaces the place with the same _ID
+         */
+        public Builder put(long id, String uid, double latitude, double longitude) {
+            return putE7(id, uid, toE7(latitude), toE7(longitude));
+        }
+
+        /**
+         * Adds a place with fixed-point coordinates, as the places table stores them
+         */
+        public Builder putE7(long id, String uid, int latitudeE7, int longitudeE7) {
+            if (uid == null) throw new IllegalArgumentException("uid == null");
+            int index = indexOf(id);
+            if (index < 0) {
+                index = -(index + 1);
+                if (mSize == mIds.length) grow();
+                int moved = mSize - index;
+                System.arraycopy(mIds, index, mIds, index + 1, moved);
+                System.arraycopy(mLatitudes, index, mLatitudes, index + 1, moved);
+                System.arraycopy(mLongitudes, index, mLongitudes, index + 1, moved);
+                System.arraycopy(mUids, index, mUids, index + 1, moved);
+                mSize++;
+            }
+            mIds[index] = id;
+            mLatitudes[index] = latitudeE7;
+            mLongitudes[index] = longitudeE7;
+            mUids[index] = uid;
+            return this;
+        }
+
+        /**
+         * Removes the place with that _ID, if there is one
+         */
+        public Builder remove(long id) {
+            int index = indexOf(id);
+            if (index < 0) return this;
+            int moved = mSize - index - 1;
+            System.arraycopy(mIds, index + 1, mIds, index, moved);
+            System.arraycopy(mLatitudes, index + 1, mLatitudes, index, moved);
+            System.arraycopy(mLongitudes, index + 1, mLongitudes, index, moved);
+            System.arraycopy(mUids, index + 1, mUids, index, moved);
+            mUids[--mSize] = null;
+            return this;
+        }
+
+        public Builder clear() {
+            Arrays.fill(mUids, 0, mSize, null);
+            mSize = 0;
+            return this;
+        }
+
+        private int indexOf(long id) {
+            // Places are mostly added with a new, highest id
+            if (mSize == 0 || mIds[mSize - 1] < id) return -(mSize + 1);
+            return Arrays.binarySearch(mIds, 0, mSize, id);
+        }
+
+        private void grow() {
+            int capacity = mIds.length * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+            mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+            mUids = Arrays.copyOf(mUids, capacity);
+        }
+
+        /**
+         * @return in-memory columns holding the current places
+         */
+        public PlaceColumns build() {
+            byte[][] uids = encodeUids();
+            int[] offsets = new int[mSize + 1];
+            for (int i = 0; i < mSize; i++) offsets[i + 1] = offsets[i] + uids[i].length;
+            ByteBuffer uidBytes = ByteBuffer.allocate(offsets[mSize]);
+            for (byte[] uid : uids) uidBytes.put(uid);
+            uidBytes.clear();
+            return new PlaceColumns(mSize, LongBuffer.wrap(Arrays.copyOf(mIds, mSize)),
+                    IntBuffer.wrap(Arrays.copyOf(mLatitudes, mSize)),
+                    IntBuffer.wrap(Arrays.copyOf(mLongitudes, mSize)),
+                    IntBuffer.wrap(offsets), uidBytes);
+        }
+
+        /**
+         * Writes the columns to a temporary file and renames it over the given file, so that
+         * readers map either the old or the new columns
+         *
+         * @param file the columns file
+         * @throws IOException if the file can't be written, the previous one is left in place
+         */
+        public void writeTo(File file) throws IOException {
+            byte[][] uids = encodeUids();
+            int uidBytes = 0;
+            for (byte[] uid : uids) uidBytes += uid.length;
+            if (fileSize(mSize, uidBytes) > Integer.MAX_VALUE) {
+                throw new IOException("Too many places to map: " + mSize);
+            }
+
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(mSize);
+                output.writeInt(uidBytes);
+                for (int i = 0; i < mSize; i++) output.writeLong(mIds[i]);
+                for (int i = 0; i < mSize; i++) output.writeInt(mLatitudes[i]);
+                for (int i = 0; i < mSize; i++) output.writeInt(mLongitudes[i]);
+                int offset = 0;
+                output.writeInt(offset);
+                for (byte[] uid : uids) output.writeInt(offset += uid.length);
+                for (byte[] uid : uids) output.write(uid);
+                output.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Can't rename " + temp + " to " + file);
+            }
+        }
+
+        private byte[][] encodeUids() {
+            byte[][] uids = new byte[mSize][];
+            for (int i = 0; i < mSize; i++) uids[i] = mUids[i].getBytes(UTF_8);
+            return uids;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the {@link PlaceColumns} file in line with the places table, for the provider
+ * <p>
+ * Every write to the places table is bracketed by {@link #beginWrite} and {@link #endWrite}, the
+ * latter after the transaction committed. The rows written are then read back by _ID on a
+ * background thread, patched into the columns and the file is rewritten, coalescing bursts of
+ * writes into one rewrite.
+ * <p>
+ * A marker file exists from the first beginWrite until the columns file has caught up, so if the
+ * process dies in between, the next process rebuilds the columns from the whole table instead of
+ * trusting a stale file.
+ * <p>
+ * Once nothing is left to apply, the file is mapped and handed out by {@link #getColumns} until
+ * the next write begins.
+ */
+class PlaceColumnsUpdater {
+
+    private static final String TAG = PlaceColumnsUpdater.class.getSimpleName();
+
+    // SQLite allows 999 bound arguments per statement
+    private static final int MAX_IDS_PER_QUERY = 500;
+    private static final String[] PROJECTION = {PlaceEntry._ID, PlaceEntry.COLUMN_PLACE_UID,
+            PlaceEntry.COLUMN_LATITUDE_E7, PlaceEntry.COLUMN_LONGITUDE_E7};
+
+    private final PlaceDbHelper mDbHelper;
+    private final File mFile;
+    private final File mStaleMarker;
+    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private final Set<Long> mChangedIds = new HashSet<>();
+    private int mWritesInFlight;
+    private boolean mUpdateQueued;
+    private boolean mMarkedStale;
+    // Whether the file found at start matched the table
+    private boolean mFileUpToDate;
+
+    // The mapped file while it matches the table, null from beginWrite until it caught up
+    private volatile PlaceColumns mCurrent;
+
+    // Only touched on mExecutor, null until the columns were loaded or rebuilt
+    private PlaceColumns.Builder mColumns;
+
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    /**
+     * @param dbHelper  the provider's database
+     * @param directory where the columns file lives, e.g. Context.getFilesDir()
+     */
+    PlaceColumnsUpdater(PlaceDbHelper dbHelper, File directory) {
+        mDbHelper = dbHelper;
+        mFile = new File(directory, PlaceColumns.FILE_NAME);
+        mStaleMarker = new File(directory, PlaceColumns.FILE_NAME + ".stale");
+    }
+
+    /**
+     * Builds the columns file in the background if it is missing or stale, and maps it
+     */
+    void start() {
+        synchronized (mLock) {
+            mMarkedStale = mStaleMarker.exists();
+            mFileUpToDate = mFile.exists() && !mMarkedStale;
+            mUpdateQueued = true;
+        }
+        mExecutor.execute(mUpdate);
+    }
+
+    /**
+     * @return the columns, or null while they may not match the places table, i.e. from the
+     * start of a write until its rows were applied to them
+     */
+    PlaceColumns getColumns() {
+        return mCurrent;
+    }
+
+    /**
+     * Call before writing to the places table
+     */
+    void beginWrite() {
+        synchronized (mLock) {
+            mWritesInFlight++;
+            mCurrent = null;
+            if (mMarkedStale) return;
+            try {
+                if (!mStaleMarker.createNewFile() && !mStaleMarker.exists()) {
+                    Log.w(TAG, "Can't create " + mStaleMarker);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Can't create " + mStaleMarker, e);
+            }
+            mMarkedStale = true;
+        }
+    }
+
+    /**
+     * Call once the write is committed, or abandoned, even if it failed
+     *
+     * @param ids the _IDs of the places inserted, updated or deleted
+     */
+    void endWrite(Collection<Long> ids) {
+        synchronized (mLock) {
+            mWritesInFlight--;
+            mChangedIds.addAll(ids);
+            // Even without changes, so that the marker gets cleared
+            if (mUpdateQueued) return;
+            mUpdateQueued = true;
+        }
+        mExecutor.execute(mUpdate);
+    }
+
+    private void update() {
+        Long[] ids;
+        boolean upToDate;
+        synchronized (mLock) {
+            ids = mChangedIds.toArray(new Long[mChangedIds.size()]);
+            mChangedIds.clear();
+            mUpdateQueued = false;
+            upToDate = ids.length == 0 && (mColumns != null || mFileUpToDate);
+        }
+        if (!upToDate) rewrite(ids);
+        PlaceColumns current = null;
+        synchronized (mLock) {
+            upToDate = mFileUpToDate || mColumns != null;
+        }
+        if (upToDate) {
+            try {
+                current = PlaceColumns.map(mFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Can't map " + mFile, e);
+            }
+        }
+        synchronized (mLock) {
+            if (!mFileUpToDate && mColumns == null) return;
+            if (mWritesInFlight > 0 || mUpdateQueued || !mChangedIds.isEmpty()) return;
+            mCurrent = current;
+            if (!mStaleMarker.delete() && mStaleMarker.exists()) {
+                Log.w(TAG, "Can't delete " + mStaleMarker);
+                return;
+            }
+            mMarkedStale = false;
+        }
+    }
+
+    /**
+     * Applies the changed rows to the columns and rewrites the file
+     */
+    private void rewrite(Long[] ids) {
+        try {
+            SQLiteDatabase db = mDbHelper.getReadableDatabase();
+            if (mColumns == null) mColumns = load(db);
+            patch(db, ids);
+            mColumns.writeTo(mFile);
+        } catch (IOException | RuntimeException e) {
+            // The changes are lost, start over from the whole table next time
+            Log.e(TAG, "Can't update " + mFile, e);
+            mColumns = null;
+            synchronized (mLock) {
+                mFileUpToDate = false;
+            }
+        }
+    }
+
+    /**
+     * Starts from the columns file when it is up to date, or from the whole table
+     */
+    private PlaceColumns.Builder load(SQLiteDatabase db) {
+        boolean upToDate;
+        synchronized (mLock) {
+            upToDate = mFileUpToDate;
+        }
+        if (upToDate) {
+            try {
+                return new PlaceColumns.Builder(PlaceColumns.map(mFile));
+            } catch (IOException e) {
+                Log.w(TAG, "Rebuilding " + mFile + ": " + e.getMessage());
+            }
+        }
+        PlaceColumns.Builder columns = new PlaceColumns.Builder();
+        Cursor rows = db.query(PlaceEntry.TABLE_NAME, PROJECTION, null, null, null, null, null);
+        try {
+            readRows(rows, columns, null);
+        } finally {
+            rows.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Reads the changed rows back and applies them, rows that are gone were deleted
+     */
+    private void patch(SQLiteDatabase db, Long[] ids) {
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+            int count = Math.min(MAX_IDS_PER_QUERY, ids.length - start);
+            StringBuilder selection = new StringBuilder(PlaceEntry._ID).append(" IN (");
+            String[] args = new String[count];
+            Set<Long> missing = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                args[i] = Long.toString(ids[start + i]);
+                missing.add(ids[start + i]);
+            }
+            selection.append(')');
+            Cursor rows = db.query(PlaceEntry.TABLE_NAME, PROJECTION, selection.toString(), args,
+                    null, null, null);
+            try {
+                readRows(rows, mColumns, missing);
+            } finally {
+                rows.close();
+            }
+            for (Long id : missing) mColumns.remove(id);
+        }
+    }
+
+    private static void readRows(Cursor rows, PlaceColumns.Builder columns, Set<Long> missing) {
+        while (rows.moveToNext()) {
+            long id = rows.getLong(0);
+            // Copied as stored, without going through degrees
+            columns.putE7(id, rows.getString(1), rows.getInt(2), rows.getInt(3));
+            if (missing != null) missing.remove(id);
+        }
+    }
+}
@@ -17,16 +17,51 @@ package com.example.android.shushme.provider;
 */
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.support.annotation.NonNull;
+import android.util.Log;
 
+import com.example.android.shushme.BuildConfig;
+import com.example.android.shushme.GeoMath;
+import com.example.android.shushme.Metrics;
+import com.example.android.shushme.PlaceRepository;
+import com.example.android.shushme.SilenceRollup;
+import com.example.android.shushme.Tracing;
+import com.example.android.shushme.TransitionJournal;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+
+import static com.example.android.shushme.provider.PlaceContract.MetricEntry;
 import static com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import static com.example.android.shushme.provider.PlaceContract.SilenceEntry;
+import static com.example.android.shushme.provider.PlaceContract.TransitionEntry;
 
 
 public class PlaceContentProvider extends ContentProvider {
@@ -36,11 +71,49 @@ public class PlaceContentProvider extends ContentProvider {
     // and related ints (101, 102, ..) for items in that directory.
     public static final int PLACES = 100;
     public static final int PLACE_WITH_ID = 101;
+    public static final int PLACES_NEAR = 102;
+    public static final int PLACES_SEARCH = 103;
+    public static final int TRANSITIONS = 200;
+    public static final int SILENCE = 300;
+    public static final int SILENCE_DAILY = 301;
+    public static final int SILENCE_WEEKLY = 302;
+    public static final int METRICS = 400;
+
+    // Bounding box predicate for nearest places queries, an integer range scan over the
+    // latitude/longitude index, see GeoMath.boundingBoxE7
+    static final String NEAR_SELECTION =
+            PlaceEntry.COLUMN_LATITUDE_E7 + " BETWEEN ? AND ? AND " +
+            PlaceEntry.COLUMN_LONGITUDE_E7 + " BETWEEN ? AND ?";
+    // Name prefix predicate and order for searches of a first letter, a range scan over the name
+    // index, see PlaceSearch.toNamePrefix
+    static final String NAME_PREFIX_SELECTION =
+            PlaceEntry.COLUMN_PLACE_NAME + " >= ? COLLATE NOCASE AND " +
+            PlaceEntry.COLUMN_PLACE_NAME + " < ? COLLATE NOCASE";
+    static final String NAME_ORDER = PlaceEntry.COLUMN_PLACE_NAME + " COLLATE NOCASE";
+    // Columns of the transitions query, in TransitionJournal record order
+    private static final String[] TRANSITION_COLUMNS = {TransitionEntry._ID,
+            TransitionEntry.COLUMN_TIMESTAMP, TransitionEntry.COLUMN_PLACE_UID,
+            TransitionEntry.COLUMN_TRANSITION, TransitionEntry.COLUMN_PREVIOUS_RINGER_MODE,
+            TransitionEntry.COLUMN_NEW_RINGER_MODE};
+    private static final String[] METRIC_COLUMNS = {MetricEntry._ID, MetricEntry.COLUMN_NAME,
+            MetricEntry.COLUMN_TYPE, MetricEntry.COLUMN_VALUE, MetricEntry.COLUMN_MEAN,
+            MetricEntry.COLUMN_P50, MetricEntry.COLUMN_P90, MetricEntry.COLUMN_P99,
+            MetricEntry.COLUMN_MAX};
+    // Starting radius (meters) when searching for the nearest places without a radius
+    private static final double NEAR_INITIAL_RADIUS = 1000;
+    // Places found by a search or from the place columns are read by _ID, this many at a time
+    private static final int FETCH_BATCH = 500;
+    // Writes of more places than this notify the places directory once instead of every row
+    static final int MAX_ROW_NOTIFICATIONS = 50;
 
     // Declare a static variable for the Uri matcher that you construct
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private static final String TAG = PlaceContentProvider.class.getName();
 
+    private static final Metrics.Histogram QUERY_TIME = Metrics.histogram("provider.query");
+    private static final Metrics.Histogram BULK_INSERT_TIME = Metrics.histogram("provider.bulk_insert");
+    private static final Metrics.Histogram BATCH_TIME = Metrics.histogram("provider.apply_batch");
+
     // Define a static buildUriMatcher method that associates URI's with their int match
     public static UriMatcher buildUriMatcher() {
         // Initialize a UriMatcher
@@ -48,21 +121,54 @@ public class PlaceContentProvider extends ContentProvider {
         // Add URI matches
         uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_PLACES, PLACES);
         uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_PLACES + "/#", PLACE_WITH_ID);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_PLACES + "/" + PlaceContract.PATH_NEAR, PLACES_NEAR);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_PLACES + "/" + PlaceContract.PATH_SEARCH, PLACES_SEARCH);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_TRANSITIONS, TRANSITIONS);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_SILENCE, SILENCE);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_SILENCE + "/" + PlaceContract.PATH_DAILY, SILENCE_DAILY);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_SILENCE + "/" + PlaceContract.PATH_WEEKLY, SILENCE_WEEKLY);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_METRICS, METRICS);
         return uriMatcher;
     }
 
     // Member variable for a PlaceDbHelper that's initialized in the onCreate() method
     private PlaceDbHelper mPlaceDbHelper;
 
+    // Set while the calling thread is inside applyBatch, so that notifications are collected
+    // and sent once when the batch commits
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
+    // The place rows changed inside applyBatch, with what happened to them, and the other uris
+    private final ThreadLocal<Map<Long, String>> mBatchPlaceChanges = new ThreadLocal<>();
+    private final ThreadLocal<Set<Uri>> mBatchChangedUris = new ThreadLocal<>();
+    // The places written inside applyBatch, handed to mColumnsUpdater and mRepository once the
+    // batch commits
+    private final ThreadLocal<List<Long>> mBatchPlaceIds = new ThreadLocal<>();
+
+    // Keeps the PlaceColumns file in line with the places table
+    private PlaceColumnsUpdater mColumnsUpdater;
+    // The process-wide in-memory copy of the places table, told about every write
+    private PlaceRepository mRepository;
+
     @Override
     public boolean onCreate() {
         Context context = getContext();
         mPlaceDbHelper = new PlaceDbHelper(context);
+        mColumnsUpdater = new PlaceColumnsUpdater(mPlaceDbHelper, context.getFilesDir());
+        mColumnsUpdater.start();
+        // Loaded lazily by its first reader, creating it costs nothing
+        mRepository = new PlaceRepository(new PlaceTableSource(mPlaceDbHelper),
+                Executors.newSingleThreadExecutor());
+        PlaceRepository.setInstance(mRepository);
         return true;
     }
 
     /***
      * Handles requests to insert a single new row of data
+     * Inserting a place whose UID already exists updates that row in place and keeps its _ID
      *
      * @param uri
      * @param values
@@ -78,25 +184,151 @@ public class PlaceContentProvider extends ContentProvider {
         switch (match) {
             case PLACES:
                 // Insert new values into the database
-                long id = db.insert(PlaceEntry.TABLE_NAME, null, values);
+                long id = -1;
+                Map<Long, String> changes = new LinkedHashMap<>(2);
+                beginPlacesWrite();
+                db.beginTransaction();
+                try {
+                    id = upsert(db, values, changes);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    endPlacesWrite(id > 0 ? Collections.singletonList(id) : Collections.<Long>emptyList());
+                }
                 if (id > 0) {
-                    returnUri = ContentUris.withAppendedId(PlaceContract.PlaceEntry.CONTENT_URI, id);
+                    returnUri = PlaceEntry.buildPlaceUri(id);
                 } else {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 }
+                // Notify the resolver of the row inserted, or updated when the UID existed
+                notifyPlaceChanges(changes);
+                break;
+            // Record a transition in the silence rollups
+            case SILENCE:
+                applySilenceTransitions(db, new ContentValues[]{values});
+                returnUri = uri;
+                notifyChange(uri);
                 break;
             // Default case throws an UnsupportedOperationException
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        // Notify the resolver if the uri has been changed, and return the newly inserted URI
-        getContext().getContentResolver().notifyChange(uri, null);
-
         // Return constructed uri (this points to the newly inserted row of data)
         return returnUri;
     }
 
+    /***
+     * Inserts many rows of data in a single transaction
+     * Like {@link #insert}, rows whose UID already exists are updated in place
+     * Observers are notified once per row, or once for the whole directory when there are many
+     * rows, after the transaction has been committed
+     *
+     * @param uri    the places directory uri
+     * @param values the rows to insert
+     * @return the number of rows inserted or updated
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        long start = Tracing.begin(BULK_INSERT_TIME);
+        try {
+            return bulkInsertTimed(uri, values);
+        } finally {
+            Tracing.end(BULK_INSERT_TIME, start);
+        }
+    }
+
+    private int bulkInsertTimed(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+        int match = sUriMatcher.match(uri);
+        if (match == SILENCE) {
+            applySilenceTransitions(db, values);
+            notifyChange(uri);
+            return values.length;
+        }
+        if (match != PLACES) {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        List<Long> ids = new ArrayList<>(values.length);
+        Map<Long, String> changes = new LinkedHashMap<>();
+        beginPlacesWrite();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long id = upsert(db, value, changes);
+                if (id > 0) ids.add(id);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            endPlacesWrite(ids);
+        }
+        notifyPlaceChanges(changes);
+        return ids.size();
+    }
+
+    /**
+     * Folds transitions into the silence time rollups, in one transaction
+     * Days are counted in the device's current time zone
+     *
+     * @param db          the writable database
+     * @param transitions rows of {@link SilenceEntry#COLUMN_PLACE_UID},
+     *                    {@link SilenceEntry#COLUMN_TRANSITION} and {@link SilenceEntry#COLUMN_TIMESTAMP},
+     *                    in time order
+     */
+    private void applySilenceTransitions(SQLiteDatabase db, ContentValues[] transitions) {
+        TimeZone zone = TimeZone.getDefault();
+        db.beginTransaction();
+        PlaceDbHelper.SilenceStore store = null;
+        try {
+            store = new PlaceDbHelper.SilenceStore(db);
+            for (ContentValues transition : transitions) {
+                String uid = transition.getAsString(SilenceEntry.COLUMN_PLACE_UID);
+                Integer type = transition.getAsInteger(SilenceEntry.COLUMN_TRANSITION);
+                Long timestamp = transition.getAsLong(SilenceEntry.COLUMN_TIMESTAMP);
+                if (uid == null || type == null || timestamp == null) {
+                    throw new IllegalArgumentException("Incomplete transition: " + transition);
+                }
+                SilenceRollup.onTransition(store, uid, type, timestamp, zone);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (store != null) store.close();
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts a row, or updates the existing row with the same UID without changing its _ID
+     * The table's UNIQUE(uid) ON CONFLICT REPLACE clause would delete and re-insert the row instead,
+     * so the insert is done with CONFLICT_IGNORE and falls back to an update
+     * Must be called inside a transaction
+     *
+     * @param db      the writable database
+     * @param values  the row to insert or update
+     * @param changes receives the _ID of the row written and whether it was inserted or updated
+     * @return the _ID of the inserted or updated row, or -1 if nothing was written
+     */
+    private long upsert(SQLiteDatabase db, ContentValues values, Map<Long, String> changes) {
+        long id = db.insertWithOnConflict(PlaceEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (id != -1) {
+            putChange(changes, id, PlaceEntry.CHANGE_INSERT);
+            return id;
+        }
+        String uid = values.getAsString(PlaceEntry.COLUMN_PLACE_UID);
+        if (uid == null) return -1;
+        String[] uidArgs = new String[]{uid};
+        if (db.update(PlaceEntry.TABLE_NAME, values,
+                PlaceEntry.COLUMN_PLACE_UID + "=?", uidArgs) == 0) {
+            return -1;
+        }
+        id = DatabaseUtils.longForQuery(db, "SELECT " + PlaceEntry._ID + " FROM "
+                + PlaceEntry.TABLE_NAME + " WHERE " + PlaceEntry.COLUMN_PLACE_UID + "=?", uidArgs);
+        putChange(changes, id, PlaceEntry.CHANGE_UPDATE);
+        return id;
+    }
+
     /***
      * Handles requests for data by URI
      *
@@ -110,6 +342,27 @@ public class PlaceContentProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /***
+     * Handles requests for data by URI, that can be canceled
+     * A CursorLoader cancels its query when it is restarted, e.g. by the next letter typed into
+     * the places filter, and the places and search queries then stop where they are
+     */
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+        long start = Tracing.begin(QUERY_TIME);
+        try {
+            return queryTimed(uri, projection, selection, selectionArgs, sortOrder, cancellationSignal);
+        } finally {
+            Tracing.end(QUERY_TIME, start);
+        }
+    }
+
+    private Cursor queryTimed(Uri uri, String[] projection, String selection,
+                              String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
 
         // Get access to underlying database (read-only for query)
         final SQLiteDatabase db = mPlaceDbHelper.getReadableDatabase();
@@ -121,7 +374,42 @@ public class PlaceContentProvider extends ContentProvider {
         switch (match) {
             // Query for the places directory
             case PLACES:
+                retCursor = db.query(false,
+                        PlaceEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder,
+                        null,
+                        cancellationSignal);
+                break;
+            // Query for a single place, the selection (if any) further restricts it
+            case PLACE_WITH_ID:
                 retCursor = db.query(PlaceEntry.TABLE_NAME,
+                        projection,
+                        DatabaseUtils.concatenateWhere(PlaceEntry._ID + "=?", selection),
+                        DatabaseUtils.appendSelectionArgs(new String[]{uri.getLastPathSegment()}, selectionArgs),
+                        null,
+                        null,
+                        sortOrder);
+                break;
+            // Query for the places nearest to a point
+            case PLACES_NEAR:
+                retCursor = queryNear(db, uri, projection);
+                // Place writes notify the rows they changed, which are below the directory only
+                retCursor.setNotificationUri(getContext().getContentResolver(), PlaceEntry.CONTENT_URI);
+                return retCursor;
+            // Query for the places matching what the user typed
+            case PLACES_SEARCH:
+                retCursor = querySearch(db, uri, projection, cancellationSignal);
+                retCursor.setNotificationUri(getContext().getContentResolver(), PlaceEntry.CONTENT_URI);
+                return retCursor;
+            // Query for the silence time per place and day or week
+            case SILENCE_DAILY:
+            case SILENCE_WEEKLY:
+                retCursor = db.query(match == SILENCE_DAILY ? SilenceEntry.TABLE_DAILY : SilenceEntry.TABLE_WEEKLY,
                         projection,
                         selection,
                         selectionArgs,
@@ -129,6 +417,14 @@ public class PlaceContentProvider extends ContentProvider {
                         null,
                         sortOrder);
                 break;
+            // Query for the transition journal
+            case TRANSITIONS:
+                retCursor = queryTransitions(uri, projection);
+                break;
+            // Query for the metrics, debug builds only
+            case METRICS:
+                if (!BuildConfig.DEBUG) throw new UnsupportedOperationException("Unknown uri: " + uri);
+                return queryMetrics();
             // Default exception
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -141,6 +437,349 @@ public class PlaceContentProvider extends ContentProvider {
         return retCursor;
     }
 
+    /**
+     * Returns the records of the transition journal, newest first
+     *
+     * @param uri        a transitions uri, optionally with a limit parameter
+     * @param projection the {@link TransitionEntry} columns to return, or null for all
+     * @return a cursor over the records
+     */
+    private Cursor queryTransitions(Uri uri, String[] projection) {
+        String limitParam = uri.getQueryParameter(TransitionEntry.PARAM_LIMIT);
+        int limit;
+        try {
+            limit = limitParam == null ? 0 : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed transitions uri: " + uri);
+        }
+        final ArrayList<Object[]> records = new ArrayList<>();
+        try {
+            TransitionJournal.read(getContext().getFilesDir(), new TransitionJournal.Visitor() {
+                @Override
+                public void visit(long timeMillis, String uid, int transition, int previousMode, int newMode) {
+                    // Row ids count up from the oldest record kept
+                    records.add(new Object[]{(long) records.size(), timeMillis, uid, transition,
+                            previousMode, newMode});
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Can't read the transition journal", e);
+        }
+
+        String[] columns = projection != null ? projection : TRANSITION_COLUMNS;
+        int[] sources = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            sources[i] = Arrays.asList(TRANSITION_COLUMNS).indexOf(columns[i]);
+            if (sources[i] < 0) throw new IllegalArgumentException("Unknown column " + columns[i]);
+        }
+        int count = limit > 0 ? Math.min(limit, records.size()) : records.size();
+        MatrixCursor cursor = new MatrixCursor(columns, count);
+        for (int r = records.size() - 1; r >= records.size() - count; r--) {
+            Object[] record = records.get(r);
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) row[i] = record[sources[i]];
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns one row per registered metric, see {@link MetricEntry}
+     */
+    private static Cursor queryMetrics() {
+        List<Metrics.Metric> metrics = Metrics.all();
+        MatrixCursor cursor = new MatrixCursor(METRIC_COLUMNS, metrics.size());
+        long id = 0;
+        for (Metrics.Metric metric : metrics) {
+            if (metric instanceof Metrics.Histogram) {
+                Metrics.Histogram histogram = (Metrics.Histogram) metric;
+                long count = histogram.getCount();
+                cursor.addRow(new Object[]{id++, metric.name, "histogram", count,
+                        count == 0 ? 0 : histogram.getSumNanos() / count,
+                        histogram.getPercentileNanos(50), histogram.getPercentileNanos(90),
+                        histogram.getPercentileNanos(99), histogram.getMaxNanos()});
+            } else if (metric instanceof Metrics.Counter) {
+                cursor.addRow(new Object[]{id++, metric.name, "counter",
+                        ((Metrics.Counter) metric).get(), null, null, null, null, null});
+            } else {
+                cursor.addRow(new Object[]{id++, metric.name, "gauge",
+                        ((Metrics.Gauge) metric).get(), null, null, null, null, null});
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the places nearest to the lat/lng passed as query parameters, closest first
+     * While the {@link PlaceColumns} match the table, they are scanned instead of the table and
+     * only the places returned are read from it, see {@link #queryNearColumns}. Otherwise
+     * candidates are read with an integer bounding box range scan over the latitude/longitude index and then
+     * filtered and sorted by their exact distance, which is added as {@link PlaceEntry#COLUMN_DISTANCE}
+     * Without a radius the box starts small and grows until enough places are found
+     *
+     * @param db         the database to query
+     * @param uri        a places/near uri, see {@link PlaceEntry#buildNearUri}
+     * @param projection the columns to return, may include COLUMN_DISTANCE, or null for all
+     * @return a cursor over at most limit places
+     */
+    private Cursor queryNear(SQLiteDatabase db, Uri uri, String[] projection) {
+        String latParam = uri.getQueryParameter(PlaceEntry.PARAM_LATITUDE);
+        String lngParam = uri.getQueryParameter(PlaceEntry.PARAM_LONGITUDE);
+        if (latParam == null || lngParam == null) {
+            throw new IllegalArgumentException("Missing lat/lng in uri: " + uri);
+        }
+        String radiusParam = uri.getQueryParameter(PlaceEntry.PARAM_RADIUS);
+        String limitParam = uri.getQueryParameter(PlaceEntry.PARAM_LIMIT);
+        double lat;
+        double lng;
+        double maxRadius;
+        int limit;
+        try {
+            lat = Double.parseDouble(latParam);
+            lng = Double.parseDouble(lngParam);
+            maxRadius = radiusParam == null ? 0 : Double.parseDouble(radiusParam);
+            limit = limitParam == null ? 0 : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed near uri: " + uri);
+        }
+        PlaceColumns places = mColumnsUpdater.getColumns();
+        if (places != null) {
+            return queryNearColumns(db, places, lat, lng, maxRadius, limit, projection);
+        }
+
+        // Half the earth's circumference, anything is within that distance
+        final double worldRadius = Math.PI * GeoMath.EARTH_RADIUS;
+        double radius = maxRadius > 0 ? maxRadius : (limit > 0 ? NEAR_INITIAL_RADIUS : worldRadius);
+        Cursor rows;
+        double[] distances;
+        int[] positions;
+        int candidates;
+        while (true) {
+            int[] box = GeoMath.boundingBoxE7(lat, lng, radius);
+            rows = db.query(PlaceEntry.TABLE_NAME, null, NEAR_SELECTION,
+                    new String[]{Integer.toString(box[0]), Integer.toString(box[1]),
+                            Integer.toString(box[2]), Integer.toString(box[3])},
+                    null, null, null);
+            distances = new double[rows.getCount()];
+            positions = new int[rows.getCount()];
+            candidates = 0;
+            int latIndex = rows.getColumnIndex(PlaceEntry.COLUMN_LATITUDE_E7);
+            int lngIndex = rows.getColumnIndex(PlaceEntry.COLUMN_LONGITUDE_E7);
+            while (rows.moveToNext()) {
+                double distance = GeoMath.distance(lat, lng,
+                        GeoMath.fromE7(rows.getInt(latIndex)), GeoMath.fromE7(rows.getInt(lngIndex)));
+                if (distance <= radius) {
+                    distances[candidates] = distance;
+                    positions[candidates++] = rows.getPosition();
+                }
+            }
+            // Done when we have enough places, or the radius can't grow any further
+            if (maxRadius > 0 || limit <= 0 || candidates >= limit || radius >= worldRadius) {
+                break;
+            }
+            rows.close();
+            radius = Math.min(radius * 4, worldRadius);
+        }
+
+        int[] nearest = GeoMath.smallestK(distances, candidates, limit > 0 ? limit : candidates);
+        int count = nearest.length;
+        String[] columns = projection;
+        if (columns == null) {
+            String[] rowColumns = rows.getColumnNames();
+            columns = Arrays.copyOf(rowColumns, rowColumns.length + 1);
+            columns[rowColumns.length] = PlaceEntry.COLUMN_DISTANCE;
+        }
+        MatrixCursor result = new MatrixCursor(columns, count);
+        try {
+            for (int i = 0; i < count; i++) {
+                rows.moveToPosition(positions[nearest[i]]);
+                MatrixCursor.RowBuilder row = result.newRow();
+                for (String column : columns) {
+                    if (PlaceEntry.COLUMN_DISTANCE.equals(column)) {
+                        row.add(distances[nearest[i]]);
+                        continue;
+                    }
+                    row.add(getValue(rows, rows.getColumnIndexOrThrow(column)));
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return result;
+    }
+
+    /**
+     * {@link #queryNear} over the place columns: one pass over their coordinates, without a
+     * Cursor and without allocating per place, finds the nearest places, and only those are read
+     * from the places table
+     *
+     * @param places    the columns, matching the places table
+     * @param maxRadius in meters, 0 for no bound
+     * @param limit     the most places to return, 0 for no limit
+     */
+    private static Cursor queryNearColumns(SQLiteDatabase db, PlaceColumns places, double lat,
+                                           double lng, double maxRadius, int limit,
+                                           String[] projection) {
+        int[] indexes = new int[places.size()];
+        double[] distances = new double[places.size()];
+        int count = places.nearest(lat, lng, maxRadius, limit, indexes, distances);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) ids[i] = places.getId(indexes[i]);
+
+        String[] columns = projection != null ? projection : getPlaceColumnNames(db, true);
+        int distanceIndex = Arrays.asList(columns).indexOf(PlaceEntry.COLUMN_DISTANCE);
+        Object[][] found = readPlaces(db, ids, columns, null);
+        MatrixCursor result = new MatrixCursor(columns, count);
+        for (int i = 0; i < count; i++) {
+            // Deleted since the scan
+            if (found[i] == null) continue;
+            if (distanceIndex >= 0) found[i][distanceIndex] = distances[i];
+            result.addRow(found[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the places whose name or address has a word starting with each word of the query
+     * parameter, best first, see {@link PlaceSearch}
+     * Every match is found and ranked from the search table alone, and only the places returned
+     * are read from the places table. Nothing matches a query without words.
+     * A first letter instead reads the places whose name starts with it off the name index, and
+     * stops there once it has enough of them.
+     *
+     * @param db                 the database to query
+     * @param uri                a places/search uri, see {@link PlaceEntry#buildSearchUri}
+     * @param projection         the columns to return, or null for all
+     * @param cancellationSignal cancels the search, may be null
+     * @return a cursor over at most limit places, and never more than
+     * {@link PlaceSearch#MAX_RESULTS}
+     */
+    private Cursor querySearch(SQLiteDatabase db, Uri uri, String[] projection,
+                               CancellationSignal cancellationSignal) {
+        String text = uri.getQueryParameter(PlaceEntry.PARAM_QUERY);
+        if (text == null) {
+            throw new IllegalArgumentException("Missing q in uri: " + uri);
+        }
+        String limitParam = uri.getQueryParameter(PlaceEntry.PARAM_LIMIT);
+        int limit;
+        try {
+            limit = limitParam == null ? 0 : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed search uri: " + uri);
+        }
+
+        int wanted = limit > 0 ? Math.min(limit, PlaceSearch.MAX_RESULTS) : PlaceSearch.MAX_RESULTS;
+        String prefix = PlaceSearch.toNamePrefix(text);
+        if (prefix != null) {
+            String after = PlaceSearch.afterPrefix(prefix);
+            String selection = after != null ? NAME_PREFIX_SELECTION
+                    : PlaceEntry.COLUMN_PLACE_NAME + " >= ? COLLATE NOCASE";
+            String[] selectionArgs = after != null ? new String[]{prefix, after} : new String[]{prefix};
+            return db.query(false, PlaceEntry.TABLE_NAME, projection, selection, selectionArgs,
+                    null, null, NAME_ORDER, Integer.toString(wanted), cancellationSignal);
+        }
+
+        PlaceSearch.Ranker ranker = new PlaceSearch.Ranker(wanted);
+        String match = PlaceSearch.toMatchQuery(text);
+        if (match != null) {
+            Cursor hits = db.rawQuery("SELECT docid, matchinfo(" + PlaceEntry.TABLE_SEARCH + ", '" +
+                    PlaceSearch.MATCHINFO_FORMAT + "') FROM " + PlaceEntry.TABLE_SEARCH + " WHERE " +
+                    PlaceEntry.TABLE_SEARCH + " MATCH ?",
+                    new String[]{match}, cancellationSignal);
+            try {
+                while (hits.moveToNext()) ranker.add(hits.getLong(0), hits.getBlob(1));
+            } finally {
+                hits.close();
+            }
+        }
+        long[] ids = ranker.top();
+
+        // Read the places returned, and put them back in rank order
+        String[] columns = projection != null ? projection : getPlaceColumnNames(db, false);
+        Object[][] found = readPlaces(db, ids, columns, cancellationSignal);
+        MatrixCursor result = new MatrixCursor(columns, ids.length);
+        for (Object[] values : found) {
+            // Deleted since it was matched
+            if (values != null) result.addRow(values);
+        }
+        return result;
+    }
+
+    /**
+     * @param withDistance whether to add {@link PlaceEntry#COLUMN_DISTANCE} at the end
+     * @return the names of the columns of the places table
+     */
+    private static String[] getPlaceColumnNames(SQLiteDatabase db, boolean withDistance) {
+        // No rows, just the column names
+        Cursor none = db.query(PlaceEntry.TABLE_NAME, null, null, null, null, null, null, "0");
+        String[] names = none.getColumnNames();
+        none.close();
+        if (!withDistance) return names;
+        String[] columns = Arrays.copyOf(names, names.length + 1);
+        columns[names.length] = PlaceEntry.COLUMN_DISTANCE;
+        return columns;
+    }
+
+    /**
+     * Reads places by _ID
+     *
+     * @param ids     the _IDs of the places to read
+     * @param columns the columns to read, {@link PlaceEntry#COLUMN_DISTANCE} is left null
+     * @return the values of the columns for each _ID, in the order of ids, or null for the
+     * places that are gone
+     */
+    private static Object[][] readPlaces(SQLiteDatabase db, long[] ids, String[] columns,
+                                         CancellationSignal cancellationSignal) {
+        Map<Long, Integer> positions = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) positions.put(ids[i], i);
+        Object[][] found = new Object[ids.length][];
+        for (int from = 0; from < ids.length; from += FETCH_BATCH) {
+            // The _IDs are numbers, so they can go into the selection itself
+            StringBuilder selection = new StringBuilder(PlaceEntry._ID).append(" IN (");
+            int to = Math.min(from + FETCH_BATCH, ids.length);
+            for (int i = from; i < to; i++) {
+                if (i > from) selection.append(',');
+                selection.append(ids[i]);
+            }
+            Cursor rows = db.query(false, PlaceEntry.TABLE_NAME, null, selection.append(')').toString(),
+                    null, null, null, null, null, cancellationSignal);
+            try {
+                int idIndex = rows.getColumnIndexOrThrow(PlaceEntry._ID);
+                int[] indexes = new int[columns.length];
+                for (int c = 0; c < columns.length; c++) {
+                    indexes[c] = PlaceEntry.COLUMN_DISTANCE.equals(columns[c]) ? -1
+                            : rows.getColumnIndexOrThrow(columns[c]);
+                }
+                while (rows.moveToNext()) {
+                    Object[] values = new Object[columns.length];
+                    for (int c = 0; c < columns.length; c++) {
+                        if (indexes[c] >= 0) values[c] = getValue(rows, indexes[c]);
+                    }
+                    found[positions.get(rows.getLong(idIndex))] = values;
+                }
+            } finally {
+                rows.close();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the value of a column of the current row, as the type it's stored as
+     */
+    private static Object getValue(Cursor rows, int index) {
+        switch (rows.getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return rows.getLong(index);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return rows.getDouble(index);
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                return rows.getString(index);
+        }
+    }
+
     /***
      * Deletes a single row of data
      *
@@ -162,15 +801,20 @@ public class PlaceContentProvider extends ContentProvider {
                 // Get the place ID from the URI path
                 String id = uri.getPathSegments().get(1);
                 // Use selections/selectionArgs to filter for this ID
-                placesDeleted = db.delete(PlaceEntry.TABLE_NAME, "_id=?", new String[]{id});
+                beginPlacesWrite();
+                try {
+                    placesDeleted = db.delete(PlaceEntry.TABLE_NAME, "_id=?", new String[]{id});
+                } finally {
+                    endPlacesWrite(Collections.singletonList(Long.parseLong(id)));
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Notify the resolver of a change and return the number of items deleted
         if (placesDeleted != 0) {
-            // A place (or more) was deleted, set notification
-            getContext().getContentResolver().notifyChange(uri, null);
+            // A place was deleted, set notification
+            notifyPlaceChanges(Collections.singletonMap(ContentUris.parseId(uri), PlaceEntry.CHANGE_DELETE));
         }
         // Return the number of places deleted
         return placesDeleted;
@@ -198,7 +842,12 @@ public class PlaceContentProvider extends ContentProvider {
                 // Get the place ID from the URI path
                 String id = uri.getPathSegments().get(1);
                 // Use selections/selectionArgs to filter for this ID
-                placesUpdated = db.update(PlaceEntry.TABLE_NAME, values, "_id=?", new String[]{id});
+                beginPlacesWrite();
+                try {
+                    placesUpdated = db.update(PlaceEntry.TABLE_NAME, values, "_id=?", new String[]{id});
+                } finally {
+                    endPlacesWrite(Collections.singletonList(Long.parseLong(id)));
+                }
                 break;
             // Default exception
             default:
@@ -207,16 +856,181 @@ public class PlaceContentProvider extends ContentProvider {
 
         // Notify the resolver of a change and return the number of items updated
         if (placesUpdated != 0) {
-            // A place (or more) was updated, set notification
-            getContext().getContentResolver().notifyChange(uri, null);
+            // A place was updated, set notification
+            notifyPlaceChanges(Collections.singletonMap(ContentUris.parseId(uri), PlaceEntry.CHANGE_UPDATE));
         }
         // Return the number of places deleted
         return placesUpdated;
     }
 
+    /***
+     * Applies a batch of operations in a single transaction
+     * Observers are notified once per row or uri changed, after the transaction has been committed,
+     * instead of once per operation
+     *
+     * @param operations the operations to apply, usually built by a ContentResolver client
+     * @return the results of the applied operations
+     * @throws OperationApplicationException if any operation fails, nothing is committed then
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        long start = Tracing.begin(BATCH_TIME);
+        mColumnsUpdater.beginWrite();
+        mApplyingBatch.set(Boolean.TRUE);
+        mBatchPlaceChanges.set(new LinkedHashMap<Long, String>());
+        mBatchChangedUris.set(new LinkedHashSet<Uri>());
+        mBatchPlaceIds.set(new ArrayList<Long>());
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.remove();
+            mColumnsUpdater.endWrite(mBatchPlaceIds.get());
+            updateRepository(mBatchPlaceIds.get());
+            mBatchPlaceIds.remove();
+            Tracing.end(BATCH_TIME, start);
+        }
+        // Notify once per row or uri for the whole batch, and only if something actually changed
+        // Nothing is left over when the batch failed, it throws before getting here
+        Map<Long, String> placeChanges = mBatchPlaceChanges.get();
+        Set<Uri> changedUris = mBatchChangedUris.get();
+        mBatchPlaceChanges.remove();
+        mBatchChangedUris.remove();
+        sendPlaceChanges(placeChanges);
+        for (Uri uri : changedUris) getContext().getContentResolver().notifyChange(uri, null);
+        return results;
+    }
+
+    /**
+     * Call before writing to the places table, see {@link PlaceColumnsUpdater#beginWrite}
+     * Inside {@link #applyBatch} the whole batch is bracketed instead
+     */
+    private void beginPlacesWrite() {
+        if (!Boolean.TRUE.equals(mApplyingBatch.get())) mColumnsUpdater.beginWrite();
+    }
+
+    /**
+     * Call after the write to the places table committed or failed
+     * Also brings the {@link PlaceRepository} up to date before the write returns, so that a
+     * caller reading it right after sees its own write
+     *
+     * @param ids the _IDs of the places written
+     */
+    private void endPlacesWrite(Collection<Long> ids) {
+        if (Boolean.TRUE.equals(mApplyingBatch.get())) {
+            mBatchPlaceIds.get().addAll(ids);
+        } else {
+            mColumnsUpdater.endWrite(ids);
+            updateRepository(ids);
+        }
+    }
+
+    private void updateRepository(Collection<Long> ids) {
+        try {
+            mRepository.onPlacesChanged(ids);
+        } catch (RuntimeException e) {
+            // The write itself went through, the repository reloads on its next read
+            Log.e(TAG, "Can't update the place repository", e);
+        }
+    }
+
+    /**
+     * Notifies the resolver of a change to the given uri, or just records the change when called
+     * from inside {@link #applyBatch}
+     *
+     * @param uri the uri that was changed
+     */
+    private void notifyChange(Uri uri) {
+        if (Boolean.TRUE.equals(mApplyingBatch.get())) {
+            mBatchChangedUris.get().add(uri);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Notifies the uri of every place row written, see {@link PlaceEntry#PARAM_CHANGE}, or just
+     * records them when called from inside {@link #applyBatch}
+     *
+     * @param changes what happened to each place written, by _ID
+     */
+    private void notifyPlaceChanges(Map<Long, String> changes) {
+        if (Boolean.TRUE.equals(mApplyingBatch.get())) {
+            Map<Long, String> batchChanges = mBatchPlaceChanges.get();
+            for (Map.Entry<Long, String> change : changes.entrySet()) {
+                putChange(batchChanges, change.getKey(), change.getValue());
+            }
+            return;
+        }
+        sendPlaceChanges(changes);
+    }
 
+    /**
+     * Notifies one uri per place, or the places directory once when there are many, so that a
+     * large import doesn't wake every observer hundreds of times
+     */
+    private void sendPlaceChanges(Map<Long, String> changes) {
+        if (changes.isEmpty()) return;
+        ContentResolver resolver = getContext().getContentResolver();
+        if (changes.size() > MAX_ROW_NOTIFICATIONS) {
+            resolver.notifyChange(PlaceEntry.CONTENT_URI, null);
+            return;
+        }
+        for (Map.Entry<Long, String> change : changes.entrySet()) {
+            resolver.notifyChange(PlaceEntry.buildChangeUri(change.getKey(), change.getValue()), null);
+        }
+    }
+
+    /**
+     * Records what happened to a place, merged with what already happened to it in the same write
+     * A place inserted then updated is still new to observers
+     */
+    private static void putChange(Map<Long, String> changes, long id, String change) {
+        if (PlaceEntry.CHANGE_UPDATE.equals(change)
+                && PlaceEntry.CHANGE_INSERT.equals(changes.get(id))) {
+            return;
+        }
+        changes.put(id, change);
+    }
+
+    /**
+     * Prints the in-app metrics, run adb shell dumpsys activity provider
+     * com.example.android.shushme/.provider.PlaceContentProvider
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.dump(writer);
+    }
+
+    /**
+     * @param uri a uri of this provider
+     * @return the MIME type of the rows the uri returns, or null if it can't be queried
+     */
     @Override
     public String getType(@NonNull Uri uri) {
-        throw new UnsupportedOperationException("Not yet implemented");
+        switch (sUriMatcher.match(uri)) {
+            case PLACES:
+            case PLACES_NEAR:
+            case PLACES_SEARCH:
+                return PlaceEntry.CONTENT_TYPE;
+            case PLACE_WITH_ID:
+                return PlaceEntry.CONTENT_ITEM_TYPE;
+            case TRANSITIONS:
+                return TransitionEntry.CONTENT_TYPE;
+            case SILENCE_DAILY:
+            case SILENCE_WEEKLY:
+                return SilenceEntry.CONTENT_TYPE;
+            case METRICS:
+                return BuildConfig.DEBUG ? MetricEntry.CONTENT_TYPE : null;
+            default:
+                // The silence uri only takes inserts
+                return null;
+        }
     }
 }
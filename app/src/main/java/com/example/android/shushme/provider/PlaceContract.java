@@ -16,6 +16,8 @@ package com.example.android.shushme.provider;
 * limitations under the License.
 */
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -30,6 +32,18 @@ public class PlaceContract {
     // Define the possible paths for accessing data in this contract
     // This is the path for the "places" directory
     public static final String PATH_PLACES = "places";
+    // This is the path for the nearest places query, relative to the "places" directory
+    public static final String PATH_NEAR = "near";
+    // This is the path for the places search, relative to the "places" directory
+    public static final String PATH_SEARCH = "search";
+    // This is the path for the geofence transition journal
+    public static final String PATH_TRANSITIONS = "transitions";
+    // This is the path for the silence time rollups, with "daily" and "weekly" below it
+    public static final String PATH_SILENCE = "silence";
+    public static final String PATH_DAILY = "daily";
+    public static final String PATH_WEEKLY = "weekly";
+    // This is the path for the metrics directory, only served by debug builds
+    public static final String PATH_METRICS = "metrics";
 
     public static final class PlaceEntry implements BaseColumns {
 
@@ -37,11 +51,212 @@ public class PlaceContract {
         public static final Uri CONTENT_URI =
                 BASE_CONTENT_URI.buildUpon().appendPath(PATH_PLACES).build();
 
+        // MIME types of the places directory and of a single place, places/<id>
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + AUTHORITY + "." + PATH_PLACES;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + AUTHORITY + "." + PATH_PLACES;
+
+        // Writes notify the URI of each place written, e.g. places/12?change=update, so that
+        // observers of CONTENT_URI (with notifyForDescendants) can tell which row changed and how
+        // A notification of CONTENT_URI itself means any place may have changed
+        public static final String PARAM_CHANGE = "change";
+        public static final String CHANGE_INSERT = "insert";
+        public static final String CHANGE_UPDATE = "update";
+        public static final String CHANGE_DELETE = "delete";
+
         public static final String TABLE_NAME = "places";
         public static final String COLUMN_PLACE_UID = "placeUID";
         public static final String COLUMN_PLACE_NAME = "placeName";
         public static final String COLUMN_PLACE_ADDRESS = "placeAddress";
-        public static final String COLUMN_PLACE_LATITUDE = "placeLatitude";
-        public static final String COLUMN_PLACE_LONGITUDE = "placeLongitude";
+        // Coordinates as INTEGER degrees times 1e7, see GeoMath.toE7 and GeoMath.fromE7
+        public static final String COLUMN_LATITUDE_E7 = "placeLatitudeE7";
+        public static final String COLUMN_LONGITUDE_E7 = "placeLongitudeE7";
+
+        // Geofence settings of the place, see Geofencing
+        // Radius of the fence in meters
+        public static final String COLUMN_GEOFENCE_RADIUS = "geofenceRadius";
+        // Milliseconds to stay inside before the phone is silenced, 0 silences on entering
+        public static final String COLUMN_LOITERING_DELAY = "loiteringDelay";
+        // Milliseconds Play Services may wait before reporting a transition, 0 for its default
+        public static final String COLUMN_RESPONSIVENESS = "responsiveness";
+
+        // When the name and address were last refreshed from the Places API, in milliseconds
+        // since the epoch, 0 if never; see GeoDataLiveSync
+        public static final String COLUMN_LAST_SYNCED = "lastSynced";
+
+        // Used for places saved without settings, and for places saved before they existed
+        public static final float DEFAULT_GEOFENCE_RADIUS = 50;
+        public static final int DEFAULT_LOITERING_DELAY = 0;
+        public static final int DEFAULT_RESPONSIVENESS = 0;
+
+        // Nearest places content URI = places content URI + near path
+        // Takes the query parameters below, e.g. places/near?lat=-27.47&lng=153.02&radius=500&limit=10
+        public static final Uri CONTENT_NEAR_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_NEAR).build();
+        public static final String PARAM_LATITUDE = "lat";
+        public static final String PARAM_LONGITUDE = "lng";
+        public static final String PARAM_RADIUS = "radius"; // meters, optional
+        public static final String PARAM_LIMIT = "limit"; // optional
+
+        // Extra column returned by the nearest places query, distance from the center in meters
+        public static final String COLUMN_DISTANCE = "distance";
+
+        public static final String INDEX_LAT_LNG = "places_lat_lng_index";
+        // Case insensitive index of the names, for searches of a first letter
+        public static final String INDEX_NAME = "places_name_index";
+
+        // Places search content URI = places content URI + search path
+        // Takes the words to look for, and optionally PARAM_LIMIT, e.g. places/search?q=queen%20st&limit=50
+        // Returns the places whose name or address has a word starting with each word, best first,
+        // or for a single letter the places whose name starts with it, by name,
+        // see com.example.android.shushme.provider.PlaceSearch
+        public static final Uri CONTENT_SEARCH_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).build();
+        public static final String PARAM_QUERY = "q";
+
+        // Full-text index over the name and address columns, kept up to date by triggers
+        public static final String TABLE_SEARCH = "places_search";
+
+        /**
+         * Builds a nearest places query URI
+         *
+         * @param lat    latitude of the center
+         * @param lng    longitude of the center
+         * @param radius maximum distance in meters, or a non-positive value for no limit
+         * @param limit  maximum number of places to return, or a non-positive value for no limit
+         * @return the places/near URI
+         */
+        public static Uri buildNearUri(double lat, double lng, double radius, int limit) {
+            Uri.Builder builder = CONTENT_NEAR_URI.buildUpon()
+                    .appendQueryParameter(PARAM_LATITUDE, Double.toString(lat))
+                    .appendQueryParameter(PARAM_LONGITUDE, Double.toString(lng));
+            if (radius > 0) builder.appendQueryParameter(PARAM_RADIUS, Double.toString(radius));
+            if (limit > 0) builder.appendQueryParameter(PARAM_LIMIT, Integer.toString(limit));
+            return builder.build();
+        }
+
+        /**
+         * Builds a places search URI
+         *
+         * @param query what the user typed
+         * @param limit maximum number of places to return, or a non-positive value for the most
+         *              a search returns, see {@link PlaceSearch#MAX_RESULTS}
+         * @return the places/search URI
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            Uri.Builder builder = CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(PARAM_QUERY, query);
+            if (limit > 0) builder.appendQueryParameter(PARAM_LIMIT, Integer.toString(limit));
+            return builder.build();
+        }
+
+        /**
+         * @param id the place _ID
+         * @return the places/&lt;id&gt; URI, to query, update or delete one place
+         */
+        public static Uri buildPlaceUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        /**
+         * @param id     the place _ID
+         * @param change one of the CHANGE_ constants
+         * @return the URI notified when the place was written
+         */
+        public static Uri buildChangeUri(long id, String change) {
+            return buildPlaceUri(id).buildUpon().appendQueryParameter(PARAM_CHANGE, change).build();
+        }
+
+        /**
+         * @param uri a URI passed to ContentObserver.onChange
+         * @return the CHANGE_ constant of a place row notification, or null when it doesn't say,
+         * e.g. for CONTENT_URI itself
+         */
+        public static String getChange(Uri uri) {
+            return uri == null ? null : uri.getQueryParameter(PARAM_CHANGE);
+        }
+    }
+
+    /**
+     * Read-only view of the geofence transition journal, newest first
+     * Backed by {@link com.example.android.shushme.TransitionJournal}, not by a table
+     */
+    public static final class TransitionEntry implements BaseColumns {
+
+        // Takes an optional limit query parameter, e.g. transitions?limit=50
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_TRANSITIONS).build();
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + AUTHORITY + "." + PATH_TRANSITIONS;
+
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        public static final String COLUMN_PLACE_UID = "placeUID";
+        public static final String COLUMN_TRANSITION = "transition";
+        public static final String COLUMN_PREVIOUS_RINGER_MODE = "previousRingerMode";
+        public static final String COLUMN_NEW_RINGER_MODE = "newRingerMode";
+
+        public static final String PARAM_LIMIT = "limit"; // optional
+    }
+
+    /**
+     * Time spent silenced in each place, kept up to date on every transition
+     * Insert transitions (place UID, transition type, timestamp) into CONTENT_URI and query the
+     * totals per local day from CONTENT_DAILY_URI or per Monday to Sunday week from CONTENT_WEEKLY_URI,
+     * see {@link com.example.android.shushme.SilenceRollup} for how days and weeks are numbered
+     */
+    public static final class SilenceEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SILENCE).build();
+        public static final Uri CONTENT_DAILY_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_DAILY).build();
+        public static final Uri CONTENT_WEEKLY_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_WEEKLY).build();
+        // MIME type of the daily and weekly totals
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + AUTHORITY + "." + PATH_SILENCE;
+
+        public static final String TABLE_OPEN = "silence_open";
+        public static final String TABLE_DAILY = "silence_daily";
+        public static final String TABLE_WEEKLY = "silence_weekly";
+
+        public static final String COLUMN_PLACE_UID = "placeUID";
+        // Day number, in the daily table
+        public static final String COLUMN_DAY = "day";
+        // Week number, in the weekly table
+        public static final String COLUMN_WEEK = "week";
+        // Milliseconds spent silenced in the day or week
+        public static final String COLUMN_DURATION = "duration";
+        // Start of the current visit, in the open visits table
+        public static final String COLUMN_ENTERED_AT = "enteredAt";
+
+        // Values inserted into CONTENT_URI, along with COLUMN_PLACE_UID
+        public static final String COLUMN_TRANSITION = "transition";
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+    }
+
+    /**
+     * Read-only snapshot of the in-app metrics, one row per metric, only served by debug builds
+     * Counters and gauges only fill COLUMN_VALUE, times are in nanoseconds
+     * Release builds can still dump them with adb shell dumpsys activity provider
+     */
+    public static final class MetricEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_METRICS).build();
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + AUTHORITY + "." + PATH_METRICS;
+
+        public static final String COLUMN_NAME = "name";
+        // counter, gauge or histogram
+        public static final String COLUMN_TYPE = "type";
+        // The counter or gauge value, or the number of recorded durations
+        public static final String COLUMN_VALUE = "value";
+        public static final String COLUMN_MEAN = "mean";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P90 = "p90";
+        public static final String COLUMN_P99 = "p99";
+        public static final String COLUMN_MAX = "max";
     }
 }
@@ -16,11 +16,17 @@ package com.example.android.shushme.provider;
 * limitations under the License.
 */
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
+import com.example.android.shushme.GeoMath;
+import com.example.android.shushme.SilenceRollup;
 import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.example.android.shushme.provider.PlaceContract.SilenceEntry;
 
 public class PlaceDbHelper extends SQLiteOpenHelper {
 
@@ -28,24 +34,62 @@ public class PlaceDbHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "shushme.db";
 
     // If you change the database schema, you must increment the database version
-    private static final int DATABASE_VERSION = 1;
+    // Version 2 adds the latitude/longitude index
+    // Version 3 adds the silence time rollup tables
+    // Version 4 adds the per place geofence settings
+    // Version 5 adds the last synced time
+    // Version 6 replaces the FLOAT coordinates with E7 integers
+    // Version 7 adds the full-text search table
+    // Version 8 adds the name index
+    static final int DATABASE_VERSION = 8;
+
+    // The FLOAT coordinate columns of versions 1 to 5
+    private static final String LEGACY_COLUMN_LATITUDE = "placeLatitude";
+    private static final String LEGACY_COLUMN_LONGITUDE = "placeLongitude";
 
     // Constructor
     public PlaceDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // For tests, to upgrade a database other than the app's
+    PlaceDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+        // A UID conflict REPLACEs the old row, which only fires its delete trigger, and so drops
+        // it from the search table, with recursive triggers on
+        sqLiteDatabase.execSQL("PRAGMA recursive_triggers = ON");
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        createPlacesTable(sqLiteDatabase, PlaceEntry.TABLE_NAME);
+        createLatLngIndex(sqLiteDatabase);
+        createSilenceTables(sqLiteDatabase);
+        createSearchTable(sqLiteDatabase);
+        createNameIndex(sqLiteDatabase);
+    }
 
-        // Create a table to hold the places data
-        final String SQL_CREATE_PLACES_TABLE = "CREATE TABLE " + PlaceEntry.TABLE_NAME + " (" +
+    /**
+     * Creates a table to hold the places data
+     *
+     * @param table the table name, the places table or a copy of it being rebuilt
+     */
+    private static void createPlacesTable(SQLiteDatabase sqLiteDatabase, String table) {
+        final String SQL_CREATE_PLACES_TABLE = "CREATE TABLE " + table + " (" +
                 PlaceEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                 PlaceEntry.COLUMN_PLACE_UID + " TEXT NOT NULL, " +
                 PlaceEntry.COLUMN_PLACE_NAME + " TEXT NOT NULL, " +
                 PlaceEntry.COLUMN_PLACE_ADDRESS + " TEXT NOT NULL, " +
-                PlaceEntry.COLUMN_PLACE_LATITUDE + " FLOAT NOT NULL, " +
-                PlaceEntry.COLUMN_PLACE_LONGITUDE + " FLOAT NOT NULL, " +
+                PlaceEntry.COLUMN_LATITUDE_E7 + " INTEGER NOT NULL, " +
+                PlaceEntry.COLUMN_LONGITUDE_E7 + " INTEGER NOT NULL, " +
+                PlaceEntry.COLUMN_GEOFENCE_RADIUS + " FLOAT NOT NULL DEFAULT " + PlaceEntry.DEFAULT_GEOFENCE_RADIUS + ", " +
+                PlaceEntry.COLUMN_LOITERING_DELAY + " INTEGER NOT NULL DEFAULT " + PlaceEntry.DEFAULT_LOITERING_DELAY + ", " +
+                PlaceEntry.COLUMN_RESPONSIVENESS + " INTEGER NOT NULL DEFAULT " + PlaceEntry.DEFAULT_RESPONSIVENESS + ", " +
+                PlaceEntry.COLUMN_LAST_SYNCED + " INTEGER NOT NULL DEFAULT 0, " +
                 "UNIQUE (" + PlaceEntry.COLUMN_PLACE_UID + ") ON CONFLICT REPLACE" +
                 "); ";
 
@@ -53,9 +97,228 @@ public class PlaceDbHelper extends SQLiteOpenHelper {
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-        // For now simply drop the table and create a new one.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PlaceEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // Upgrade step by step so that no user data is lost, each step runs in the
+        // transaction SQLiteOpenHelper already wraps onUpgrade in
+        // Version 2 indexed the FLOAT coordinates, version 6 indexes the E7 ones instead
+        if (oldVersion < 3) {
+            createSilenceTables(sqLiteDatabase);
+        }
+        if (oldVersion < 4) {
+            addGeofenceSettingColumns(sqLiteDatabase);
+        }
+        if (oldVersion < 5) {
+            // Existing places were never synced, so the first sync refreshes all of them
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME + " ADD COLUMN " +
+                    PlaceEntry.COLUMN_LAST_SYNCED + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 6) {
+            convertCoordinatesToE7(sqLiteDatabase);
+        }
+        if (oldVersion < 7) {
+            createSearchTable(sqLiteDatabase);
+            // Indexes the existing places
+            sqLiteDatabase.execSQL("INSERT INTO " + PlaceEntry.TABLE_SEARCH + " (" +
+                    PlaceEntry.TABLE_SEARCH + ") VALUES ('rebuild')");
+        }
+        if (oldVersion < 8) {
+            createNameIndex(sqLiteDatabase);
+        }
+    }
+
+    /**
+     * Rebuilds the places table with E7 integer coordinates instead of FLOAT ones
+     * SQLite can't drop columns, so the rows are copied into a new table that then replaces the
+     * old one; _IDs are kept, and so is the AUTOINCREMENT counter so that the _IDs of deleted
+     * places aren't handed out again
+     */
+    private static void convertCoordinatesToE7(SQLiteDatabase sqLiteDatabase) {
+        final String newTable = PlaceEntry.TABLE_NAME + "_e7";
+        createPlacesTable(sqLiteDatabase, newTable);
+        final String columns = PlaceEntry._ID + ", " + PlaceEntry.COLUMN_PLACE_UID + ", " +
+                PlaceEntry.COLUMN_PLACE_NAME + ", " + PlaceEntry.COLUMN_PLACE_ADDRESS + ", " +
+                PlaceEntry.COLUMN_GEOFENCE_RADIUS + ", " + PlaceEntry.COLUMN_LOITERING_DELAY + ", " +
+                PlaceEntry.COLUMN_RESPONSIVENESS + ", " + PlaceEntry.COLUMN_LAST_SYNCED;
+        // Rounded to the nearest unit, like GeoMath.toE7
+        sqLiteDatabase.execSQL("INSERT INTO " + newTable + " (" + columns + ", " +
+                PlaceEntry.COLUMN_LATITUDE_E7 + ", " + PlaceEntry.COLUMN_LONGITUDE_E7 + ") SELECT " +
+                columns + ", " +
+                "CAST(ROUND(" + LEGACY_COLUMN_LATITUDE + " * " + GeoMath.E7 + ") AS INTEGER), " +
+                "CAST(ROUND(" + LEGACY_COLUMN_LONGITUDE + " * " + GeoMath.E7 + ") AS INTEGER) " +
+                "FROM " + PlaceEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DELETE FROM sqlite_sequence WHERE name='" + newTable + "'");
+        sqLiteDatabase.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + newTable +
+                "', seq FROM sqlite_sequence WHERE name='" + PlaceEntry.TABLE_NAME + "'");
+        // Drops the old index with it
+        sqLiteDatabase.execSQL("DROP TABLE " + PlaceEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("ALTER TABLE " + newTable + " RENAME TO " + PlaceEntry.TABLE_NAME);
+        createLatLngIndex(sqLiteDatabase);
+    }
+
+    /**
+     * Adds the per place geofence settings to an existing places table
+     * Existing rows get the defaults, which are the settings every fence used before
+     */
+    private static void addGeofenceSettingColumns(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME + " ADD COLUMN " +
+                PlaceEntry.COLUMN_GEOFENCE_RADIUS + " FLOAT NOT NULL DEFAULT " +
+                PlaceEntry.DEFAULT_GEOFENCE_RADIUS);
+        sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME + " ADD COLUMN " +
+                PlaceEntry.COLUMN_LOITERING_DELAY + " INTEGER NOT NULL DEFAULT " +
+                PlaceEntry.DEFAULT_LOITERING_DELAY);
+        sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME + " ADD COLUMN " +
+                PlaceEntry.COLUMN_RESPONSIVENESS + " INTEGER NOT NULL DEFAULT " +
+                PlaceEntry.DEFAULT_RESPONSIVENESS);
+    }
+
+    /**
+     * Creates the B-tree index used by bounding box (nearest places) queries
+     * An integer latitude range is scanned through the index and longitude is checked on the index
+     * entries, so the table itself is only read for rows inside the box
+     */
+    private static void createLatLngIndex(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + PlaceEntry.INDEX_LAT_LNG + " ON " +
+                PlaceEntry.TABLE_NAME + " (" +
+                PlaceEntry.COLUMN_LATITUDE_E7 + ", " +
+                PlaceEntry.COLUMN_LONGITUDE_E7 + ");");
+    }
+
+    /**
+     * Creates the case insensitive index of the names, so that a search of a first letter is a
+     * range scan that stops after the places it returns, see {@link PlaceSearch#toNamePrefix}
+     */
+    private static void createNameIndex(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + PlaceEntry.INDEX_NAME + " ON " +
+                PlaceEntry.TABLE_NAME + " (" + PlaceEntry.COLUMN_PLACE_NAME + " COLLATE NOCASE);");
+    }
+
+    /**
+     * Creates the full-text index behind {@link PlaceEntry#CONTENT_SEARCH_URI}, and the triggers
+     * that keep it in line with every write to the places table
+     * It's an external content FTS4 table: it only holds the index and reads the name and address
+     * from the places table, by _ID. Prefix indexes of 1 to 3 characters make the prefix queries
+     * of a search typed a letter at a time index lookups instead of scans of every term.
+     * Updates that don't touch the name or the address leave it alone.
+     */
+    private static void createSearchTable(SQLiteDatabase sqLiteDatabase) {
+        final String columns = PlaceEntry.COLUMN_PLACE_NAME + ", " + PlaceEntry.COLUMN_PLACE_ADDRESS;
+        final String newValues = "new." + PlaceEntry._ID + ", new." + PlaceEntry.COLUMN_PLACE_NAME +
+                ", new." + PlaceEntry.COLUMN_PLACE_ADDRESS;
+        final String delete = "DELETE FROM " + PlaceEntry.TABLE_SEARCH + " WHERE docid=old." +
+                PlaceEntry._ID + "; ";
+        final String insert = "INSERT INTO " + PlaceEntry.TABLE_SEARCH + " (docid, " + columns +
+                ") VALUES (" + newValues + "); ";
+        sqLiteDatabase.execSQL("CREATE VIRTUAL TABLE " + PlaceEntry.TABLE_SEARCH + " USING fts4(" +
+                "content=\"" + PlaceEntry.TABLE_NAME + "\", " + columns + ", prefix=\"1,2,3\");");
+        // The old text must still be in the places table to be removed from the index
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + PlaceEntry.TABLE_SEARCH + "_before_update " +
+                "BEFORE UPDATE OF " + columns + " ON " + PlaceEntry.TABLE_NAME + " BEGIN " + delete + "END;");
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + PlaceEntry.TABLE_SEARCH + "_before_delete " +
+                "BEFORE DELETE ON " + PlaceEntry.TABLE_NAME + " BEGIN " + delete + "END;");
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + PlaceEntry.TABLE_SEARCH + "_after_update " +
+                "AFTER UPDATE OF " + columns + " ON " + PlaceEntry.TABLE_NAME + " BEGIN " + insert + "END;");
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + PlaceEntry.TABLE_SEARCH + "_after_insert " +
+                "AFTER INSERT ON " + PlaceEntry.TABLE_NAME + " BEGIN " + insert + "END;");
+    }
+
+    /**
+     * Creates the tables behind {@link SilenceEntry}: the visits in progress, and the time spent
+     * silenced per place and day or week, keyed so that each total is a single primary key lookup
+     */
+    private static void createSilenceTables(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + SilenceEntry.TABLE_OPEN + " (" +
+                SilenceEntry.COLUMN_PLACE_UID + " TEXT PRIMARY KEY, " +
+                SilenceEntry.COLUMN_ENTERED_AT + " INTEGER NOT NULL);");
+        sqLiteDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + SilenceEntry.TABLE_DAILY + " (" +
+                SilenceEntry.COLUMN_PLACE_UID + " TEXT NOT NULL, " +
+                SilenceEntry.COLUMN_DAY + " INTEGER NOT NULL, " +
+                SilenceEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + SilenceEntry.COLUMN_PLACE_UID + ", " + SilenceEntry.COLUMN_DAY + "));");
+        sqLiteDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + SilenceEntry.TABLE_WEEKLY + " (" +
+                SilenceEntry.COLUMN_PLACE_UID + " TEXT NOT NULL, " +
+                SilenceEntry.COLUMN_WEEK + " INTEGER NOT NULL, " +
+                SilenceEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + SilenceEntry.COLUMN_PLACE_UID + ", " + SilenceEntry.COLUMN_WEEK + "));");
+    }
+
+    /**
+     * {@link SilenceRollup.Store} over the rollup tables
+     * Statements are compiled once per instance, use one instance per transaction and close it
+     * before the transaction ends
+     */
+    static class SilenceStore implements SilenceRollup.Store {
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mEnteredAt;
+        private final SQLiteStatement mAddToDay;
+        private final SQLiteStatement mAddToWeek;
+
+        SilenceStore(SQLiteDatabase db) {
+            mDb = db;
+            mEnteredAt = db.compileStatement("SELECT " + SilenceEntry.COLUMN_ENTERED_AT + " FROM " +
+                    SilenceEntry.TABLE_OPEN + " WHERE " + SilenceEntry.COLUMN_PLACE_UID + "=?");
+            mAddToDay = db.compileStatement(addStatement(SilenceEntry.TABLE_DAILY, SilenceEntry.COLUMN_DAY));
+            mAddToWeek = db.compileStatement(addStatement(SilenceEntry.TABLE_WEEKLY, SilenceEntry.COLUMN_WEEK));
+        }
+
+        private static String addStatement(String table, String bucketColumn) {
+            return "UPDATE " + table + " SET " + SilenceEntry.COLUMN_DURATION + "=" +
+                    SilenceEntry.COLUMN_DURATION + "+? WHERE " + SilenceEntry.COLUMN_PLACE_UID + "=? AND " +
+                    bucketColumn + "=?";
+        }
+
+        @Override
+        public long getEnteredAt(String uid) {
+            mEnteredAt.bindString(1, uid);
+            try {
+                return mEnteredAt.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return SilenceRollup.NOT_INSIDE;
+            }
+        }
+
+        @Override
+        public void setEnteredAt(String uid, long timeMillis) {
+            ContentValues values = new ContentValues();
+            values.put(SilenceEntry.COLUMN_PLACE_UID, uid);
+            values.put(SilenceEntry.COLUMN_ENTERED_AT, timeMillis);
+            mDb.insertWithOnConflict(SilenceEntry.TABLE_OPEN, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+
+        @Override
+        public void clearEnteredAt(String uid) {
+            mDb.delete(SilenceEntry.TABLE_OPEN, SilenceEntry.COLUMN_PLACE_UID + "=?", new String[]{uid});
+        }
+
+        @Override
+        public void addToDay(String uid, long day, long millis) {
+            add(mAddToDay, SilenceEntry.TABLE_DAILY, SilenceEntry.COLUMN_DAY, uid, day, millis);
+        }
+
+        @Override
+        public void addToWeek(String uid, long week, long millis) {
+            add(mAddToWeek, SilenceEntry.TABLE_WEEKLY, SilenceEntry.COLUMN_WEEK, uid, week, millis);
+        }
+
+        /**
+         * Releases the compiled statements
+         */
+        void close() {
+            mEnteredAt.close();
+            mAddToDay.close();
+            mAddToWeek.close();
+        }
+
+        private void add(SQLiteStatement update, String table, String bucketColumn, String uid,
+                         long bucket, long millis) {
+            update.bindLong(1, millis);
+            update.bindString(2, uid);
+            update.bindLong(3, bucket);
+            if (update.executeUpdateDelete() > 0) return;
+            ContentValues values = new ContentValues();
+            values.put(SilenceEntry.COLUMN_PLACE_UID, uid);
+            values.put(bucketColumn, bucket);
+            values.put(SilenceEntry.COLUMN_DURATION, millis);
+            mDb.insert(table, null, values);
+        }
     }
 }
@@ -0,0 +1,269 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The Java side of the places search, see {@link PlaceContract.PlaceEntry#CONTENT_SEARCH_URI}:
+ * turns what the user typed into an FTS4 MATCH expression over the search table, and ranks the
+ * places it matches from their matchinfo().
+ * <p>
+ * Every word typed must match the start of a word of the name or the address, in any order. Words
+ * are split like the FTS "simple" tokenizer splits them: on every ASCII character that isn't a
+ * letter or a digit, with ASCII folded to lower case and other characters kept as they are.
+ * <p>
+ * A place scores, for each word typed and each column, the number of times the word is found in
+ * that column of the place divided by the number of times it is found in that column of every
+ * place, times the column weight; so a word found in the name counts for more than one found in
+ * the address, and a rare word for more than a common one.
+ * <p>
+ * A first letter can be found in most places, more than can be ranked while the user types, so a
+ * query whose words are all shorter than {@link #MIN_RANKED_WORD_LENGTH} only finds the places
+ * whose name starts with what was typed, in name order, see {@link #toNamePrefix}.
+ */
+public final class PlaceSearch {
+
+    // The matchinfo() format the ranking reads: the number of phrases p, the number of columns c,
+    // then p * c triples of hits in this row, hits in all rows and rows with hits
+    public static final String MATCHINFO_FORMAT = "pcx";
+
+    // Every match is scored, but at most this many of the best are kept and returned; more can't be
+    // told apart by the words typed so far, typing more narrows them down
+    public static final int MAX_RESULTS = 2000;
+
+    // Shorter words are looked up at the start of the names instead of being ranked, it takes
+    // as long to find the matches of a prefix as there are places it matches
+    public static final int MIN_RANKED_WORD_LENGTH = 2;
+
+    // Weights of the search table columns, name then address
+    private static final double[] WEIGHTS = {4, 1};
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private PlaceSearch() {
+    }
+
+    /**
+     * @param text what the user typed
+     * @return a MATCH expression for the places whose name or address has a word starting with each
+     * word of text, or null if text has no words
+     */
+    public static String toMatchQuery(String text) {
+        if (text == null) return null;
+        StringBuilder query = new StringBuilder(text.length() + 8);
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            } else if (c < 0x80 && !(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9')) {
+                // A separator, which also drops the quotes, stars and brackets of the query syntax
+                if (inWord) query.append("* ");
+                inWord = false;
+                continue;
+            }
+            query.append(c);
+            inWord = true;
+        }
+        if (inWord) {
+            query.append('*');
+        } else if (query.length() > 0) {
+            query.setLength(query.length() - 1);
+        }
+        return query.length() == 0 ? null : query.toString();
+    }
+
+    /**
+     * @param text what the user typed
+     * @return text without the surrounding spaces and with ASCII folded to lower case, if it has
+     * words and they are all shorter than {@link #MIN_RANKED_WORD_LENGTH}, or null when it should
+     * be ranked through {@link #toMatchQuery} instead
+     */
+    public static String toNamePrefix(String text) {
+        String match = toMatchQuery(text);
+        if (match == null) return null;
+        for (String word : match.split(" ")) {
+            // Without the star
+            if (word.length() - 1 >= MIN_RANKED_WORD_LENGTH) return null;
+        }
+        String prefix = text.trim();
+        StringBuilder folded = new StringBuilder(prefix.length());
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            folded.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+        }
+        return folded.toString();
+    }
+
+    /**
+     * @param prefix a non-empty result of {@link #toNamePrefix}
+     * @return the smallest string greater than every string starting with prefix, for a range scan
+     * of a NOCASE index, or null if there is none
+     */
+    public static String afterPrefix(String prefix) {
+        int last = prefix.length() - 1;
+        while (last >= 0 && prefix.charAt(last) == Character.MAX_VALUE) last--;
+        if (last < 0) return null;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    /**
+     * @param matchinfo the matchinfo(table, {@link #MATCHINFO_FORMAT}) blob of a row, in native
+     *                  byte order as SQLite returns it
+     * @return the score of the row, higher ranks first
+     */
+    public static double score(byte[] matchinfo) {
+        int phrases = readInt(matchinfo, 0);
+        int columns = readInt(matchinfo, 1);
+        double score = 0;
+        int index = 2;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++, index += 3) {
+                int hitsInRow = readInt(matchinfo, index);
+                if (hitsInRow == 0) continue;
+                double weight = column < WEIGHTS.length ? WEIGHTS[column] : 1;
+                score += weight * hitsInRow / readInt(matchinfo, index + 1);
+            }
+        }
+        return score;
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        int offset = index * 4;
+        if (LITTLE_ENDIAN) {
+            return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+                    | (bytes[offset + 2] & 0xff) << 16 | bytes[offset + 3] << 24;
+        }
+        return bytes[offset] << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * Scores the matches of a search and keeps the best ones, in a heap whose root is the worst
+     * of them, so that any number of matches can be ranked in O(log k) each
+     * Not thread-safe
+     */
+    public static final class Ranker {
+        private final int mCapacity;
+        private long[] mIds;
+        private double[] mScores;
+        // The number of matches kept, at most mCapacity
+        private int mSize;
+        // The number of matches added
+        private int mCount;
+
+        /**
+         * @param capacity the number of places wanted, at least 1
+         */
+        public Ranker(int capacity) {
+            if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+            mCapacity = capacity;
+            mIds = new long[Math.min(capacity, 64)];
+            mScores = new double[mIds.length];
+        }
+
+        /**
+         * @param id        the _ID of a matched place
+         * @param matchinfo its matchinfo blob, see {@link #score}
+         */
+        public void add(long id, byte[] matchinfo) {
+            mCount++;
+            double score = score(matchinfo);
+            if (mSize < mCapacity) {
+                if (mSize == mIds.length) {
+                    int length = (int) Math.min(mCapacity, mSize * 2L);
+                    mIds = Arrays.copyOf(mIds, length);
+                    mScores = Arrays.copyOf(mScores, length);
+                }
+                mIds[mSize] = id;
+                mScores[mSize] = score;
+                siftUp(mIds, mScores, mSize++);
+            } else if (worse(mScores[0], mIds[0], score, id)) {
+                mIds[0] = id;
+                mScores[0] = score;
+                siftDown(mIds, mScores, 0, mSize);
+            }
+        }
+
+        /**
+         * @return the number of matches added, kept or not
+         */
+        public int size() {
+            return mCount;
+        }
+
+        /**
+         * @return the _IDs of the best places, best first, equal scores by _ID
+         */
+        public long[] top() {
+            long[] ids = Arrays.copyOf(mIds, mSize);
+            double[] scores = Arrays.copyOf(mScores, mSize);
+            // Heap sort, moving the worst left to the end each time
+            for (int end = mSize - 1; end > 0; end--) {
+                long id = ids[0];
+                double score = scores[0];
+                ids[0] = ids[end];
+                scores[0] = scores[end];
+                ids[end] = id;
+                scores[end] = score;
+                siftDown(ids, scores, 0, end);
+            }
+            return ids;
+        }
+
+        /**
+         * @return true if the first place ranks after the second one
+         */
+        private static boolean worse(double score, long id, double otherScore, long otherId) {
+            return score < otherScore || (score == otherScore && id > otherId);
+        }
+
+        private static void siftUp(long[] ids, double[] scores, int index) {
+            long id = ids[index];
+            double score = scores[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (!worse(score, id, scores[parent], ids[parent])) break;
+                ids[index] = ids[parent];
+                scores[index] = scores[parent];
+                index = parent;
+            }
+            ids[index] = id;
+            scores[index] = score;
+        }
+
+        private static void siftDown(long[] ids, double[] scores, int index, int size) {
+            long id = ids[index];
+            double score = scores[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) break;
+                if (child + 1 < size && worse(scores[child + 1], ids[child + 1], scores[child], ids[child])) {
+                    child++;
+                }
+                if (!worse(scores[child], ids[child], score, id)) break;
+                ids[index] = ids[child];
+                scores[index] = scores[child];
+                index = child;
+            }
+            ids[index] = id;
+            scores[index] = score;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.shushme.GeoMath;
+import com.example.android.shushme.PlaceRecord;
+import com.example.android.shushme.PlaceRepository;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads the places table straight from the provider's database for {@link PlaceRepository}
+ */
+class PlaceTableSource implements PlaceRepository.Source {
+
+    // SQLite allows 999 bound arguments per statement
+    private static final int MAX_IDS_PER_QUERY = 500;
+    private static final String[] PROJECTION = {PlaceEntry._ID, PlaceEntry.COLUMN_PLACE_UID,
+            PlaceEntry.COLUMN_PLACE_NAME, PlaceEntry.COLUMN_PLACE_ADDRESS,
+            PlaceEntry.COLUMN_LATITUDE_E7, PlaceEntry.COLUMN_LONGITUDE_E7,
+            PlaceEntry.COLUMN_GEOFENCE_RADIUS, PlaceEntry.COLUMN_LOITERING_DELAY,
+            PlaceEntry.COLUMN_RESPONSIVENESS};
+
+    private final PlaceDbHelper mDbHelper;
+
+    PlaceTableSource(PlaceDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    @Override
+    public List<PlaceRecord> loadAll() {
+        List<PlaceRecord> places = new ArrayList<>();
+        Cursor rows = mDbHelper.getReadableDatabase().query(PlaceEntry.TABLE_NAME, PROJECTION,
+                null, null, null, null, null);
+        try {
+            readRows(rows, places);
+        } finally {
+            rows.close();
+        }
+        return places;
+    }
+
+    @Override
+    public List<PlaceRecord> loadByIds(Collection<Long> ids) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Long[] all = ids.toArray(new Long[ids.size()]);
+        List<PlaceRecord> places = new ArrayList<>(all.length);
+        for (int start = 0; start < all.length; start += MAX_IDS_PER_QUERY) {
+            int count = Math.min(MAX_IDS_PER_QUERY, all.length - start);
+            StringBuilder selection = new StringBuilder(PlaceEntry._ID).append(" IN (");
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                args[i] = Long.toString(all[start + i]);
+            }
+            selection.append(')');
+            Cursor rows = db.query(PlaceEntry.TABLE_NAME, PROJECTION, selection.toString(), args,
+                    null, null, null);
+            try {
+                readRows(rows, places);
+            } finally {
+                rows.close();
+            }
+        }
+        return places;
+    }
+
+    private static void readRows(Cursor rows, List<PlaceRecord> places) {
+        while (rows.moveToNext()) {
+            places.add(new PlaceRecord(rows.getLong(0), rows.getString(1), rows.getString(2),
+                    rows.getString(3), GeoMath.fromE7(rows.getInt(4)), GeoMath.fromE7(rows.getInt(5)),
+                    rows.getFloat(6), rows.getInt(7), rows.getInt(8)));
+        }
+    }
+}
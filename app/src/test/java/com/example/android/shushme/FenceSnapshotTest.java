@@ -0,0 +1,124 @@
+package com.example.android.shushme;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit tests for {@link FenceSnapshot}
+ */
+public class FenceSnapshotTest {
+
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("snapshot", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mFile = new File(mDirectory, FenceSnapshot.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void writtenFences_areReadBackInOrder() throws IOException {
+        List<GeofenceSpec> fences = new ArrayList<>();
+        fences.add(new GeofenceSpec("ChIJN1t_tDeuEmsRUsoyG83frY4", -33.8670522, 151.1957362, 50, 3));
+        fences.add(new GeofenceSpec("caf\u00e9 \u5317\u4eac", 39.9042, 116.4074, 75.5f, 1));
+        fences.add(new GeofenceSpec("", 0, 0, 0, 0));
+        fences.add(new GeofenceSpec("dwell", -27.4703356, 153.0257259, 120, 6, 180000, 30000));
+        FenceSnapshot.write(mFile, fences);
+        assertEquals(fences, FenceSnapshot.read(mFile));
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+
+        FenceSnapshot.write(mFile, new ArrayList<GeofenceSpec>());
+        assertEquals(0, FenceSnapshot.read(mFile).size());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void missingSnapshot_throwsFileNotFound() throws IOException {
+        FenceSnapshot.read(mFile);
+    }
+
+    @Test
+    public void corruptSnapshot_isRejected() throws IOException {
+        FenceSnapshot.write(mFile, randomFences(10, new Random(1)));
+        long length = mFile.length();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(length / 2);
+            int b = file.read();
+            file.seek(length / 2);
+            file.write(b ^ 0x10);
+        } finally {
+            file.close();
+        }
+        assertRejected();
+
+        file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(7);
+        } finally {
+            file.close();
+        }
+        assertRejected();
+    }
+
+    @Test
+    public void tenThousandFences_areReadQuickly() throws IOException {
+        List<GeofenceSpec> fences = randomFences(10000, new Random(42));
+        FenceSnapshot.write(mFile, fences);
+        assertEquals(fences, FenceSnapshot.read(mFile));
+
+        // Warm up, then keep the best of several runs to filter out GC and scheduling noise
+        for (int i = 0; i < 20; i++) FenceSnapshot.read(mFile);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 20; i++) {
+            long start = System.nanoTime();
+            List<GeofenceSpec> read = FenceSnapshot.read(mFile);
+            best = Math.min(best, System.nanoTime() - start);
+            assertEquals(10000, read.size());
+        }
+        assertTrue("Reading 10k fences took " + best / 1e6 + " ms", best < 50 * 1000000L);
+    }
+
+    private void assertRejected() {
+        try {
+            FenceSnapshot.read(mFile);
+            fail("Corrupt snapshot was read");
+        } catch (IOException expected) {
+            assertFalse(expected instanceof FileNotFoundException);
+        }
+    }
+
+    private static List<GeofenceSpec> randomFences(int count, Random random) {
+        List<GeofenceSpec> fences = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // Place UIDs are 27 characters long
+            StringBuilder uid = new StringBuilder("ChIJ");
+            while (uid.length() < 27) uid.append((char) ('A' + random.nextInt(26)));
+            fences.add(new GeofenceSpec(uid.toString(), random.nextDouble() * 180 - 90,
+                    random.nextDouble() * 360 - 180, 50, 3));
+        }
+        return fences;
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link GeoMath}.
+ */
+public class GeoMathTest {
+
+    @Test
+    public void distance_knownPairs() {
+        assertEquals(0, GeoMath.distance(-27.47, 153.02, -27.47, 153.02), 1e-9);
+        // One degree of latitude
+        assertEquals(GeoMath.METERS_PER_DEGREE, GeoMath.distance(0, 0, 1, 0), 1e-6);
+        // Starbucks to Subway in test_locations.kml, roughly 268 m apart
+        assertEquals(268, GeoMath.distance(-27.4703356, 153.0257259, -27.4703445, 153.0284443), 2);
+    }
+
+    @Test
+    public void boundingBox_containsEveryPointWithinRadius() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            double lat = random.nextDouble() * 170 - 85;
+            double lng = random.nextDouble() * 360 - 180;
+            double radius = 10 + random.nextDouble() * 50000;
+            double[] box = GeoMath.boundingBox(lat, lng, radius);
+            // Walk out in a random direction to just inside the radius
+            double bearing = random.nextDouble() * 2 * Math.PI;
+            double d = radius * 0.999 / GeoMath.EARTH_RADIUS;
+            double lat1 = Math.toRadians(lat);
+            double lat2 = Math.asin(Math.sin(lat1) * Math.cos(d)
+                    + Math.cos(lat1) * Math.sin(d) * Math.cos(bearing));
+            double lng2 = Math.toRadians(lng) + Math.atan2(Math.sin(bearing) * Math.sin(d) * Math.cos(lat1),
+                    Math.cos(d) - Math.sin(lat1) * Math.sin(lat2));
+            double pLat = Math.toDegrees(lat2);
+            double pLng = Math.toDegrees(lng2);
+            if (pLng > 180 || pLng < -180) continue; // wrapped around, box is full width anyway
+            assertTrue(pLat >= box[0] && pLat <= box[1]);
+            assertTrue(pLng >= box[2] && pLng <= box[3]);
+            // The stored coordinates of the point are in the fixed-point box too
+            int[] boxE7 = GeoMath.boundingBoxE7(lat, lng, radius);
+            int pLatE7 = GeoMath.toE7(pLat);
+            int pLngE7 = GeoMath.toE7(pLng);
+            assertTrue(pLatE7 >= boxE7[0] && pLatE7 <= boxE7[1]);
+            assertTrue(pLngE7 >= boxE7[2] && pLngE7 <= boxE7[3]);
+        }
+    }
+
+    @Test
+    public void e7_roundTripsExactly_toAboutACentimeter() {
+        Random random = new Random(11);
+        double worstE7 = 0;
+        double worstFloat = 0;
+        for (int i = 0; i < 1000000; i++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lng = random.nextDouble() * 360 - 180;
+            int latE7 = GeoMath.toE7(lat);
+            int lngE7 = GeoMath.toE7(lng);
+            assertEquals(latE7, GeoMath.toE7(GeoMath.fromE7(latE7)));
+            assertEquals(lngE7, GeoMath.toE7(GeoMath.fromE7(lngE7)));
+            worstE7 = Math.max(worstE7, GeoMath.distance(lat, lng, GeoMath.fromE7(latE7), GeoMath.fromE7(lngE7)));
+            worstFloat = Math.max(worstFloat, GeoMath.distance(lat, lng, (float) lat, (float) lng));
+        }
+        // Half a unit each way, at most 0.8 cm
+        assertTrue("E7 off by " + worstE7 + " m", worstE7 < 0.008);
+        // What the FLOAT columns kept
+        assertTrue("float off by " + worstFloat + " m", worstFloat > 0.5);
+        // The extremes fit
+        assertEquals(900000000, GeoMath.toE7(90));
+        assertEquals(-1800000000, GeoMath.toE7(-180));
+        assertEquals(180, GeoMath.fromE7(GeoMath.toE7(180)), 0);
+    }
+
+    @Test
+    public void smallestK_matchesFullSort() {
+        Random random = new Random(11);
+        double[] values = new double[5000];
+        for (int i = 0; i < values.length; i++) values[i] = random.nextDouble() * 1000;
+        double[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        for (int k : new int[]{0, 1, 10, 4999, 5000, 6000}) {
+            int[] indices = GeoMath.smallestK(values, values.length, k);
+            assertEquals(Math.min(k, values.length), indices.length);
+            for (int i = 0; i < indices.length; i++) {
+                assertEquals(sorted[i], values[indices[i]], 0);
+            }
+        }
+        // Only the first size values are considered
+        assertEquals(3, GeoMath.smallestK(values, 3, 10).length);
+    }
+}
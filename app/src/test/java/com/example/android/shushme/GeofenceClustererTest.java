@@ -0,0 +1,179 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link GeofenceClusterer} over synthetic datasets.
+ */
+public class GeofenceClustererTest {
+
+    private static final int TRANSITIONS = 3; // ENTER | EXIT
+    private static final int DWELL_TRANSITIONS = 6; // DWELL | EXIT
+    private static final double GAP = 25;
+    private static final double MAX_RADIUS = 250;
+
+    @Test
+    public void distantPlaces_keepTheirOwnFence() {
+        List<GeofenceSpec> places = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            // 500 m apart
+            places.add(place("uid" + i, -27 + i * 0.0045, 153));
+        }
+        GeofenceClusterer.Result result = GeofenceClusterer.cluster(places, GAP, MAX_RADIUS);
+        assertEquals(0, result.getClusterCount());
+        assertEquals(new HashSet<>(places), new HashSet<>(result.getFences()));
+        assertEquals(Collections.singletonList("uid7"), result.getMembers("uid7"));
+    }
+
+    @Test
+    public void placesOnACampus_shareOneFence() {
+        Random random = new Random(1);
+        List<GeofenceSpec> places = new ArrayList<>();
+        for (int campus = 0; campus < 50; campus++) {
+            // Campuses 2 km apart, 10 places within 40 m of each campus center
+            double lat = -27 + (campus / 10) * 0.018;
+            double lng = 153 + (campus % 10) * 0.02;
+            for (int i = 0; i < 10; i++) {
+                places.add(place("c" + campus + "p" + i, lat + (random.nextDouble() - 0.5) * 0.0007,
+                        lng + (random.nextDouble() - 0.5) * 0.0007));
+            }
+        }
+        GeofenceClusterer.Result result = GeofenceClusterer.cluster(places, GAP, MAX_RADIUS);
+        assertEquals(50, result.getFences().size());
+        assertEquals(50, result.getClusterCount());
+        for (GeofenceSpec fence : result.getFences()) {
+            assertTrue(GeofenceClusterer.isClusterId(fence.requestId));
+            List<String> members = result.getMembers(fence.requestId);
+            assertEquals(10, members.size());
+            String campus = members.get(0).substring(0, members.get(0).indexOf('p'));
+            for (String member : members) assertTrue(member, member.startsWith(campus + "p"));
+            // Much smaller than the max, the circle is fitted to the places
+            assertTrue(fence.toString(), fence.radius < 110);
+        }
+        assertCovered(places, result);
+    }
+
+    @Test
+    public void placesAlongAStreet_areSplitAtTheMaxRadius() {
+        List<GeofenceSpec> places = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            // 60 m apart in a 6 km line, every fence 10 m from the next
+            places.add(place(String.format("uid%03d", i), -27 + i * 60 / GeoMath.METERS_PER_DEGREE, 153));
+        }
+        GeofenceClusterer.Result result = GeofenceClusterer.cluster(places, GAP, MAX_RADIUS);
+        int fences = result.getFences().size();
+        // A fence of at most 250 m covers at most 7 of them
+        assertTrue("fences " + fences, fences >= 100 / 7 && fences <= 100 / 3);
+        for (GeofenceSpec fence : result.getFences()) {
+            assertTrue(fence.toString(), fence.radius <= MAX_RADIUS + 1);
+        }
+        assertCovered(places, result);
+    }
+
+    @Test
+    public void differentTransitions_areNotMerged() {
+        List<GeofenceSpec> places = new ArrayList<>();
+        places.add(place("enter", -27, 153));
+        places.add(new GeofenceSpec("dwell", -27.0001, 153, 50, DWELL_TRANSITIONS, 60000, 0));
+        places.add(new GeofenceSpec("dwell2", -27.0002, 153, 50, DWELL_TRANSITIONS, 60000, 5000));
+        places.add(new GeofenceSpec("dwell3", -27.0003, 153, 50, DWELL_TRANSITIONS, 30000, 0));
+        GeofenceClusterer.Result result = GeofenceClusterer.cluster(places, GAP, MAX_RADIUS);
+        assertEquals(3, result.getFences().size());
+        assertEquals(1, result.getClusterCount());
+        GeofenceSpec cluster = null;
+        for (GeofenceSpec fence : result.getFences()) {
+            if (GeofenceClusterer.isClusterId(fence.requestId)) cluster = fence;
+        }
+        assertEquals("cluster:dwell", cluster.requestId);
+        assertEquals(DWELL_TRANSITIONS, cluster.transitionTypes);
+        assertEquals(60000, cluster.loiteringDelay);
+        // The most responsive member wins
+        assertEquals(0, cluster.responsiveness);
+        assertEquals(2, result.getMembers("cluster:dwell").size());
+        assertTrue(result.getMembers("cluster:unknown").isEmpty());
+    }
+
+    @Test
+    public void denseCity_isCoveredWithFewerFences_inAnyInputOrder() {
+        Random random = new Random(2);
+        List<GeofenceSpec> places = new ArrayList<>();
+        // 20000 places in a 10 x 10 km city, with hot spots where places crowd together
+        for (int i = 0; i < 20000; i++) {
+            double lat;
+            double lng;
+            if (i % 2 == 0) {
+                lat = -27.5 + random.nextDouble() * 0.09;
+                lng = 153 + random.nextDouble() * 0.1;
+            } else {
+                int spot = random.nextInt(500);
+                lat = -27.5 + (spot / 25) * 0.0045 + random.nextGaussian() * 0.0003;
+                lng = 153 + (spot % 25) * 0.004 + random.nextGaussian() * 0.0003;
+            }
+            places.add(place("uid" + i, lat, lng, 25 + random.nextInt(100)));
+        }
+        long start = System.nanoTime();
+        GeofenceClusterer.Result result = GeofenceClusterer.cluster(places, GAP, MAX_RADIUS);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("clustering took " + elapsedMs + " ms", elapsedMs < 2000);
+
+        int fences = result.getFences().size();
+        assertTrue("fences " + fences, fences < places.size() / 2);
+        for (GeofenceSpec fence : result.getFences()) {
+            assertTrue(fence.toString(), fence.radius <= MAX_RADIUS + 1);
+        }
+        assertCovered(places, result);
+
+        List<GeofenceSpec> shuffled = new ArrayList<>(places);
+        Collections.shuffle(shuffled, new Random(3));
+        assertEquals(result.getFences(), GeofenceClusterer.cluster(shuffled, GAP, MAX_RADIUS).getFences());
+    }
+
+    @Test
+    public void enclosingRadius_ofTwoCircles() {
+        assertEquals(50, GeofenceClusterer.enclosingRadius(0, 50, 50), 1e-9);
+        assertEquals(100, GeofenceClusterer.enclosingRadius(30, 100, 50), 1e-9);
+        assertEquals(100, GeofenceClusterer.enclosingRadius(30, 50, 100), 1e-9);
+        assertEquals(110, GeofenceClusterer.enclosingRadius(120, 50, 50), 1e-9);
+    }
+
+    /**
+     * Checks every place is a member of exactly one fence, and that fence covers the place's own
+     */
+    private static void assertCovered(List<GeofenceSpec> places, GeofenceClusterer.Result result) {
+        Map<String, GeofenceSpec> byId = new HashMap<>();
+        for (GeofenceSpec place : places) byId.put(place.requestId, place);
+        Set<String> seen = new HashSet<>();
+        for (GeofenceSpec fence : result.getFences()) {
+            List<String> members = result.getMembers(fence.requestId);
+            assertFalse(members.isEmpty());
+            for (String member : members) {
+                assertTrue(member, seen.add(member));
+                GeofenceSpec place = byId.get(member);
+                double d = GeoMath.distance(fence.latitude, fence.longitude, place.latitude, place.longitude);
+                assertTrue(member + " outside " + fence, d + place.radius <= fence.radius + 1e-6);
+            }
+        }
+        assertEquals(places.size(), seen.size());
+    }
+
+    private static GeofenceSpec place(String uid, double lat, double lng) {
+        return place(uid, lat, lng, 50);
+    }
+
+    private static GeofenceSpec place(String uid, double lat, double lng, float radius) {
+        return new GeofenceSpec(uid, lat, lng, radius, TRANSITIONS);
+    }
+}
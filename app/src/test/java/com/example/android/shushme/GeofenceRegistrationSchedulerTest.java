@@ -0,0 +1,267 @@
+package com.example.android.shushme;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link GeofenceRegistrationScheduler}, against a fake GeofencingApi that
+ * answers from a thread pool, and can hold its answers or fail on demand
+ */
+public class GeofenceRegistrationSchedulerTest {
+
+    private ScheduledExecutorService mExecutor;
+    private ExecutorService mApiThreads;
+    private GeofenceRegistrationScheduler.Config mConfig;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mApiThreads = Executors.newFixedThreadPool(4);
+        mConfig = new GeofenceRegistrationScheduler.Config();
+        mConfig.debounceMillis = 100;
+        mConfig.timeoutMillis = 2000;
+        mConfig.maxAttempts = 3;
+        mConfig.initialBackoffMillis = 20;
+        mConfig.maxBackoffMillis = 100;
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mApiThreads.shutdownNow();
+    }
+
+    @Test
+    public void burstOfTriggers_makesAtMostTwoApiCalls() throws InterruptedException {
+        FakeGeofencingApi api = new FakeGeofencingApi();
+        final GeofenceRegistrationScheduler scheduler = new GeofenceRegistrationScheduler(api, mExecutor, mConfig);
+
+        // 1000 triggers from 4 threads, like onLoadFinished for every row a sync writes
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 250; i++) scheduler.request(fences(thread * 250 + i));
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Map<String, GeofenceSpec> last = fences(1000);
+        scheduler.request(last);
+        assertTrue(scheduler.awaitIdle(5000));
+
+        // Clearing what a previous process left, then adding the latest set
+        assertTrue("API calls " + api.calls.get(), api.calls.get() <= 2);
+        assertEquals(last.keySet(), api.registered.keySet());
+        assertEquals(GeofenceRegistrationScheduler.STATE_IDLE, scheduler.getState());
+
+        // Only the delta goes out afterwards
+        Map<String, GeofenceSpec> more = fences(1001);
+        scheduler.request(more);
+        assertTrue(scheduler.awaitIdle(5000));
+        assertEquals(3, api.calls.get());
+        assertEquals(more.keySet(), api.registered.keySet());
+    }
+
+    @Test
+    public void changesInFlight_areSentOnce_withTheLatestSet() throws InterruptedException {
+        FakeGeofencingApi api = new FakeGeofencingApi();
+        api.hold = new CountDownLatch(1);
+        GeofenceRegistrationScheduler scheduler = new GeofenceRegistrationScheduler(api, mExecutor, mConfig);
+
+        scheduler.request(fences(10));
+        assertTrue(api.sent.await(5, TimeUnit.SECONDS));
+        assertEquals(GeofenceRegistrationScheduler.STATE_IN_FLIGHT, scheduler.getState());
+        for (int i = 11; i <= 500; i++) scheduler.request(fences(i));
+        Thread.sleep(3 * mConfig.debounceMillis);
+        // Nothing else is sent while the first pass is out
+        assertEquals(2, api.calls.get());
+        assertEquals(2, api.maxInFlight.get());
+
+        api.hold.countDown();
+        assertTrue(scheduler.awaitIdle(5000));
+        // One more pass, adding the 490 new fences in one call
+        assertEquals(3, api.calls.get());
+        assertEquals(fences(500).keySet(), api.registered.keySet());
+        assertEquals(2, api.maxInFlight.get());
+    }
+
+    @Test
+    public void failedPasses_areRetriedWithBackoff_andResendEverything() throws InterruptedException {
+        FakeGeofencingApi api = new FakeGeofencingApi();
+        GeofenceRegistrationScheduler scheduler = new GeofenceRegistrationScheduler(api, mExecutor, mConfig);
+        scheduler.request(fences(10));
+        assertTrue(scheduler.awaitIdle(5000));
+        assertEquals(2, api.calls.get());
+
+        // The delta fails twice, e.g. GEOFENCE_TOO_MANY_PENDING_INTENTS, then goes through
+        api.failures.set(2);
+        long start = System.currentTimeMillis();
+        scheduler.request(fences(20));
+        assertTrue(scheduler.awaitIdle(5000));
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(fences(20).keySet(), api.registered.keySet());
+        // The delta, then a full re-send (remove all, add) per retry
+        assertEquals(2 + 1 + 2 + 2, api.calls.get());
+        // Two retries, after at least half of 20 ms then 40 ms
+        assertTrue("took " + elapsed + " ms", elapsed >= mConfig.debounceMillis + 10 + 20);
+    }
+
+    @Test
+    public void persistentFailures_stopAfterMaxAttempts_untilTheNextRequest() throws InterruptedException {
+        FakeGeofencingApi api = new FakeGeofencingApi();
+        api.failures.set(Integer.MAX_VALUE);
+        GeofenceRegistrationScheduler scheduler = new GeofenceRegistrationScheduler(api, mExecutor, mConfig);
+        scheduler.request(fences(10));
+        assertFalse(scheduler.awaitIdle(5000));
+        assertEquals(GeofenceRegistrationScheduler.STATE_FAILED, scheduler.getState());
+        int calls = api.calls.get();
+        // One call per attempt, the first one (remove all) fails each time
+        assertEquals(mConfig.maxAttempts * 2, calls);
+        Thread.sleep(3 * mConfig.maxBackoffMillis);
+        assertEquals(calls, api.calls.get());
+
+        api.failures.set(0);
+        scheduler.request(fences(10));
+        assertTrue(scheduler.awaitIdle(5000));
+        assertEquals(fences(10).keySet(), api.registered.keySet());
+    }
+
+    @Test
+    public void unansweredCalls_timeOut() throws InterruptedException {
+        FakeGeofencingApi api = new FakeGeofencingApi();
+        api.hold = new CountDownLatch(1);
+        mConfig.timeoutMillis = 50;
+        mConfig.maxAttempts = 1;
+        GeofenceRegistrationScheduler scheduler = new GeofenceRegistrationScheduler(api, mExecutor, mConfig);
+        scheduler.request(fences(10));
+        assertFalse(scheduler.awaitIdle(5000));
+        assertEquals(GeofenceRegistrationScheduler.STATE_FAILED, scheduler.getState());
+
+        // Late answers of the timed out pass are ignored, the next request starts over
+        api.hold.countDown();
+        api.hold = null;
+        scheduler.request(fences(5));
+        assertTrue(scheduler.awaitIdle(5000));
+        assertEquals(fences(5).keySet(), api.registered.keySet());
+    }
+
+    @Test
+    public void throwingCalls_failThePass() throws InterruptedException {
+        FakeGeofencingApi api = new FakeGeofencingApi();
+        api.throwing = true;
+        mConfig.maxAttempts = 2;
+        GeofenceRegistrationScheduler scheduler = new GeofenceRegistrationScheduler(api, mExecutor, mConfig);
+        scheduler.request(fences(10));
+        assertFalse(scheduler.awaitIdle(5000));
+        assertEquals(GeofenceRegistrationScheduler.STATE_FAILED, scheduler.getState());
+        assertEquals(2, api.calls.get());
+    }
+
+    private static Map<String, GeofenceSpec> fences(int count) {
+        Map<String, GeofenceSpec> fences = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            GeofenceSpec fence = new GeofenceSpec("uid" + i, -27 + i * 0.001, 153, 50, 3);
+            fences.put(fence.requestId, fence);
+        }
+        return Collections.unmodifiableMap(fences);
+    }
+
+    /**
+     * Stands in for LocationServices.GeofencingApi, keeping what it holds
+     */
+    private class FakeGeofencingApi implements GeofenceRegistrationScheduler.Api {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        // Calls fail while this is positive
+        final AtomicInteger failures = new AtomicInteger();
+        final Map<String, GeofenceSpec> registered = new ConcurrentHashMap<>();
+        // Counted down once the first pass was sent
+        final CountDownLatch sent = new CountDownLatch(2);
+        // When set, answers wait for it
+        volatile CountDownLatch hold;
+        volatile boolean throwing;
+
+        @Override
+        public void addGeofences(final List<GeofenceSpec> geofences, GeofenceRegistrationScheduler.Callback callback) {
+            answer(callback, new Runnable() {
+                @Override
+                public void run() {
+                    for (GeofenceSpec fence : geofences) registered.put(fence.requestId, fence);
+                }
+            });
+        }
+
+        @Override
+        public void removeGeofences(final List<String> requestIds, GeofenceRegistrationScheduler.Callback callback) {
+            answer(callback, new Runnable() {
+                @Override
+                public void run() {
+                    for (String requestId : requestIds) registered.remove(requestId);
+                }
+            });
+        }
+
+        @Override
+        public void removeAllGeofences(GeofenceRegistrationScheduler.Callback callback) {
+            answer(callback, new Runnable() {
+                @Override
+                public void run() {
+                    registered.clear();
+                }
+            });
+        }
+
+        private void answer(final GeofenceRegistrationScheduler.Callback callback, final Runnable apply) {
+            calls.incrementAndGet();
+            if (throwing) throw new SecurityException("no location permission");
+            final boolean fail = failures.getAndDecrement() > 0;
+            final CountDownLatch latch = hold;
+            int now = inFlight.incrementAndGet();
+            while (true) {
+                int max = maxInFlight.get();
+                if (now <= max || maxInFlight.compareAndSet(max, now)) break;
+            }
+            // Applied in call order, like Play Services does, only the answer comes later
+            if (!fail) apply.run();
+            sent.countDown();
+            mApiThreads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (latch != null) latch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    inFlight.decrementAndGet();
+                    if (fail) {
+                        callback.onFailure("GEOFENCE_TOO_MANY_PENDING_INTENTS");
+                    } else {
+                        callback.onSuccess();
+                    }
+                }
+            });
+        }
+    }
+}
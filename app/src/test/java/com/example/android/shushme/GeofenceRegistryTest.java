@@ -0,0 +1,179 @@
+package com.example.android.shushme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link GeofenceRegistry}, counting the calls that would go to Play Services.
+ */
+public class GeofenceRegistryTest {
+
+    private static final int TRANSITIONS = 3; // ENTER | EXIT
+
+    private GeofenceRegistry mRegistry;
+    private CountingBackend mBackend;
+
+    @Before
+    public void setUp() {
+        mRegistry = new GeofenceRegistry();
+        mBackend = new CountingBackend();
+    }
+
+    @Test
+    public void firstSync_clearsThenAddsEverythingInOneCall() {
+        Map<String, GeofenceSpec> desired = places(500);
+        assertEquals(2, mRegistry.sync(desired, mBackend));
+        assertEquals(1, mBackend.removeAllCalls);
+        assertEquals(1, mBackend.addCalls);
+        assertEquals(0, mBackend.removeCalls);
+        assertEquals(500, mBackend.added.size());
+        assertEquals(500, mRegistry.getRegistered().size());
+    }
+
+    @Test
+    public void syncAfterClear_addsWithoutClearing() {
+        mRegistry.clear();
+        assertEquals(1, mRegistry.sync(places(500), mBackend));
+        assertEquals(0, mBackend.removeAllCalls);
+        assertEquals(1, mBackend.addCalls);
+    }
+
+    @Test
+    public void unchangedSync_makesNoCalls() {
+        mRegistry.sync(places(500), mBackend);
+        mBackend.reset();
+        assertEquals(0, mRegistry.sync(places(500), mBackend));
+        assertEquals(0, mBackend.addCalls + mBackend.removeCalls);
+    }
+
+    @Test
+    public void singleChangedPlace_isTheOnlyOneReAdded() {
+        mRegistry.sync(places(500), mBackend);
+        mBackend.reset();
+        Map<String, GeofenceSpec> desired = places(500);
+        desired.put("uid42", new GeofenceSpec("uid42", 10.5, 20.5, 50, TRANSITIONS));
+        assertEquals(1, mRegistry.sync(desired, mBackend));
+        assertEquals(1, mBackend.addCalls);
+        assertEquals(0, mBackend.removeCalls);
+        assertEquals(1, mBackend.added.size());
+        assertEquals("uid42", mBackend.added.get(0).requestId);
+    }
+
+    @Test
+    public void removedAndAddedPlaces_useOneCallEach() {
+        mRegistry.sync(places(500), mBackend);
+        mBackend.reset();
+        Map<String, GeofenceSpec> desired = places(500);
+        desired.remove("uid1");
+        desired.remove("uid2");
+        desired.put("new", new GeofenceSpec("new", 1, 1, 50, TRANSITIONS));
+        assertEquals(2, mRegistry.sync(desired, mBackend));
+        assertEquals(1, mBackend.removeCalls);
+        assertEquals(1, mBackend.addCalls);
+        assertEquals(2, mBackend.removed.size());
+        assertTrue(mBackend.removed.contains("uid1") && mBackend.removed.contains("uid2"));
+        assertEquals(1, mBackend.added.size());
+        assertEquals(499, mRegistry.getRegistered().size());
+    }
+
+    @Test
+    public void invalidate_forcesFullReAdd() {
+        mRegistry.sync(places(100), mBackend);
+        mBackend.reset();
+        mRegistry.invalidate();
+        mRegistry.sync(places(100), mBackend);
+        assertEquals(1, mBackend.removeAllCalls);
+        assertEquals(1, mBackend.addCalls);
+        assertEquals(100, mBackend.added.size());
+    }
+
+    @Test
+    public void renew_reAddsEverythingWithoutClearing_once() {
+        mRegistry.sync(places(100), mBackend);
+        mBackend.reset();
+        mRegistry.renew();
+        Map<String, GeofenceSpec> desired = places(100);
+        desired.remove("uid7");
+        assertEquals(2, mRegistry.sync(desired, mBackend));
+        assertEquals(0, mBackend.removeAllCalls);
+        assertEquals(1, mBackend.removeCalls);
+        assertEquals(99, mBackend.added.size());
+        mBackend.reset();
+        assertEquals(0, mRegistry.sync(desired, mBackend));
+    }
+
+    @Test
+    public void failingBackend_leavesRegistryUntouched() {
+        mRegistry.sync(places(10), mBackend);
+        GeofenceRegistry.Backend failing = new GeofenceRegistry.Backend() {
+            @Override
+            public void addGeofences(List<GeofenceSpec> geofences) {
+                throw new SecurityException("no permission");
+            }
+
+            @Override
+            public void removeGeofences(List<String> requestIds) {
+            }
+
+            @Override
+            public void removeAllGeofences() {
+            }
+        };
+        try {
+            mRegistry.sync(places(20), failing);
+        } catch (SecurityException expected) {
+            // fall through
+        }
+        assertEquals(10, mRegistry.getRegistered().size());
+    }
+
+    private static Map<String, GeofenceSpec> places(int count) {
+        Map<String, GeofenceSpec> map = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String uid = "uid" + i;
+            map.put(uid, new GeofenceSpec(uid, -27.0 + i * 1e-4, 153.0 + i * 1e-4, 50, TRANSITIONS));
+        }
+        return map;
+    }
+
+    private static class CountingBackend implements GeofenceRegistry.Backend {
+        int addCalls;
+        int removeCalls;
+        int removeAllCalls;
+        List<GeofenceSpec> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+
+        @Override
+        public void addGeofences(List<GeofenceSpec> geofences) {
+            addCalls++;
+            added.addAll(geofences);
+        }
+
+        @Override
+        public void removeGeofences(List<String> requestIds) {
+            removeCalls++;
+            removed.addAll(requestIds);
+        }
+
+        @Override
+        public void removeAllGeofences() {
+            removeAllCalls++;
+        }
+
+        void reset() {
+            addCalls = 0;
+            removeCalls = 0;
+            removeAllCalls = 0;
+            added.clear();
+            removed.clear();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link GeofenceSimulator}
+ */
+public class GeofenceSimulatorTest {
+
+    // Same as Geofencing.GEOFENCE_RADIUS
+    private static final float RADIUS = 50;
+    private static final int BOTH = RingerController.TRANSITION_ENTER | RingerController.TRANSITION_EXIT;
+
+    @Test
+    public void bundledKmlTrace_silencesAtEveryPlace() throws Exception {
+        List<PlaceRecord> places = TestPlaces.bundledPlaces();
+        List<GeofenceSpec> fences = new ArrayList<>();
+        for (PlaceRecord place : places) {
+            fences.add(new GeofenceSpec(place.uid, place.latitude, place.longitude, RADIUS, BOTH));
+        }
+        GeofenceSimulator simulator = new GeofenceSimulator(fences);
+        RecordingHandler events = new RecordingHandler();
+        simulator.setHandler(events);
+        // No hold time, every exit restores the ringer straight away
+        GeofenceSimulator.RingerModeCounter ringer =
+                new GeofenceSimulator.RingerModeCounter(new RingerController(0));
+
+        simulator.replay(LocationTrace.through(places, 5, 1000, 0, 0));
+        assertEquals(4, simulator.getEnterEventCount());
+        // Still standing at the last place
+        assertEquals(3, simulator.getExitEventCount());
+        assertEquals(1, simulator.getInsideCount());
+        assertEquals("ENTER " + places.get(0).uid, events.log.get(0));
+        assertEquals("EXIT " + places.get(0).uid, events.log.get(1));
+
+        simulator.reset();
+        simulator.setHandler(ringer);
+        simulator.replay(LocationTrace.through(places, 5, 1000, 0, 0));
+        assertEquals(7, ringer.getSetRingerModeCalls());
+        assertEquals(7, ringer.getModeChanges());
+        assertEquals(RingerController.RINGER_MODE_SILENT, ringer.getMode());
+    }
+
+    @Test
+    public void jitteryKmlTrace_changesRingerOncePerVisit() throws Exception {
+        List<PlaceRecord> places = TestPlaces.bundledPlaces();
+        List<GeofenceSpec> fences = new ArrayList<>();
+        for (PlaceRecord place : places) {
+            fences.add(new GeofenceSpec(place.uid, place.latitude, place.longitude, RADIUS, BOTH));
+        }
+        GeofenceSimulator simulator = new GeofenceSimulator(fences);
+        GeofenceSimulator.RingerModeCounter ringer =
+                new GeofenceSimulator.RingerModeCounter(new RingerController());
+        simulator.setHandler(ringer);
+
+        // 15 m of GPS noise makes the fence edges flap
+        LocationTrace trace = LocationTrace.through(places, 5, 1000, 15, 21);
+        simulator.replay(trace);
+        ringer.advanceTo(trace.timesMillis[trace.size() - 1] + RingerController.DEFAULT_EXIT_HOLD_MILLIS);
+        assertTrue(simulator.getEnterEventCount() > 4);
+        // Starbucks and Subway are less than a minute's walk apart, they count as one visit
+        assertEquals(5, ringer.getSetRingerModeCalls());
+        assertEquals(5, ringer.getModeChanges());
+        assertEquals(RingerController.RINGER_MODE_SILENT, ringer.getMode());
+    }
+
+    @Test
+    public void overlappingFences_areReportedInOneEvent() {
+        List<GeofenceSpec> fences = Arrays.asList(
+                new GeofenceSpec("a", -27.47, 153.02, 100, BOTH),
+                new GeofenceSpec("b", -27.47, 153.0205, 100, BOTH));
+        GeofenceSimulator simulator = new GeofenceSimulator(fences);
+        RecordingHandler events = new RecordingHandler();
+        simulator.setHandler(events);
+
+        simulator.onLocation(-27.46, 153.02, 0);
+        simulator.onLocation(-27.47, 153.02025, 1);
+        simulator.onLocation(-27.47, 153.0191, 2);
+        simulator.onLocation(-27.46, 153.02, 3);
+        assertEquals(Arrays.asList("ENTER a b", "EXIT b", "EXIT a"), sortedIds(events.log));
+    }
+
+    @Test
+    public void transitionTypes_filterEvents() {
+        List<GeofenceSpec> fences = Arrays.asList(
+                new GeofenceSpec("enter-only", 0, 0, 100, RingerController.TRANSITION_ENTER));
+        GeofenceSimulator simulator = new GeofenceSimulator(fences);
+        RecordingHandler events = new RecordingHandler();
+        simulator.setHandler(events);
+
+        simulator.onLocation(0, 0, 0);
+        simulator.onLocation(1, 1, 1);
+        simulator.onLocation(0, 0, 2);
+        assertEquals(Arrays.asList("ENTER enter-only", "ENTER enter-only"), events.log);
+        assertEquals(1, simulator.getInsideCount());
+    }
+
+    @Test
+    public void randomWalk_matchesBruteForce() {
+        Random random = new Random(3);
+        List<GeofenceSpec> fences = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            fences.add(new GeofenceSpec("p" + i, -27.5 + random.nextDouble() * 0.1,
+                    153.0 + random.nextDouble() * 0.1, 20 + random.nextFloat() * 300, BOTH));
+        }
+        GeofenceSimulator simulator = new GeofenceSimulator(fences);
+        LocationTrace trace = LocationTrace.randomWalk(10000, -27.45, 153.05, 10, 1000, 5);
+        int checked = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            double lat = trace.latitudes[i];
+            double lng = trace.longitudes[i];
+            simulator.onLocation(lat, lng, trace.timesMillis[i]);
+            int inside = 0;
+            boolean ambiguous = false;
+            for (GeofenceSpec fence : fences) {
+                double d = GeoMath.distance(lat, lng, fence.latitude, fence.longitude);
+                if (Math.abs(d - fence.radius) < 0.5) ambiguous = true;
+                if (d <= fence.radius) inside++;
+            }
+            if (ambiguous) continue;
+            assertEquals(inside, simulator.getInsideCount());
+            checked++;
+        }
+        assertTrue(checked > 9500);
+    }
+
+    @Test
+    public void replaysMillionsOfFixesPerSecond() {
+        Random random = new Random(17);
+        List<GeofenceSpec> fences = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            fences.add(new GeofenceSpec("p" + i, -27.6 + random.nextDouble() * 0.3,
+                    152.9 + random.nextDouble() * 0.3, RADIUS, BOTH));
+        }
+        GeofenceSimulator simulator = new GeofenceSimulator(fences);
+        GeofenceSimulator.RingerModeCounter ringer =
+                new GeofenceSimulator.RingerModeCounter(new RingerController());
+        simulator.setHandler(ringer);
+        LocationTrace trace = LocationTrace.randomWalk(2000000, -27.45, 153.05, 5, 1000, 9);
+
+        // Warm up
+        simulator.replay(trace);
+        simulator.reset();
+        long start = System.nanoTime();
+        simulator.replay(trace);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double fixesPerSecond = trace.size() / seconds;
+        assertTrue(simulator.getEnterEventCount() > 0);
+        // Leave plenty of headroom for slow CI machines
+        assertTrue(fixesPerSecond + " fixes/s", fixesPerSecond > 1000000);
+    }
+
+    private static List<String> sortedIds(List<String> log) {
+        List<String> sorted = new ArrayList<>();
+        for (String entry : log) {
+            String[] parts = entry.split(" ");
+            Arrays.sort(parts, 1, parts.length);
+            StringBuilder builder = new StringBuilder();
+            for (String part : parts) {
+                if (builder.length() > 0) builder.append(' ');
+                builder.append(part);
+            }
+            sorted.add(builder.toString());
+        }
+        return sorted;
+    }
+
+    private static class RecordingHandler implements GeofenceSimulator.TransitionHandler {
+        final List<String> log = new ArrayList<>();
+
+        @Override
+        public void onTransition(int transition, List<String> requestIds, long timeMillis) {
+            StringBuilder entry = new StringBuilder(
+                    transition == RingerController.TRANSITION_ENTER ? "ENTER" : "EXIT");
+            for (String id : requestIds) entry.append(' ').append(id);
+            log.add(entry.toString());
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.android.shushme;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link LivePlaceSync}, against a fake Places API that answers from a thread
+ * pool and fails on demand
+ */
+public class LivePlaceSyncTest {
+
+    private static final long NOW = System.currentTimeMillis();
+    private static final long TTL = 60 * 60 * 1000L;
+
+    private ScheduledExecutorService mExecutor;
+    private ExecutorService mApiThreads;
+    private LivePlaceSync.Config mConfig;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mApiThreads = Executors.newFixedThreadPool(8);
+        mConfig = new LivePlaceSync.Config();
+        mConfig.ttlMillis = TTL;
+        mConfig.chunkSize = 10;
+        mConfig.maxConcurrentRequests = 3;
+        mConfig.maxAttempts = 4;
+        mConfig.initialBackoffMillis = 4;
+        mConfig.maxBackoffMillis = 20;
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mApiThreads.shutdownNow();
+    }
+
+    @Test
+    public void onlyStalePlaces_areRequested_inBoundedChunks() throws InterruptedException {
+        // 8000 places, 5000 of them stale
+        FakeStore store = new FakeStore(8000, 5000);
+        FakeApi api = new FakeApi();
+        Result result = sync(store, api);
+
+        assertEquals(5000, result.synced);
+        // Every stale place with an odd number was renamed
+        assertEquals(2500, result.updated);
+        assertEquals(0, result.failed);
+        assertEquals(500, api.requests.get());
+        assertTrue("Chunk of " + api.largestChunk.get(), api.largestChunk.get() <= mConfig.chunkSize);
+        assertTrue("In flight " + api.maxInFlight.get(), api.maxInFlight.get() <= mConfig.maxConcurrentRequests);
+        assertEquals(5000, api.requested.size());
+        for (String uid : api.requested) assertTrue(uid, store.isStaleAtStart(uid));
+        for (int i = 0; i < 8000; i++) assertFalse("uid" + i, store.isStale("uid" + i));
+        assertEquals(2500, store.renamed.size());
+
+        // Nothing is stale anymore, the next sync asks for nothing
+        FakeApi again = new FakeApi();
+        assertEquals(0, sync(store, again).synced);
+        assertEquals(0, again.requests.get());
+    }
+
+    @Test
+    public void failedChunks_areRetriedWithBackoff() throws InterruptedException {
+        FakeStore store = new FakeStore(2000, 2000);
+        FakeApi api = new FakeApi();
+        // Every chunk fails twice before it goes through
+        api.failuresPerChunk = 2;
+        mConfig.initialBackoffMillis = 10;
+        Result result = sync(store, api);
+
+        assertEquals(2000, result.synced);
+        assertEquals(0, result.failed);
+        assertEquals(200 * 3, api.requests.get());
+        assertTrue(api.maxInFlight.get() <= mConfig.maxConcurrentRequests);
+        // No retry came sooner than half the initial backoff after its failure
+        assertTrue("Retried after " + api.shortestRetryMillis + " ms",
+                api.shortestRetryMillis >= mConfig.initialBackoffMillis / 2);
+    }
+
+    @Test
+    public void chunksFailingEveryAttempt_areReportedAndStayStale() throws InterruptedException {
+        FakeStore store = new FakeStore(1000, 1000);
+        FakeApi api = new FakeApi();
+        api.alwaysFailing.add("uid17");
+        Result result = sync(store, api);
+
+        assertEquals(10, result.failed);
+        assertEquals(990, result.synced);
+        assertTrue(store.isStale("uid17"));
+        assertEquals(990, api.requested.size());
+        // 99 chunks went through at once, the failing one was tried maxAttempts times
+        assertEquals(99 + mConfig.maxAttempts, api.requests.get());
+    }
+
+    @Test
+    public void missingPlaces_areStillMarkedSynced() throws InterruptedException {
+        FakeStore store = new FakeStore(100, 100);
+        FakeApi api = new FakeApi();
+        // The API no longer knows these places
+        api.unknown.add("uid3");
+        api.unknown.add("uid42");
+        Result result = sync(store, api);
+
+        assertEquals(100, result.synced);
+        assertEquals(0, result.failed);
+        assertFalse(store.isStale("uid3"));
+        assertFalse(store.renamed.containsKey("uid3"));
+    }
+
+    @Test
+    public void backoff_growsExponentially_withJitter_upToTheMaximum() {
+        mConfig.initialBackoffMillis = 1000;
+        mConfig.maxBackoffMillis = 60000;
+        LivePlaceSync sync = new LivePlaceSync(new FakeStore(0, 0), new FakeApi(), mExecutor, mConfig);
+        Set<Long> distinct = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            for (int attempts = 1; attempts <= 40; attempts++) {
+                long expected = Math.min(1000L << Math.min(attempts - 1, 30), 60000);
+                long backoff = sync.getBackoffMillis(attempts);
+                assertTrue(attempts + ": " + backoff, backoff >= expected / 2 && backoff <= expected);
+                if (attempts == 3) distinct.add(backoff);
+            }
+        }
+        assertTrue(distinct.size() > 10);
+    }
+
+    private Result sync(FakeStore store, FakeApi api) throws InterruptedException {
+        final Result result = new Result();
+        final CountDownLatch done = new CountDownLatch(1);
+        new LivePlaceSync(store, api, mExecutor, mConfig).sync(new LivePlaceSync.Listener() {
+            @Override
+            public void onSyncFinished(int synced, int updated, int failed) {
+                result.synced = synced;
+                result.updated = updated;
+                result.failed = failed;
+                done.countDown();
+            }
+        });
+        assertTrue("Sync didn't finish", done.await(30, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static class Result {
+        int synced;
+        int updated;
+        int failed;
+    }
+
+    /**
+     * Places "uid0".."uidN", the first staleCount of them last synced before the TTL
+     */
+    private static class FakeStore implements LivePlaceSync.Store {
+        final Map<String, Long> lastSynced = new HashMap<>();
+        final Map<Long, String> uids = new HashMap<>();
+        final Set<String> staleAtStart = new HashSet<>();
+        final Map<String, String> renamed = Collections.synchronizedMap(new HashMap<String, String>());
+
+        FakeStore(int count, int staleCount) {
+            for (int i = 0; i < count; i++) {
+                String uid = "uid" + i;
+                lastSynced.put(uid, i < staleCount ? NOW - TTL - 1000 : NOW - TTL / 2);
+                uids.put((long) i, uid);
+                if (i < staleCount) staleAtStart.add(uid);
+            }
+        }
+
+        @Override
+        public synchronized Map<String, PlaceRecord> loadStale(long syncedBefore) {
+            Map<String, PlaceRecord> stale = new HashMap<>();
+            for (Map.Entry<Long, String> entry : uids.entrySet()) {
+                String uid = entry.getValue();
+                if (lastSynced.get(uid) < syncedBefore) {
+                    stale.put(uid, new PlaceRecord(entry.getKey(), uid, "name" + entry.getKey(),
+                            "address", 0, 0));
+                }
+            }
+            return stale;
+        }
+
+        @Override
+        public synchronized void applySynced(List<PlaceRecord> updates, List<Long> syncedIds, long timeMillis) {
+            for (PlaceRecord update : updates) renamed.put(update.uid, update.name);
+            for (Long id : syncedIds) lastSynced.put(uids.get(id), timeMillis);
+        }
+
+        synchronized boolean isStale(String uid) {
+            return lastSynced.get(uid) < NOW - TTL;
+        }
+
+        boolean isStaleAtStart(String uid) {
+            return staleAtStart.contains(uid);
+        }
+    }
+
+    /**
+     * Renames the places with an odd number, answers on another thread after a short delay
+     */
+    private class FakeApi implements LivePlaceSync.Api {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger largestChunk = new AtomicInteger();
+        final Set<String> requested = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> alwaysFailing = new HashSet<>();
+        final Set<String> unknown = new HashSet<>();
+        final Map<List<String>, Integer> failures = Collections.synchronizedMap(new HashMap<List<String>, Integer>());
+        final Map<List<String>, Long> failedAt = Collections.synchronizedMap(new HashMap<List<String>, Long>());
+        volatile long shortestRetryMillis = Long.MAX_VALUE;
+        int failuresPerChunk;
+
+        @Override
+        public void getPlacesById(final List<String> uids, final LivePlaceSync.Callback callback) {
+            requests.incrementAndGet();
+            Long lastFailure = failedAt.get(uids);
+            if (lastFailure != null) {
+                long retry = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFailure);
+                synchronized (this) {
+                    shortestRetryMillis = Math.min(shortestRetryMillis, retry);
+                }
+            }
+            int now = inFlight.incrementAndGet();
+            while (true) {
+                int max = maxInFlight.get();
+                if (now <= max || maxInFlight.compareAndSet(max, now)) break;
+            }
+            while (true) {
+                int max = largestChunk.get();
+                if (uids.size() <= max || largestChunk.compareAndSet(max, uids.size())) break;
+            }
+            mApiThreads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Integer failed = failures.get(uids);
+                    failed = failed == null ? 0 : failed;
+                    boolean fail = failed < failuresPerChunk;
+                    for (String uid : uids) fail |= alwaysFailing.contains(uid);
+                    inFlight.decrementAndGet();
+                    if (fail) {
+                        failures.put(uids, failed + 1);
+                        failedAt.put(uids, System.nanoTime());
+                        callback.onFailure("injected failure");
+                        return;
+                    }
+                    requested.addAll(uids);
+                    List<PlaceRecord> places = new ArrayList<>();
+                    for (String uid : uids) {
+                        if (unknown.contains(uid)) continue;
+                        long number = Long.parseLong(uid.substring(3));
+                        String name = number % 2 == 1 ? "renamed" + number : "name" + number;
+                        places.add(new PlaceRecord(PlaceRecord.NO_ID, uid, name, "address", 0, 0));
+                    }
+                    callback.onResult(places);
+                }
+            });
+        }
+    }
+}
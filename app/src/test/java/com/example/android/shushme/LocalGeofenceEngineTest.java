@@ -0,0 +1,281 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link LocalGeofenceEngine}, against synthetic traces
+ */
+public class LocalGeofenceEngineTest {
+
+    private static final int BOTH = RingerController.TRANSITION_ENTER | RingerController.TRANSITION_EXIT;
+    private static final int DWELL = RingerController.TRANSITION_DWELL | RingerController.TRANSITION_EXIT;
+    private static final double LAT = -27.47;
+    private static final double LNG = 153.02;
+
+    @Test
+    public void transitions_matchTheSimulator_onEveryFix() {
+        List<GeofenceSpec> fences = randomFences(200, 0.04, 1);
+        LocationTrace trace = LocationTrace.randomWalk(100000, LAT, LNG, 5, 1000, 2);
+
+        GeofenceSimulator simulator = new GeofenceSimulator(fences);
+        final RecordingListener expected = new RecordingListener();
+        simulator.setHandler(new GeofenceSimulator.TransitionHandler() {
+            @Override
+            public void onTransition(int transition, List<String> requestIds, long timeMillis) {
+                expected.onTransition(transition, requestIds, timeMillis);
+            }
+        });
+        simulator.replay(trace);
+
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(new LocalGeofenceEngine.Config());
+        RecordingListener events = new RecordingListener();
+        engine.setListener(events);
+        engine.addGeofences(fences);
+        for (int i = 0; i < trace.size(); i++) {
+            engine.onLocation(trace.latitudes[i], trace.longitudes[i], 0, trace.timesMillis[i]);
+        }
+        assertTrue(expected.log.size() > 10);
+        assertEquals(expected.log, events.log);
+    }
+
+    @Test
+    public void dwell_isReportedAfterTheLoiteringDelay() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(new LocalGeofenceEngine.Config());
+        RecordingListener events = new RecordingListener();
+        engine.setListener(events);
+        engine.addGeofences(Collections.singletonList(new GeofenceSpec("cafe", LAT, LNG, 50, DWELL, 60000, 0)));
+
+        // Inside, the next fix comes no later than the end of the loitering delay
+        long interval = engine.onLocation(LAT, LNG, 0, 0);
+        assertTrue(events.log.isEmpty());
+        assertEquals(10000, interval);
+        engine.onLocation(LAT, LNG, 0, 59999);
+        assertTrue(events.log.isEmpty());
+        engine.onLocation(LAT, LNG, 0, 60000);
+        assertEquals(Collections.singletonList("4 [cafe] @60000"), events.log);
+        // Only once per visit
+        engine.onLocation(LAT, LNG, 0, 120000);
+        assertEquals(1, events.log.size());
+        engine.onLocation(LAT + 0.01, LNG, 0, 130000);
+        assertEquals("2 [cafe] @130000", events.log.get(1));
+    }
+
+    @Test
+    public void changingFences_keepsTheStateOfTheOthers() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(new LocalGeofenceEngine.Config());
+        RecordingListener events = new RecordingListener();
+        engine.setListener(events);
+        GeofenceSpec home = new GeofenceSpec("home", LAT, LNG, 50, BOTH);
+        GeofenceSpec office = new GeofenceSpec("office", LAT, LNG, 100, BOTH);
+        engine.addGeofences(Collections.singletonList(home));
+        engine.onLocation(LAT, LNG, 0, 0);
+        assertEquals(Collections.singletonList("1 [home] @0"), events.log);
+
+        // A new fence reports ENTER straight away, the one we're in doesn't report it again
+        engine.addGeofences(Collections.singletonList(office));
+        engine.onLocation(LAT, LNG, 0, 1000);
+        assertEquals("1 [office] @1000", events.log.get(1));
+        // A fence added again starts over, like Play Services' INITIAL_TRIGGER_ENTER
+        engine.addGeofences(Collections.singletonList(new GeofenceSpec("home", LAT, LNG, 60, BOTH)));
+        engine.onLocation(LAT, LNG, 0, 2000);
+        assertEquals("1 [home] @2000", events.log.get(2));
+        // Removed fences never report their EXIT
+        engine.removeGeofences(Collections.singletonList("office"));
+        engine.onLocation(LAT + 0.01, LNG, 0, 3000);
+        assertEquals(Collections.singletonList("2 [home] @3000"), events.log.subList(3, events.log.size()));
+        assertEquals(1, engine.size());
+
+        engine.removeAllGeofences();
+        assertEquals(15 * 60 * 1000L, engine.onLocation(LAT, LNG, 0, 4000));
+        assertEquals(4, events.log.size());
+    }
+
+    @Test
+    public void interval_growsWithTheDistanceToTheClosestBoundary() {
+        LocalGeofenceEngine.Config config = new LocalGeofenceEngine.Config();
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(config);
+        engine.addGeofences(Collections.singletonList(new GeofenceSpec("home", LAT, LNG, 100, BOTH)));
+        long previous = 0;
+        for (int meters = 0; meters <= 20000; meters += 500) {
+            long interval = engine.onLocation(LAT + meters / GeoMath.METERS_PER_DEGREE, LNG, 0, 0);
+            assertTrue(meters + " m: " + interval, interval >= previous);
+            previous = interval;
+        }
+        // At the center, 100 m from the boundary
+        assertEquals(10000, engine.onLocation(LAT, LNG, 0, 0));
+        // On the boundary
+        assertEquals(config.minIntervalMillis, engine.onLocation(LAT + 100 / GeoMath.METERS_PER_DEGREE, LNG, 0, 0));
+        // 1 km out, less a 100 m accuracy, at 15 m/s
+        assertEquals(60000, engine.onLocation(LAT + 1100 / GeoMath.METERS_PER_DEGREE, LNG, 100, 0));
+        // Far away
+        assertEquals(config.maxIntervalMillis, engine.onLocation(LAT + 0.5, LNG, 0, 0));
+    }
+
+    /**
+     * Polls a 10 m/s trace only as often as the engine asks, every visit longer than the shortest
+     * interval is still seen, with far fewer fixes than polling every second
+     */
+    @Test
+    public void savedState_carriesOverToAnotherProcess() throws IOException {
+        File directory = File.createTempFile("local", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            LocalGeofenceEngine engine = new LocalGeofenceEngine(new LocalGeofenceEngine.Config());
+            RecordingListener events = new RecordingListener();
+            engine.setListener(events);
+            engine.addGeofences(Arrays.asList(new GeofenceSpec("cafe", LAT, LNG, 50, DWELL, 60000, 0),
+                    new GeofenceSpec("home", LAT + 0.01, LNG, 50, BOTH)));
+            engine.onLocation(LAT, LNG, 0, 0);
+            engine.save(directory);
+            assertTrue(LocalGeofenceEngine.hasSaved(directory));
+
+            // The process died, the next fix starts a new one
+            LocalGeofenceEngine restored = new LocalGeofenceEngine(new LocalGeofenceEngine.Config());
+            restored.setListener(events);
+            assertTrue(restored.restore(directory));
+            assertEquals(2, restored.size());
+            restored.onLocation(LAT, LNG, 0, 60000);
+            assertEquals(Collections.singletonList("4 [cafe] @60000"), events.log);
+            restored.onLocation(LAT + 0.01, LNG, 0, 70000);
+            assertEquals(Arrays.asList("4 [cafe] @60000", "2 [cafe] @70000", "1 [home] @70000"), events.log);
+            restored.save(directory);
+
+            LocalGeofenceEngine again = new LocalGeofenceEngine(new LocalGeofenceEngine.Config());
+            again.setListener(events);
+            assertTrue(again.restore(directory));
+            again.onLocation(LAT + 0.01, LNG, 0, 80000);
+            assertEquals(3, events.log.size());
+
+            // Nothing registered, nothing saved
+            again.removeAllGeofences();
+            again.save(directory);
+            assertFalse(LocalGeofenceEngine.hasSaved(directory));
+            assertFalse(new LocalGeofenceEngine(new LocalGeofenceEngine.Config()).restore(directory));
+        } finally {
+            LocalGeofenceEngine.deleteSaved(directory);
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void adaptivePolling_seesEveryVisit_withFewerFixes() {
+        // Spread wide, the walk wanders some 20 km away
+        List<GeofenceSpec> fences = randomFences(2000, 0.4, 3);
+        LocationTrace trace = LocationTrace.randomWalk(200000, LAT, LNG, 10, 1000, 4);
+        LocalGeofenceEngine.Config config = new LocalGeofenceEngine.Config();
+
+        // Every visit, from polling every second
+        final Map<String, Long> enteredAt = new HashMap<>();
+        final List<long[]> visits = new ArrayList<>();
+        final List<String> visitIds = new ArrayList<>();
+        GeofenceSimulator simulator = new GeofenceSimulator(fences);
+        simulator.setHandler(new GeofenceSimulator.TransitionHandler() {
+            @Override
+            public void onTransition(int transition, List<String> requestIds, long timeMillis) {
+                for (String requestId : requestIds) {
+                    if (transition == RingerController.TRANSITION_ENTER) {
+                        enteredAt.put(requestId, timeMillis);
+                    } else {
+                        visits.add(new long[]{enteredAt.remove(requestId), timeMillis});
+                        visitIds.add(requestId);
+                    }
+                }
+            }
+        });
+        simulator.replay(trace);
+
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(config);
+        engine.addGeofences(fences);
+        // The times the engine put the device inside each fence, as ENTER, EXIT pairs
+        final Map<String, List<Long>> inside = new HashMap<>();
+        engine.setListener(new LocalGeofenceEngine.Listener() {
+            @Override
+            public void onTransition(int transition, List<String> requestIds, long timeMillis) {
+                for (String requestId : requestIds) {
+                    if (!inside.containsKey(requestId)) inside.put(requestId, new ArrayList<Long>());
+                    inside.get(requestId).add(timeMillis);
+                }
+            }
+        });
+        int i = 0;
+        while (i < trace.size()) {
+            long interval = engine.onLocation(trace.latitudes[i], trace.longitudes[i], 0, trace.timesMillis[i]);
+            i += (int) Math.max(1, interval / 1000);
+        }
+
+        int checked = 0;
+        for (int v = 0; v < visits.size(); v++) {
+            long[] visit = visits.get(v);
+            // Fixes are a second apart, so a visit this long has a poll inside it
+            if (visit[1] - visit[0] <= config.minIntervalMillis + 1000) continue;
+            checked++;
+            // Seen if the engine had the device inside at some point of the visit, a short step
+            // out between two polls isn't noticed
+            boolean seen = false;
+            List<Long> times = inside.get(visitIds.get(v));
+            if (times != null) {
+                for (int t = 0; t < times.size(); t += 2) {
+                    long exit = t + 1 < times.size() ? times.get(t + 1) : Long.MAX_VALUE;
+                    seen |= times.get(t) < visit[1] && exit > visit[0];
+                }
+            }
+            assertTrue("Missed " + visitIds.get(v) + " " + visit[0] + ".." + visit[1], seen);
+        }
+        assertTrue(checked > 20);
+        assertTrue(engine.getFixCount() * 4 < trace.size());
+    }
+
+    @Test
+    public void throughput() {
+        List<GeofenceSpec> fences = randomFences(100, 0.04, 5);
+        LocationTrace trace = LocationTrace.randomWalk(1000000, LAT, LNG, 5, 1000, 6);
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(new LocalGeofenceEngine.Config());
+        engine.addGeofences(fences);
+        long start = System.nanoTime();
+        for (int i = 0; i < trace.size(); i++) {
+            engine.onLocation(trace.latitudes[i], trace.longitudes[i], 0, trace.timesMillis[i]);
+        }
+        long elapsed = System.nanoTime() - start;
+        double perSecond = trace.size() * 1e9 / elapsed;
+        // A device takes a fix every few seconds at most
+        assertTrue(perSecond + " fixes/s", perSecond > 100000);
+    }
+
+    /**
+     * Fences of 50 to 150 m around the trace start, 0.04 degrees is about 4 x 4 km
+     */
+    private static List<GeofenceSpec> randomFences(int count, double spanDegrees, long seed) {
+        Random random = new Random(seed);
+        List<GeofenceSpec> fences = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            fences.add(new GeofenceSpec("fence" + i, LAT + (random.nextDouble() - 0.5) * spanDegrees * 0.9,
+                    LNG + (random.nextDouble() - 0.5) * spanDegrees, 50 + random.nextInt(100), BOTH));
+        }
+        return fences;
+    }
+
+    private static class RecordingListener implements LocalGeofenceEngine.Listener {
+        final List<String> log = new ArrayList<>();
+
+        @Override
+        public void onTransition(int transition, List<String> requestIds, long timeMillis) {
+            List<String> sorted = new ArrayList<>(requestIds);
+            Collections.sort(sorted);
+            log.add(transition + " " + sorted + " @" + timeMillis);
+        }
+    }
+}
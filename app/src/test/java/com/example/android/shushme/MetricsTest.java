@@ -0,0 +1,108 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link Metrics}
+ */
+public class MetricsTest {
+
+    @Test
+    public void sameName_returnsSameMetric() {
+        assertSame(Metrics.counter("test.same"), Metrics.counter("test.same"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sameNameOtherType_throws() {
+        Metrics.counter("test.clash");
+        Metrics.gauge("test.clash");
+    }
+
+    @Test
+    public void histogram_bucketsAndPercentiles() {
+        Metrics.Histogram histogram = Metrics.histogram("test.percentiles");
+        assertEquals(0, Metrics.Histogram.bucketOf(999));
+        assertEquals(1, Metrics.Histogram.bucketOf(1000));
+        assertEquals(2, Metrics.Histogram.bucketOf(2000));
+        assertEquals(Metrics.Histogram.BUCKETS - 1, Metrics.Histogram.bucketOf(Long.MAX_VALUE));
+        // 90 fast samples around 3 us and 10 slow ones around 5 ms
+        for (int i = 0; i < 90; i++) histogram.record(3000);
+        for (int i = 0; i < 10; i++) histogram.record(5000000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(4000, histogram.getPercentileNanos(50));
+        assertEquals(4000, histogram.getPercentileNanos(90));
+        assertEquals(5000000, histogram.getPercentileNanos(99));
+        assertEquals(5000000, histogram.getMaxNanos());
+
+        StringWriter out = new StringWriter();
+        Metrics.dump(new PrintWriter(out));
+        assertTrue(out.toString(), out.toString().contains("test.percentiles histogram count=100"));
+    }
+
+    @Test
+    public void concurrentRecording_losesNothing() throws InterruptedException {
+        final Metrics.Counter counter = Metrics.counter("test.concurrent.counter");
+        final Metrics.Histogram histogram = Metrics.histogram("test.concurrent.histogram");
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.increment();
+                        histogram.record((seed * 100000 + i) * 10L);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(800000, counter.get());
+        assertEquals(800000, histogram.getCount());
+        assertEquals(799999 * 10L, histogram.getMaxNanos());
+        long buckets = 0;
+        for (int b = 0; b < Metrics.Histogram.BUCKETS; b++) buckets += histogram.getBucketCount(b);
+        assertEquals(800000, buckets);
+    }
+
+    @Test
+    public void recording_isCheapAndDoesNotAllocate() {
+        Metrics.Histogram histogram = Metrics.histogram("test.overhead.histogram");
+        Metrics.Counter counter = Metrics.counter("test.overhead.counter");
+        Metrics.Gauge gauge = Metrics.gauge("test.overhead.gauge");
+        int samples = 5000000;
+        // Warm up
+        for (int i = 0; i < samples; i++) {
+            histogram.record(i);
+            counter.increment();
+            gauge.set(i);
+        }
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = bean instanceof com.sun.management.ThreadMXBean
+                ? ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread) : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            histogram.record(i);
+            counter.increment();
+            gauge.set(i);
+        }
+        double nanosPerRecording = (System.nanoTime() - start) / (double) samples;
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            long allocated = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread)
+                    - allocatedBefore;
+            assertTrue("Allocated " + allocated + " bytes", allocated < 1000);
+        }
+        assertTrue(nanosPerRecording + " ns per recording", nanosPerRecording < 1000);
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link PlaceImporter}, using kXML as the pull parser.
+ */
+public class PlaceImporterTest {
+
+    @Test
+    public void importsBundledKml() throws Exception {
+        CollectingSink sink = new CollectingSink();
+        PlaceImporter importer = new PlaceImporter(sink, PlaceImporter.DEFAULT_BATCH_SIZE);
+        Reader reader = new InputStreamReader(new FileInputStream(TestPlaces.bundledKml()), "UTF-8");
+        try {
+            assertEquals(4, importer.importFrom(reader, PlaceImporter.FORMAT_KML, new KXmlParser()));
+        } finally {
+            reader.close();
+        }
+        assertEquals(4, sink.places.size());
+        PlaceRecord starbucks = sink.places.get(1);
+        assertEquals("Starbucks", starbucks.name);
+        assertEquals("Starbucks", starbucks.address);
+        assertEquals(-27.4703356, starbucks.latitude, 1e-9);
+        assertEquals(153.0257259, starbucks.longitude, 1e-9);
+        assertTrue(starbucks.uid.startsWith(PlaceImporter.UID_PREFIX));
+    }
+
+    @Test
+    public void importsGpxWaypoints() throws Exception {
+        String gpx = "<?xml version=\"1.0\"?><gpx version=\"1.1\">"
+                + "<wpt lat=\"-27.47\" lon=\"153.02\"><name>Cafe</name><desc>Main st</desc></wpt>"
+                + "<trk><trkseg><trkpt lat=\"1\" lon=\"1\"><name>ignored</name></trkpt></trkseg></trk>"
+                + "<wpt lat=\"-27.48\" lon=\"153.03\"><cmt>No name</cmt></wpt>"
+                + "</gpx>";
+        CollectingSink sink = new CollectingSink();
+        PlaceImporter importer = new PlaceImporter(sink, 10);
+        assertEquals(2, importer.importFrom(new StringReader(gpx), PlaceImporter.FORMAT_GPX, new KXmlParser()));
+        assertEquals("Cafe", sink.places.get(0).name);
+        assertEquals("Main st", sink.places.get(0).address);
+        assertEquals("No name", sink.places.get(1).address);
+    }
+
+    @Test
+    public void importsCsvWithQuotesAndSkipsDuplicates() throws Exception {
+        String csv = "name,address,latitude,longitude,id\n"
+                + "\"Cafe, the\",\"1 \"\"Main\"\" st\",-27.47,153.02,a\n"
+                + "Copy by id,,-27.0,153.0,a\n"
+                + "Copy by coordinates,,-27.47,153.02,\n"
+                + "Broken,,north,153.02,\n"
+                + "Library,,-27.4764,153.0203,\n";
+        CollectingSink sink = new CollectingSink();
+        PlaceImporter importer = new PlaceImporter(sink, 10);
+        assertEquals(2, importer.importFrom(new StringReader(csv), PlaceImporter.FORMAT_CSV, null));
+        assertEquals(5, importer.getParsedCount());
+        assertEquals(2, importer.getDuplicateCount());
+        assertEquals("Cafe, the", sink.places.get(0).name);
+        assertEquals("1 \"Main\" st", sink.places.get(0).address);
+        assertEquals(PlaceImporter.UID_PREFIX + "a", sink.places.get(0).uid);
+    }
+
+    @Test
+    public void importsGeofenceSettings_orDefaults() throws Exception {
+        String csv = "name,lat,lng,radius,loitering_delay,responsiveness\n"
+                + "Office,-27.47,153.02,120,300000,60000\n"
+                + "Gym,-27.48,153.03,,,\n"
+                + "Bad,-27.49,153.04,-5,-1,soon\n";
+        CollectingSink sink = new CollectingSink();
+        PlaceImporter importer = new PlaceImporter(sink, 10);
+        assertEquals(3, importer.importFrom(new StringReader(csv), PlaceImporter.FORMAT_CSV, null));
+        PlaceRecord office = sink.places.get(0);
+        assertEquals(120, office.radius, 0);
+        assertEquals(300000, office.loiteringDelay);
+        assertEquals(60000, office.responsiveness);
+        for (PlaceRecord place : sink.places.subList(1, 3)) {
+            assertEquals(PlaceRecord.DEFAULT_RADIUS, place.radius, 0);
+            assertEquals(0, place.loiteringDelay);
+            assertEquals(0, place.responsiveness);
+        }
+
+        String kml = "<kml><Document><Placemark><name>Church</name><ExtendedData>"
+                + "<Data name=\"radius\"><value>80</value></Data>"
+                + "<Data name=\"loitering_delay\"><value>600000</value></Data>"
+                + "</ExtendedData><Point><coordinates>153.0,-27.5</coordinates></Point></Placemark>"
+                + "<Placemark><name>Shop</name><Point><coordinates>153.1,-27.6</coordinates></Point></Placemark>"
+                + "</Document></kml>";
+        sink = new CollectingSink();
+        importer = new PlaceImporter(sink, 10);
+        assertEquals(2, importer.importFrom(new StringReader(kml), PlaceImporter.FORMAT_KML, new KXmlParser()));
+        assertEquals("Church", sink.places.get(0).name);
+        assertEquals(80, sink.places.get(0).radius, 0);
+        assertEquals(600000, sink.places.get(0).loiteringDelay);
+        assertEquals(PlaceRecord.DEFAULT_RADIUS, sink.places.get(1).radius, 0);
+        assertEquals(0, sink.places.get(1).loiteringDelay);
+    }
+
+    @Test
+    public void uidsWithEqualHashes_areNotDuplicates() {
+        PlaceImporter.UidSet uids = new PlaceImporter.UidSet();
+        uids.add(42, "import:a");
+        assertTrue(uids.contains(42, "import:a"));
+        // Another UID with the same hash
+        assertFalse(uids.contains(42, "import:b"));
+        uids.add(42, "import:b");
+        assertTrue(uids.contains(42, "import:a"));
+        assertTrue(uids.contains(42, "import:b"));
+        for (int i = 0; i < 5000; i++) uids.add(i % 7, "import:" + i);
+        for (int i = 0; i < 5000; i++) assertTrue(uids.contains(i % 7, "import:" + i));
+        assertFalse(uids.contains(0, "import:5000"));
+    }
+
+    @Test
+    public void existingPlacesAreSkipped() throws Exception {
+        CollectingSink sink = new CollectingSink();
+        PlaceImporter importer = new PlaceImporter(sink, 10);
+        importer.addExisting("somePlaceId", -27.4703356, 153.0257259);
+        String csv = "lat,lng\n-27.4703356,153.0257259\n-27.5,153.1\n";
+        assertEquals(1, importer.importFrom(new StringReader(csv), PlaceImporter.FORMAT_CSV, null));
+    }
+
+    @Test
+    public void largeKml_isStreamedInBoundedBatches() throws Exception {
+        final int count = 100000;
+        File file = File.createTempFile("places", ".kml");
+        file.deleteOnExit();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n");
+            for (int i = 0; i < count; i++) {
+                writer.write("<Placemark id=\"p" + i + "\"><name>Place " + i + "</name>"
+                        + "<description>Generated</description><Point><coordinates>"
+                        + (152 + (i % 1000) * 0.001) + "," + (-28 + (i / 1000) * 0.001)
+                        + ",0</coordinates></Point></Placemark>\n");
+            }
+            // Every 10th placemark repeated at the end
+            for (int i = 0; i < count; i += 10) {
+                writer.write("<Placemark id=\"p" + i + "\"><name>Again</name><Point><coordinates>0,0,0"
+                        + "</coordinates></Point></Placemark>\n");
+            }
+            writer.write("</Document></kml>\n");
+        } finally {
+            writer.close();
+        }
+
+        CountingSink sink = new CountingSink();
+        PlaceImporter importer = new PlaceImporter(sink, PlaceImporter.DEFAULT_BATCH_SIZE);
+        final int[] progressCalls = new int[1];
+        importer.setProgressListener(new PlaceImporter.ProgressListener() {
+            @Override
+            public void onProgress(int parsed, int imported) {
+                progressCalls[0]++;
+            }
+        });
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        long start = System.nanoTime();
+        int imported;
+        try {
+            imported = importer.importFrom(reader, PlaceImporter.FORMAT_KML, new KXmlParser());
+        } finally {
+            reader.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(count, imported);
+        assertEquals(count / 10, importer.getDuplicateCount());
+        assertEquals(count, sink.rows);
+        assertTrue(sink.largestBatch <= PlaceImporter.DEFAULT_BATCH_SIZE);
+        assertEquals(count / PlaceImporter.DEFAULT_BATCH_SIZE, progressCalls[0]);
+        assertTrue("Import too slow: " + seconds + " s", imported / seconds > 20000);
+    }
+
+    private static class CollectingSink implements PlaceImporter.Sink {
+        final List<PlaceRecord> places = new ArrayList<>();
+
+        @Override
+        public void insert(List<PlaceRecord> batch) {
+            places.addAll(batch);
+        }
+    }
+
+    private static class CountingSink implements PlaceImporter.Sink {
+        int rows;
+        int largestBatch;
+
+        @Override
+        public void insert(List<PlaceRecord> batch) {
+            rows += batch.size();
+            largestBatch = Math.max(largestBatch, batch.size());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for {@link PlaceReconciler}, counting the reads and writes it makes against the
+ * local place store.
+ */
+public class PlaceReconcilerTest {
+
+    @Test
+    public void reconcile_queriesOnceAndWritesOnce_regardlessOfSize() {
+        for (int size : new int[]{1, 100, 10000}) {
+            FakeStore store = new FakeStore(size);
+            List<PlaceRecord> live = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                // Rename every other place
+                String name = i % 2 == 0 ? "renamed" + i : "name" + i;
+                live.add(new PlaceRecord(PlaceRecord.NO_ID, "uid" + i, name, "address" + i, 0, 0));
+            }
+            int updated = new PlaceReconciler(store).reconcile(live);
+            assertEquals((size + 1) / 2, updated);
+            assertEquals(1, store.loadCalls);
+            assertEquals(1, store.applyCalls);
+            assertEquals((size + 1) / 2, store.applied.size());
+        }
+    }
+
+    @Test
+    public void reconcile_unchangedPlaces_writeNothing() {
+        FakeStore store = new FakeStore(50);
+        List<PlaceRecord> live = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            live.add(new PlaceRecord(PlaceRecord.NO_ID, "uid" + i, "name" + i, "address" + i, 0, 0));
+        }
+        assertEquals(0, new PlaceReconciler(store).reconcile(live));
+        assertEquals(1, store.loadCalls);
+        assertEquals(0, store.applyCalls);
+    }
+
+    @Test
+    public void reconcile_keepsLocalIdAndSkipsUnknownPlaces() {
+        FakeStore store = new FakeStore(3);
+        List<PlaceRecord> live = new ArrayList<>();
+        live.add(new PlaceRecord(PlaceRecord.NO_ID, "uid1", "name1", "moved", 0, 0));
+        live.add(new PlaceRecord(PlaceRecord.NO_ID, "unknown", "x", "y", 0, 0));
+        assertEquals(1, new PlaceReconciler(store).reconcile(live));
+        PlaceRecord update = store.applied.get(0);
+        assertEquals(1001L, update.id);
+        assertEquals("moved", update.address);
+    }
+
+    private static class FakeStore implements PlaceReconciler.Store {
+        final Map<String, PlaceRecord> rows = new HashMap<>();
+        final List<PlaceRecord> applied = new ArrayList<>();
+        int loadCalls;
+        int applyCalls;
+
+        FakeStore(int size) {
+            for (int i = 0; i < size; i++) {
+                rows.put("uid" + i, new PlaceRecord(1000 + i, "uid" + i, "name" + i, "address" + i, 0, 0));
+            }
+        }
+
+        @Override
+        public Map<String, PlaceRecord> loadAll() {
+            loadCalls++;
+            return new HashMap<>(rows);
+        }
+
+        @Override
+        public void applyUpdates(List<PlaceRecord> updates) {
+            applyCalls++;
+            applied.addAll(updates);
+        }
+    }
+}
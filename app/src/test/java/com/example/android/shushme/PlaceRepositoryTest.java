@@ -0,0 +1,362 @@
+package com.example.android.shushme;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link PlaceRepository}, against an in-memory places table
+ */
+public class PlaceRepositoryTest {
+
+    private ExecutorService mDispatcher;
+    private FakeTable mTable;
+    private PlaceRepository mRepository;
+
+    @Before
+    public void setUp() {
+        mDispatcher = Executors.newSingleThreadExecutor();
+        mTable = new FakeTable();
+        mRepository = new PlaceRepository(mTable, mDispatcher);
+    }
+
+    @After
+    public void tearDown() {
+        mDispatcher.shutdownNow();
+    }
+
+    @Test
+    public void snapshot_isLoadedOnce_andIndexedByIdAndUid() {
+        for (int i = 0; i < 1000; i++) mTable.insert("uid" + i);
+        PlaceRepository.Snapshot snapshot = mRepository.getSnapshot();
+        assertEquals(1000, snapshot.size());
+        assertSame(snapshot.getById(500), snapshot.getByUid("uid499"));
+        assertNull(snapshot.getByUid("missing"));
+        long previous = 0;
+        for (PlaceRecord place : snapshot.getAll()) {
+            assertTrue(place.id > previous);
+            previous = place.id;
+        }
+        assertSame(snapshot, mRepository.getSnapshot());
+        assertEquals(1, mTable.loadAllCalls.get());
+    }
+
+    @Test
+    public void changes_arePublishedAsTypedDeltas() throws InterruptedException {
+        long kept = mTable.insert("kept");
+        long renamed = mTable.insert("renamed");
+        long removed = mTable.insert("removed");
+        RecordingListener listener = new RecordingListener();
+        mRepository.subscribe(listener);
+        listener.await(1);
+        assertEquals(3, listener.deltas.get(0).size());
+
+        long added = mTable.insert("added");
+        mTable.update(renamed, "new name", 50);
+        mTable.delete(removed);
+        mRepository.onPlacesChanged(Arrays.asList(kept, renamed, removed, added));
+        listener.await(2);
+
+        List<PlaceRepository.Delta> deltas = listener.deltas.get(1);
+        Map<Integer, PlaceRepository.Delta> byType = new HashMap<>();
+        for (PlaceRepository.Delta delta : deltas) byType.put(delta.type, delta);
+        assertEquals(3, deltas.size());
+        assertEquals(added, byType.get(PlaceRepository.Delta.ADDED).after.id);
+        assertEquals("renamed", byType.get(PlaceRepository.Delta.UPDATED).before.name);
+        assertEquals("new name", byType.get(PlaceRepository.Delta.UPDATED).after.name);
+        assertEquals(removed, byType.get(PlaceRepository.Delta.REMOVED).before.id);
+        assertNull(byType.get(PlaceRepository.Delta.REMOVED).after);
+
+        PlaceRepository.Snapshot snapshot = listener.snapshots.get(1);
+        assertSame(snapshot, mRepository.getSnapshot());
+        assertEquals(3, snapshot.size());
+        assertNull(snapshot.getById(removed));
+        assertEquals("new name", snapshot.getByUid("renamed").name);
+    }
+
+    @Test
+    public void subscribe_runsOnLoadedAfterTheFirstDelivery() throws InterruptedException {
+        final RecordingListener listener = new RecordingListener();
+        final AtomicInteger delivered = new AtomicInteger(-1);
+        final CountDownLatch loaded = new CountDownLatch(1);
+        Runnable onLoaded = new Runnable() {
+            @Override
+            public void run() {
+                delivered.set(listener.deltas.size());
+                loaded.countDown();
+            }
+        };
+        // Also with no places, when the listener isn't called
+        mRepository.subscribe(listener, onLoaded);
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        assertEquals(0, delivered.get());
+
+        mTable.insert("uid");
+        PlaceRepository repository = new PlaceRepository(mTable, mDispatcher);
+        final CountDownLatch loadedAgain = new CountDownLatch(1);
+        final RecordingListener other = new RecordingListener();
+        repository.subscribe(other, new Runnable() {
+            @Override
+            public void run() {
+                delivered.set(other.deltas.size());
+                loadedAgain.countDown();
+            }
+        });
+        assertTrue(loadedAgain.await(10, TimeUnit.SECONDS));
+        assertEquals(1, delivered.get());
+    }
+
+    @Test
+    public void unchangedRows_publishNothing() throws InterruptedException {
+        long id = mTable.insert("uid");
+        PlaceRepository.Snapshot before = mRepository.getSnapshot();
+        RecordingListener listener = new RecordingListener();
+        mRepository.subscribe(listener);
+        listener.await(1);
+
+        // Rewritten with the same values, e.g. only the last synced time changed
+        mRepository.onPlacesChanged(Collections.singletonList(id));
+        // A row that doesn't exist was deleted
+        mRepository.onPlacesChanged(Collections.singletonList(12345L));
+        assertSame(before, mRepository.getSnapshot());
+        drainDispatcher();
+        assertEquals(1, listener.deltas.size());
+    }
+
+    @Test
+    public void changesBeforeTheFirstRead_areLoaded() {
+        long id = mTable.insert("uid");
+        mRepository.onPlacesChanged(Collections.singletonList(id));
+        assertEquals(0, mTable.loadByIdsCalls.get());
+        assertEquals("uid", mRepository.getSnapshot().getById(id).uid);
+    }
+
+    /**
+     * Writers change the table and report it while readers check every snapshot they get is
+     * consistent, and a subscriber rebuilds the table from the deltas alone
+     */
+    @Test
+    public void concurrentReadersAndWriters_seeConsistentSnapshots() throws Exception {
+        for (int i = 0; i < 2000; i++) mTable.insert("uid" + i);
+        final Map<Long, PlaceRecord> rebuilt = new HashMap<>();
+        final AtomicLong lastVersion = new AtomicLong();
+        final AtomicReference<String> dispatchError = new AtomicReference<>();
+        mRepository.subscribe(new PlaceRepository.Listener() {
+            @Override
+            public void onPlacesChanged(PlaceRepository.Snapshot snapshot, List<PlaceRepository.Delta> deltas) {
+                if (snapshot.version <= lastVersion.get()) dispatchError.set("Out of order " + snapshot.version);
+                lastVersion.set(snapshot.version);
+                for (PlaceRepository.Delta delta : deltas) {
+                    if (delta.type == PlaceRepository.Delta.REMOVED) {
+                        rebuilt.remove(delta.before.id);
+                    } else {
+                        rebuilt.put(delta.after.id, delta.after);
+                    }
+                }
+            }
+        });
+
+        final int writers = 4;
+        final int readers = 4;
+        final int writesPerWriter = 2000;
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> readError = new AtomicReference<>();
+        final AtomicInteger reads = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(writers + readers);
+        final CountDownLatch writersDone = new CountDownLatch(writers);
+        for (int w = 0; w < writers; w++) {
+            final Random random = new Random(w);
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < writesPerWriter; i++) write(random);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            });
+        }
+        for (int r = 0; r < readers; r++) {
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long version = 0;
+                    while (writing.get()) {
+                        PlaceRepository.Snapshot snapshot = mRepository.getSnapshot();
+                        String error = check(snapshot, version);
+                        if (error != null) readError.compareAndSet(null, error);
+                        version = snapshot.version;
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+        }
+        assertTrue(writersDone.await(60, TimeUnit.SECONDS));
+        writing.set(false);
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+        drainDispatcher();
+
+        assertNull(readError.get());
+        assertNull(dispatchError.get());
+        assertTrue(reads.get() > 0);
+        // The repository, the table and what the subscriber rebuilt all agree
+        PlaceRepository.Snapshot snapshot = mRepository.getSnapshot();
+        Map<Long, PlaceRecord> table = mTable.copy();
+        assertEquals(table.size(), snapshot.size());
+        for (PlaceRecord place : table.values()) {
+            assertEquals(place, snapshot.getById(place.id));
+            assertEquals(place, snapshot.getByUid(place.uid));
+        }
+        assertEquals(table, rebuilt);
+        assertNull(check(snapshot, 0));
+    }
+
+    /**
+     * One random insert, update or delete, reported like the provider does after it commits
+     */
+    private void write(Random random) {
+        List<Long> ids = mTable.ids();
+        long id;
+        switch (random.nextInt(3)) {
+            case 0:
+                id = mTable.insert("new" + random.nextLong());
+                break;
+            case 1:
+                id = ids.get(random.nextInt(ids.size()));
+                mTable.update(id, "name" + random.nextInt(), 25 + random.nextInt(100));
+                break;
+            default:
+                id = ids.get(random.nextInt(ids.size()));
+                mTable.delete(id);
+                break;
+        }
+        mRepository.onPlacesChanged(Collections.singletonList(id));
+    }
+
+    private static String check(PlaceRepository.Snapshot snapshot, long previousVersion) {
+        if (snapshot.version < previousVersion) return "Version went back to " + snapshot.version;
+        int count = 0;
+        long previousId = 0;
+        for (PlaceRecord place : snapshot.getAll()) {
+            count++;
+            if (place.id <= previousId) return "Not ordered by id at " + place;
+            previousId = place.id;
+            if (snapshot.getById(place.id) != place) return "Id index out of date for " + place;
+            if (snapshot.getByUid(place.uid) != place) return "Uid index out of date for " + place;
+        }
+        if (count != snapshot.size()) return "Size " + snapshot.size() + " but " + count + " places";
+        return null;
+    }
+
+    private void drainDispatcher() throws InterruptedException {
+        final CountDownLatch drained = new CountDownLatch(1);
+        mDispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+    }
+
+    private static class RecordingListener implements PlaceRepository.Listener {
+        final List<PlaceRepository.Snapshot> snapshots = Collections.synchronizedList(
+                new ArrayList<PlaceRepository.Snapshot>());
+        final List<List<PlaceRepository.Delta>> deltas = Collections.synchronizedList(
+                new ArrayList<List<PlaceRepository.Delta>>());
+
+        @Override
+        public synchronized void onPlacesChanged(PlaceRepository.Snapshot snapshot,
+                                                 List<PlaceRepository.Delta> changes) {
+            snapshots.add(snapshot);
+            deltas.add(changes);
+            notifyAll();
+        }
+
+        synchronized void await(int calls) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (deltas.size() < calls && System.currentTimeMillis() < deadline) wait(100);
+            assertEquals(calls, deltas.size());
+        }
+    }
+
+    /**
+     * The places table, rows are replaced whole like a committed SQLite write
+     */
+    private static class FakeTable implements PlaceRepository.Source {
+        private final Map<Long, PlaceRecord> mRows = new ConcurrentHashMap<>();
+        private final AtomicLong mNextId = new AtomicLong(1);
+        final AtomicInteger loadAllCalls = new AtomicInteger();
+        final AtomicInteger loadByIdsCalls = new AtomicInteger();
+
+        long insert(String uid) {
+            long id = mNextId.getAndIncrement();
+            mRows.put(id, new PlaceRecord(id, uid, uid, "address", -27 - id * 1e-5, 153, 50, 0, 0));
+            return id;
+        }
+
+        synchronized void update(long id, String name, float radius) {
+            PlaceRecord row = mRows.get(id);
+            if (row == null) return;
+            mRows.put(id, new PlaceRecord(id, row.uid, name, row.address, row.latitude,
+                    row.longitude, radius, row.loiteringDelay, row.responsiveness));
+        }
+
+        void delete(long id) {
+            mRows.remove(id);
+        }
+
+        List<Long> ids() {
+            List<Long> ids = new ArrayList<>(mRows.keySet());
+            // Never empty, so that writers always have something to update
+            if (ids.isEmpty()) ids.add(insert("refill"));
+            return ids;
+        }
+
+        Map<Long, PlaceRecord> copy() {
+            return new HashMap<>(mRows);
+        }
+
+        @Override
+        public List<PlaceRecord> loadAll() {
+            loadAllCalls.incrementAndGet();
+            return new ArrayList<>(mRows.values());
+        }
+
+        @Override
+        public List<PlaceRecord> loadByIds(Collection<Long> ids) {
+            loadByIdsCalls.incrementAndGet();
+            List<PlaceRecord> places = new ArrayList<>();
+            for (Long id : ids) {
+                PlaceRecord row = mRows.get(id);
+                if (row != null) places.add(row);
+            }
+            return places;
+        }
+    }
+}
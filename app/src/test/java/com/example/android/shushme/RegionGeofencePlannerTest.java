@@ -0,0 +1,204 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link RegionGeofencePlanner} over synthetic datasets.
+ */
+public class RegionGeofencePlannerTest {
+
+    private static final int MAX_GEOFENCES = 100;
+    private static final int TRANSITIONS = 3; // ENTER | EXIT
+
+    @Test
+    public void fewPlaces_areRegisteredDirectly() {
+        RegionGeofencePlanner planner = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        planner.setPlaces(randomPlaces(100, 1));
+        assertEquals(0, planner.getRegionCount());
+        assertEquals(100, planner.getActiveGeofences().size());
+    }
+
+    @Test
+    public void manyPlaces_partitionCoversEveryPlaceOnce() {
+        List<GeofenceSpec> places = randomPlaces(20000, 2);
+        RegionGeofencePlanner planner = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        long start = System.nanoTime();
+        planner.setPlaces(places);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("partitioning took " + elapsedMs + " ms", elapsedMs < 2000);
+
+        Map<String, GeofenceSpec> active = planner.getActiveGeofences();
+        assertTrue(active.size() <= MAX_GEOFENCES);
+
+        Set<String> seen = new HashSet<>();
+        for (int r = 0; r < planner.getRegionCount(); r++) {
+            String regionId = RegionGeofencePlanner.REGION_PREFIX + r;
+            List<String> members = planner.getRegionMembers(regionId);
+            assertTrue(members.size() <= MAX_GEOFENCES / 2);
+            seen.addAll(members);
+        }
+        assertEquals(places.size(), seen.size());
+    }
+
+    @Test
+    public void regionCircle_containsAllMemberFences() {
+        List<GeofenceSpec> places = randomPlaces(10000, 3);
+        RegionGeofencePlanner planner = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        planner.setPlaces(places);
+        Map<String, GeofenceSpec> byId = new HashMap<>();
+        for (GeofenceSpec place : places) byId.put(place.requestId, place);
+
+        for (int r = 0; r < planner.getRegionCount(); r++) {
+            String regionId = RegionGeofencePlanner.REGION_PREFIX + r;
+            planner.onRegionEnter(regionId);
+            GeofenceSpec region = planner.getActiveGeofences().get(regionId);
+            assertNotNull(region);
+            for (String member : planner.getRegionMembers(regionId)) {
+                GeofenceSpec place = byId.get(member);
+                double d = GeoMath.distance(region.latitude, region.longitude, place.latitude, place.longitude);
+                assertTrue(d + place.radius <= region.radius + 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void enterAndExit_swapFineFences() {
+        RegionGeofencePlanner planner = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        planner.setPlaces(randomPlaces(10000, 4));
+        Map<String, GeofenceSpec> before = planner.getActiveGeofences();
+        for (String id : before.keySet()) assertTrue(RegionGeofencePlanner.isRegionId(id));
+
+        String regionId = before.keySet().iterator().next();
+        assertTrue(planner.onRegionEnter(regionId));
+        assertFalse(planner.onRegionEnter(regionId));
+        assertEquals(regionId, planner.getCurrentRegionId());
+        Map<String, GeofenceSpec> inside = planner.getActiveGeofences();
+        assertTrue(inside.size() <= MAX_GEOFENCES);
+        assertTrue(inside.containsKey(regionId));
+        for (String member : planner.getRegionMembers(regionId)) {
+            assertTrue(inside.containsKey(member));
+        }
+
+        // Exiting some other region changes nothing
+        assertFalse(planner.onRegionExit(RegionGeofencePlanner.REGION_PREFIX + "nope"));
+        assertTrue(planner.onRegionExit(regionId));
+        assertNull(planner.getCurrentRegionId());
+        for (String id : planner.getActiveGeofences().keySet()) {
+            assertTrue(RegionGeofencePlanner.isRegionId(id));
+        }
+    }
+
+    @Test
+    public void regionSwaps_stayWithinBudgetInAtMostTwoCalls() {
+        RegionGeofencePlanner planner = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        planner.setPlaces(randomPlaces(50000, 5));
+        GeofenceRegistry registry = new GeofenceRegistry();
+        registry.clear();
+        CountingBackend backend = new CountingBackend();
+        registry.sync(planner.getActiveGeofences(), backend);
+
+        Random random = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            List<String> candidates = new ArrayList<>(planner.getActiveGeofences().keySet());
+            String regionId = candidates.get(random.nextInt(candidates.size()));
+            if (!RegionGeofencePlanner.isRegionId(regionId)) continue;
+            planner.onRegionEnter(regionId);
+            Map<String, GeofenceSpec> active = planner.getActiveGeofences();
+            assertTrue(active.size() <= MAX_GEOFENCES);
+            assertTrue(registry.sync(active, backend) <= 2);
+            assertEquals(active.keySet(), registry.getRegistered().keySet());
+        }
+    }
+
+    @Test
+    public void anchor_survivesRepartition() {
+        List<GeofenceSpec> places = randomPlaces(10000, 6);
+        RegionGeofencePlanner planner = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        planner.setPlaces(places);
+        String regionId = planner.getActiveGeofences().keySet().iterator().next();
+        planner.onRegionEnter(regionId);
+
+        // A new process restores the anchor from preferences
+        RegionGeofencePlanner restored = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        restored.setPlaces(places);
+        restored.setAnchor(planner.getAnchorLatitude(), planner.getAnchorLongitude(), true);
+        assertEquals(regionId, restored.getCurrentRegionId());
+        assertEquals(planner.getActiveGeofences().keySet(), restored.getActiveGeofences().keySet());
+    }
+
+    @Test
+    public void anchor_restoredBeforePlaces_isResolvedWithThem() {
+        List<GeofenceSpec> places = randomPlaces(10000, 7);
+        RegionGeofencePlanner planner = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        planner.setPlaces(places);
+        String regionId = planner.getActiveGeofences().keySet().iterator().next();
+        planner.onRegionEnter(regionId);
+
+        // Geofencing restores the anchor before it has read any place
+        RegionGeofencePlanner restored = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        restored.setAnchor(planner.getAnchorLatitude(), planner.getAnchorLongitude(), true);
+        assertNull(restored.getCurrentRegionId());
+        restored.setPlaces(places);
+        assertEquals(regionId, restored.getCurrentRegionId());
+        assertEquals(planner.getActiveGeofences().keySet(), restored.getActiveGeofences().keySet());
+        // Entering it again, e.g. on the initial trigger of a new registration, changes nothing
+        assertFalse(restored.onRegionEnter(regionId));
+
+        // Restored as outside, it stays outside
+        RegionGeofencePlanner outside = new RegionGeofencePlanner(MAX_GEOFENCES, TRANSITIONS);
+        outside.setAnchor(planner.getAnchorLatitude(), planner.getAnchorLongitude(), false);
+        outside.setPlaces(places);
+        assertNull(outside.getCurrentRegionId());
+    }
+
+    /**
+     * Places scattered over a metro area, with a few dense clusters
+     */
+    static List<GeofenceSpec> randomPlaces(int count, long seed) {
+        Random random = new Random(seed);
+        List<GeofenceSpec> places = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double lat;
+            double lng;
+            if (i % 4 == 0) {
+                // A dense cluster around one of 10 centers
+                int cluster = random.nextInt(10);
+                lat = -27.4 + cluster * 0.03 + random.nextGaussian() * 0.002;
+                lng = 153.0 + cluster * 0.02 + random.nextGaussian() * 0.002;
+            } else {
+                lat = -27.8 + random.nextDouble() * 0.8;
+                lng = 152.7 + random.nextDouble() * 0.8;
+            }
+            places.add(new GeofenceSpec("uid" + i, lat, lng, 50, TRANSITIONS));
+        }
+        return places;
+    }
+
+    private static class CountingBackend implements GeofenceRegistry.Backend {
+        @Override
+        public void addGeofences(List<GeofenceSpec> geofences) {
+        }
+
+        @Override
+        public void removeGeofences(List<String> requestIds) {
+        }
+
+        @Override
+        public void removeAllGeofences() {
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for the {@link RingerController} state machine
+ */
+public class RingerControllerTest {
+
+    private static final long HOLD = 60 * 1000;
+
+    @Test
+    public void leavingOneOfTwoOverlappingPlaces_staysSilent() {
+        RingerController controller = new RingerController(HOLD);
+        assertEquals(RingerController.RINGER_MODE_SILENT, enter(controller, 0, "a"));
+        assertEquals(RingerController.NO_CHANGE, enter(controller, 10, "b"));
+        assertEquals(RingerController.NO_CHANGE, exit(controller, 20, "a"));
+        assertEquals(RingerController.NO_CHANGE, controller.onDeadline(20 + HOLD));
+        assertEquals(RingerController.NO_DEADLINE, controller.getPendingDeadline());
+
+        assertEquals(RingerController.NO_CHANGE, exit(controller, 100, "b"));
+        assertEquals(100 + HOLD, controller.getPendingDeadline());
+        assertEquals(RingerController.RINGER_MODE_NORMAL, controller.onDeadline(100 + HOLD));
+    }
+
+    @Test
+    public void edgeFlapping_givesOneSilentAndOneNormal() {
+        RingerController controller = new RingerController(HOLD);
+        int changes = 0;
+        long time = 0;
+        for (int i = 0; i < 20; i++) {
+            if (enter(controller, time += 1000, "a") != RingerController.NO_CHANGE) changes++;
+            if (exit(controller, time += 1000, "a") != RingerController.NO_CHANGE) changes++;
+        }
+        assertEquals(1, changes);
+        assertEquals(RingerController.NO_CHANGE, controller.onDeadline(time + HOLD - 1));
+        assertEquals(RingerController.RINGER_MODE_NORMAL, controller.onDeadline(time + HOLD));
+        assertEquals(RingerController.NO_CHANGE, controller.onDeadline(time + 2 * HOLD));
+    }
+
+    @Test
+    public void lateTransition_settlesMissedDeadlineFirst() {
+        RingerController controller = new RingerController(HOLD);
+        enter(controller, 0, "a");
+        exit(controller, 1000, "a");
+        // The deadline alarm got lost, the next exit still restores the ringer
+        assertEquals(RingerController.RINGER_MODE_NORMAL, exit(controller, 1000 + 2 * HOLD, "b"));
+    }
+
+    @Test
+    public void repeatedEnter_isNotReappliedAndDwellCounts() {
+        RingerController controller = new RingerController(HOLD);
+        assertEquals(RingerController.RINGER_MODE_SILENT,
+                controller.onTransition(RingerController.TRANSITION_DWELL, ids("a"), 0));
+        assertEquals(RingerController.NO_CHANGE, enter(controller, 1, "a"));
+        assertEquals(RingerController.NO_CHANGE, controller.onTransition(99, ids("a"), 2));
+    }
+
+    @Test
+    public void restore_roundTripsState() {
+        RingerController controller = new RingerController(HOLD);
+        enter(controller, 0, "a");
+        enter(controller, 0, "b");
+        exit(controller, 5, "a");
+
+        RingerController restored = new RingerController(HOLD);
+        restored.restore(controller.getInsideIds(), controller.getPendingDeadline(), controller.getMode());
+        assertEquals(Collections.singleton("b"), restored.getInsideIds());
+        assertEquals(RingerController.RINGER_MODE_SILENT, restored.getMode());
+        assertEquals(RingerController.NO_CHANGE, exit(restored, 10, "b"));
+        assertEquals(RingerController.RINGER_MODE_NORMAL, restored.onDeadline(10 + HOLD));
+    }
+
+    @Test
+    public void forgottenPlace_restoresRingerAfterTheHold() {
+        RingerController controller = new RingerController(HOLD);
+        enter(controller, 0, "a");
+        enter(controller, 0, "b");
+        controller.forget(ids("a"), 5);
+        assertEquals(RingerController.NO_DEADLINE, controller.getPendingDeadline());
+        controller.forget(ids("b"), 10);
+        assertTrue(controller.getInsideIds().isEmpty());
+        // No EXIT will come, the deadline alone brings the ringer back
+        assertEquals(10 + HOLD, controller.getPendingDeadline());
+        assertEquals(RingerController.NO_CHANGE, controller.onDeadline(10 + HOLD - 1));
+        assertEquals(RingerController.RINGER_MODE_NORMAL, controller.onDeadline(10 + HOLD));
+        assertEquals(RingerController.NO_DEADLINE, controller.getPendingDeadline());
+    }
+
+    @Test
+    public void forgetAll_restoresRinger_unlessReEntered() {
+        RingerController controller = new RingerController(HOLD);
+        enter(controller, 0, "a");
+        controller.forgetAll(10);
+        assertEquals(RingerController.RINGER_MODE_NORMAL, controller.onDeadline(10 + HOLD));
+
+        // Fences added back report ENTER within the hold time, the ringer stays silent
+        enter(controller, 20 + HOLD, "a");
+        controller.forgetAll(30 + HOLD);
+        assertEquals(RingerController.NO_CHANGE, enter(controller, 40 + HOLD, "a"));
+        assertEquals(RingerController.NO_DEADLINE, controller.getPendingDeadline());
+        assertEquals(RingerController.RINGER_MODE_SILENT, controller.getMode());
+
+        // Nothing to restore when the ringer wasn't silenced
+        RingerController idle = new RingerController(HOLD);
+        idle.forgetAll(0);
+        assertEquals(RingerController.NO_DEADLINE, idle.getPendingDeadline());
+    }
+
+    private static int enter(RingerController controller, long time, String... ids) {
+        return controller.onTransition(RingerController.TRANSITION_ENTER, ids(ids), time);
+    }
+
+    private static int exit(RingerController controller, long time, String... ids) {
+        return controller.onTransition(RingerController.TRANSITION_EXIT, ids(ids), time);
+    }
+
+    private static List<String> ids(String... ids) {
+        return Arrays.asList(ids);
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for {@link SilenceRollup}, checked against a brute-force scan of the history
+ */
+public class SilenceRollupTest {
+
+    private static final long MINUTE = 60 * 1000;
+    // Has daylight saving, so some days are 23 or 25 hours long
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Australia/Sydney");
+
+    @Test
+    public void yearOfTransitions_matchesBruteForce() {
+        // Overlapping visits to three places, some of them across midnight and DST changes
+        Random random = new Random(2017);
+        String[] uids = {"library", "starbucks", "gardens"};
+        long start = new GregorianCalendar(2017, Calendar.JANUARY, 1).getTimeInMillis();
+        start -= start % MINUTE;
+        List<long[]> visits = new ArrayList<>();
+        List<Object[]> transitions = new ArrayList<>();
+        for (int place = 0; place < uids.length; place++) {
+            long time = start + random.nextInt(600) * MINUTE;
+            while (time < start + 365 * SilenceRollup.DAY_MILLIS) {
+                long enter = time;
+                long exit = enter + (1 + random.nextInt(random.nextInt(10) == 0 ? 2000 : 180)) * MINUTE;
+                visits.add(new long[]{place, enter, exit});
+                transitions.add(new Object[]{enter, uids[place], RingerController.TRANSITION_ENTER});
+                // Re-registration reports ENTER again while inside
+                if (random.nextInt(5) == 0) {
+                    transitions.add(new Object[]{enter + MINUTE / 2, uids[place], RingerController.TRANSITION_ENTER});
+                }
+                transitions.add(new Object[]{exit, uids[place], RingerController.TRANSITION_EXIT});
+                time = exit + (1 + random.nextInt(1500)) * MINUTE;
+            }
+        }
+        // Replay in time order, like the receiver would see them
+        Collections.sort(transitions, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return Long.compare((Long) a[0], (Long) b[0]);
+            }
+        });
+        MapStore store = new MapStore();
+        for (Object[] transition : transitions) {
+            SilenceRollup.onTransition(store, (String) transition[1], (Integer) transition[2],
+                    (Long) transition[0], ZONE);
+        }
+
+        // Brute force: walk every minute of every visit through a Calendar
+        Map<String, Long> daily = new HashMap<>();
+        Map<String, Long> weekly = new HashMap<>();
+        Calendar local = new GregorianCalendar(ZONE);
+        Calendar utc = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        for (long[] visit : visits) {
+            for (long t = visit[1]; t < visit[2]; t += MINUTE) {
+                local.setTimeInMillis(t);
+                utc.clear();
+                utc.set(local.get(Calendar.YEAR), local.get(Calendar.MONTH), local.get(Calendar.DAY_OF_MONTH));
+                long day = utc.getTimeInMillis() / SilenceRollup.DAY_MILLIS;
+                long monday = day - (local.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+                add(daily, uids[(int) visit[0]] + "/" + day, MINUTE);
+                add(weekly, uids[(int) visit[0]] + "/" + monday, MINUTE);
+            }
+        }
+
+        assertEquals(daily, store.daily);
+        Map<String, Long> weeklyByMonday = new HashMap<>();
+        for (Map.Entry<String, Long> entry : store.weekly.entrySet()) {
+            String[] parts = entry.getKey().split("/");
+            weeklyByMonday.put(parts[0] + "/" + (Long.parseLong(parts[1]) * 7 - 3), entry.getValue());
+        }
+        assertEquals(weekly, weeklyByMonday);
+        assertEquals(0, store.open.size());
+    }
+
+    @Test
+    public void exitWithoutEnter_isIgnored() {
+        MapStore store = new MapStore();
+        SilenceRollup.onTransition(store, "a", RingerController.TRANSITION_EXIT, 1000, ZONE);
+        assertEquals(0, store.daily.size());
+    }
+
+    @Test
+    public void dayAndWeekNumbers() {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        assertEquals(0, SilenceRollup.dayOf(0, utc));
+        assertEquals(-1, SilenceRollup.dayOf(-1, utc));
+        // 1970-01-01 was a Thursday, its week started on Monday 1969-12-29
+        assertEquals(0, SilenceRollup.weekOf(-3));
+        assertEquals(0, SilenceRollup.weekOf(3));
+        assertEquals(1, SilenceRollup.weekOf(4));
+        assertEquals(-1, SilenceRollup.weekOf(-4));
+        // Midnight in Sydney is 13:00 or 14:00 UTC the day before
+        long day = SilenceRollup.dayOf(new GregorianCalendar(2017, Calendar.JULY, 1).getTimeInMillis(), utc);
+        assertEquals(day * SilenceRollup.DAY_MILLIS - 10 * 60 * MINUTE, SilenceRollup.startOfDay(day, ZONE));
+    }
+
+    private static void add(Map<String, Long> map, String key, long millis) {
+        Long total = map.get(key);
+        map.put(key, total == null ? millis : total + millis);
+    }
+
+    private static class MapStore implements SilenceRollup.Store {
+        final Map<String, Long> open = new HashMap<>();
+        final Map<String, Long> daily = new HashMap<>();
+        final Map<String, Long> weekly = new HashMap<>();
+
+        @Override
+        public long getEnteredAt(String uid) {
+            Long enteredAt = open.get(uid);
+            return enteredAt == null ? SilenceRollup.NOT_INSIDE : enteredAt;
+        }
+
+        @Override
+        public void setEnteredAt(String uid, long timeMillis) {
+            open.put(uid, timeMillis);
+        }
+
+        @Override
+        public void clearEnteredAt(String uid) {
+            open.remove(uid);
+        }
+
+        @Override
+        public void addToDay(String uid, long day, long millis) {
+            add(daily, uid + "/" + day, millis);
+        }
+
+        @Override
+        public void addToWeek(String uid, long week, long millis) {
+            add(weekly, uid + "/" + week, millis);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.shushme;
+
+import org.kxml2.io.KXmlParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The places of test_locations.kml, shared by the local unit tests
+ */
+final class TestPlaces {
+
+    private TestPlaces() {
+    }
+
+    /**
+     * test_locations.kml sits at the root of the project, unit tests run from the app module, or
+     * from the root when run by an IDE
+     */
+    static File bundledKml() {
+        File file = new File("../test_locations.kml");
+        if (!file.exists()) file = new File("test_locations.kml");
+        return file;
+    }
+
+    /**
+     * @return the places of test_locations.kml, read with {@link PlaceImporter}
+     */
+    static List<PlaceRecord> bundledPlaces() throws Exception {
+        final List<PlaceRecord> places = new ArrayList<>();
+        PlaceImporter importer = new PlaceImporter(new PlaceImporter.Sink() {
+            @Override
+            public void insert(List<PlaceRecord> batch) {
+                places.addAll(batch);
+            }
+        }, PlaceImporter.DEFAULT_BATCH_SIZE);
+        Reader reader = new InputStreamReader(new FileInputStream(bundledKml()), "UTF-8");
+        try {
+            importer.importFrom(reader, PlaceImporter.FORMAT_KML, new KXmlParser());
+        } finally {
+            reader.close();
+        }
+        return places;
+    }
+}
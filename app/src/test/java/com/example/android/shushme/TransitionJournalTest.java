@@ -0,0 +1,128 @@
+package com.example.android.shushme;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link TransitionJournal}
+ */
+public class TransitionJournalTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("journal", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void appendedRecords_areReadBackInOrder() throws IOException {
+        TransitionJournal journal = new TransitionJournal(mDirectory, TransitionJournal.DEFAULT_MAX_BYTES);
+        journal.append(1000, "ChIJN1t_tDeuEmsRUsoyG83frY4", RingerController.TRANSITION_ENTER,
+                RingerController.RINGER_MODE_NORMAL, RingerController.RINGER_MODE_SILENT);
+        journal.append(2000, null, TransitionJournal.TRANSITION_HOLD_EXPIRED,
+                RingerController.RINGER_MODE_SILENT, RingerController.RINGER_MODE_NORMAL);
+        journal.close();
+
+        List<String> records = readAll();
+        assertEquals(2, records.size());
+        assertEquals("1000 ChIJN1t_tDeuEmsRUsoyG83frY4 1 2 0", records.get(0));
+        assertEquals("2000 null 8 0 2", records.get(1));
+        assertEquals(2 * TransitionJournal.RECORD_SIZE,
+                new File(mDirectory, TransitionJournal.FILE_NAME).length());
+    }
+
+    @Test
+    public void longUid_isTruncated() throws IOException {
+        StringBuilder uid = new StringBuilder();
+        while (uid.length() < 300) uid.append("abcdef");
+        TransitionJournal journal = new TransitionJournal(mDirectory, TransitionJournal.DEFAULT_MAX_BYTES);
+        journal.append(1, uid.toString(), RingerController.TRANSITION_EXIT, 0, 2);
+        journal.close();
+        assertEquals("1 " + uid.substring(0, TransitionJournal.MAX_UID_BYTES) + " 2 0 2", readAll().get(0));
+    }
+
+    @Test
+    public void rotation_keepsTheNewestRecordsWithinTwiceTheLimit() throws IOException {
+        int perFile = 10;
+        TransitionJournal journal = new TransitionJournal(mDirectory, perFile * TransitionJournal.RECORD_SIZE);
+        for (int i = 0; i < 55; i++) journal.append(i, "place" + i, RingerController.TRANSITION_ENTER, 2, 0);
+        journal.close();
+
+        List<String> records = readAll();
+        // 50 records went to files that were rotated away twice or more
+        assertEquals(15, records.size());
+        assertEquals("40 place40 1 2 0", records.get(0));
+        assertEquals("54 place54 1 2 0", records.get(14));
+        assertTrue(new File(mDirectory, TransitionJournal.FILE_NAME).length()
+                <= perFile * TransitionJournal.RECORD_SIZE);
+    }
+
+    @Test
+    public void partialRecord_isDroppedOnReopen() throws IOException {
+        TransitionJournal journal = new TransitionJournal(mDirectory, TransitionJournal.DEFAULT_MAX_BYTES);
+        journal.append(1, "a", RingerController.TRANSITION_ENTER, 2, 0);
+        journal.close();
+        // The process died in the middle of the next append
+        FileOutputStream out = new FileOutputStream(new File(mDirectory, TransitionJournal.FILE_NAME), true);
+        out.write(new byte[40]);
+        out.close();
+        assertEquals(1, readAll().size());
+
+        journal = new TransitionJournal(mDirectory, TransitionJournal.DEFAULT_MAX_BYTES);
+        journal.append(2, "b", RingerController.TRANSITION_EXIT, 0, 0);
+        journal.close();
+        List<String> records = readAll();
+        assertEquals(2, records.size());
+        assertEquals("2 b 2 0 0", records.get(1));
+    }
+
+    @Test
+    public void append_doesNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        TransitionJournal journal = new TransitionJournal(mDirectory, TransitionJournal.DEFAULT_MAX_BYTES);
+        String uid = "ChIJN1t_tDeuEmsRUsoyG83frY4";
+        // Opens the file and warms up
+        for (int i = 0; i < 100; i++) journal.append(i, uid, 1, 2, 0);
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000; i++) journal.append(i, uid, 1, 2, 0);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        journal.close();
+        // Allow for the bookkeeping of the measurement itself
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1000);
+    }
+
+    private List<String> readAll() throws IOException {
+        final List<String> records = new ArrayList<>();
+        TransitionJournal.read(mDirectory, new TransitionJournal.Visitor() {
+            @Override
+            public void visit(long timeMillis, String uid, int transition, int previousMode, int newMode) {
+                records.add(timeMillis + " " + uid + " " + transition + " " + previousMode + " " + newMode);
+            }
+        });
+        return records;
+    }
+}
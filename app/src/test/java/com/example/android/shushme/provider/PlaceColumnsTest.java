@@ -0,0 +1,183 @@
+package com.example.android.shushme.provider;
+
+import com.example.android.shushme.GeoMath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit tests for {@link PlaceColumns}
+ */
+public class PlaceColumnsTest {
+
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("columns", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mFile = new File(mDirectory, PlaceColumns.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void builder_keepsPlacesSortedById() {
+        PlaceColumns.Builder builder = new PlaceColumns.Builder();
+        for (int id = 1; id <= 40; id++) builder.put(id, "uid" + id, id, -id);
+        builder.put(0, "first", -33.8670522, 151.1957362);
+        builder.put(20, "replaced", 1.5, 2.5);
+        builder.remove(10).remove(41);
+        PlaceColumns columns = builder.build();
+
+        assertEquals(40, columns.size());
+        for (int i = 1; i < columns.size(); i++) assertTrue(columns.getId(i - 1) < columns.getId(i));
+        assertEquals("first", columns.getUid(0));
+        assertEquals(-338670522, columns.getLatitudeE7(0));
+        assertEquals(1511957362, columns.getLongitudeE7(0));
+        assertEquals("replaced", columns.getUid(columns.indexOfId(20)));
+        assertEquals(2.5, columns.getLongitude(columns.indexOfId(20)), 0);
+        assertTrue(columns.indexOfId(10) < 0);
+        assertEquals(39, columns.indexOfId(40));
+
+        assertEquals(0, builder.clear().build().size());
+    }
+
+    @Test
+    public void writtenColumns_areMappedBack() throws IOException {
+        PlaceColumns.Builder builder = new PlaceColumns.Builder();
+        builder.put(3, "caf\u00e9", 89.9999999, -179.9999999);
+        builder.put(7, "", -90, 180);
+        builder.writeTo(mFile);
+        PlaceColumns columns = PlaceColumns.map(mFile);
+
+        assertEquals(2, columns.size());
+        assertEquals(3, columns.getId(0));
+        assertEquals("caf\u00e9", columns.getUid(0));
+        assertEquals(899999999, columns.getLatitudeE7(0));
+        assertEquals(-1799999999, columns.getLongitudeE7(0));
+        assertEquals("", columns.getUid(1));
+        assertEquals(1800000000, columns.getLongitudeE7(1));
+
+        // A builder started from the mapped columns can be edited and written over the file
+        new PlaceColumns.Builder(columns).remove(3).put(8, "uid8", 1, 1).writeTo(mFile);
+        columns = PlaceColumns.map(mFile);
+        assertEquals(2, columns.size());
+        assertEquals(8, columns.getId(1));
+        assertEquals("uid8", columns.getUid(1));
+    }
+
+    @Test
+    public void badFiles_areRejected() throws IOException {
+        try {
+            PlaceColumns.map(mFile);
+            fail("Mapped a missing file");
+        } catch (FileNotFoundException expected) {
+        }
+        new PlaceColumns.Builder().put(1, "uid", 1, 1).writeTo(mFile);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        try {
+            PlaceColumns.map(mFile);
+            fail("Mapped a truncated file");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void millionPlaces_areScannedWithoutAllocating() throws IOException {
+        Random random = new Random(5);
+        PlaceColumns.Builder builder = new PlaceColumns.Builder();
+        for (int id = 1; id <= 1000000; id++) {
+            builder.put(id, "ChIJ" + id, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+        }
+        builder.writeTo(mFile);
+        PlaceColumns columns = PlaceColumns.map(mFile);
+        assertEquals(1000000, columns.size());
+
+        int[] indexes = new int[columns.size()];
+        double[] distances = new double[columns.size()];
+        for (int i = 0; i < 5; i++) {
+            countNorthEast(columns);
+            columns.nearest(-27.47, 153.02, 0, 10, indexes, distances);
+        }
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        boolean measurable = bean instanceof com.sun.management.ThreadMXBean;
+        long before = measurable ? ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread) : 0;
+        int count = countNorthEast(columns);
+        int nearest = columns.nearest(-27.47, 153.02, 0, 10, indexes, distances);
+        if (measurable) {
+            long allocated = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread) - before;
+            // Allow for the bookkeeping of the measurement itself
+            assertTrue("Allocated " + allocated + " bytes", allocated < 1000);
+        }
+        assertTrue(count > 200000 && count < 300000);
+        assertEquals(10, nearest);
+    }
+
+    @Test
+    public void nearest_matchesBruteForce() {
+        Random random = new Random(7);
+        PlaceColumns.Builder builder = new PlaceColumns.Builder();
+        for (int id = 1; id <= 10000; id++) {
+            builder.put(id, "uid" + id, -28 + random.nextDouble() * 2, 152 + random.nextDouble() * 2);
+        }
+        PlaceColumns columns = builder.build();
+        int[] indexes = new int[columns.size()];
+        double[] distances = new double[columns.size()];
+        double[] all = new double[columns.size()];
+
+        double[][] queries = {{-27, 153, 5000, 0}, {-27, 153, 5000, 10}, {-27.5, 152.5, 0, 25},
+                {-27, 153, 0, 0}, {40, -74, 1000, 0}, {40, -74, 0, 3}};
+        for (double[] query : queries) {
+            double radius = query[2];
+            int limit = (int) query[3];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = GeoMath.distance(query[0], query[1], columns.getLatitude(i), columns.getLongitude(i));
+            }
+            int within = 0;
+            for (double distance : all) if (radius <= 0 || distance <= radius) within++;
+            int expected = limit > 0 ? Math.min(limit, within) : within;
+            int[] sorted = GeoMath.smallestK(all, all.length, expected);
+
+            int count = columns.nearest(query[0], query[1], radius, limit, indexes, distances);
+            assertEquals(expected, count);
+            for (int i = 0; i < count; i++) {
+                assertEquals(all[sorted[i]], distances[i], 1e-6);
+                assertEquals(all[indexes[i]], distances[i], 0);
+                if (i > 0) assertTrue(distances[i - 1] <= distances[i]);
+            }
+        }
+    }
+
+    private static int countNorthEast(PlaceColumns columns) {
+        int count = 0;
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.getLatitudeE7(i) > 0 && columns.getLongitudeE7(i) > 0) count++;
+        }
+        return count;
+    }
+}
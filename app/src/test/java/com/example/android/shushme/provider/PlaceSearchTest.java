@@ -0,0 +1,153 @@
+package com.example.android.shushme.provider;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link PlaceSearch}, against matchinfo blobs laid out like SQLite's
+ */
+public class PlaceSearchTest {
+
+    @Test
+    public void matchQuery_prefixesEveryWord() {
+        assertEquals("queen*", PlaceSearch.toMatchQuery("Queen"));
+        assertEquals("queen* st*", PlaceSearch.toMatchQuery("  QUEEN st "));
+        assertEquals("42* wickham*", PlaceSearch.toMatchQuery("42 Wickham"));
+        // Split where the simple tokenizer splits, only ASCII is folded
+        assertEquals("o* reilly* s*", PlaceSearch.toMatchQuery("O'Reilly's"));
+        assertEquals("caf\u00c9*", PlaceSearch.toMatchQuery("CAF\u00c9"));
+        assertNull(PlaceSearch.toMatchQuery(""));
+        assertNull(PlaceSearch.toMatchQuery(" , "));
+        assertNull(PlaceSearch.toMatchQuery(null));
+    }
+
+    @Test
+    public void matchQuery_dropsQuerySyntax() {
+        // Operators are only operators in capitals, quotes, stars and brackets are separators
+        assertEquals("cafe* or* library*", PlaceSearch.toMatchQuery("cafe OR library"));
+        assertEquals("gym* not* pool*", PlaceSearch.toMatchQuery("gym -NOT pool"));
+        assertEquals("a* b* c*", PlaceSearch.toMatchQuery("\"a* (b\" c:"));
+    }
+
+    @Test
+    public void namePrefix_onlyForWordsTooShortToRank() {
+        assertEquals("w", PlaceSearch.toNamePrefix(" W "));
+        assertEquals("o'r", PlaceSearch.toNamePrefix("O'R"));
+        assertEquals("\u00c9", PlaceSearch.toNamePrefix("\u00c9"));
+        assertNull(PlaceSearch.toNamePrefix("wi"));
+        assertNull(PlaceSearch.toNamePrefix("w ick"));
+        assertNull(PlaceSearch.toNamePrefix(" , "));
+        assertNull(PlaceSearch.toNamePrefix(null));
+        assertEquals("x", PlaceSearch.afterPrefix("w"));
+        assertEquals("o's", PlaceSearch.afterPrefix("o'r"));
+        assertEquals("b", PlaceSearch.afterPrefix("a\uffff"));
+        assertNull(PlaceSearch.afterPrefix("\uffff"));
+    }
+
+    @Test
+    public void score_prefersNameHits_andRareWords() {
+        // One word, found in the name or the address of a place, and as often in every place
+        double inName = PlaceSearch.score(matchinfo(1, 1, 10, 5, 0, 10, 5));
+        double inAddress = PlaceSearch.score(matchinfo(1, 0, 10, 5, 1, 10, 5));
+        assertTrue(inName > inAddress);
+        // The same hit, of a word found in fewer places
+        double rare = PlaceSearch.score(matchinfo(1, 1, 2, 1, 0, 10, 5));
+        assertTrue(rare > inName);
+        // Two words, both found
+        double both = PlaceSearch.score(matchinfo(2, 1, 10, 5, 0, 0, 0, 0, 0, 0, 1, 10, 5));
+        assertTrue(both > inName);
+        assertEquals(0, PlaceSearch.score(matchinfo(1, 0, 10, 5, 0, 10, 5)), 0);
+    }
+
+    @Test
+    public void ranker_returnsBestFirst_tiesById() {
+        PlaceSearch.Ranker ranker = new PlaceSearch.Ranker(12);
+        byte[] name = matchinfo(1, 1, 10, 5, 0, 10, 5);
+        byte[] address = matchinfo(1, 0, 10, 5, 1, 10, 5);
+        for (long id = 100; id > 0; id--) ranker.add(id, id % 10 == 0 ? name : address);
+        assertEquals(100, ranker.size());
+        assertArrayEquals(new long[]{10, 20, 30, 40, 50, 60, 70, 80, 90, 100, 1, 2}, ranker.top());
+        PlaceSearch.Ranker all = new PlaceSearch.Ranker(PlaceSearch.MAX_RESULTS);
+        for (long id = 1; id <= 100; id++) all.add(id, address);
+        assertEquals(100, all.top().length);
+        assertEquals(0, new PlaceSearch.Ranker(10).top().length);
+    }
+
+    /**
+     * Every match is scored, so the best places win wherever they are in _ID order
+     */
+    @Test
+    public void rankingAt100kMatches_keepsTheBest() {
+        Random random = new Random(1);
+        byte[][] blobs = new byte[100000][];
+        Long[] ids = new Long[blobs.length];
+        for (int i = 0; i < blobs.length; i++) {
+            // Two words typed, found in some names and many addresses
+            blobs[i] = matchinfo(2, random.nextInt(3), 60000, 40000, random.nextInt(2), 90000, 80000,
+                    random.nextInt(2), 5000, 4000, random.nextInt(3), 30000, 20000);
+            ids[i] = (long) i + 1;
+        }
+        // The only exact name match comes last
+        blobs[blobs.length - 1] = matchinfo(2, 5, 60000, 40000, 0, 90000, 80000,
+                5, 5000, 4000, 0, 30000, 20000);
+        final double[] scores = new double[blobs.length];
+        for (int i = 0; i < blobs.length; i++) scores[i] = PlaceSearch.score(blobs[i]);
+        Arrays.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                int byScore = Double.compare(scores[(int) (b - 1)], scores[(int) (a - 1)]);
+                return byScore != 0 ? byScore : a.compareTo(b);
+            }
+        });
+
+        PlaceSearch.Ranker ranker = new PlaceSearch.Ranker(200);
+        for (int i = 0; i < blobs.length; i++) ranker.add(i + 1, blobs[i]);
+        long[] top = ranker.top();
+        assertEquals(blobs.length, ranker.size());
+        assertEquals(200, top.length);
+        assertEquals(blobs.length, top[0]);
+        for (int i = 0; i < top.length; i++) assertEquals((long) ids[i], top[i]);
+    }
+
+    /**
+     * A search that matches all of a 100k place table must still leave SQLite most of the time
+     */
+    @Test
+    public void rankingAt100kMatches_takesUnder10ms() {
+        Random random = new Random(2);
+        byte[][] blobs = new byte[100000][];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = matchinfo(1, random.nextInt(2), 60000, 40000, random.nextInt(3), 90000, 80000);
+        }
+        long best = Long.MAX_VALUE;
+        // The best of a few searches, once the JIT compiled it
+        for (int search = 0; search < 20; search++) {
+            long start = System.nanoTime();
+            PlaceSearch.Ranker ranker = new PlaceSearch.Ranker(200);
+            for (int i = 0; i < blobs.length; i++) ranker.add(i + 1, blobs[i]);
+            assertEquals(200, ranker.top().length);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertTrue("took " + best / 1e6 + " ms", best < 10000000);
+    }
+
+    /**
+     * @return a matchinfo 'pcx' blob: the phrase count, 2 columns, then the triples
+     */
+    private static byte[] matchinfo(int phrases, int... triples) {
+        ByteBuffer buffer = ByteBuffer.allocate((2 + triples.length) * 4).order(ByteOrder.nativeOrder());
+        buffer.putInt(phrases).putInt(2);
+        for (int value : triples) buffer.putInt(value);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.android.shushme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning place rows into geofences, as {@code Geofencing.updateGeofencesList} does.
+ * A Cursor can't be created on a plain JVM, so rows are served by a column-oriented stand-in
+ * that, like a CursorWindow, resolves column names with a map lookup and reads typed cells.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CursorDecodeBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int places;
+
+    private RowSource mRows;
+
+    @Setup
+    public void setUp() {
+        mRows = new RowSource(new SyntheticPlaces(places, 1));
+    }
+
+    /**
+     * Column indices looked up for every row, as the code did originally
+     */
+    @Benchmark
+    public void decodePerRowColumnLookup(Blackhole blackhole) {
+        RowSource rows = mRows;
+        for (int row = 0; row < rows.count; row++) {
+            String uid = rows.getString(row, rows.getColumnIndex("placeUID"));
+            double lat = rows.getDouble(row, rows.getColumnIndex("placeLatitude"));
+            double lng = rows.getDouble(row, rows.getColumnIndex("placeLongitude"));
+            blackhole.consume(new GeofenceSpec(uid, lat, lng, SyntheticPlaces.RADIUS,
+                    SyntheticPlaces.TRANSITIONS));
+        }
+    }
+
+    /**
+     * Column indices resolved once per cursor
+     */
+    @Benchmark
+    public void decodeCachedColumnIndices(Blackhole blackhole) {
+        RowSource rows = mRows;
+        int uidIndex = rows.getColumnIndex("placeUID");
+        int latIndex = rows.getColumnIndex("placeLatitude");
+        int lngIndex = rows.getColumnIndex("placeLongitude");
+        for (int row = 0; row < rows.count; row++) {
+            blackhole.consume(new GeofenceSpec(rows.getString(row, uidIndex),
+                    rows.getDouble(row, latIndex), rows.getDouble(row, lngIndex),
+                    SyntheticPlaces.RADIUS, SyntheticPlaces.TRANSITIONS));
+        }
+    }
+
+    private static final class RowSource {
+        final int count;
+        final Object[][] columns;
+        final Map<String, Integer> columnIndices = new HashMap<>();
+
+        RowSource(SyntheticPlaces places) {
+            count = places.size();
+            String[] names = {"_id", "placeUID", "placeName", "placeAddress", "placeLatitude",
+                    "placeLongitude"};
+            for (int i = 0; i < names.length; i++) columnIndices.put(names[i], i);
+            columns = new Object[names.length][count];
+            for (int row = 0; row < count; row++) {
+                columns[0][row] = (long) row;
+                columns[1][row] = places.uids[row];
+                columns[2][row] = "Place " + row;
+                columns[3][row] = "Address " + row;
+                columns[4][row] = places.latitudes[row];
+                columns[5][row] = places.longitudes[row];
+            }
+        }
+
+        int getColumnIndex(String name) {
+            Integer index = columnIndices.get(name);
+            return index == null ? -1 : index;
+        }
+
+        String getString(int row, int column) {
+            return (String) columns[column][row];
+        }
+
+        double getDouble(int row, int column) {
+            return (Double) columns[column][row];
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.shushme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link GeofenceRegistry#sync} computing the add/remove delta for a reload in which
+ * 1% of the places changed, and the cost of re-partitioning into region fences.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GeofenceDiffBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int places;
+
+    private List<GeofenceSpec> mSpecs;
+    private Map<String, GeofenceSpec> mOriginal;
+    private Map<String, GeofenceSpec> mChanged;
+    private GeofenceRegistry mRegistry;
+
+    private static final GeofenceRegistry.Backend NO_OP = new GeofenceRegistry.Backend() {
+        @Override
+        public void addGeofences(List<GeofenceSpec> geofences) {
+        }
+
+        @Override
+        public void removeGeofences(List<String> requestIds) {
+        }
+
+        @Override
+        public void removeAllGeofences() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        SyntheticPlaces synthetic = new SyntheticPlaces(places, 2);
+        mSpecs = synthetic.specs();
+        mOriginal = synthetic.specMap();
+        mChanged = new LinkedHashMap<>(mOriginal);
+        int step = 100;
+        for (int i = 0; i < mSpecs.size(); i += step) {
+            GeofenceSpec spec = mSpecs.get(i);
+            mChanged.put(spec.requestId, new GeofenceSpec(spec.requestId, spec.latitude + 1e-4,
+                    spec.longitude, spec.radius, spec.transitionTypes));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void resetRegistry() {
+        mRegistry = new GeofenceRegistry();
+        mRegistry.clear();
+        mRegistry.sync(mOriginal, NO_OP);
+    }
+
+    @Benchmark
+    public int diffOnePercentChanged() {
+        return mRegistry.sync(mChanged, NO_OP);
+    }
+
+    @Benchmark
+    public int diffUnchanged() {
+        return mRegistry.sync(mOriginal, NO_OP);
+    }
+
+    @Benchmark
+    public Map<String, GeofenceSpec> partitionIntoRegions() {
+        RegionGeofencePlanner planner = new RegionGeofencePlanner(100, SyntheticPlaces.TRANSITIONS);
+        planner.setPlaces(mSpecs);
+        return planner.getActiveGeofences();
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.android.shushme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replay speed of {@link GeofenceSimulator}, reported per location fix, driving the ringer
+ * decisions of {@link RingerController}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GeofenceSimulatorBenchmark {
+
+    private static final int FIXES = 1000000;
+
+    @Param({"100", "10000", "1000000"})
+    public int places;
+
+    private GeofenceSimulator mSimulator;
+    private LocationTrace mTrace;
+
+    @Setup
+    public void setUp() {
+        mSimulator = new GeofenceSimulator(new SyntheticPlaces(places, 2).specs());
+        mSimulator.setHandler(new GeofenceSimulator.RingerModeCounter(new RingerController()));
+        mTrace = LocationTrace.randomWalk(FIXES, -27.4, 153.0, 5, 1000, 3);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long replayTrace() {
+        mSimulator.reset();
+        return mSimulator.replay(mTrace);
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.shushme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Haversine containment and nearest-K selection over all places, the work the provider's
+ * places/near query does on its bounding box candidates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GeometryBenchmark {
+
+    private static final double CENTER_LAT = -27.4703356;
+    private static final double CENTER_LNG = 153.0257259;
+    private static final int K = 10;
+
+    @Param({"100", "10000", "1000000"})
+    public int places;
+
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private double[] mDistances;
+
+    @Setup
+    public void setUp() {
+        SyntheticPlaces synthetic = new SyntheticPlaces(places, 3);
+        mLatitudes = synthetic.latitudes;
+        mLongitudes = synthetic.longitudes;
+        mDistances = new double[places];
+        for (int i = 0; i < places; i++) {
+            mDistances[i] = GeoMath.distance(CENTER_LAT, CENTER_LNG, mLatitudes[i], mLongitudes[i]);
+        }
+    }
+
+    /**
+     * Counts the places whose 50 m fence contains the point
+     */
+    @Benchmark
+    public int haversineContainment() {
+        int inside = 0;
+        for (int i = 0; i < mLatitudes.length; i++) {
+            if (GeoMath.distance(CENTER_LAT, CENTER_LNG, mLatitudes[i], mLongitudes[i])
+                    <= SyntheticPlaces.RADIUS) {
+                inside++;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Same containment check, rejecting most places with a bounding box first
+     */
+    @Benchmark
+    public int boundingBoxThenHaversine() {
+        double[] box = GeoMath.boundingBox(CENTER_LAT, CENTER_LNG, SyntheticPlaces.RADIUS);
+        int inside = 0;
+        for (int i = 0; i < mLatitudes.length; i++) {
+            double lat = mLatitudes[i];
+            double lng = mLongitudes[i];
+            if (lat < box[0] || lat > box[1] || lng < box[2] || lng > box[3]) continue;
+            if (GeoMath.distance(CENTER_LAT, CENTER_LNG, lat, lng) <= SyntheticPlaces.RADIUS) {
+                inside++;
+            }
+        }
+        return inside;
+    }
+
+    @Benchmark
+    public int[] nearestKHeap() {
+        return GeoMath.smallestK(mDistances, mDistances.length, K);
+    }
+
+    @Benchmark
+    public double[] nearestKFullSort() {
+        double[] sorted = Arrays.copyOf(mDistances, mDistances.length);
+        Arrays.sort(sorted);
+        return Arrays.copyOf(sorted, Math.min(K, sorted.length));
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.shushme;
+
+import com.example.android.shushme.provider.PlaceColumns;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scan behind the provider's places/near query: the memory-mapped {@link PlaceColumns} the
+ * provider reads, against the same scan over {@link PlaceRecord} objects as held in memory by
+ * PlaceRepository. Both return the nearest places with their distances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlaceColumnsNearBenchmark {
+
+    private static final double CENTER_LAT = -27.4703356;
+    private static final double CENTER_LNG = 153.0257259;
+    private static final int K = 10;
+
+    @Param({"100", "10000", "1000000"})
+    public int places;
+
+    // 0 for the nearest K places anywhere, as the place list asks for
+    @Param({"0", "1000"})
+    public double radius;
+
+    private File mFile;
+    private PlaceColumns mColumns;
+    private List<PlaceRecord> mRecords;
+    private int[] mIndexes;
+    private double[] mDistances;
+
+    @Setup
+    public void setUp() throws IOException {
+        SyntheticPlaces synthetic = new SyntheticPlaces(places, 4);
+        PlaceColumns.Builder builder = new PlaceColumns.Builder();
+        mRecords = new ArrayList<>(places);
+        for (int i = 0; i < places; i++) {
+            builder.put(i + 1, synthetic.uids[i], synthetic.latitudes[i], synthetic.longitudes[i]);
+            mRecords.add(new PlaceRecord(i + 1, synthetic.uids[i], "Place " + i, null,
+                    synthetic.latitudes[i], synthetic.longitudes[i]));
+        }
+        mFile = File.createTempFile("places", ".columns");
+        builder.writeTo(mFile);
+        mColumns = PlaceColumns.map(mFile);
+        mIndexes = new int[places];
+        mDistances = new double[places];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int mappedColumns() {
+        return mColumns.nearest(CENTER_LAT, CENTER_LNG, radius, radius > 0 ? 0 : K, mIndexes,
+                mDistances);
+    }
+
+    /**
+     * Distance to every record, then the same selection
+     */
+    @Benchmark
+    public int placeRecords() {
+        int count = 0;
+        int[] indexes = mIndexes;
+        double[] distances = mDistances;
+        for (int i = 0; i < mRecords.size(); i++) {
+            PlaceRecord record = mRecords.get(i);
+            double distance = GeoMath.distance(CENTER_LAT, CENTER_LNG, record.latitude, record.longitude);
+            if (radius > 0 && distance > radius) continue;
+            indexes[count] = i;
+            distances[count++] = distance;
+        }
+        return GeoMath.smallestK(distances, count, radius > 0 ? count : K).length;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.android.shushme;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic place sets shared by the benchmarks: places spread over a metro area
+ * with a quarter of them in dense clusters, like a chain of shops.
+ */
+final class SyntheticPlaces {
+
+    static final int TRANSITIONS = 3; // ENTER | EXIT
+    static final float RADIUS = 50;
+
+    final String[] uids;
+    final double[] latitudes;
+    final double[] longitudes;
+
+    SyntheticPlaces(int count, long seed) {
+        uids = new String[count];
+        latitudes = new double[count];
+        longitudes = new double[count];
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            uids[i] = "ChIJ" + Long.toHexString(random.nextLong()) + i;
+            if (i % 4 == 0) {
+                int cluster = random.nextInt(10);
+                latitudes[i] = -27.4 + cluster * 0.03 + random.nextGaussian() * 0.002;
+                longitudes[i] = 153.0 + cluster * 0.02 + random.nextGaussian() * 0.002;
+            } else {
+                latitudes[i] = -27.8 + random.nextDouble() * 0.8;
+                longitudes[i] = 152.7 + random.nextDouble() * 0.8;
+            }
+        }
+    }
+
+    int size() {
+        return uids.length;
+    }
+
+    List<GeofenceSpec> specs() {
+        List<GeofenceSpec> specs = new ArrayList<>(uids.length);
+        for (int i = 0; i < uids.length; i++) {
+            specs.add(new GeofenceSpec(uids[i], latitudes[i], longitudes[i], RADIUS, TRANSITIONS));
+        }
+        return specs;
+    }
+
+    Map<String, GeofenceSpec> specMap() {
+        Map<String, GeofenceSpec> map = new LinkedHashMap<>();
+        for (GeofenceSpec spec : specs()) map.put(spec.requestId, spec);
+        return map;
+    }
+}